@@ -3,6 +3,7 @@ package com.chanapps.four;
 import java.util.Locale;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.preference.PreferenceManager;
@@ -43,10 +44,23 @@ public class ChanuApp extends GalleryAppImpl
     public void onCreate() {
         super.onCreate();
         ChanFileStorage.migrateIfNecessary(getApplicationContext());
+        ChanFileStorage.initCaches(getApplicationContext());
         forceLocaleIfConfigured();
         if (DEBUG) Log.i(TAG, "onCreate() activity=" + NetworkProfileManager.instance().getActivityId());
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ChanFileStorage.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ChanFileStorage.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -70,6 +70,9 @@ public class SettingsActivity extends Activity implements ChanIdentifiedActivity
     public static final String PREF_USE_FAST_SCROLL = "pref_use_fast_scroll";
     public static final String PREF_SHARE_IMAGE_URL = "pref_share_image_url";
     public static final String PREF_FORCE_ENGLISH = "pref_force_english";
+    // prefetch budget of a run in kB and seconds, kept as strings, the key ends with the lower case network class
+    public static final String PREF_PREFETCH_BUDGET_KB = "pref_prefetch_budget_kb_";
+    public static final String PREF_PREFETCH_BUDGET_SECS = "pref_prefetch_budget_secs_";
 
     static public boolean shouldLoadThumbs(Context context) {
         String autoloadType = PreferenceManager.getDefaultSharedPreferences(context)
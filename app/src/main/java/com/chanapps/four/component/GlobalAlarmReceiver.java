@@ -15,7 +15,9 @@ import com.chanapps.four.data.ChanFileStorage;
 import com.chanapps.four.data.ChanPost;
 import com.chanapps.four.service.CleanUpService;
 import com.chanapps.four.service.FetchChanDataService;
+import com.chanapps.four.service.FetchWatchlistService;
 import com.chanapps.four.service.NetworkProfileManager;
+import com.chanapps.four.service.PrefetchPlanner;
 import com.chanapps.four.service.profile.NetworkProfile;
 import com.chanapps.four.widget.WidgetProviderUtils;
 
@@ -31,9 +33,11 @@ public class GlobalAlarmReceiver extends BroadcastReceiver {
     public static final String TAG = GlobalAlarmReceiver.class.getSimpleName();
 
     public static final String GLOBAL_ALARM_RECEIVER_SCHEDULE_ACTION = "com.chanapps.four.component.GlobalAlarmReceiver.schedule";
+    public static final String GLOBAL_ALARM_RECEIVER_WATCHLIST_ACTION = "com.chanapps.four.component.GlobalAlarmReceiver.watchlist";
 
     private static final long WIDGET_UPDATE_INTERVAL_MS = AlarmManager.INTERVAL_HOUR; // FIXME should be configurable
     //private static final long WIDGET_UPDATE_INTERVAL_MS = 60000; // 60 sec, just for testing
+    private static final long MIN_WATCHLIST_ALARM_MS = 5 * 60000; // background polls of fast threads wait this long
     private static final boolean DEBUG = false;
 
     @Override
@@ -56,6 +60,16 @@ public class GlobalAlarmReceiver extends BroadcastReceiver {
                     updateAndFetch(context);
                 }
             }).start();
+        }
+        else if (GLOBAL_ALARM_RECEIVER_WATCHLIST_ACTION.equals(action)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    NetworkProfileManager.NetworkBroadcastReceiver.checkNetwork(context);
+                    if (canFetchInBackground(context))
+                        fetchWatchlistThreads(context, true);
+                }
+            }).start();
         } else {
             Log.e(TAG, "Received unknown action: " + action);
         }
@@ -69,22 +83,11 @@ public class GlobalAlarmReceiver extends BroadcastReceiver {
         //}
         WidgetProviderUtils.updateAll(context);
         NetworkProfileManager.NetworkBroadcastReceiver.checkNetwork(context); // always check since state may have changed
-        NetworkProfile profile = NetworkProfileManager.instance().getCurrentProfile();
-        boolean backgroundDataOnMobile = PreferenceManager
-                .getDefaultSharedPreferences(context)
-                .getBoolean(SettingsActivity.PREF_BACKGROUND_DATA_ON_MOBILE, false);
-        if (DEBUG) Log.i(TAG, "updateAndFetch network profile=" + profile + " health=" + profile.getConnectionHealth());
-        if (profile.getConnectionHealth() == NetworkProfile.Health.NO_CONNECTION ||
-                profile.getConnectionHealth() == NetworkProfile.Health.BAD) {
-            if (DEBUG) Log.i(TAG, "updateAndFetch no connection, skipping fetch");
-        }
-        else if (profile.getConnectionType() == NetworkProfile.Type.MOBILE && !backgroundDataOnMobile) {
-            if (DEBUG) Log.i(TAG, "updateAndFetch background data is set to disabled on mobile, skipping fetch");
-        }
-        else {
+        if (canFetchInBackground(context)) {
             if (DEBUG) Log.i(TAG, "updateAndFetch fetching watchlist threads and widget boards");
-            fetchWatchlistThreads(context);
+            fetchWatchlistThreads(context, true);
             WidgetProviderUtils.fetchAllWidgets(context);
+            PrefetchPlanner.plan(context);
         }
         /*
         if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(SettingsActivity.PREF_AUTOMATICALLY_MANAGE_WATCHLIST, true))
@@ -97,13 +100,59 @@ public class GlobalAlarmReceiver extends BroadcastReceiver {
         */
     }
 
+    private static boolean canFetchInBackground(Context context) {
+        NetworkProfile profile = NetworkProfileManager.instance().getCurrentProfile();
+        boolean backgroundDataOnMobile = PreferenceManager
+                .getDefaultSharedPreferences(context)
+                .getBoolean(SettingsActivity.PREF_BACKGROUND_DATA_ON_MOBILE, false);
+        if (DEBUG) Log.i(TAG, "canFetchInBackground network profile=" + profile + " health=" + profile.getConnectionHealth());
+        if (profile.getConnectionHealth() == NetworkProfile.Health.NO_CONNECTION ||
+                profile.getConnectionHealth() == NetworkProfile.Health.BAD) {
+            if (DEBUG) Log.i(TAG, "canFetchInBackground no connection, skipping fetch");
+            return false;
+        }
+        else if (profile.getConnectionType() == NetworkProfile.Type.MOBILE && !backgroundDataOnMobile) {
+            if (DEBUG) Log.i(TAG, "canFetchInBackground background data is set to disabled on mobile, skipping fetch");
+            return false;
+        }
+        return true;
+    }
+
     public static void fetchWatchlistThreads(Context context) {
+        fetchWatchlistThreads(context, false);
+    }
+
+    /**
+     * @param scheduled true when called by an alarm, only watched threads due for a refresh are fetched
+     */
+    public static void fetchWatchlistThreads(Context context, boolean scheduled) {
         ChanBoard board = ChanFileStorage.loadBoardData(context, ChanBoard.WATCHLIST_BOARD_CODE);
-        if (board == null || board.threads == null)
+        if (board == null || board.threads == null || board.threads.length == 0)
+            return;
+        FetchWatchlistService.startService(context, scheduled); // fetches only threads changed in their board's thread index
+    }
+
+    /**
+     * Sets the watchlist alarm for when the next watched thread is due, at least MIN_WATCHLIST_ALARM_MS from now.
+     * Threads due after the next global alarm are left to it.
+     */
+    public static void scheduleWatchlistAlarm(Context context, long delayMs) {
+        long delay = Math.max(MIN_WATCHLIST_ALARM_MS, delayMs);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = getPendingIntentForWatchlistAlarm(context);
+        if (delay >= WIDGET_UPDATE_INTERVAL_MS) {
+            if (DEBUG) Log.i(TAG, "scheduleWatchlistAlarm delay=" + delayMs + "ms, leaving it to the global alarm");
+            alarmManager.cancel(pendingIntent);
             return;
-        for (ChanPost thread : board.threads) {
-            FetchChanDataService.scheduleThreadFetch(context, thread.board, thread.no, false, true);
         }
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay, pendingIntent);
+        if (DEBUG) Log.i(TAG, "scheduleWatchlistAlarm in " + delay + "ms");
+    }
+
+    private static PendingIntent getPendingIntentForWatchlistAlarm(Context context) {
+        Intent intent = new Intent(context, GlobalAlarmReceiver.class);
+        intent.setAction(GLOBAL_ALARM_RECEIVER_WATCHLIST_ACTION);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     public static void fetchFavoriteBoards(Context context) {
@@ -141,6 +190,7 @@ public class GlobalAlarmReceiver extends BroadcastReceiver {
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         PendingIntent pendingIntent = getPendingIntentForGlobalAlarm(context);
         alarmManager.cancel(pendingIntent);
+        alarmManager.cancel(getPendingIntentForWatchlistAlarm(context));
         if (DEBUG) Log.i(TAG, "Canceled alarms for UpdateWidgetService");
     }
 
@@ -1,6 +1,7 @@
 package com.chanapps.four.component;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import com.chanapps.four.activity.SettingsActivity;
 
@@ -30,7 +31,9 @@ public class URLFormatComponent {
     public static final String CHAN_POST_URL_FORMAT = "//sys.4chan.org/%s/post";
     public static final String CHAN_SPOILER_IMAGE_URL_FORMAT = "//s.4cdn.org/image/spoiler-%s.png";
     public static final String CHAN_SPOILER_NUMBERED_IMAGE_URL_FORMAT = "//s.4cdn.org/image/spoiler-%s%d.png";
+    public static final String CHAN_THREAD_TAIL_URL_FORMAT = "//a.4cdn.org/%s/thread/%d-tail.json";
     public static final String CHAN_THREAD_URL_FORMAT = "//a.4cdn.org/%s/thread/%d.json";
+    public static final String CHAN_THREADS_API_URL_FORMAT = "//a.4cdn.org/%s/threads.json";
     public static final String CHAN_THUMBS_URL_FORMAT = "//t.4cdn.org/%s/thumb/%ds.jpg";
     public static final String CHAN_WEB_BOARD_URL_FORMAT = "//boards.4chan.org/%s/";
     public static final String CHAN_WEB_POST_URL_FORMAT = "//boards.4chan.org/%s/res/%d#p%d";
@@ -63,12 +66,36 @@ public class URLFormatComponent {
     };
     private static final Set<String> forceHttpsUrls = new HashSet<String>(FORCE_HTTPS_URLS.length);
 
+    private static volatile Boolean useHttps;
+
+    // held here since preferences only keep a weak reference to their listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener useHttpsListener
+            = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (SettingsActivity.PREF_USE_HTTPS.equals(key))
+                useHttps = prefs.getBoolean(SettingsActivity.PREF_USE_HTTPS, true);
+        }
+    };
+
+    /**
+     * Value of the https preference, read once and then kept current by a preference listener.
+     */
+    public static boolean useHttps(Context context) {
+        Boolean b = useHttps;
+        if (b == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            prefs.registerOnSharedPreferenceChangeListener(useHttpsListener);
+            b = prefs.getBoolean(SettingsActivity.PREF_USE_HTTPS, true);
+            useHttps = b;
+        }
+        return b;
+    }
+
     public static String getUrl(Context context, String url) {
         if (url.startsWith("market://"))
             return url;
-        boolean useHttps = PreferenceManager
-                        .getDefaultSharedPreferences(context)
-                        .getBoolean(SettingsActivity.PREF_USE_HTTPS, true);
+        boolean useHttps = useHttps(context);
         if (forceHttpsUrls.isEmpty() && FORCE_HTTPS_URLS.length > 0)
             forceHttpsUrls.addAll(Arrays.asList(FORCE_HTTPS_URLS));
         if (forceHttpsUrls.contains(url))
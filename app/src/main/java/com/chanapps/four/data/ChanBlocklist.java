@@ -44,27 +44,91 @@ public class ChanBlocklist {
         }
     };
 
-    private static Map<BlockType, Set<String>> blocklist;
-    private static Pattern testPattern = null;
+    private static final Pattern REGEX_CHARS = Pattern.compile("[\\\\^$.\\[\\]{}*+?]");
 
-     private static void initBlocklist(Context context) {
+    private static volatile Map<BlockType, Set<String>> blocklist;
+    private static volatile CompiledBlocklist compiled;
+    private static int version = 0;
+
+    /**
+     * Snapshot of the blocklist used to check posts, replaced whenever the blocklist is modified.  Text entries without
+     * regex characters are matched by one automaton, only the others are joined into a regex.
+     */
+    private static class CompiledBlocklist {
+        final int version;
+        final Set<String> threads;
+        final Set<String> tripcodes;
+        final Set<String> names;
+        final Set<String> emails;
+        final Set<String> ids;
+        final ChanSearchQuery literals;
+        final Pattern pattern;
+
+        CompiledBlocklist(int version, Map<BlockType, Set<String>> blocklist) {
+            this.version = version;
+            threads = new HashSet<String>(blocklist.get(BlockType.THREAD));
+            tripcodes = new HashSet<String>(blocklist.get(BlockType.TRIPCODE));
+            names = new HashSet<String>(blocklist.get(BlockType.NAME));
+            emails = new HashSet<String>(blocklist.get(BlockType.EMAIL));
+            ids = new HashSet<String>(blocklist.get(BlockType.ID));
+            List<String> literalList = new ArrayList<String>();
+            List<String> regexList = new ArrayList<String>();
+            for (String block : blocklist.get(BlockType.TEXT)) {
+                if (block == null || block.isEmpty())
+                    continue;
+                String regex = block.replaceAll("[()|]", "");
+                if (regex.isEmpty())
+                    continue;
+                if (REGEX_CHARS.matcher(regex).find())
+                    regexList.add(regex);
+                else
+                    literalList.add(regex);
+            }
+            literals = ChanSearchQuery.anyOf(literalList);
+            pattern = regexList.isEmpty()
+                    ? null
+                    : Pattern.compile("(" + StringUtils.join(regexList, "|") + ")", Pattern.CASE_INSENSITIVE);
+            if (DEBUG) Log.i(TAG, "compiled blocklist version=" + version + " literals=" + literalList.size()
+                    + " regex=" + regexList.size());
+        }
+
+        boolean isBlocked(ChanPost post) {
+            if (has(tripcodes, post.trip) || has(names, post.name) || has(emails, post.email) || has(ids, post.id))
+                return true;
+            if (!threads.isEmpty() && threads.contains(post.uniqueId()))
+                return true;
+            if (literals.containsAny(post.sub) || literals.containsAny(post.com))
+                return true;
+            if (pattern == null)
+                return false;
+            if (post.sub != null && pattern.matcher(post.sub).find())
+                return true;
+            if (post.com != null && pattern.matcher(post.com).find())
+                return true;
+            return false;
+        }
+
+        private static boolean has(Set<String> blocks, String s) {
+            return s != null && !blocks.isEmpty() && blocks.contains(s);
+        }
+    }
+
+    private static synchronized void initBlocklist(Context context) {
         if (blocklist != null)
             return;
-        blocklist = new HashMap<BlockType, Set<String>>();
-        synchronized (blocklist) {
-            blocklist.clear();
-            for (int i = 0; i < BlockType.values().length; i++) {
-                BlockType blockType = BlockType.values()[i];
-                Set<String> savedBlocks = PreferenceManager
-                        .getDefaultSharedPreferences(context)
-                        .getStringSet(blockType.blockPref(), new HashSet<String>());
-                // copy to avoid android getStringSet bug
-                Set<String> blocks = new HashSet<String>(savedBlocks.size());
-                blocks.addAll(savedBlocks);
-                blocklist.put(blockType, blocks);
-            }
-            compileTestPattern();
+        Map<BlockType, Set<String>> map = new HashMap<BlockType, Set<String>>();
+        for (int i = 0; i < BlockType.values().length; i++) {
+            BlockType blockType = BlockType.values()[i];
+            Set<String> savedBlocks = PreferenceManager
+                    .getDefaultSharedPreferences(context)
+                    .getStringSet(blockType.blockPref(), new HashSet<String>());
+            // copy to avoid android getStringSet bug
+            Set<String> blocks = new HashSet<String>(savedBlocks.size());
+            blocks.addAll(savedBlocks);
+            map.put(blockType, blocks);
         }
+        compile(map);
+        blocklist = map;
     }
 
     public static List<Pair<String, BlockType>> getSorted(Context context) {
@@ -164,24 +228,21 @@ public class ChanBlocklist {
         return typeList.contains(block);
     }
 
+    /**
+     * The verdict is kept with the post's derived fields, so a post is only checked again when its content or the
+     * blocklist changed.
+     */
     public static boolean isBlocked(Context context, ChanPost post) {
         if (blocklist == null)
             initBlocklist(context);
-        boolean simpleMatch =  contains(context, BlockType.THREAD, post.uniqueId())
-                || contains(context, BlockType.TRIPCODE, post.trip)
-                || contains(context, BlockType.NAME, post.name)
-                || contains(context, BlockType.EMAIL, post.email)
-                || contains(context, BlockType.ID, post.id)
-                ;
-        if (simpleMatch)
-            return true;
-        if (testPattern == null)
-            return false;
-        if (post.sub != null && testPattern.matcher(post.sub).find())
-            return true;
-        if (post.com != null && testPattern.matcher(post.com).find())
-            return true;
-        return false;
+        CompiledBlocklist c = compiled;
+        ChanPostDerived d = post.derived();
+        int verdict = d.blockVerdict;
+        if (verdict >>> 1 == c.version)
+            return (verdict & 1) != 0;
+        boolean blocked = c.isBlocked(post);
+        d.blockVerdict = c.version << 1 | (blocked ? 1 : 0);
+        return blocked;
     }
 
     public static boolean isBlocked(Context context, ChanThread thread) {
@@ -196,8 +257,7 @@ public class ChanBlocklist {
     }
 
     private static void saveBlocklist(Context context, BlockType blockType) {
-        if (blockType == BlockType.TEXT) // precreate regex for efficient matching
-            compileTestPattern();
+        compile(blocklist);
         SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
         Set<String> blocks = blocklist.get(blockType);
         Set<String> copy = new HashSet<String>(blocks.size());
@@ -206,27 +266,8 @@ public class ChanBlocklist {
         editor.putStringSet(blockType.blockPref(), copy).apply();
     }
 
-    private static void compileTestPattern() {
-        Set<String> blocks = blocklist.get(BlockType.TEXT);
-        if (blocks.isEmpty()) {
-            testPattern = null;
-            return;
-        }
-        List<String> regexList = new ArrayList<String>();
-        for (String block : blocks) {
-            if (block == null || block.isEmpty())
-                continue;
-            String regex = block.replaceAll("[()|]", "");
-            if (regex.isEmpty())
-                continue;
-            regexList.add(regex);
-        }
-        if (regexList.isEmpty()) {
-            testPattern = null;
-            return;
-        }
-        String regex = "(" + StringUtils.join(regexList, "|") + ")";
-        testPattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    private static synchronized void compile(Map<BlockType, Set<String>> blocklist) {
+        compiled = new CompiledBlocklist(++version, blocklist);
     }
 
     public static void save(Context context, List<Pair<String, BlockType>> newBlocks) {
@@ -239,9 +280,8 @@ public class ChanBlocklist {
             for (Pair<String, BlockType> block : newBlocks) // and in with the new
                 if (block.first != null && !block.first.isEmpty() && block.second != null)
                     blocklist.get(block.second).add(block.first);
+            compile(blocklist);
             for (BlockType blockType : BlockType.values()) {
-                if (blockType == BlockType.TEXT) // precreate regex for efficient matching
-                    compileTestPattern();
                 Set<String> blocks = blocklist.get(blockType);
                 if (DEBUG) Log.i(TAG, "save() type=" + blockType + " blocks=" + blocks);
                 editor.putStringSet(blockType.blockPref(), blocks);
@@ -81,6 +81,28 @@ public class ChanBoard {
     public long lastSwapped;
     public boolean defData = false;
 
+    // thread lookups by number, rebuilt whenever threads is replaced
+    private transient ThreadIndex threadIndex;
+
+    /** Positions by thread number and the boards present, for one threads array. */
+    private static class ThreadIndex {
+        final ChanThread[] threads;
+        final Map<Long, Integer> positions;
+        final Set<String> boardCodes = new HashSet<String>();
+
+        ThreadIndex(ChanThread[] threads) {
+            this.threads = threads;
+            positions = new HashMap<Long, Integer>(threads.length * 2);
+            for (int i = threads.length - 1; i >= 0; i--) { // backwards so the first position of a number wins
+                ChanThread thread = threads[i];
+                if (thread == null || thread.board == null)
+                    continue;
+                positions.put(thread.no, i);
+                boardCodes.add(thread.board);
+            }
+        }
+    }
+
     private static List<ChanBoard> boards = new ArrayList<ChanBoard>();
     private static List<ChanBoard> safeBoards = new ArrayList<ChanBoard>();
     private static Map<BoardType, List<ChanBoard>> boardsByType = new HashMap<BoardType, List<ChanBoard>>();
@@ -482,6 +504,27 @@ public class ChanBoard {
         if (DEBUG) Log.i(TAG, "Updated board " + name + ", " + newThreads + " new threads, " + updatedThreads + " updated threads.");
     }
 
+    /**
+     * Rough number of bytes this board and its threads keep on the heap, used to weigh cache entries.
+     */
+    public long estimatedSize() {
+        long size = 128 + ChanPost.stringSize(board) + ChanPost.stringSize(name) + ChanPost.stringSize(link)
+                + ChanPost.estimatedSize(stickyPosts);
+        size += estimatedSize(threads);
+        size += estimatedSize(loadedThreads);
+        return size;
+    }
+
+    private static long estimatedSize(ChanThread[] threads) {
+        if (threads == null)
+            return 0;
+        long size = ChanPost.ARRAY_OVERHEAD_BYTES + ChanPost.REFERENCE_BYTES * threads.length;
+        for (ChanThread thread : threads)
+            if (thread != null)
+                size += thread.estimatedSize();
+        return size;
+    }
+
     public boolean isVirtualBoard() {
         return isVirtualBoard(link);
     }
@@ -659,11 +702,7 @@ public class ChanBoard {
         ChanBoard favorites = ChanFileStorage.loadBoardData(context, ChanBoard.FAVORITES_BOARD_CODE);
         if (favorites == null || !favorites.hasData())
             return false;
-        for (ChanThread thread : favorites.threads) {
-            if (boardCode.equals(thread.board))
-                return true;
-        }
-        return false;
+        return favorites.hasThreadsFromBoard(boardCode);
     }
 
     public static String boardUrl(Context context, String boardCode) {
@@ -677,21 +716,47 @@ public class ChanBoard {
         if (DEBUG) Log.i(TAG, "getThreadIndex /" + boardCode + "/" + threadNo);
         if (defData)
             return -1;
-        if (threads == null)
+        return indexOfThread(boardCode, threadNo);
+    }
+
+    /**
+     * @return true if threads holds the thread, whether or not this is default data
+     */
+    public boolean hasThread(String boardCode, long threadNo) {
+        return indexOfThread(boardCode, threadNo) >= 0;
+    }
+
+    /**
+     * @return true if threads holds any thread of the board, used for the favorites
+     */
+    public boolean hasThreadsFromBoard(String boardCode) {
+        ChanThread[] threads = this.threads;
+        return threads != null && boardCode != null && threadIndex(threads).boardCodes.contains(boardCode);
+    }
+
+    private int indexOfThread(String boardCode, long threadNo) {
+        ChanThread[] threads = this.threads;
+        if (threads == null || boardCode == null)
             return -1;
-        int index = -1;
-        ChanPost thread;
-        for (int i = 0; i < threads.length; i++) {
-            if ((thread = threads[i]) == null)
-                continue;
-            if (thread.board == null)
-                continue;
-            if (!thread.board.equals(boardCode))
-                continue;
-            if (thread.no != threadNo)
-                continue;
-            index = i;
-            break;
+        Integer i = threadIndex(threads).positions.get(threadNo);
+        if (i == null)
+            return -1;
+        ChanThread thread = threads[i];
+        if (thread != null && thread.no == threadNo && boardCode.equals(thread.board))
+            return i;
+        // the same number on another board in the watchlist, or a thread replaced in place
+        for (int j = 0; j < threads.length; j++) {
+            if ((thread = threads[j]) != null && thread.no == threadNo && boardCode.equals(thread.board))
+                return j;
+        }
+        return -1;
+    }
+
+    private ThreadIndex threadIndex(ChanThread[] threads) {
+        ThreadIndex index = threadIndex;
+        if (index == null || index.threads != threads) {
+            index = new ThreadIndex(threads);
+            threadIndex = index;
         }
         return index;
     }
@@ -0,0 +1,488 @@
+package com.chanapps.four.data;
+
+import android.util.Log;
+
+/**
+ * Turns the html of post comments and subjects into the text shown in list rows.
+ *
+ * This used to be a chain of some fifteen String.replaceAll() calls per text.  Here the html is tokenized once into
+ * text runs and tags, quote links and exif blocks are dropped on the token list, and the remaining tags, entities and
+ * line breaks are resolved while copying.  The output is the same the regex chain gives, including its quirks: single
+ * letter tags like &lt;b&gt; and &lt;s&gt; are kept for Html.fromHtml(), entities are decoded after the tags are
+ * removed and &amp;amp; only unescapes one level.
+ *
+ * The token model assumes every '&lt;' opens a tag that ends at the next '&gt;', which holds for api html since 4chan
+ * escapes both in user text.  Anything else is run through the original regex chain instead.
+ */
+public class ChanCommentFilter {
+
+    private static final String TAG = ChanCommentFilter.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String QUOTELINK_CLASS = "class=\"quotelink\"";
+    private static final String ABBR_CLASS = "class=\"abbr\"";
+    private static final String EXIF_CLASS = "class=\"exif\"";
+
+    /**
+     * Text of a post comment or subject with quote links removed, or unwrapped when post numbers are shown, and exif
+     * blocks removed.
+     */
+    public static String sanitize(String html, boolean hidePostNumbers, boolean collapseNewlines) {
+        if (html == null || html.isEmpty())
+            return "";
+        Markup markup = Markup.parse(html);
+        if (markup == null) {
+            if (DEBUG) Log.v(TAG, "Irregular html, using regex filter");
+            return regexSanitize(html, hidePostNumbers, collapseNewlines);
+        }
+        markup = markup.withoutQuotelinks(hidePostNumbers);
+        markup.cutBlocks("span", ABBR_CLASS, "</span>"); // exif reference
+        markup.cutBlocks("table", EXIF_CLASS, "</table>"); // exif info
+        return markup.render(collapseNewlines);
+    }
+
+    /**
+     * Text of html with tags except single letter ones removed, entities decoded and line breaks as &lt;br/&gt;, or as
+     * spaces when collapsing newlines.
+     */
+    public static String textViewFilter(String html, boolean collapseNewlines) {
+        Markup markup = Markup.parse(html);
+        if (markup == null)
+            return regexTextViewFilter(html, collapseNewlines);
+        return markup.render(collapseNewlines);
+    }
+
+    /**
+     * Html split into tags and the text runs between them, tag k spans chars tagStart[k] to tagEnd[k] inclusive.
+     */
+    private static class Markup {
+        final char[] chars;
+        final int length;
+        final int[] tagStart;
+        final int[] tagEnd;
+        final int tagCount;
+        int[] cut; // block number of cut tags, text between two tags of the same block is cut too
+        int blockCount = 0;
+
+        Markup(char[] chars, int length, int[] tagStart, int[] tagEnd, int tagCount) {
+            this.chars = chars;
+            this.length = length;
+            this.tagStart = tagStart;
+            this.tagEnd = tagEnd;
+            this.tagCount = tagCount;
+        }
+
+        /**
+         * @return null if a '<' doesn't start a well formed tag
+         */
+        static Markup parse(String html) {
+            char[] chars = html.toCharArray();
+            int length = chars.length;
+            int[] tagStart = new int[8];
+            int[] tagEnd = new int[8];
+            int tagCount = 0;
+            int i = 0;
+            while (i < length) {
+                if (chars[i] == '<') {
+                    int end = i + 1;
+                    while (end < length && chars[end] != '>') {
+                        if (chars[end] == '<')
+                            return null;
+                        end++;
+                    }
+                    if (end == length)
+                        return null; // unclosed tag
+                    int inner = end - i - 1;
+                    if (inner == 0 || (inner == 1 && chars[i + 1] == '/'))
+                        return null; // <> and </> make the regexes match into the following text
+                    if (tagCount == tagStart.length) {
+                        tagStart = grow(tagStart);
+                        tagEnd = grow(tagEnd);
+                    }
+                    tagStart[tagCount] = i;
+                    tagEnd[tagCount] = end;
+                    tagCount++;
+                    i = end + 1;
+                }
+                else {
+                    i++;
+                }
+            }
+            return new Markup(chars, length, tagStart, tagEnd, tagCount);
+        }
+
+        private static int[] grow(int[] a) {
+            int[] b = new int[a.length * 2];
+            System.arraycopy(a, 0, b, 0, a.length);
+            return b;
+        }
+
+        /**
+         * Drops &lt;a class="quotelink"&gt;&gt;&gt;123&lt;/a&gt; links entirely, or keeps their text when showing post
+         * numbers.
+         */
+        Markup withoutQuotelinks(boolean hidePostNumbers) {
+            if (!hasQuotelink())
+                return this;
+            char[] out = new char[length];
+            int[] outStart = new int[tagCount];
+            int[] outEnd = new int[tagCount];
+            int outLength = 0;
+            int outTags = 0;
+            int pos = 0;
+            int k = 0;
+            while (k < tagCount) {
+                int s = tagStart[k];
+                int e = tagEnd[k];
+                boolean link = isQuotelinkTag(k) && k + 1 < tagCount && isTag(k + 1, "</a>");
+                System.arraycopy(chars, pos, out, outLength, s - pos);
+                outLength += s - pos;
+                if (link) {
+                    int textStart = e + 1;
+                    int textEnd = tagStart[k + 1];
+                    if (!hidePostNumbers) {
+                        System.arraycopy(chars, textStart, out, outLength, textEnd - textStart);
+                        outLength += textEnd - textStart;
+                    }
+                    pos = tagEnd[k + 1] + 1;
+                    k += 2;
+                }
+                else {
+                    System.arraycopy(chars, s, out, outLength, e + 1 - s);
+                    outStart[outTags] = outLength;
+                    outEnd[outTags] = outLength + e - s;
+                    outTags++;
+                    outLength += e + 1 - s;
+                    pos = e + 1;
+                    k++;
+                }
+            }
+            System.arraycopy(chars, pos, out, outLength, length - pos);
+            outLength += length - pos;
+            return new Markup(out, outLength, outStart, outEnd, outTags);
+        }
+
+        private boolean hasQuotelink() {
+            for (int k = 0; k < tagCount; k++)
+                if (isQuotelinkTag(k))
+                    return true;
+            return false;
+        }
+
+        private boolean isQuotelinkTag(int k) {
+            // <a[^>]*class="quotelink">
+            int s = tagStart[k];
+            int e = tagEnd[k];
+            int classStart = e - QUOTELINK_CLASS.length();
+            return e - s > 1 && chars[s + 1] == 'a' && classStart >= s + 2 && regionMatches(classStart, QUOTELINK_CLASS);
+        }
+
+        /**
+         * Cuts from each &lt;name ... marker ...&gt; tag up to the last closing tag on the same line, like
+         * &lt;name[^&gt;]*marker[^&gt;]*&gt;.*closing did.
+         */
+        void cutBlocks(String name, String marker, String closing) {
+            int k = 0;
+            while (k < tagCount) {
+                if (isCut(k) || !isOpeningTag(k, name, marker)) {
+                    k++;
+                    continue;
+                }
+                int lineEnd = lineEnd(tagEnd[k] + 1);
+                int last = -1;
+                for (int j = k + 1; j < tagCount && tagEnd[j] < lineEnd; j++) {
+                    if (!isCut(j) && isTag(j, closing))
+                        last = j;
+                }
+                if (last < 0) {
+                    k++;
+                    continue;
+                }
+                if (cut == null)
+                    cut = new int[tagCount];
+                blockCount++;
+                for (int j = k; j <= last; j++)
+                    cut[j] = blockCount;
+                k = last + 1;
+            }
+        }
+
+        private boolean isCut(int k) {
+            return cut != null && cut[k] > 0;
+        }
+
+        private boolean isOpeningTag(int k, String name, String marker) {
+            int s = tagStart[k];
+            int e = tagEnd[k];
+            if (e - s - 1 < name.length() || !regionMatches(s + 1, name))
+                return false;
+            for (int i = s + 1 + name.length(); i + marker.length() <= e; i++)
+                if (regionMatches(i, marker))
+                    return true;
+            return false;
+        }
+
+        private int lineEnd(int from) {
+            for (int i = from; i < length; i++)
+                if (isLineTerminator(chars[i]))
+                    return i;
+            return length;
+        }
+
+        private boolean isTag(int k, String tag) {
+            return tagEnd[k] - tagStart[k] + 1 == tag.length() && regionMatches(tagStart[k], tag);
+        }
+
+        private boolean regionMatches(int offset, String s) {
+            if (offset + s.length() > length)
+                return false;
+            for (int i = 0; i < s.length(); i++)
+                if (chars[offset + i] != s.charAt(i))
+                    return false;
+            return true;
+        }
+
+        String render(boolean collapseNewlines) {
+            char[] text = new char[length];
+            int n = 0;
+            int pos = 0;
+            for (int k = 0; k < tagCount; k++) {
+                int s = tagStart[k];
+                int e = tagEnd[k];
+                if (k == 0 || !isCut(k) || cut[k - 1] != cut[k]) { // text inside a cut block is gone with it
+                    System.arraycopy(chars, pos, text, n, s - pos);
+                    n += s - pos;
+                }
+                pos = e + 1;
+                if (isCut(k))
+                    continue;
+                if (isBreak(s, e)) {
+                    text[n++] = '\n';
+                }
+                else if (keepsTag(s, e)) {
+                    System.arraycopy(chars, s, text, n, e + 1 - s);
+                    n += e + 1 - s;
+                }
+            }
+            System.arraycopy(chars, pos, text, n, length - pos);
+            n += length - pos;
+            return finish(text, decodeEntities(text, n), collapseNewlines);
+        }
+
+        /**
+         * True for a br tag with optional spaces and slash before the closing bracket, like &lt;br&gt; or &lt;br /&gt;
+         */
+        private boolean isBreak(int s, int e) {
+            if (e - s < 3 || chars[s + 1] != 'b' || chars[s + 2] != 'r')
+                return false;
+            int i = s + 3;
+            while (i < e && chars[i] == ' ')
+                i++;
+            if (i < e && chars[i] == '/')
+                i++;
+            return i == e;
+        }
+
+        /**
+         * Only tags with a single char inside and &lt;/s&gt; survive the tag regexes, which need at least two chars.
+         */
+        private boolean keepsTag(int s, int e) {
+            int inner = e - s - 1;
+            return inner == 1 || (inner == 2 && chars[s + 1] == '/' && chars[s + 2] == 's');
+        }
+    }
+
+    /**
+     * Decodes entities in place the way replacing &amp;lt; &amp;gt; &amp;amp; &amp;quot; &amp;#39; &amp;#44; and other
+     * numeric entities one after the other does: an &amp; produced by &amp;amp; still starts the later ones.
+     *
+     * @return decoded length
+     */
+    private static int decodeEntities(char[] text, int length) {
+        int n = 0;
+        int i = 0;
+        while (i < length) {
+            char c = text[i];
+            if (c != '&') {
+                text[n++] = c;
+                i++;
+                continue;
+            }
+            if (matches(text, length, i + 1, "lt;")) {
+                text[n++] = '<';
+                i += 4;
+            }
+            else if (matches(text, length, i + 1, "gt;")) {
+                text[n++] = '>';
+                i += 4;
+            }
+            else {
+                // an & left behind by &amp; is followed by what comes after the &amp;
+                int from = matches(text, length, i + 1, "amp;") ? i + 5 : i + 1;
+                int end = lateEntityEnd(text, length, from);
+                if (end < 0) {
+                    text[n++] = '&';
+                    i = from;
+                }
+                else {
+                    char decoded = lateEntityChar(text, from, end);
+                    if (decoded != 0)
+                        text[n++] = decoded;
+                    i = end;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return index after a quot; or #[0-9a-f]*; entity body starting at from, -1 if there is none
+     */
+    private static int lateEntityEnd(char[] text, int length, int from) {
+        if (matches(text, length, from, "quot;"))
+            return from + 5;
+        if (from >= length || text[from] != '#')
+            return -1;
+        int i = from + 1;
+        while (i < length && isEntityDigit(text[i]))
+            i++;
+        return i < length && text[i] == ';' ? i + 1 : -1;
+    }
+
+    /**
+     * @return char of the entity body between from and end, 0 for numeric entities that are dropped
+     */
+    private static char lateEntityChar(char[] text, int from, int end) {
+        if (text[from] == 'q')
+            return '"';
+        int digits = from + 1;
+        while (text[digits] == '0')
+            digits++;
+        if (end - 1 - digits == 2 && text[digits] == '3' && text[digits + 1] == '9')
+            return '\'';
+        if (end - 1 - digits == 2 && text[digits] == '4' && text[digits + 1] == '4')
+            return ',';
+        return 0;
+    }
+
+    private static boolean isEntityDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+
+    private static boolean matches(char[] text, int length, int offset, String s) {
+        if (offset + s.length() > length)
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (text[offset + i] != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Strips leading and trailing newlines, turns the others into &lt;br/&gt; or collapses them into spaces and trims.
+     */
+    private static String finish(char[] text, int length, boolean collapseNewlines) {
+        int start = 0;
+        while (start < length && text[start] == '\n')
+            start++;
+        int skipFrom = trailingNewlines(text, start, length);
+        int skipTo = skipFrom;
+        while (skipTo >= 0 && skipTo < length && text[skipTo] == '\n')
+            skipTo++;
+        StringBuilder out = new StringBuilder(length - start + 16);
+        for (int i = start; i < length; i++) {
+            if (i == skipFrom) {
+                i = skipTo - 1;
+                continue;
+            }
+            char c = text[i];
+            if (c != '\n') {
+                out.append(c);
+            }
+            else if (collapseNewlines) {
+                while (i + 1 < length && text[i + 1] == '\n')
+                    i++;
+                out.append(' ');
+            }
+            else {
+                out.append("<br/>");
+            }
+        }
+        return trim(out);
+    }
+
+    /**
+     * Finds the newlines \n+$ matches, $ also matching before a line terminator that ends the text.
+     *
+     * @return start of the newlines, -1 if there are none
+     */
+    private static int trailingNewlines(char[] text, int start, int length) {
+        int[] ends = new int[3];
+        int candidates = 0;
+        if (length - start >= 2 && text[length - 2] == '\r' && text[length - 1] == '\n')
+            ends[candidates++] = length - 2;
+        if (length - start >= 1 && text[length - 1] != '\n' && isLineTerminator(text[length - 1]))
+            ends[candidates++] = length - 1;
+        ends[candidates++] = length;
+        for (int c = 0; c < candidates; c++) {
+            int q = ends[c];
+            if (q - 1 < start || text[q - 1] != '\n')
+                continue;
+            int p = q - 1;
+            while (p - 1 >= start && text[p - 1] == '\n')
+                p--;
+            return p;
+        }
+        return -1;
+    }
+
+    private static String trim(StringBuilder s) {
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ')
+            start++;
+        while (end > start && s.charAt(end - 1) <= ' ')
+            end--;
+        return s.substring(start, end);
+    }
+
+    // the original chain, the fallback for irregular html and the reference ChanCommentFilterTest compares against
+    static String regexSanitize(String text, boolean hidePostNumbers, boolean collapseNewlines) {
+        if (hidePostNumbers)
+            text = text.replaceAll("<a[^>]*class=\"quotelink\">[^<]*</a>", "");
+        else
+            text = text.replaceAll("<a[^>]*class=\"quotelink\">([^<]*)</a>", "$1");
+        text = text
+                .replaceAll("<span[^>]*class=\"abbr\"[^>]*>.*</span>", "")    // exif reference
+                .replaceAll("<table[^>]*class=\"exif\"[^>]*>.*</table>", "");  // exif info
+        return regexTextViewFilter(text, collapseNewlines);
+    }
+
+    static String regexTextViewFilter(String s, boolean collapseNewlines) {
+        String t = s
+                .replaceAll("<br */?>", "\n")
+                .replaceAll("<[^s/][^>]+>", "") // preserve <s> tags
+                .replaceAll("<s[^>]+>", "")
+                .replaceAll("</[^s][^>]*>", "")
+                .replaceAll("</s[^>]+>", "")
+                .replaceAll("&lt;", "<")
+                .replaceAll("&gt;", ">")
+                .replaceAll("&amp;", "&")
+                .replaceAll("&quot;", "\"")
+                .replaceAll("&#0*39;", "'")
+                .replaceAll("&#0*44;", ",")
+                .replaceAll("&#[0-9abcdef]*;", "")
+                .replaceFirst("^\n+", "")
+                .replaceFirst("\n+$", "");
+        if (collapseNewlines)
+            t = t.replaceAll("\n+", " ");
+        else
+            t = t.replaceAll("\n", "<br/>");
+        return t.trim();
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.chanapps.four.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Thread-safe in-memory cache bounded by the estimated retained size of its values rather than
+ * by the number of entries.
+ *
+ * Reads are lock-free, they only stamp the entry with a logical access time.  Writes update the
+ * total weight and, once it goes over the budget, evict the least recently accessed entries down
+ * to EVICT_TO_PERCENT of the budget so that eviction work is amortized over several puts.
+ *
+ * A value is weighed when it is put, cached values changed in place (merged posts, a reply graph
+ * built on load) must be put again or passed to {@link #reweigh} for the budget to see the change.
+ */
+public abstract class ChanDataCache<K, V> {
+
+    private static final String TAG = ChanDataCache.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int EVICT_TO_PERCENT = 90;
+
+    private static class Node<V> {
+        final V value;
+        final long weight;
+        volatile long lastAccess;
+
+        Node(V value, long weight, long lastAccess) {
+            this.value = value;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static class Victim<K, V> {
+        final K key;
+        final Node<V> node;
+        final long lastAccess;
+
+        Victim(K key, Node<V> node) {
+            this.key = key;
+            this.node = node;
+            this.lastAccess = node.lastAccess;
+        }
+    }
+
+    private final String name;
+    private final ConcurrentHashMap<K, Node<V>> map = new ConcurrentHashMap<K, Node<V>>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private volatile long maxWeight;
+
+    public ChanDataCache(String name, long maxWeight) {
+        this.name = name;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return the estimated number of bytes retained by the value
+     */
+    protected abstract long weigh(V value);
+
+    public V get(K key) {
+        Node<V> node = map.get(key);
+        if (node == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        node.lastAccess = clock.incrementAndGet();
+        hits.incrementAndGet();
+        return node.value;
+    }
+
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Caches the value, weighing it again when it is the value already cached under the key.
+     */
+    public void put(K key, V value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        Node<V> node = new Node<V>(value, weigh(value), clock.incrementAndGet());
+        Node<V> old = map.put(key, node);
+        adjustWeight(node.weight - (old == null ? 0 : old.weight));
+    }
+
+    /**
+     * Weighs the value cached under the key again after it was changed in place, if it is still the
+     * given value.  The entry keeps its access time.
+     *
+     * @return false if the key now holds another value or none
+     */
+    public boolean reweigh(K key, V value) {
+        while (true) {
+            Node<V> old = map.get(key);
+            if (old == null || old.value != value)
+                return false;
+            Node<V> node = new Node<V>(value, weigh(value), old.lastAccess);
+            if (map.replace(key, old, node)) {
+                adjustWeight(node.weight - old.weight);
+                return true;
+            }
+        }
+    }
+
+    private void adjustWeight(long delta) {
+        long total = weight.addAndGet(delta);
+        if (total > maxWeight)
+            trimTo(maxWeight * EVICT_TO_PERCENT / 100);
+    }
+
+    public V remove(K key) {
+        Node<V> old = map.remove(key);
+        if (old == null)
+            return null;
+        weight.addAndGet(-old.weight);
+        return old.value;
+    }
+
+    /**
+     * Weakly consistent view of the keys, safe to iterate while other threads modify the cache.
+     */
+    public Set<K> keySet() {
+        return map.keySet();
+    }
+
+    /**
+     * Evicts least recently accessed entries until the total weight is at most targetWeight.
+     */
+    public void trimTo(long targetWeight) {
+        synchronized (evictionLock) {
+            if (weight.get() <= targetWeight)
+                return;
+            // access stamps keep moving under concurrent reads, so sort on a copy taken up front
+            List<Victim<K, V>> victims = new ArrayList<Victim<K, V>>(map.size());
+            for (Map.Entry<K, Node<V>> entry : map.entrySet())
+                victims.add(new Victim<K, V>(entry.getKey(), entry.getValue()));
+            Collections.sort(victims, new Comparator<Victim<K, V>>() {
+                @Override
+                public int compare(Victim<K, V> lhs, Victim<K, V> rhs) {
+                    return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+                }
+            });
+            int evicted = 0;
+            for (Victim<K, V> victim : victims) {
+                if (weight.get() <= targetWeight)
+                    break;
+                if (map.remove(victim.key, victim.node)) { // skip entries replaced since the snapshot
+                    weight.addAndGet(-victim.node.weight);
+                    evicted++;
+                }
+            }
+            evictions.addAndGet(evicted);
+            if (DEBUG) Log.i(TAG, name + " evicted " + evicted + " entries, " + this);
+        }
+    }
+
+    public void clear() {
+        trimTo(0);
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        if (weight.get() > maxWeight)
+            trimTo(maxWeight);
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " entries=" + map.size() + " weight=" + weight.get() / 1024 + "KB max=" + maxWeight / 1024 + "KB"
+                + " hits=" + hits.get() + " misses=" + misses.get() + " evictions=" + evictions.get();
+    }
+
+}
@@ -4,6 +4,8 @@ import java.io.*;
 import java.nio.channels.FileChannel;
 import java.util.*;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.SharedPreferences;
 import android.os.Environment;
 import android.preference.PreferenceManager;
@@ -27,34 +29,102 @@ public class ChanFileStorage {
     private static final String TAG = ChanFileStorage.class.getSimpleName();
     private static final boolean DEBUG = false;
 
-    private static final int MAX_BOARDS_IN_CACHE = 100;
-    private static final int MAX_THREADS_IN_CACHE = 200;
+    // budgets are fractions of the per-app heap limit, the defaults hold until initCaches() is called
+    private static final int BOARD_CACHE_HEAP_DIVISOR = 16;
+    private static final int THREAD_CACHE_HEAP_DIVISOR = 8;
+    private static final long DEFAULT_BOARD_CACHE_BYTES = 2L * 1024L * 1024L;
+    private static final long DEFAULT_THREAD_CACHE_BYTES = 4L * 1024L * 1024L;
 
-    @SuppressWarnings("serial")
-    private static Map<String, ChanBoard> boardCache = new LinkedHashMap<String, ChanBoard>(MAX_BOARDS_IN_CACHE + 1, .75F, true) {
-        // This method is called just after a new entry has been added
-        public boolean removeEldestEntry(Map.Entry<String, ChanBoard> eldest) {
-            return size() > MAX_BOARDS_IN_CACHE;
+    private static final ChanDataCache<String, ChanBoard> boardCache = new ChanDataCache<String, ChanBoard>("boardCache", DEFAULT_BOARD_CACHE_BYTES) {
+        @Override
+        protected long weigh(ChanBoard board) {
+            return board.estimatedSize();
         }
     };
 
-    @SuppressWarnings("serial")
-    private static Map<String, ChanThread> threadCache = new LinkedHashMap<String, ChanThread>(MAX_THREADS_IN_CACHE + 1, .75F, true) {
-        // This method is called just after a new entry has been added
-        public boolean removeEldestEntry(Map.Entry<String, ChanThread> eldest) {
-            return size() > MAX_THREADS_IN_CACHE;
+    private static final ChanDataCache<String, ChanThread> threadCache = new ChanDataCache<String, ChanThread>("threadCache", DEFAULT_THREAD_CACHE_BYTES) {
+        @Override
+        protected long weigh(ChanThread thread) {
+            return thread.estimatedSize();
         }
     };
 
+    // the watchlist and favorites stay referenced once loaded so membership checks never go back to disk,
+    // every mutation ends in storeBoardData() which replaces them
+    private static final Object residentLock = new Object();
+    private static volatile ChanBoard residentWatchlist;
+    private static volatile ChanBoard residentFavorites;
+
+    private static final int MAX_OPEN_THREAD_STORES = 8;
+
+    /**
+     * One thread store per board, with the number of callers currently using it.  A store in use is never
+     * closed, the least recently used idle ones are closed once more than MAX_OPEN_THREAD_STORES are open.
+     */
+    private static class ThreadStoreRef {
+        final ChanThreadStore store;
+        int users;
+        boolean closing; // close when the last user releases it
+
+        ThreadStoreRef(ChanThreadStore store) {
+            this.store = store;
+        }
+    }
+
+    private static final Map<String, ThreadStoreRef> threadStores = new LinkedHashMap<String, ThreadStoreRef>(MAX_OPEN_THREAD_STORES + 1, .75F, true);
+
     private static final String ANDROID_ROOT = "Android";
     private static final String ANDROID_DATA_DIR = "data";
     private static final String CACHE_PKG_DIR = "cache";
     private static final String WALLPAPER_DIR = "wallpapers";
     private static final String FILE_SEP = "/";
     private static final String CACHE_EXT = ".txt";
+    private static final String RECORD_EXT = ChanRecordCodec.RECORD_EXT;
     private static final String WALLPAPER_EXT = ".jpg";
     private static final String USER_STATS_FILENAME = "userstats.txt";
 
+    /**
+     * Sizes the in-memory board and thread caches from the heap limit of this device.
+     */
+    public static void initCaches(Context context) {
+        ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heapBytes = am.getMemoryClass() * 1024L * 1024L;
+        boardCache.setMaxWeight(heapBytes / BOARD_CACHE_HEAP_DIVISOR);
+        threadCache.setMaxWeight(heapBytes / THREAD_CACHE_HEAP_DIVISOR);
+        if (DEBUG) Log.i(TAG, "initCaches memoryClass=" + am.getMemoryClass() + "MB " + boardCache + " " + threadCache);
+    }
+
+    /**
+     * Shrinks the in-memory caches in response to ComponentCallbacks2.onTrimMemory().
+     */
+    public static void trimMemory(int level) {
+        int keepPercent;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+            keepPercent = 0;
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            keepPercent = 25;
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+            keepPercent = 50;
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+            keepPercent = 100;
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            keepPercent = 25;
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            keepPercent = 50;
+        else
+            keepPercent = 75;
+        boardCache.trimTo(boardCache.maxWeight() * keepPercent / 100);
+        threadCache.trimTo(threadCache.maxWeight() * keepPercent / 100);
+        if (DEBUG) Log.i(TAG, "trimMemory level=" + level + " keepPercent=" + keepPercent + " " + cacheStats());
+    }
+
+    /**
+     * Entry counts, weights and hit/miss/eviction counters of the in-memory caches.
+     */
+    public static String cacheStats() {
+        return boardCache + " " + threadCache;
+    }
+
     public static boolean isBoardCachedOnDisk(Context context, String boardCode) {
         File boardDir = getBoardCacheDirectory(context, boardCode);
         return boardDir != null && boardDir.exists();
@@ -191,10 +261,16 @@ public class ChanFileStorage {
             // default data should never be stored
             return;
         }
+        if (ChanBoard.isPersistentBoard(board.link)) { // watchlist and favorites are written behind
+            boardCache.put(board.link, board);
+            keepResident(board, true);
+            ChanUserListStore.store(context, board);
+            return;
+        }
         File boardDir = getBoardCacheDirectory(context, board.link);
         if (boardDir != null && (boardDir.exists() || boardDir.mkdirs())) {
-            ObjectMapper mapper = BoardParserService.getJsonMapper();
-            mapper.writeValue(new File(boardDir, board.link + CACHE_EXT), board);
+            ChanRecordCodec.writeBoard(new File(boardDir, board.link + RECORD_EXT), board);
+            deleteLegacyFile(new File(boardDir, board.link + CACHE_EXT));
             if (DEBUG) Log.i(TAG, "Stored " + board.threads.length + " threads for board '" + board.link + "'");
             if (!board.isVirtualBoard()) {
                 updateWatchedThread(context, board);
@@ -206,9 +282,57 @@ public class ChanFileStorage {
         if (!board.isVirtualBoard())
             addMissingWatchedThreads(context, board);
         boardCache.put(board.link, board);
+        keepResident(board, true);
         if (DEBUG) Log.i(TAG, "put cached board=" + board.link + " threadCount=" + board.threads.length);
     }
 
+    /**
+     * Stores an edit of the watchlist or favorites already made to the board.  The board is current in memory
+     * and the journal entries are on disk on return, the record follows in the background, see ChanUserListStore.
+     */
+    private static void storeUserListEdit(Context context, ChanBoard board, byte[]... entries) throws IOException {
+        storeUserListEdit(context, board, Arrays.asList(entries));
+    }
+
+    private static void storeUserListEdit(Context context, ChanBoard board, List<byte[]> entries)
+            throws IOException {
+        if (board.defData) {
+            Log.i(TAG, "Default data found, not storing board=" + board.link);
+            return;
+        }
+        boardCache.put(board.link, board);
+        keepResident(board, true);
+        ChanUserListStore.edit(context, board, entries);
+    }
+
+    private static ChanBoard residentBoard(String boardCode) {
+        if (ChanBoard.WATCHLIST_BOARD_CODE.equals(boardCode))
+            return residentWatchlist;
+        else if (ChanBoard.FAVORITES_BOARD_CODE.equals(boardCode))
+            return residentFavorites;
+        else
+            return null;
+    }
+
+    /**
+     * Holds on to the board if it's the watchlist or favorites.  Boards read from disk only fill an empty slot
+     * so they can't displace one stored meanwhile.
+     */
+    private static void keepResident(ChanBoard board, boolean stored) {
+        if (board == null)
+            return;
+        synchronized (residentLock) {
+            if (ChanBoard.WATCHLIST_BOARD_CODE.equals(board.link)) {
+                if (stored || residentWatchlist == null)
+                    residentWatchlist = board;
+            }
+            else if (ChanBoard.FAVORITES_BOARD_CODE.equals(board.link)) {
+                if (stored || residentFavorites == null)
+                    residentFavorites = board;
+            }
+        }
+    }
+
     public static File getBoardFile(Context context, String boardName, int page) {
         File boardDir = getBoardCacheDirectory(context, boardName);
         if (boardDir != null && (boardDir.exists() || boardDir.mkdirs())) {
@@ -292,14 +416,19 @@ public class ChanFileStorage {
         threadCache.put(thread.board + "/" + thread.no, thread);
         File boardDir = getBoardCacheDirectory(context, thread.board);
         if (boardDir != null && (boardDir.exists() || boardDir.mkdirs())) {
-            File threadFile = new File(boardDir, "t_" + thread.no + CACHE_EXT);
+            boolean compact;
+            ChanThreadStore store = acquireThreadStore(boardDir, thread.board);
             try {
-                ObjectMapper mapper = BoardParserService.getJsonMapper();
-                mapper.writeValue(threadFile, thread);
+                compact = store.store(thread);
             } finally {
+                releaseThreadStore(thread.board);
             }
-            updateBoardThread(context, thread);
-            updateWatchedThread(context, thread);
+            if (compact)
+                FileSaverService.startService(context, FileType.THREAD_COMPACTION, thread.board, thread.no);
+            deleteLegacyFile(new File(boardDir, "t_" + thread.no + RECORD_EXT));
+            deleteLegacyFile(new File(boardDir, "t_" + thread.no + CACHE_EXT));
+            updateBoardThreads(context, thread.board, Collections.singletonList(thread));
+            updateWatchedThreads(context, Collections.singletonList(thread));
             if (DEBUG)
                 Log.i(TAG, "Stored " + thread.posts.length + " posts for thread '" + thread.board + FILE_SEP + thread.no + "'");
         } else {
@@ -307,14 +436,105 @@ public class ChanFileStorage {
         }
     }
 
+    /**
+     * Stores a batch of threads of one board, e.g. all threads touched by a board page refresh.
+     * Threads whose content didn't change are not written, the others go to the thread store in one pass
+     * and the board and watchlist are updated and stored once for the whole batch.
+     *
+     * @return the number of threads written
+     */
+    public static int storeThreadsData(Context context, String boardCode, List<ChanThread> threads) throws IOException {
+        List<ChanThread> pending = new ArrayList<ChanThread>(threads.size());
+        for (ChanThread thread : threads) {
+            if (thread.defData) // default data should never be stored
+                continue;
+            if (!boardCode.equals(thread.board)) {
+                storeThreadData(context, thread);
+                continue;
+            }
+            ChanThread currentThread = threadCache.get(thread.board + "/" + thread.no);
+            if (currentThread != null && currentThread.lastFetched > thread.lastFetched) {
+                if (DEBUG) Log.i(TAG, "skipping thread /" + boardCode + "/" + thread.no + " cached time="
+                        + currentThread.lastFetched + " newer than storing time=" + thread.lastFetched);
+                continue;
+            }
+            threadCache.put(thread.board + "/" + thread.no, thread);
+            pending.add(thread);
+        }
+        File boardDir = getBoardCacheDirectory(context, boardCode);
+        if (boardDir == null || !(boardDir.exists() || boardDir.mkdirs())) {
+            Log.e(TAG, "Cannot create board cache folder. " + (boardDir == null ? "null" : boardDir.getAbsolutePath()));
+            return 0;
+        }
+        List<ChanThread> written;
+        boolean compactStore;
+        ChanThreadStore store = acquireThreadStore(boardDir, boardCode);
+        try {
+            written = store.storeAll(pending);
+            compactStore = store.needsCompaction();
+        } finally {
+            releaseThreadStore(boardCode);
+        }
+        for (ChanThread thread : written) {
+            deleteLegacyFile(new File(boardDir, "t_" + thread.no + RECORD_EXT));
+            deleteLegacyFile(new File(boardDir, "t_" + thread.no + CACHE_EXT));
+            if (thread.logState != null && thread.logState.needsCompaction()) {
+                FileSaverService.startService(context, FileType.THREAD_COMPACTION, boardCode, thread.no);
+                compactStore = false; // done by the same job
+            }
+        }
+        if (compactStore)
+            FileSaverService.startService(context, FileType.THREAD_COMPACTION, boardCode, 0);
+        if (!written.isEmpty()) {
+            updateBoardThreads(context, boardCode, written);
+            updateWatchedThreads(context, written);
+        }
+        if (DEBUG) Log.i(TAG, "storeThreadsData /" + boardCode + "/ threads=" + threads.size()
+                + " written=" + written.size() + " skipped=" + (threads.size() - written.size()));
+        return written.size();
+    }
+
+    /**
+     * Stores the refresh plan of threads of one board whose posts didn't change, which only replaces their
+     * thread log headers.  The board and watchlist records are left alone.
+     */
+    public static void storeThreadPlans(Context context, String boardCode, List<ChanThread> threads) throws IOException {
+        List<ChanThread> pending = new ArrayList<ChanThread>(threads.size());
+        for (ChanThread thread : threads) {
+            if (thread.defData || !boardCode.equals(thread.board))
+                continue;
+            threadCache.put(thread.board + "/" + thread.no, thread);
+            pending.add(thread);
+        }
+        if (pending.isEmpty())
+            return;
+        File boardDir = getBoardCacheDirectory(context, boardCode);
+        if (boardDir == null || !(boardDir.exists() || boardDir.mkdirs())) {
+            Log.e(TAG, "Cannot create board cache folder. " + (boardDir == null ? "null" : boardDir.getAbsolutePath()));
+            return;
+        }
+        List<ChanThread> written;
+        ChanThreadStore store = acquireThreadStore(boardDir, boardCode);
+        try {
+            written = store.storeAll(pending);
+        } finally {
+            releaseThreadStore(boardCode);
+        }
+        if (DEBUG) Log.i(TAG, "storeThreadPlans /" + boardCode + "/ threads=" + threads.size()
+                + " written=" + written.size());
+    }
+
     public static ChanBoard loadBoardData(Context context, String boardCode) {
         if (boardCode == null) {
             Log.e(TAG, "Trying to load 'null' board! Check stack trace why has it happened.", new Exception());
             throw new RuntimeException("Null board code was passed!");
         }
-        if (boardCache.containsKey(boardCode)) {
-            ChanBoard cachedBoard = boardCache.get(boardCode);
-            if (cachedBoard != null && cachedBoard.threads != null
+        ChanBoard residentBoard = residentBoard(boardCode);
+        if (residentBoard != null)
+            return residentBoard;
+        ChanBoard cachedBoard = boardCache.get(boardCode);
+        if (cachedBoard != null) {
+            if (cachedBoard.threads != null
                     && cachedBoard.threads.length > 0 && !cachedBoard.defData) {
                 if (DEBUG) Log.i(TAG, "Returning board " + boardCode
                         + " data from cache threads=" + cachedBoard.threads.length
@@ -333,13 +553,17 @@ public class ChanFileStorage {
             }
         }
         File boardFile = null;
+        boolean noBoardFile = false;
         try {
             File boardDir = getBoardCacheDirectory(context, boardCode);
             if (boardDir != null && (boardDir.exists() || boardDir.mkdirs())) {
-                boardFile = new File(boardDir, boardCode + CACHE_EXT);
+                boardFile = new File(boardDir, boardCode + RECORD_EXT);
+                if (!boardFile.exists())
+                    boardFile = new File(boardDir, boardCode + CACHE_EXT);
                 if (boardFile != null && boardFile.exists()) {
-                    ObjectMapper mapper = BoardParserService.getJsonMapper();
-                    ChanBoard board = mapper.readValue(boardFile, ChanBoard.class);
+                    ChanBoard board = readBoardFile(context, boardCode, boardFile);
+                    if (ChanBoard.isPersistentBoard(boardCode))
+                        ChanUserListStore.replayJournal(context, board);
                     if (DEBUG) Log.i(TAG, "Loaded " + board.threads.length + " threads for board '" + board.link
                             + "' isFile=" + boardFile.isFile() + " size=" + boardFile.length() / 1000 + "KB");
                     /*
@@ -353,10 +577,12 @@ public class ChanFileStorage {
                     if (!board.isVirtualBoard())
                         addMissingWatchedThreads(context, board);
                     boardCache.put(boardCode, board);
+                    keepResident(board, false);
                     //}
                     return board;
                 } else {
                     if (DEBUG) Log.i(TAG, "File for board '" + boardCode + "' doesn't exist");
+                    noBoardFile = true;
                 }
             } else {
                 Log.e(TAG, "Cannot create board cache folder. " + (boardDir == null ? "null" : boardDir.getAbsolutePath()));
@@ -368,8 +594,12 @@ public class ChanFileStorage {
             }
         }
         ChanBoard board = prepareDefaultBoardData(context, boardCode);
+        if (board != null && noBoardFile && ChanBoard.isPersistentBoard(boardCode)) // edits not flushed yet
+            ChanUserListStore.replayJournal(context, board);
         if (board != null && !board.isVirtualBoard())
             addMissingWatchedThreads(context, board);
+        if (noBoardFile) // an empty watchlist or favorites until something is stored
+            keepResident(board, false);
         return board;
     }
 
@@ -457,32 +687,104 @@ public class ChanFileStorage {
         return threadCache.get(boardCode + "/" + threadNo);
     }
 
+    /**
+     * Brings the cache weight of a cached thread up to date after it was changed in place without being
+     * stored, e.g. when its reply graph was built.
+     */
+    public static void threadChangedInPlace(ChanThread thread) {
+        threadCache.reweigh(thread.board + "/" + thread.no, thread);
+    }
+
+    /**
+     * Finds out which threads of a batch are stored and when they were last fetched, in one pass: cached threads
+     * answer from the cache and the others from the thread store index without reading any posts.  Threads still
+     * kept in legacy per-thread files are loaded, which moves them into the store.
+     *
+     * @return thread number -> lastFetched of the stored threads, threads left out aren't stored
+     */
+    public static Map<Long, Long> loadThreadsLastFetched(Context context, String boardCode, Collection<Long> threadNos) {
+        Map<Long, Long> stored = new HashMap<Long, Long>(threadNos.size() * 2);
+        Set<Long> uncached = new HashSet<Long>();
+        for (Long threadNo : threadNos) {
+            ChanThread cached = threadCache.get(boardCode + "/" + threadNo);
+            if (cached != null && !cached.defData)
+                stored.put(threadNo, cached.lastFetched);
+            else
+                uncached.add(threadNo);
+        }
+        File boardDir = uncached.isEmpty() ? null : getBoardCacheDirectory(context, boardCode);
+        if (boardDir == null || !boardDir.exists())
+            return stored;
+        try {
+            ChanThreadStore store = acquireThreadStore(boardDir, boardCode);
+            try {
+                stored.putAll(store.lastFetched(uncached));
+            } finally {
+                releaseThreadStore(boardCode);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading thread store index of /" + boardCode + "/", e);
+        }
+        String[] names = boardDir.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            String name = names[i];
+            String ext = name.endsWith(RECORD_EXT) ? RECORD_EXT : name.endsWith(CACHE_EXT) ? CACHE_EXT : null;
+            if (ext == null || !name.startsWith("t_"))
+                continue;
+            long threadNo;
+            try {
+                threadNo = Long.parseLong(name.substring(2, name.length() - ext.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!uncached.contains(threadNo) || stored.containsKey(threadNo))
+                continue;
+            ChanThread thread = loadThreadData(context, boardCode, threadNo);
+            if (thread != null && !thread.defData && !thread.loadedFromBoard)
+                stored.put(threadNo, thread.lastFetched);
+        }
+        return stored;
+    }
+
     public static ChanThread loadThreadData(Context context, String boardCode, long threadNo) {
         if (boardCode == null || threadNo <= 0) {
             if (DEBUG)
                 Log.w(TAG, "Trying to load '" + boardCode + FILE_SEP + threadNo + "' thread! Check stack trace why has it happened.", new Exception());
             return null;
         }
-        if (threadCache.containsKey(boardCode + "/" + threadNo)) {
-            ChanThread thread = threadCache.get(boardCode + "/" + threadNo);
-            if (thread == null || thread.defData) {
+        ChanThread cachedThread = threadCache.get(boardCode + "/" + threadNo);
+        if (cachedThread != null) {
+            if (cachedThread.defData) {
                 if (DEBUG) Log.w(TAG, "Null thread " + boardCode + "/" + threadNo + " stored in cache, removing key");
                 threadCache.remove(boardCode + "/" + threadNo);
             } else {
                 if (DEBUG)
-                    Log.i(TAG, "Returning thread " + boardCode + FILE_SEP + threadNo + " data from cache, posts: " + thread.posts.length);
-                return thread;
+                    Log.i(TAG, "Returning thread " + boardCode + FILE_SEP + threadNo + " data from cache, posts: " + cachedThread.posts.length);
+                return cachedThread;
             }
         }
         File threadFile = null;
         try {
-            threadFile = new File(getBoardCacheDirectory(context, boardCode), "t_" + threadNo + CACHE_EXT);
-            if (!threadFile.exists()) {
-                if (DEBUG) Log.d(TAG, "Thread '" + boardCode + FILE_SEP + threadNo + "' doesn't exist.");
-                return getThreadFromBoard(context, boardCode, threadNo);
+            File boardDir = getBoardCacheDirectory(context, boardCode);
+            ChanThread thread = null;
+            if (boardDir != null && boardDir.exists()) {
+                ChanThreadStore store = acquireThreadStore(boardDir, boardCode);
+                try {
+                    thread = store.load(threadNo);
+                } finally {
+                    releaseThreadStore(boardCode);
+                }
+            }
+            if (thread == null) {
+                threadFile = new File(boardDir, "t_" + threadNo + RECORD_EXT);
+                if (!threadFile.exists())
+                    threadFile = new File(boardDir, "t_" + threadNo + CACHE_EXT);
+                if (!threadFile.exists()) {
+                    if (DEBUG) Log.d(TAG, "Thread '" + boardCode + FILE_SEP + threadNo + "' doesn't exist.");
+                    return getThreadFromBoard(context, boardCode, threadNo);
+                }
+                thread = readThreadFile(context, boardCode, threadNo, threadFile);
             }
-            ObjectMapper mapper = BoardParserService.getJsonMapper();
-            ChanThread thread = mapper.readValue(threadFile, ChanThread.class);
             thread.loadedFromBoard = false;
             threadCache.put(thread.board + "/" + thread.no, thread);
             if (DEBUG)
@@ -494,6 +796,191 @@ public class ChanFileStorage {
         }
     }
 
+    private static ChanBoard readBoardFile(Context context, String boardCode, File boardFile) throws IOException {
+        if (ChanRecordCodec.isRecordFile(boardFile))
+            return ChanRecordCodec.readBoard(boardFile);
+        // legacy json file, rewritten in record format off the calling thread
+        ObjectMapper mapper = BoardParserService.getJsonMapper();
+        ChanBoard board = mapper.readValue(boardFile, ChanBoard.class);
+        FileSaverService.startService(context, FileType.RECORD_MIGRATION, boardCode, 0);
+        return board;
+    }
+
+    private static ChanThread readThreadFile(Context context, String boardCode, long threadNo, File threadFile) throws IOException {
+        // legacy per-thread file, moved into the board's thread store off the calling thread
+        ChanThread thread = ChanRecordCodec.isRecordFile(threadFile)
+                ? ChanThreadLog.readFile(threadFile)
+                : BoardParserService.getJsonMapper().readValue(threadFile, ChanThread.class);
+        FileSaverService.startService(context, FileType.RECORD_MIGRATION, boardCode, threadNo);
+        return thread;
+    }
+
+    /**
+     * Returns the board's thread store for the caller's use, every call must be paired with
+     * {@link #releaseThreadStore} in a finally block.
+     */
+    private static ChanThreadStore acquireThreadStore(File boardDir, String boardCode) throws IOException {
+        synchronized (threadStores) {
+            ThreadStoreRef ref = threadStores.get(boardCode);
+            if (ref == null) {
+                ref = new ThreadStoreRef(ChanThreadStore.open(boardDir));
+                threadStores.put(boardCode, ref);
+            }
+            ref.users++;
+            return ref.store;
+        }
+    }
+
+    private static void releaseThreadStore(String boardCode) {
+        synchronized (threadStores) {
+            ThreadStoreRef ref = threadStores.get(boardCode);
+            if (ref == null || --ref.users > 0)
+                return;
+            if (ref.closing) {
+                ref.store.close();
+                threadStores.remove(boardCode);
+            }
+            // closes segment files of the least recently used idle boards
+            Iterator<ThreadStoreRef> i = threadStores.values().iterator();
+            while (threadStores.size() > MAX_OPEN_THREAD_STORES && i.hasNext()) {
+                ThreadStoreRef eldest = i.next();
+                if (eldest.users == 0) {
+                    eldest.store.close();
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes idle thread stores now and the ones in use when they're released, so that no store is
+     * closed under a caller and a board never has two stores open.
+     */
+    private static void closeThreadStores() {
+        synchronized (threadStores) {
+            Iterator<ThreadStoreRef> i = threadStores.values().iterator();
+            while (i.hasNext()) {
+                ThreadStoreRef ref = i.next();
+                if (ref.users > 0) {
+                    ref.closing = true;
+                    continue;
+                }
+                ref.store.close();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes threads last fetched before olderThan from the board's thread store, except the
+     * ones in keepThreadNos, and compacts the store if that left enough dead space.
+     *
+     * @return the number of bytes freed on disk
+     */
+    public static long evictThreads(Context context, String boardCode, long olderThan, Set<Long> keepThreadNos) {
+        File boardDir = getBoardCacheDirectory(context, boardCode);
+        if (boardDir == null || !new File(boardDir, ChanThreadStore.INDEX_FILE).exists())
+            return 0;
+        try {
+            ChanThreadStore store = acquireThreadStore(boardDir, boardCode);
+            try {
+                long before = store.totalBytes();
+                if (store.evict(olderThan, keepThreadNos) == 0)
+                    return 0;
+                for (String key : threadCache.keySet()) {
+                    if (key.startsWith(boardCode + "/") && !store.contains(Long.valueOf(key.substring(boardCode.length() + 1))))
+                        threadCache.remove(key);
+                }
+                if (store.needsCompaction())
+                    store.compact();
+                return before - store.totalBytes();
+            } finally {
+                releaseThreadStore(boardCode);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error evicting threads from board /" + boardCode + "/", e);
+            return 0;
+        }
+    }
+
+    private static void deleteLegacyFile(File legacyFile) {
+        if (legacyFile.exists() && !legacyFile.delete())
+            Log.e(TAG, "Couldn't delete legacy cache file " + legacyFile);
+    }
+
+    /**
+     * Rewrites a legacy json board or thread file in the binary record format without touching
+     * any other cached data.  Pass threadNo <= 0 to migrate the board file.
+     */
+    public static void migrateLegacyFile(Context context, String boardCode, long threadNo) throws IOException {
+        File boardDir = getBoardCacheDirectory(context, boardCode);
+        if (boardDir == null || !boardDir.exists())
+            return;
+        if (threadNo > 0) {
+            migrateLegacyThreadFile(boardDir, boardCode, threadNo);
+            return;
+        }
+        File legacyFile = new File(boardDir, boardCode + CACHE_EXT);
+        if (!legacyFile.exists())
+            return;
+        File recordFile = new File(boardDir, boardCode + RECORD_EXT);
+        if (!recordFile.exists())
+            ChanRecordCodec.writeBoard(recordFile, BoardParserService.getJsonMapper().readValue(legacyFile, ChanBoard.class));
+        deleteLegacyFile(legacyFile);
+        if (DEBUG) Log.i(TAG, "Migrated legacy cache file " + legacyFile + " to " + recordFile);
+    }
+
+    private static void migrateLegacyThreadFile(File boardDir, String boardCode, long threadNo) throws IOException {
+        File recordFile = new File(boardDir, "t_" + threadNo + RECORD_EXT);
+        File legacyFile = new File(boardDir, "t_" + threadNo + CACHE_EXT);
+        ChanThreadStore store = acquireThreadStore(boardDir, boardCode);
+        try {
+            if (!store.contains(threadNo)) {
+                ChanThread thread = null;
+                if (recordFile.exists())
+                    thread = ChanThreadLog.readFile(recordFile);
+                else if (legacyFile.exists())
+                    thread = BoardParserService.getJsonMapper().readValue(legacyFile, ChanThread.class);
+                if (thread != null)
+                    store.rewrite(thread);
+            }
+        } finally {
+            releaseThreadStore(boardCode);
+        }
+        deleteLegacyFile(recordFile);
+        deleteLegacyFile(legacyFile);
+        if (DEBUG) Log.i(TAG, "Migrated legacy thread file /" + boardCode + "/" + threadNo + " into thread store");
+    }
+
+    /**
+     * Rewrites a thread log without its superseded and deleted entries, then compacts the board's
+     * thread store if enough of it is dead.  Uses the cached thread so that anything stored since
+     * the compaction was requested is kept.
+     */
+    public static void compactThreadData(Context context, String boardCode, long threadNo) throws IOException {
+        File boardDir = getBoardCacheDirectory(context, boardCode);
+        if (boardDir == null || !boardDir.exists())
+            return;
+        ChanThread thread = threadNo > 0 ? threadCache.get(boardCode + "/" + threadNo) : null;
+        if (thread == null && threadNo > 0)
+            thread = loadThreadData(context, boardCode, threadNo);
+        ChanThreadStore store = acquireThreadStore(boardDir, boardCode);
+        try {
+            if (thread != null && !thread.defData && thread.logState != null && thread.logState.needsCompaction()) {
+                store.rewrite(thread);
+                if (DEBUG) Log.i(TAG, "Compacted thread log /" + boardCode + "/" + threadNo);
+            }
+            if (store.needsCompaction())
+                store.compact();
+        } finally {
+            releaseThreadStore(boardCode);
+        }
+    }
+
+    public static boolean isCacheDataFile(String fileName) {
+        return fileName.endsWith(CACHE_EXT) || fileName.endsWith(RECORD_EXT) || ChanThreadStore.isStoreFile(fileName);
+    }
+
     private static ChanThread getThreadFromBoard(Context context, String boardCode, long threadNo) {
         ChanThread thread = makeFirstThreadFromBoard(context, boardCode, threadNo);
         if (thread == null) {
@@ -636,6 +1123,7 @@ public class ChanFileStorage {
     public static boolean deleteCacheDirectory(Context context) {
         // do this jazz to save widget conf even on clear because you can't programmatically remove widgets
         //Set<String> savedWidgetConf = WidgetProviderUtils.getActiveWidgetPref(context);
+        closeThreadStores();
         try {
             String cacheDir = getRootCacheDirectory(context);
             File cacheFolder = StorageUtils.getOwnCacheDirectory(context, cacheDir);
@@ -780,7 +1268,8 @@ public class ChanFileStorage {
             newThreads = new ArrayList<ChanPost>(Arrays.asList(board.threads));
         }
         if (DEBUG) Log.i(TAG, "Before adding to watchlist: " + thread);
-        newThreads.add(0, thread.cloneForWatchlist());
+        ChanThread watchedThread = thread.cloneForWatchlist();
+        newThreads.add(0, watchedThread);
         board.threads = newThreads.toArray(new ChanThread[]{});
 
         if (DEBUG) {
@@ -789,7 +1278,7 @@ public class ChanFileStorage {
             Log.i(TAG, "After adding to watchlist defData: " + board.threads[0].defData);
         }
 
-        storeBoardData(context, board);
+        storeUserListEdit(context, board, ChanUserListStore.addThreadEntry(watchedThread));
         WidgetProviderUtils.updateAll(context, ChanBoard.WATCHLIST_BOARD_CODE);
     }
 
@@ -816,7 +1305,7 @@ public class ChanFileStorage {
             Log.i(TAG, "After adding to favorites threads: " + board.threads[0]);
             Log.i(TAG, "After adding to favorites defData: " + board.threads[0].defData);
         }
-        storeBoardData(context, board);
+        storeUserListEdit(context, board, ChanUserListStore.addThreadEntry(thread));
     }
 
     public static void deleteWatchedThread(Context context, ChanThread thread) throws IOException {
@@ -829,7 +1318,7 @@ public class ChanFileStorage {
         }
         board.threads = newThreads.toArray(new ChanThread[]{});
 
-        storeBoardData(context, board);
+        storeUserListEdit(context, board, ChanUserListStore.removeThreadEntry(thread.board, thread.no));
         WidgetProviderUtils.updateAll(context, ChanBoard.WATCHLIST_BOARD_CODE);
     }
 
@@ -842,65 +1331,77 @@ public class ChanFileStorage {
             }
         }
         board.threads = newThreads.toArray(new ChanThread[]{});
-        storeBoardData(context, board);
+        storeUserListEdit(context, board, ChanUserListStore.removeBoardEntry(thread.board));
     }
 
     public static void clearWatchedThreads(Context context) throws IOException {
         ChanBoard board = loadBoardData(context, ChanBoard.WATCHLIST_BOARD_CODE);
         board.threads = new ChanThread[]{};
-        storeBoardData(context, board);
+        storeUserListEdit(context, board, ChanUserListStore.clearEntry());
         WidgetProviderUtils.updateAll(context, ChanBoard.WATCHLIST_BOARD_CODE);
     }
 
     public static void cleanDeadWatchedThreads(Context context) throws IOException {
         ChanBoard board = loadBoardData(context, ChanBoard.WATCHLIST_BOARD_CODE);
         List<ChanThread> cleanedThreads = new ArrayList<ChanThread>();
+        List<byte[]> removed = new ArrayList<byte[]>();
         for (ChanThread thread : board.threads) {
             if (!thread.isDead)
                 cleanedThreads.add(thread);
+            else
+                removed.add(ChanUserListStore.removeThreadEntry(thread.board, thread.no));
         }
+        if (removed.isEmpty())
+            return;
         board.threads = cleanedThreads.size() == 0 ? new ChanThread[]{} : cleanedThreads.toArray(new ChanThread[cleanedThreads.size()]);
-        storeBoardData(context, board);
+        storeUserListEdit(context, board, removed);
         WidgetProviderUtils.updateAll(context, ChanBoard.WATCHLIST_BOARD_CODE);
     }
 
     public static void clearFavorites(Context context) throws IOException {
         ChanBoard board = loadBoardData(context, ChanBoard.FAVORITES_BOARD_CODE);
         board.threads = new ChanThread[]{};
-        storeBoardData(context, board);
+        storeUserListEdit(context, board, ChanUserListStore.clearEntry());
     }
 
-    private static void updateBoardThread(Context context, ChanThread loadedThread) throws IOException {
-        // store updated status into board thread record
-        ChanBoard board = loadBoardData(context, loadedThread.board);
+    private static void updateBoardThreads(Context context, String boardCode, List<ChanThread> loadedThreads) throws IOException {
+        // store updated status into board thread records
+        ChanBoard board = loadBoardData(context, boardCode);
         if (board == null || board.threads == null)
             return;
-        int found = -1;
+        Map<Long, ChanThread> loaded = new HashMap<Long, ChanThread>(loadedThreads.size() * 2);
+        for (ChanThread loadedThread : loadedThreads)
+            loaded.put(loadedThread.no, loadedThread);
+        long found = -1;
         for (int i = 0; i < board.threads.length; i++) {
-            if (board.threads[i] != null && board.threads[i].no == loadedThread.no) {
-                found = i;
-                break;
+            ChanThread loadedThread = board.threads[i] == null ? null : loaded.get(board.threads[i].no);
+            if (loadedThread != null) {
+                if (DEBUG) Log.i(TAG, "updateBoardThreads found thread=[" + board.threads[i] + "] merging=[" + loadedThread + "]");
+                board.threads[i].copyUpdatedInfoFields(loadedThread);
+                found = loadedThread.no;
             }
         }
-        if (found >= 0) {
-            if (DEBUG) Log.i(TAG, "updateBoardThread found thread=[" + board.threads[found] + "] merging=[" + loadedThread + "]");
-            board.threads[found].copyUpdatedInfoFields(loadedThread);
-            storeBoardData(context, board, board.threads[found].no);
-        }
+        if (found >= 0)
+            storeBoardData(context, board, loadedThreads.size() == 1 ? found : -1);
     }
 
-    private static void updateWatchedThread(Context context, ChanThread loadedThread) throws IOException {
+    private static void updateWatchedThreads(Context context, List<ChanThread> loadedThreads) throws IOException {
         ChanBoard watchlistBoard = loadBoardData(context, ChanBoard.WATCHLIST_BOARD_CODE);
-        for (int i = 0; i < watchlistBoard.threads.length; i++) {
+        boolean updated = false;
+        for (ChanThread loadedThread : loadedThreads) {
+            int i = watchlistBoard.getThreadIndex(loadedThread.board, loadedThread.no);
+            if (i < 0)
+                continue;
             ChanThread watchedThread = watchlistBoard.threads[i];
-            if (watchedThread.no == loadedThread.no && watchedThread.board.equals(loadedThread.board)) {
-                NotificationComponent.notifyNewReplies(context, watchedThread, loadedThread);
-                watchlistBoard.threads[i].updateThreadData(loadedThread);
-                if (DEBUG) Log.i(TAG, "Updating watched thread " + watchedThread.board + "/" + watchedThread.no
-                        + " replies: " + watchedThread.replies + " images: " + watchedThread.images);
-                storeBoardData(context, watchlistBoard);
-                BoardActivity.refreshWatchlist(context);
-            }
+            NotificationComponent.notifyNewReplies(context, watchedThread, loadedThread);
+            watchedThread.updateThreadData(loadedThread);
+            if (DEBUG) Log.i(TAG, "Updating watched thread " + watchedThread.board + "/" + watchedThread.no
+                    + " replies: " + watchedThread.replies + " images: " + watchedThread.images);
+            updated = true;
+        }
+        if (updated) {
+            storeBoardData(context, watchlistBoard);
+            BoardActivity.refreshWatchlist(context);
         }
     }
 
@@ -912,21 +1413,20 @@ public class ChanFileStorage {
         ChanBoard watchlist = loadBoardData(context, ChanBoard.WATCHLIST_BOARD_CODE);
         if (watchlist == null || watchlist.threads == null || watchlist.threads.length == 0)
             return;
+        if (!watchlist.hasThreadsFromBoard(loadedBoard.link))
+            return;
         boolean updateWatchlist = false;
-        for (int i = 0; i < watchlist.threads.length; i++) {
+        for (int t = 0; t < loadedBoard.loadedThreads.length; t++) {
+            ChanThread loadedThread = loadedBoard.loadedThreads[t];
+            int i = loadedThread == null ? -1 : watchlist.getThreadIndex(loadedBoard.link, loadedThread.no);
+            if (i < 0)
+                continue;
             ChanThread watchedThread = watchlist.threads[i];
-            if (watchedThread.board.equals(loadedBoard.link)) {
-                for (int t = 0; t < loadedBoard.loadedThreads.length; t++) {
-                    ChanThread loadedThread = loadedBoard.loadedThreads[t];
-                    if (watchedThread.no == loadedThread.no) {
-                        NotificationComponent.notifyNewReplies(context, watchedThread, loadedThread);
-                        watchedThread.updateThreadDataWithPost(loadedThread);
-                        if (DEBUG) Log.i(TAG, "Updating watched thread " + watchedThread.board + "/" + watchedThread.no
-                                + " replies: " + watchedThread.replies + " images: " + watchedThread.images);
-                        updateWatchlist = true;
-                    }
-                }
-            }
+            NotificationComponent.notifyNewReplies(context, watchedThread, loadedThread);
+            watchedThread.updateThreadDataWithPost(loadedThread);
+            if (DEBUG) Log.i(TAG, "Updating watched thread " + watchedThread.board + "/" + watchedThread.no
+                    + " replies: " + watchedThread.replies + " images: " + watchedThread.images);
+            updateWatchlist = true;
         }
         if (updateWatchlist) {
             storeBoardData(context, watchlist);
@@ -941,23 +1441,13 @@ public class ChanFileStorage {
     private static boolean isThreadWatched(ChanBoard board, ChanThread thread) {
         if (board == null || board.threads == null || thread == null)
             return false;
-        for (ChanPost post : board.threads) {
-            if (post.board != null && post.board.equals(thread.board) && post.no == thread.no) {
-                return true;
-            }
-        }
-        return false;
+        return board.hasThread(thread.board, thread.no);
     }
 
     public static boolean isFavoriteBoard(ChanBoard board, ChanThread thread) {
         if (board == null || board.threads == null)
             return false;
-        for (ChanPost post : board.threads) {
-            if (post.board != null && post.board.equals(thread.board)) {
-                return true;
-            }
-        }
-        return false;
+        return board.hasThreadsFromBoard(thread.board);
     }
 
     public static boolean isThreadWatched(Context context, ChanThread thread) {
@@ -986,6 +1476,12 @@ public class ChanFileStorage {
         File boardDir = getBoardCacheDirectory(context, boardCode);
         if (!moveFileToDir(legacyBoardFile, boardDir))
             return;
+        synchronized (residentLock) { // read the moved file on next load
+            if (ChanBoard.WATCHLIST_BOARD_CODE.equals(boardCode))
+                residentWatchlist = null;
+            else if (ChanBoard.FAVORITES_BOARD_CODE.equals(boardCode))
+                residentFavorites = null;
+        }
         String cacheDir = getLegacyBoardCachePath(context, boardCode);
         if (!Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED))
             return;
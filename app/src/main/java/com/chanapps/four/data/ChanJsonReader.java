@@ -0,0 +1,310 @@
+package com.chanapps.four.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Reads posts and threads of the 4chan json api directly from a JsonParser.
+ *
+ * This replaces ObjectMapper.readValue(node, ChanPost.class) on the api parse paths, which went through a JsonNode
+ * tree, bean reflection and one JacksonNonBlockingObjectMapperFactory deserializer per field.  Values are coerced
+ * the same lenient way those deserializers do it: a value of the wrong type reads as 0, false or null instead of
+ * failing the post, an integer field also accepts true/false and a json null leaves the field at its default.
+ * Unknown fields are skipped without materializing them.
+ *
+ * All methods expect the parser to be positioned on the opening token of the value to read and leave it on the
+ * matching closing token.
+ */
+public class ChanJsonReader {
+
+    private static final int F_BOARD = 1;
+    private static final int F_NO = 2;
+    private static final int F_STICKY = 3;
+    private static final int F_CLOSED = 4;
+    private static final int F_NOW = 5;
+    private static final int F_TRIP = 6;
+    private static final int F_ID = 7;
+    private static final int F_CAPCODE = 8;
+    private static final int F_COUNTRY = 9;
+    private static final int F_COUNTRY_NAME = 10;
+    private static final int F_EMAIL = 11;
+    private static final int F_TIME = 12;
+    private static final int F_NAME = 13;
+    private static final int F_SUB = 14;
+    private static final int F_COM = 15;
+    private static final int F_TIM = 16;
+    private static final int F_FILENAME = 17;
+    private static final int F_EXT = 18;
+    private static final int F_W = 19;
+    private static final int F_H = 20;
+    private static final int F_TN_W = 21;
+    private static final int F_TN_H = 22;
+    private static final int F_FSIZE = 23;
+    private static final int F_RESTO = 24;
+    private static final int F_REPLIES = 25;
+    private static final int F_IMAGES = 26;
+    private static final int F_OMITTED_POSTS = 27;
+    private static final int F_OMITTED_IMAGES = 28;
+    private static final int F_BUMPLIMIT = 29;
+    private static final int F_IMAGELIMIT = 30;
+    private static final int F_SPOILER = 31;
+    private static final int F_FILEDELETED = 32;
+    private static final int F_IS_DEAD = 33;
+    private static final int F_JUMP_TO_POST_NO = 34;
+    // thread only
+    private static final int F_LAST_REPLIES = 100;
+    private static final int F_POSTS = 101;
+
+    private static final Map<String, Integer> FIELDS = new HashMap<String, Integer>();
+    static {
+        FIELDS.put("board", F_BOARD);
+        FIELDS.put("no", F_NO);
+        FIELDS.put("sticky", F_STICKY);
+        FIELDS.put("closed", F_CLOSED);
+        FIELDS.put("now", F_NOW);
+        FIELDS.put("trip", F_TRIP);
+        FIELDS.put("id", F_ID);
+        FIELDS.put("capcode", F_CAPCODE);
+        FIELDS.put("country", F_COUNTRY);
+        FIELDS.put("country_name", F_COUNTRY_NAME);
+        FIELDS.put("email", F_EMAIL);
+        FIELDS.put("time", F_TIME);
+        FIELDS.put("name", F_NAME);
+        FIELDS.put("sub", F_SUB);
+        FIELDS.put("com", F_COM);
+        FIELDS.put("tim", F_TIM);
+        FIELDS.put("filename", F_FILENAME);
+        FIELDS.put("ext", F_EXT);
+        FIELDS.put("w", F_W);
+        FIELDS.put("h", F_H);
+        FIELDS.put("tn_w", F_TN_W);
+        FIELDS.put("tn_h", F_TN_H);
+        FIELDS.put("fsize", F_FSIZE);
+        FIELDS.put("resto", F_RESTO);
+        FIELDS.put("replies", F_REPLIES);
+        FIELDS.put("images", F_IMAGES);
+        FIELDS.put("omitted_posts", F_OMITTED_POSTS);
+        FIELDS.put("omitted_images", F_OMITTED_IMAGES);
+        FIELDS.put("bumplimit", F_BUMPLIMIT);
+        FIELDS.put("imagelimit", F_IMAGELIMIT);
+        FIELDS.put("spoiler", F_SPOILER);
+        FIELDS.put("filedeleted", F_FILEDELETED);
+        FIELDS.put("isDead", F_IS_DEAD);
+        FIELDS.put("jumpToPostNo", F_JUMP_TO_POST_NO);
+        FIELDS.put("last_replies", F_LAST_REPLIES);
+        FIELDS.put("posts", F_POSTS);
+    }
+
+    /**
+     * Reads one post object, board is set to boardCode unless the object carries its own.
+     */
+    public static ChanPost readPost(JsonParser jp, String boardCode) throws IOException {
+        ChanPost post = new ChanPost();
+        readObject(jp, post, null);
+        if (post.board == null || post.board.isEmpty())
+            post.board = boardCode;
+        return post;
+    }
+
+    /**
+     * Reads one thread object of catalog.json including its last_replies.
+     */
+    public static ChanThread readThread(JsonParser jp, String boardCode) throws IOException {
+        ChanThread thread = new ChanThread();
+        readObject(jp, thread, thread);
+        if (thread.board == null || thread.board.isEmpty())
+            thread.board = boardCode;
+        return thread;
+    }
+
+    /**
+     * Reads an array of post objects, for example the posts of a thread.
+     */
+    public static List<ChanPost> readPosts(JsonParser jp, String boardCode) throws IOException {
+        List<ChanPost> posts = new ArrayList<ChanPost>();
+        if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+            jp.skipChildren();
+            return posts;
+        }
+        JsonToken token;
+        while ((token = jp.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token == JsonToken.START_OBJECT)
+                posts.add(readPost(jp, boardCode));
+            else
+                jp.skipChildren();
+        }
+        return posts;
+    }
+
+    /**
+     * Reads only the first post of an array of posts, the thread post on board pages, and skips the rest.
+     * @return null if the array is empty
+     */
+    public static ChanPost readFirstPost(JsonParser jp, String boardCode) throws IOException {
+        if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+            jp.skipChildren();
+            return null;
+        }
+        ChanPost post = null;
+        JsonToken token;
+        while ((token = jp.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (post == null && token == JsonToken.START_OBJECT)
+                post = readPost(jp, boardCode);
+            else
+                jp.skipChildren();
+        }
+        return post;
+    }
+
+    /**
+     * Moves to the value of the named field of the current object, skipping all fields before it.
+     * @return false if the object ended without such a field
+     */
+    public static boolean nextField(JsonParser jp, String name) throws IOException {
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            jp.nextToken();
+            if (name.equals(field))
+                return true;
+            jp.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * Leaves the parser at the end of the current object after nextField() returned true.
+     */
+    public static void skipRestOfObject(JsonParser jp) throws IOException {
+        jp.skipChildren(); // the value nextField() stopped at
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            jp.nextToken();
+            jp.skipChildren();
+        }
+    }
+
+    private static void readObject(JsonParser jp, ChanPost post, ChanThread thread) throws IOException {
+        if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+            jp.skipChildren();
+            return;
+        }
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            Integer field = FIELDS.get(jp.getCurrentName()); // field names are canonicalized by the parser, no copy
+            JsonToken token = jp.nextToken();
+            if (field == null) {
+                jp.skipChildren();
+                continue;
+            }
+            if (token == JsonToken.VALUE_NULL)
+                continue;
+            switch (field) {
+                case F_BOARD: post.board = readString(jp, token); break;
+                case F_NO: post.no = readLong(jp, token); break;
+                case F_STICKY: post.sticky = readInt(jp, token); break;
+                case F_CLOSED: post.closed = readInt(jp, token); break;
+                case F_NOW: post.now = readString(jp, token); break;
+                case F_TRIP: post.trip = readString(jp, token); break;
+                case F_ID: post.id = readString(jp, token); break;
+                case F_CAPCODE: post.capcode = readString(jp, token); break;
+                case F_COUNTRY: post.country = readString(jp, token); break;
+                case F_COUNTRY_NAME: post.country_name = readString(jp, token); break;
+                case F_EMAIL: post.email = readString(jp, token); break;
+                case F_TIME: post.time = readLong(jp, token); break;
+                case F_NAME: post.name = readString(jp, token); break;
+                case F_SUB: post.sub = readString(jp, token); break;
+                case F_COM: post.com = readString(jp, token); break;
+                case F_TIM: post.tim = readLong(jp, token); break;
+                case F_FILENAME: post.filename = readString(jp, token); break;
+                case F_EXT: post.ext = readString(jp, token); break;
+                case F_W: post.w = readInt(jp, token); break;
+                case F_H: post.h = readInt(jp, token); break;
+                case F_TN_W: post.tn_w = readInt(jp, token); break;
+                case F_TN_H: post.tn_h = readInt(jp, token); break;
+                case F_FSIZE: post.fsize = readInt(jp, token); break;
+                case F_RESTO: post.resto = readLong(jp, token); break;
+                case F_REPLIES: post.replies = readInt(jp, token); break;
+                case F_IMAGES: post.images = readInt(jp, token); break;
+                case F_OMITTED_POSTS: post.omitted_posts = readInt(jp, token); break;
+                case F_OMITTED_IMAGES: post.omitted_images = readInt(jp, token); break;
+                case F_BUMPLIMIT: post.bumplimit = readInt(jp, token); break;
+                case F_IMAGELIMIT: post.imagelimit = readInt(jp, token); break;
+                case F_SPOILER: post.spoiler = readInt(jp, token); break;
+                case F_FILEDELETED: post.filedeleted = readInt(jp, token); break;
+                case F_IS_DEAD: post.isDead = readBoolean(jp, token); break;
+                case F_JUMP_TO_POST_NO: post.jumpToPostNo = readLong(jp, token); break;
+                case F_LAST_REPLIES:
+                    if (thread != null) {
+                        List<ChanPost> lastReplies = readPosts(jp, post.board);
+                        thread.lastReplies = lastReplies.toArray(new ChanPost[lastReplies.size()]);
+                    }
+                    else {
+                        jp.skipChildren();
+                    }
+                    break;
+                case F_POSTS:
+                    if (thread != null) {
+                        List<ChanPost> posts = readPosts(jp, post.board);
+                        thread.posts = posts.toArray(new ChanPost[posts.size()]);
+                    }
+                    else {
+                        jp.skipChildren();
+                    }
+                    break;
+                default:
+                    jp.skipChildren();
+            }
+        }
+    }
+
+    private static String readString(JsonParser jp, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_STRING || token.isNumeric()
+                || token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE)
+            return jp.getText();
+        jp.skipChildren();
+        return null;
+    }
+
+    private static long readLong(JsonParser jp, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT)
+            return jp.getLongValue();
+        if (token == JsonToken.VALUE_STRING)
+            return parseLong(jp.getText());
+        jp.skipChildren();
+        return 0;
+    }
+
+    private static int readInt(JsonParser jp, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT)
+            return jp.getIntValue();
+        if (token == JsonToken.VALUE_TRUE)
+            return 1;
+        if (token == JsonToken.VALUE_STRING)
+            return (int)parseLong(jp.getText());
+        jp.skipChildren();
+        return 0;
+    }
+
+    private static boolean readBoolean(JsonParser jp, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_TRUE)
+            return true;
+        if (token == JsonToken.VALUE_STRING)
+            return "true".equals(jp.getText().trim());
+        jp.skipChildren();
+        return false;
+    }
+
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
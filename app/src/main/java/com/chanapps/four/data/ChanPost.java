@@ -13,7 +13,6 @@ import android.util.Log;
 
 import com.chanapps.four.activity.R;
 import com.chanapps.four.component.URLFormatComponent;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.codehaus.jackson.map.annotate.JsonDeserialize;
 
 public class ChanPost implements Serializable {
@@ -167,6 +166,11 @@ public class ChanPost implements Serializable {
             POST_FLAGS
     };
 
+    private static final long POST_OVERHEAD_BYTES = 200;
+    private static final long STRING_OVERHEAD_BYTES = 40;
+    protected static final long ARRAY_OVERHEAD_BYTES = 16;
+    protected static final long REFERENCE_BYTES = 4;
+
     @JsonDeserialize(using=JacksonNonBlockingObjectMapperFactory.NonBlockingStringDeserializer.class)
     public String board;
 
@@ -262,6 +266,9 @@ public class ChanPost implements Serializable {
     @JsonDeserialize(using=JacksonNonBlockingObjectMapperFactory.NonBlockingLongDeserializer.class)
     public long jumpToPostNo = 0;
 
+    // presentation fields for the cursors, recomputed when the post, the settings or the day change
+    private transient ChanPostDerived derived;
+
     public static final String quoteText(String in, long resto) {
         if (in == null || in.isEmpty())
             return "";
@@ -328,6 +335,15 @@ public class ChanPost implements Serializable {
     }
 
     public String[] textComponents(String query) {
+        if (!query.isEmpty())
+            return buildTextComponents(query);
+        ChanPostDerived d = derived();
+        if (d.textComponents == null)
+            d.textComponents = buildTextComponents(query);
+        return d.textComponents;
+    }
+
+    private String[] buildTextComponents(String query) {
         String subText = sanitizeText(sub, false);
         String comText = sanitizeText(com, false);
         String subject = subText != null ? subText : "";
@@ -385,12 +401,13 @@ public class ChanPost implements Serializable {
         return new String[] { highlightComponent(subject, query), highlightComponent(message, query) };
     }
 
+    private static final String HIGHLIGHT_START = "<b><font color=\"" + HIGHLIGHT_COLOR + "\">";
+    private static final String HIGHLIGHT_END = "</font></b>";
+
     private String highlightComponent(String component, String query) {
         if (query.isEmpty())
             return component;
-        String regex = "(?i)(" + query + ")";
-        String replace = "<b><font color=\"" + HIGHLIGHT_COLOR + "\">$1</font></b>";
-        return component.replaceAll(regex, replace);
+        return ChanSearchQuery.of(query).highlight(component, HIGHLIGHT_START, HIGHLIGHT_END);
     }
 
     public String threadSubject(Context context) {
@@ -424,29 +441,16 @@ public class ChanPost implements Serializable {
     }
 
     private String sanitizeText(String text, boolean collapseNewlines) {
-        if (text == null || text.isEmpty())
-            return "";
-
-        long start = System.currentTimeMillis();
-
-        if (hidePostNumbers)
-            text = text.replaceAll("<a[^>]*class=\"quotelink\">[^<]*</a>", "");
-        else
-            text = text.replaceAll("<a[^>]*class=\"quotelink\">([^<]*)</a>", "$1");
-
-        text = text
-                .replaceAll("<span[^>]*class=\"abbr\"[^>]*>.*</span>", "")    // exif reference
-                .replaceAll("<table[^>]*class=\"exif\"[^>]*>.*</table>", "");  // exif info
-        text = textViewFilter(text, collapseNewlines);
-
-        long end = System.currentTimeMillis();
-        if (DEBUG) Log.v(TAG, "Regexp: " + (end - start) + "ms");
-
-        return text;
+        return ChanCommentFilter.sanitize(text, hidePostNumbers, collapseNewlines);
     }
 
     public String exifText() {
-        return exifText(com);
+        ChanPostDerived d = derived();
+        if (!d.exifTextDone) {
+            d.exifText = exifText(com);
+            d.exifTextDone = true;
+        }
+        return d.exifText;
     }
 
     protected static final Pattern EXIF_PATTERN = Pattern.compile(".*<table[^>]*class=\"exif\"[^>]*>(.*)</table>.*");
@@ -462,34 +466,69 @@ public class ChanPost implements Serializable {
             return null;
         String s = g.replaceAll("<tr[^>]*><td colspan=\"2\"[^>]*><b>([^<]*)</b></td></tr>", "$1\n");
         String t = s.replaceAll("<tr[^>]*><td[^>]*>([^<]*)</td><td[^>]*>([^<]*)</td></tr>", "$1: $2\n");
-        return textViewFilter(t);
-    }
-
-    private static final String textViewFilter(String s) {
-        return textViewFilter(s, false);
-    }
-
-    private static final String textViewFilter(String s, boolean collapseNewlines) {
-        String t = s
-                .replaceAll("<br */?>", "\n")
-                .replaceAll("<[^s/][^>]+>", "") // preserve <s> tags
-                .replaceAll("<s[^>]+>", "")
-                .replaceAll("</[^s][^>]*>", "")
-                .replaceAll("</s[^>]+>", "")
-                .replaceAll("&lt;", "<")
-                .replaceAll("&gt;", ">")
-                .replaceAll("&amp;", "&")
-                .replaceAll("&quot;", "\"")
-                .replaceAll("&#0*39;", "'")
-                .replaceAll("&#0*44;", ",")
-                .replaceAll("&#[0-9abcdef]*;", "")
-                .replaceFirst("^\n+", "")
-                .replaceFirst("\n+$", "");
-        if (collapseNewlines)
-            t = t.replaceAll("\n+", " ");
-        else
-            t = t.replaceAll("\n", "<br/>");
-        return t.trim();
+        return ChanCommentFilter.textViewFilter(t, false);
+    }
+
+    /**
+     * @return derived fields for the current content of the post, fields depending on settings may be stale
+     */
+    ChanPostDerived derived() {
+        long version = contentVersion();
+        ChanPostDerived d = derived;
+        if (d == null || d.version != version) {
+            d = new ChanPostDerived(version, null);
+            derived = d;
+        }
+        return d;
+    }
+
+    private ChanPostDerived derived(Context context) {
+        ChanPostDerived.Environment env = ChanPostDerived.Environment.current(context);
+        ChanPostDerived d = derived();
+        if (d.environment != env) {
+            d = d.withEnvironment(env);
+            derived = d;
+        }
+        return d;
+    }
+
+    /**
+     * Hash of the fields the derived presentation fields are built from.  Posts are updated by assigning their fields,
+     * so this is checked on every access instead of invalidating on writes; String caches its hash code.
+     */
+    private long contentVersion() {
+        long v = no;
+        v = 31 * v + resto;
+        v = 31 * v + time;
+        v = 31 * v + tim;
+        v = 31 * v + fsize;
+        v = 31 * v + w;
+        v = 31 * v + h;
+        v = 31 * v + spoiler;
+        v = 31 * v + filedeleted;
+        v = 31 * v + sticky;
+        v = 31 * v + closed;
+        v = 31 * v + replies;
+        v = 31 * v + images;
+        v = 31 * v + bumplimit;
+        v = 31 * v + imagelimit;
+        v = 31 * v + ((isDead ? 1 : 0) | (hidePostNumbers ? 2 : 0) | (useFriendlyIds ? 4 : 0));
+        v = 31 * v + hash(board);
+        v = 31 * v + hash(sub);
+        v = 31 * v + hash(com);
+        v = 31 * v + hash(name);
+        v = 31 * v + hash(trip);
+        v = 31 * v + hash(email);
+        v = 31 * v + hash(id);
+        v = 31 * v + hash(country);
+        v = 31 * v + hash(country_name);
+        v = 31 * v + hash(filename);
+        v = 31 * v + hash(ext);
+        return v;
+    }
+
+    private static int hash(String s) {
+        return s == null ? 0 : s.hashCode();
     }
 
     public String toString() {
@@ -497,6 +536,13 @@ public class ChanPost implements Serializable {
 	}
 
     public String thumbnailUrl(Context context) { // thumbnail with fallback
+        ChanPostDerived d = derived(context);
+        if (d.thumbnailUrl == null)
+            d.thumbnailUrl = buildThumbnailUrl(context);
+        return d.thumbnailUrl;
+    }
+
+    private String buildThumbnailUrl(Context context) {
         int stickyId = ChanBoard.imagelessStickyDrawableId(board, no);
         if (stickyId > 0)
             return "drawable://" + stickyId;
@@ -556,10 +602,14 @@ public class ChanPost implements Serializable {
     }
 
     public String countryFlagUrl(Context context) {
-        if (country != null && !country.isEmpty())
-            return countryFlagUrl(context, board, country);
-        else
+        if (country == null || country.isEmpty())
             return null;
+        ChanPostDerived d = derived(context);
+        if (!d.countryFlagUrlDone) {
+            d.countryFlagUrl = countryFlagUrl(context, board, country);
+            d.countryFlagUrlDone = true;
+        }
+        return d.countryFlagUrl;
     }
 
     public String countryFlagUrl(Context context, String boardCode, String countryCode) {
@@ -572,6 +622,13 @@ public class ChanPost implements Serializable {
     }
 
     public String dateText(Context context) {
+        ChanPostDerived d = derived(context);
+        if (d.dateText == null)
+            d.dateText = buildDateText(context);
+        return d.dateText;
+    }
+
+    private String buildDateText(Context context) {
         long timeMs = time > 0 ? 1000 * time : tim;
         if (timeMs <= 0)
             return "";
@@ -664,6 +721,19 @@ public class ChanPost implements Serializable {
 
     public String headline(Context context, String query, boolean boardLevel, byte[] repliesBlob,
                            boolean showNumReplies, boolean abbrev) {
+        if (!query.isEmpty())
+            return buildHeadline(context, query, boardLevel, showNumReplies, abbrev);
+        ChanPostDerived d = derived(context);
+        int key = ChanPostDerived.headlineKey(boardLevel, showNumReplies, abbrev);
+        if (d.headline == null || d.headlineKey != key) {
+            d.headline = buildHeadline(context, query, boardLevel, showNumReplies, abbrev);
+            d.headlineKey = key;
+        }
+        return d.headline;
+    }
+
+    private String buildHeadline(Context context, String query, boolean boardLevel, boolean showNumReplies,
+                                 boolean abbrev) {
         List<String> items = new ArrayList<String>();
         if (!boardLevel) {
             if (email != null && !email.isEmpty() && email.equals("sage"))
@@ -742,6 +812,30 @@ public class ChanPost implements Serializable {
         }
     }
 
+    /**
+     * Same as mergeIntoThreadList(threads) using an index by number kept alongside the list, so merging a page
+     * of threads stays linear.  Start the index with indexThreadList().
+     */
+    public void mergeIntoThreadList(List<ChanPost> threads, Map<Long, ChanPost> threadsByNo) {
+        ChanPost existingThread = threadsByNo.get(no);
+        if (existingThread != null) {
+            existingThread.copyUpdatedInfoFields(this);
+        }
+        else {
+            threads.add(this);
+            threadsByNo.put(no, this);
+        }
+    }
+
+    public static Map<Long, ChanPost> indexThreadList(List<ChanPost> threads) {
+        Map<Long, ChanPost> threadsByNo = new HashMap<Long, ChanPost>(threads.size() * 2 + 16);
+        for (ChanPost thread : threads) {
+            if (!threadsByNo.containsKey(thread.no))
+                threadsByNo.put(thread.no, thread);
+        }
+        return threadsByNo;
+    }
+
     public void copyUpdatedInfoFields(ChanThread from) {
         if (from != null && from.posts != null && from.posts.length > 0 && from.posts[0] != null)
             copyUpdatedInfoFields(from.posts[0]);
@@ -792,44 +886,147 @@ public class ChanPost implements Serializable {
         return matches;
     }
 
-    protected static final Pattern BACKLINK_PATTERN = Pattern.compile("#p(\\d+)\"");
+    private static final long[] NO_LINKS = new long[0];
+
+    /**
+     * @return distinct numbers of the posts quoted in the comment, as stored in the record file or scanned once
+     */
+    long[] quoteLinks() {
+        ChanPostDerived d = derived();
+        long[] links = d.quoteLinks;
+        if (links == null) {
+            links = scanQuoteLinks(com);
+            d.quoteLinks = links;
+        }
+        return links;
+    }
+
+    void setQuoteLinks(long[] links) {
+        derived().quoteLinks = links;
+    }
 
-    protected HashSet<Long> backlinks() {
-        HashSet<Long> backlinks = null;
-        if (com != null && !com.isEmpty()) {
-            Matcher m = BACKLINK_PATTERN.matcher(com);
-            while (m.find()) {
-                if (backlinks == null)
-                    backlinks = new HashSet<Long>();
-                backlinks.add(Long.valueOf(m.group(1)));
+    /**
+     * Finds the targets of the quote links in a comment, the numbers in #p(\d+)" in order of appearance.
+     */
+    static long[] scanQuoteLinks(String com) {
+        if (com == null || com.isEmpty())
+            return NO_LINKS;
+        long[] links = NO_LINKS;
+        int n = 0;
+        int length = com.length();
+        int i = com.indexOf("#p");
+        while (i >= 0) {
+            int j = i + 2;
+            long no = 0;
+            while (j < length && j - i < 20 && com.charAt(j) >= '0' && com.charAt(j) <= '9')
+                no = no * 10 + (com.charAt(j++) - '0');
+            if (j > i + 2 && j < length && com.charAt(j) == '"' && indexOf(links, n, no) < 0) {
+                if (n == links.length)
+                    links = Arrays.copyOf(links, Math.max(4, n * 2));
+                links[n++] = no;
             }
+            i = com.indexOf("#p", j);
+        }
+        return n == links.length ? links : Arrays.copyOf(links, n);
+    }
+
+    private static int indexOf(long[] a, int n, long v) {
+        for (int i = 0; i < n; i++)
+            if (a[i] == v)
+                return i;
+        return -1;
+    }
+
+    private static final int POST_NOS_BLOB_FORMAT = 1; // java serialized blobs start with 0xac
+
+    /**
+     * Encodes a set of post numbers for the cursor blob columns: a format byte, the count as a varint so
+     * blobCount() doesn't decode the rest, then the sorted numbers as varint deltas.
+     */
+    public static byte[] blobify(long[] postNos) {
+        if (postNos == null || postNos.length == 0)
+            return null;
+        long[] sorted = postNos.clone();
+        Arrays.sort(sorted);
+        byte[] b = new byte[1 + 5 + sorted.length * 10];
+        b[0] = POST_NOS_BLOB_FORMAT;
+        int pos = putVarint(b, 1, sorted.length);
+        long prevNo = 0;
+        for (long postNo : sorted) {
+            pos = putVarint(b, pos, postNo - prevNo);
+            prevNo = postNo;
         }
-        return backlinks;
+        return Arrays.copyOf(b, pos);
     }
 
-    public static byte[] blobify(HashSet<?> hashSet) {
-        if (hashSet == null || hashSet.isEmpty())
+    /**
+     * @return sorted post numbers of a blob, null if there is none or it can't be read
+     */
+    public static long[] parsePostNos(final byte[] b) {
+        if (b == null || b.length == 0)
             return null;
+        if (b[0] != POST_NOS_BLOB_FORMAT)
+            return parseSerializedPostNos(b);
+        long[] postNos;
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(hashSet);
-            return baos.toByteArray();
+            int[] pos = { 1 };
+            int n = (int)getVarint(b, pos);
+            if (n < 0 || n > b.length)
+                throw new IllegalArgumentException("Bad count=" + n);
+            postNos = new long[n];
+            long prevNo = 0;
+            for (int i = 0; i < postNos.length; i++) {
+                prevNo += getVarint(b, pos);
+                postNos[i] = prevNo;
+            }
         }
-        catch (IOException e) {
-            Log.e(TAG, "Couldn't serialize set=" + hashSet, e);
+        catch (RuntimeException e) {
+            Log.e(TAG, "Couldn't decode blob=" + b, e);
+            return null;
         }
-        return null;
+        return postNos;
     }
 
-    public static HashSet<?> parseBlob(final byte[] b) {
+    /**
+     * @return number of post numbers in a blob
+     */
+    public static int blobCount(final byte[] b) {
         if (b == null || b.length == 0)
+            return 0;
+        if (b[0] != POST_NOS_BLOB_FORMAT) {
+            long[] postNos = parseSerializedPostNos(b);
+            return postNos == null ? 0 : postNos.length;
+        }
+        try {
+            return (int)getVarint(b, new int[] { 1 });
+        }
+        catch (RuntimeException e) {
+            Log.e(TAG, "Couldn't decode blob=" + b, e);
+            return 0;
+        }
+    }
+
+    public static HashSet<Long> parseBlob(final byte[] b) {
+        long[] postNos = parsePostNos(b);
+        if (postNos == null)
             return null;
+        HashSet<Long> hashSet = new HashSet<Long>(postNos.length * 2);
+        for (long postNo : postNos)
+            hashSet.add(postNo);
+        return hashSet;
+    }
+
+    private static long[] parseSerializedPostNos(final byte[] b) { // blobs written with ObjectOutputStream
         try {
             InputStream bais =new BufferedInputStream(new ByteArrayInputStream(b));
             ObjectInputStream ois = new ObjectInputStream(bais);
             HashSet<?> hashSet = (HashSet<?>)ois.readObject();
-            return hashSet;
+            long[] postNos = new long[hashSet.size()];
+            int i = 0;
+            for (Object o : hashSet)
+                postNos[i++] = ((Number)o).longValue();
+            Arrays.sort(postNos);
+            return postNos;
         }
         catch (Exception e) {
             Log.e(TAG, "Couldn't deserialize blob=" + b);
@@ -837,6 +1034,26 @@ public class ChanPost implements Serializable {
         return null;
     }
 
+    private static int putVarint(byte[] b, int pos, long v) {
+        while ((v & ~0x7fL) != 0) {
+            b[pos++] = (byte)((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        b[pos++] = (byte)v;
+        return pos;
+    }
+
+    private static long getVarint(byte[] b, int[] pos) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte x = b[pos[0]++];
+            v |= (long)(x & 0x7f) << shift;
+            if ((x & 0x80) == 0)
+                return v;
+        }
+        throw new IllegalArgumentException("Malformed varint at pos=" + pos[0]);
+    }
+
     public static final String SAGE_POST_ID = "Heaven";
     private static final String[] NAMES = {
             "Aries",
@@ -1055,30 +1272,51 @@ public class ChanPost implements Serializable {
         ext = null;
     }
 
+    /**
+     * Rough number of bytes this post keeps on the heap, used to weigh cache entries.
+     */
+    public long estimatedSize() {
+        return POST_OVERHEAD_BYTES
+                + stringSize(board) + stringSize(now) + stringSize(trip) + stringSize(id)
+                + stringSize(capcode) + stringSize(country) + stringSize(country_name) + stringSize(email)
+                + stringSize(name) + stringSize(sub) + stringSize(com) + stringSize(filename) + stringSize(ext);
+    }
+
+    protected static long estimatedSize(ChanPost[] posts) {
+        if (posts == null)
+            return 0;
+        long size = ARRAY_OVERHEAD_BYTES + REFERENCE_BYTES * posts.length;
+        for (ChanPost post : posts)
+            if (post != null)
+                size += post.estimatedSize();
+        return size;
+    }
+
+    protected static long stringSize(String s) {
+        return s == null ? 0 : STRING_OVERHEAD_BYTES + 2L * s.length();
+    }
+
     public boolean matchesQuery(String query) {
-        if (query == null || query.isEmpty())
-            return true;
-        // should use StringUtils.containsIgnoreCase
-        if (no != 0 && Long.toString(no).contains(query))
-            return true;
-        if (id != null && id.toLowerCase().contains(query))
-            return true;
-        if (name != null && name.toLowerCase().contains(query))
-            return true;
-        if (trip != null && trip.toLowerCase().contains(query))
-            return true;
-        if (email != null && email.toLowerCase().contains(query))
-            return true;
-        if (country_name != null && country_name.toLowerCase().contains(query))
-            return true;
-        if (sub != null && sub.toLowerCase().contains(query))
-            return true;
-        if (com != null && com.toLowerCase().contains(query))
+        return matchesQuery(ChanSearchQuery.of(query));
+    }
+
+    public boolean matchesQuery(ChanSearchQuery query) {
+        if (query.matches(this))
             return true;
         if (DEBUG) Log.i(TAG, "skipping post not matching query: " + no + " " + sub + " " + com);
         return false;
     }
 
+    /**
+     * @return index of the column in the rows of makeRow() and the cursors of buildMatrixCursor()
+     */
+    static int postColumnIndex(String column) {
+        for (int i = 0; i < POST_COLUMNS.length; i++)
+            if (POST_COLUMNS[i].equals(column))
+                return i;
+        throw new IllegalArgumentException("Unknown post column " + column);
+    }
+
     public static MatrixCursor buildMatrixCursor(int capacity) {
         try {
             return new MatrixCursor(POST_COLUMNS, capacity);
@@ -1116,7 +1354,7 @@ public class ChanPost implements Serializable {
                 tim,
                 null,
                 null,
-                exifText(),
+                exifText,
                 id,
                 trip,
                 name,
@@ -0,0 +1,109 @@
+package com.chanapps.four.data;
+
+import java.util.Calendar;
+import java.util.Locale;
+
+import android.content.Context;
+
+import com.chanapps.four.component.URLFormatComponent;
+
+/**
+ * Presentation fields of a post as put into the board and thread cursors, kept with the post in memory.
+ *
+ * An instance belongs to one content version of the post and one environment.  Sanitized text and exif text only
+ * depend on the post, urls, dates and headlines also depend on the https preference, the locale and the current day,
+ * so a change of any of those replaces the instance.  Fields are filled lazily by ChanPost and are null until computed.
+ */
+class ChanPostDerived {
+
+    /**
+     * Settings the derived fields were computed with.  current() returns the same instance as long as nothing changed,
+     * so validity is an identity check.
+     */
+    static class Environment {
+        final boolean useHttps;
+        final Locale configLocale;
+        final Locale defaultLocale;
+        final long dayEnd;
+
+        private static volatile Environment current;
+
+        private Environment(boolean useHttps, Locale configLocale, Locale defaultLocale, long dayEnd) {
+            this.useHttps = useHttps;
+            this.configLocale = configLocale;
+            this.defaultLocale = defaultLocale;
+            this.dayEnd = dayEnd;
+        }
+
+        static Environment current(Context context) {
+            Environment env = current;
+            boolean useHttps = URLFormatComponent.useHttps(context);
+            Locale configLocale = context.getResources().getConfiguration().locale;
+            Locale defaultLocale = Locale.getDefault();
+            if (env != null
+                    && env.useHttps == useHttps
+                    && equal(env.configLocale, configLocale)
+                    && equal(env.defaultLocale, defaultLocale)
+                    && System.currentTimeMillis() < env.dayEnd)
+                return env;
+            env = new Environment(useHttps, configLocale, defaultLocale, nextMidnight());
+            current = env;
+            return env;
+        }
+
+        private static long nextMidnight() { // dates of today's posts show the time, older ones the day
+            Calendar cal = Calendar.getInstance();
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            cal.add(Calendar.DAY_OF_YEAR, 1);
+            return cal.getTimeInMillis();
+        }
+
+        private static boolean equal(Locale a, Locale b) {
+            return a == b || (a != null && a.equals(b));
+        }
+    }
+
+    final long version;
+    final Environment environment;
+
+    // content only
+    String[] textComponents;
+    String exifText;
+    boolean exifTextDone = false;
+    long[] quoteLinks;
+    int blockVerdict = 0; // blocklist version << 1 | blocked, written as one int so readers never see a torn pair
+
+    // content and environment
+    String thumbnailUrl;
+    String countryFlagUrl;
+    boolean countryFlagUrlDone = false;
+    String dateText;
+    String headline;
+    int headlineKey = -1;
+
+    ChanPostDerived(long version, Environment environment) {
+        this.version = version;
+        this.environment = environment;
+    }
+
+    /**
+     * @return new instance for another environment keeping the fields that only depend on the post
+     */
+    ChanPostDerived withEnvironment(Environment environment) {
+        ChanPostDerived d = new ChanPostDerived(version, environment);
+        d.textComponents = textComponents;
+        d.exifText = exifText;
+        d.exifTextDone = exifTextDone;
+        d.quoteLinks = quoteLinks;
+        d.blockVerdict = blockVerdict;
+        return d;
+    }
+
+    static int headlineKey(boolean boardLevel, boolean showNumReplies, boolean abbrev) {
+        return (boardLevel ? 1 : 0) | (showNumReplies ? 2 : 0) | (abbrev ? 4 : 0);
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.chanapps.four.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Post number to position index over the rows of a thread cursor, built by the loader alongside the cursor.
+ *
+ * The rows are kept as added so popups for backlinks, replies and same ids, and popups opened from those popups,
+ * look posts up by number and copy their row without moving or scanning the cursor the thread list is bound to.
+ * Safe for use from background threads once the loader has delivered the cursor.
+ */
+public class ChanPostIndex {
+
+    private static final String TAG = ChanPostIndex.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int FLAGS_IDX = ChanPost.postColumnIndex(ChanPost.POST_FLAGS);
+
+    private static final Map<Cursor, ChanPostIndex> indexes = new WeakHashMap<Cursor, ChanPostIndex>();
+
+    private long[] postNos;
+    private Object[][] rows;
+    private int size = 0;
+    private boolean sorted = true;
+
+    // number order lookup when rows weren't added in number order
+    private long[] sortedNos;
+    private int[] sortedPositions;
+
+    public ChanPostIndex(int capacity) {
+        postNos = new long[Math.max(capacity, 16)];
+        rows = new Object[postNos.length][];
+    }
+
+    /**
+     * @return index registered for the cursor, or one built by scanning it once if the cursor didn't come with one
+     */
+    public static ChanPostIndex of(Cursor cursor) {
+        synchronized (indexes) {
+            ChanPostIndex index = indexes.get(cursor);
+            if (index != null)
+                return index;
+        }
+        ChanPostIndex index = new ChanPostIndex(cursor.getCount());
+        int postNoIdx = cursor.getColumnIndex(ChanPost.POST_ID);
+        if (cursor.moveToFirst()) {
+            while (!cursor.isAfterLast()) {
+                Object[] row = ChanPost.extractPostRow(cursor);
+                index.add(cursor.getLong(postNoIdx), row);
+                cursor.moveToNext();
+            }
+        }
+        if (DEBUG) Log.i(TAG, "of() built index by scanning size=" + index.size);
+        index.attachTo(cursor);
+        return index;
+    }
+
+    public void attachTo(Cursor cursor) {
+        synchronized (indexes) {
+            indexes.put(cursor, this);
+        }
+    }
+
+    /**
+     * Adds the row at the next cursor position, the row must hold the post columns in ChanPost order.
+     */
+    public synchronized void add(long postNo, Object[] row) {
+        if (size == postNos.length) {
+            postNos = Arrays.copyOf(postNos, size * 2);
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        if (size > 0 && postNo <= postNos[size - 1])
+            sorted = false;
+        postNos[size] = postNo;
+        rows[size] = row;
+        size++;
+        sortedNos = null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return cursor position of the post, or -1
+     */
+    public synchronized int positionOf(long postNo) {
+        if (sorted) {
+            int i = Arrays.binarySearch(postNos, 0, size, postNo);
+            return i >= 0 ? i : -1;
+        }
+        if (sortedNos == null)
+            sortPositions();
+        int i = Arrays.binarySearch(sortedNos, postNo);
+        return i >= 0 ? sortedPositions[i] : -1;
+    }
+
+    public synchronized long postNoAt(int position) {
+        return postNos[position];
+    }
+
+    public synchronized byte[] blobAt(int position, String column) {
+        Object[] row = rows[position];
+        Object o = row == null ? null : row[ChanPost.postColumnIndex(column)];
+        return o instanceof byte[] ? (byte[])o : null;
+    }
+
+    /**
+     * @return copy of the row for a popup, which doesn't expand images inline, as ChanPost.extractPostRow(), or null
+     */
+    public synchronized Object[] popupRowAt(int position) {
+        if (rows[position] == null)
+            return null;
+        Object[] row = rows[position].clone();
+        Object flags = row[FLAGS_IDX];
+        row[FLAGS_IDX] = (flags instanceof Number ? ((Number)flags).intValue() : 0) | ChanPost.FLAG_NO_EXPAND;
+        return row;
+    }
+
+    private void sortPositions() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = postNos[lhs];
+                long r = postNos[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        sortedNos = new long[size];
+        sortedPositions = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedNos[i] = postNos[order[i]];
+            sortedPositions[i] = order[i];
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.chanapps.four.data;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Outcome of predictive prefetching, kept in the user statistics to evaluate the planner.
+ *
+ * A prefetched board or thread stays pending for PREFETCH_TTL_MS.  Opening it while pending is a hit, opening
+ * anything else is a miss, and a pending item nobody opened is expired.  Keys are the board code for boards and
+ * board '/' thread num for threads, as in the user statistics.
+ */
+public class ChanPrefetchStat {
+	public static final long PREFETCH_TTL_MS = 2 * 60 * 60 * 1000; // 2h, longer than the alarm interval
+
+	/**
+	 * board code or board '/' thread num -> time of prefetch
+	 */
+	public ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+	public long runs;
+	public long prefetched;
+	public long prefetchedBytes; // estimated
+	public long hits;
+	public long misses;
+	public long expired;
+
+	public static String threadKey(String boardCode, long threadNo) {
+		return boardCode + "/" + threadNo;
+	}
+
+	public synchronized void planned(long now) {
+		runs++;
+		expire(now);
+	}
+
+	public synchronized void prefetched(String key, long bytes, long now) {
+		pending.put(key, now);
+		prefetched++;
+		prefetchedBytes += bytes;
+	}
+
+	/**
+	 * @return true if the item was prefetched within PREFETCH_TTL_MS and not opened since
+	 */
+	public boolean isPending(String key, long now) {
+		Long prefetchedAt = pending.get(key);
+		return prefetchedAt != null && now - prefetchedAt <= PREFETCH_TTL_MS;
+	}
+
+	public synchronized void opened(String key, long now) {
+		Long prefetchedAt = pending.remove(key);
+		if (prefetchedAt != null && now - prefetchedAt <= PREFETCH_TTL_MS) {
+			hits++;
+			return;
+		}
+		if (prefetchedAt != null)
+			expired++;
+		misses++;
+	}
+
+	public synchronized void expire(long now) {
+		Iterator<Map.Entry<String, Long>> i = pending.entrySet().iterator();
+		while (i.hasNext()) {
+			if (now - i.next().getValue() > PREFETCH_TTL_MS) {
+				i.remove();
+				expired++;
+			}
+		}
+	}
+
+	public synchronized void reset() {
+		pending.clear();
+		runs = prefetched = prefetchedBytes = hits = misses = expired = 0;
+	}
+
+	/**
+	 * @return share of opens served by a prefetch
+	 */
+	public synchronized double hitRate() {
+		return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+	}
+
+	/**
+	 * @return share of prefetched items opened
+	 */
+	public synchronized double precision() {
+		return prefetched == 0 ? 0 : (double)hits / prefetched;
+	}
+
+	public synchronized String toString() {
+		return "prefetch runs " + runs + " items " + prefetched + " (" + (prefetchedBytes / 1024) + "kB)"
+				+ " hits " + hits + " misses " + misses + " expired " + expired + " pending " + pending.size()
+				+ " hit rate " + Math.round(hitRate() * 100) + "% precision " + Math.round(precision() * 100) + "%";
+	}
+}
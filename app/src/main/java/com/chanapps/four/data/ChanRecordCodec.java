@@ -0,0 +1,746 @@
+package com.chanapps.four.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Log;
+
+/**
+ * Compact binary record format for cached boards and threads.
+ *
+ * A record file is a small header (magic, version, record type) followed by a blob.
+ * A blob holds a string table for values that repeat across posts (board, name, id,
+ * country...) and a single length-prefixed record.  Numbers are written as zigzag
+ * varints, post numbers and post times are delta-encoded against the previous post.
+ * Every nested record carries its own length so readers skip fields appended by
+ * newer versions.  Posts in a post list are followed by the numbers of the posts they
+ * quote, so the reply graph is rebuilt without scanning the comments.
+ */
+public class ChanRecordCodec {
+
+    private static final String TAG = ChanRecordCodec.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final String RECORD_EXT = ".dat";
+
+    public static final int VERSION = 1;
+    public static final int TYPE_POSTS = 0;
+    public static final int TYPE_THREAD = 1;
+    public static final int TYPE_BOARD = 2;
+    public static final int TYPE_THREAD_LOG = 3;
+    public static final int TYPE_THREAD_INDEX = 4;
+
+    private static final int MAGIC = 0x43484e55; // "CHNU"
+    static final int HEADER_SIZE = 6;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int POST_IS_DEAD = 0x01;
+    private static final int POST_DEF_DATA = 0x02;
+    private static final int POST_HIDE_ALL_TEXT = 0x04;
+    private static final int POST_HIDE_POST_NUMBERS = 0x08;
+    private static final int POST_USE_FRIENDLY_IDS = 0x10;
+    private static final int POST_HAS_CREATED = 0x20;
+
+    private static final int THREAD_LOADED_FROM_BOARD = 0x01;
+
+    private static final int BOARD_WORK_SAFE = 0x01;
+    private static final int BOARD_CLASSIC = 0x02;
+    private static final int BOARD_TEXT_ONLY = 0x04;
+    private static final int BOARD_DEF_DATA = 0x08;
+
+    public static boolean isRecordFile(File file) {
+        return file != null && file.getName().endsWith(RECORD_EXT);
+    }
+
+    public static void writeThread(File file, ChanThread thread) throws IOException {
+        writeFile(file, TYPE_THREAD, encodeThread(thread));
+    }
+
+    public static ChanThread readThread(File file) throws IOException {
+        byte[] b = readFile(file, TYPE_THREAD);
+        return decodeThread(b, HEADER_SIZE, b.length - HEADER_SIZE);
+    }
+
+    public static void writeBoard(File file, ChanBoard board) throws IOException {
+        writeFile(file, TYPE_BOARD, encodeBoard(board));
+    }
+
+    public static ChanBoard readBoard(File file) throws IOException {
+        byte[] b = readFile(file, TYPE_BOARD);
+        return decodeBoard(b, HEADER_SIZE, b.length - HEADER_SIZE);
+    }
+
+    public static byte[] encodeThread(ChanThread thread) {
+        Encoder e = new Encoder();
+        e.writeThread(e.body, thread);
+        return e.finish();
+    }
+
+    public static ChanThread decodeThread(byte[] b, int off, int len) throws IOException {
+        Decoder d = new Decoder(b, off, len);
+        return d.readThread();
+    }
+
+    public static byte[] encodeBoard(ChanBoard board) {
+        Encoder e = new Encoder();
+        e.writeBoard(e.body, board);
+        return e.finish();
+    }
+
+    public static ChanBoard decodeBoard(byte[] b, int off, int len) throws IOException {
+        Decoder d = new Decoder(b, off, len);
+        return d.readBoard();
+    }
+
+    /**
+     * Encodes the thread without its posts and with the counters kept in the thread log header
+     * (replies, images, closed, isDead, lastFetched, view position) zeroed out, so the result only
+     * changes when the opening post or last replies change.
+     */
+    public static byte[] encodeThreadFields(ChanThread thread) {
+        Encoder e = new Encoder();
+        e.threadFieldsOnly = true;
+        e.writeThread(e.body, thread);
+        return e.finish();
+    }
+
+    public static byte[] encodePosts(ChanPost[] posts) {
+        Encoder e = new Encoder();
+        e.writePosts(e.body, posts);
+        return e.finish();
+    }
+
+    public static ChanPost[] decodePosts(byte[] b, int off, int len) throws IOException {
+        Decoder d = new Decoder(b, off, len);
+        return d.readPosts();
+    }
+
+    public static byte[] encodePostNos(long[] postNos) {
+        Encoder e = new Encoder();
+        e.body.writeVarint(postNos.length);
+        long prevNo = 0;
+        for (long postNo : postNos) {
+            e.body.writeSignedVarint(postNo - prevNo);
+            prevNo = postNo;
+        }
+        return e.finish();
+    }
+
+    public static long[] decodePostNos(byte[] b, int off, int len) throws IOException {
+        Decoder d = new Decoder(b, off, len);
+        int outer = d.enterRecord();
+        if (outer < 0)
+            return new long[0];
+        long[] postNos = new long[(int)d.readVarint()];
+        long prevNo = 0;
+        for (int i = 0; i < postNos.length; i++) {
+            postNos[i] = prevNo + d.readSignedVarint();
+            prevNo = postNos[i];
+        }
+        d.exitRecord(outer);
+        return postNos;
+    }
+
+    /**
+     * Returns a content hash per post, null posts hash to 0.  Used to find posts that changed since
+     * they were last written without keeping a copy of the written bytes around.
+     */
+    public static long[] fingerprintPosts(ChanPost[] posts) {
+        long[] prints = new long[posts.length];
+        Encoder e = new Encoder();
+        for (int i = 0; i < posts.length; i++) {
+            if (posts[i] == null)
+                continue;
+            e.stringIndex.clear();
+            e.strings.reset();
+            e.postScratch.reset();
+            e.writePost(e.postScratch, posts[i], 0, 0);
+            prints[i] = fingerprint(e.postScratch.buf, 0, e.postScratch.len,
+                    fingerprint(e.strings.buf, 0, e.strings.len, FNV_OFFSET));
+        }
+        return prints;
+    }
+
+    public static long fingerprint(byte[] b, int off, int len) {
+        return fingerprint(b, off, len, FNV_OFFSET);
+    }
+
+    private static long fingerprint(byte[] b, int off, int len, long hash) {
+        for (int i = off; i < off + len; i++) {
+            hash ^= b[i] & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    // a tmp file of its own per write, so writers of different records never wait on each other and two writes of
+    // the same record can't mix, the last rename wins
+    static void writeFile(File file, int type, byte[] blob) throws IOException {
+        File tmpFile = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmpFile, false);
+            fos.write(makeHeader(type));
+            fos.write(blob);
+            fos.getFD().sync();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fos);
+            tmpFile.delete();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Couldn't rename record file " + tmpFile + " to " + file);
+        }
+        if (DEBUG) Log.i(TAG, "Wrote record type=" + type + " size=" + (blob.length + HEADER_SIZE) + " to " + file);
+    }
+
+    static byte[] makeHeader(int type) {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = (byte)(MAGIC >>> 24);
+        header[1] = (byte)(MAGIC >>> 16);
+        header[2] = (byte)(MAGIC >>> 8);
+        header[3] = (byte)MAGIC;
+        header[4] = (byte)VERSION;
+        header[5] = (byte)type;
+        return header;
+    }
+
+    /** Reads a whole record file, pass a negative type to accept any record type */
+    static byte[] readFile(File file, int type) throws IOException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] b = IOUtils.toByteArray(is);
+            checkHeader(b, type);
+            return b;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static void checkHeader(byte[] b, int type) throws IOException {
+        if (b.length < HEADER_SIZE)
+            throw new IOException("Truncated record header");
+        int magic = ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+        if (magic != MAGIC)
+            throw new IOException("Not a record file, magic=" + Integer.toHexString(magic));
+        int version = b[4] & 0xff;
+        if (version > VERSION)
+            throw new IOException("Unsupported record version=" + version);
+        if (type >= 0 && (b[5] & 0xff) != type)
+            throw new IOException("Unexpected record type=" + (b[5] & 0xff) + " expected=" + type);
+    }
+
+    /**
+     * Growable byte buffer with varint helpers.
+     */
+    protected static class Output {
+        byte[] buf;
+        int len;
+
+        Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void reset() {
+            len = 0;
+        }
+
+        private void ensure(int n) {
+            if (len + n <= buf.length)
+                return;
+            int capacity = Math.max(buf.length * 2, len + n);
+            byte[] b = new byte[capacity];
+            System.arraycopy(buf, 0, b, 0, len);
+            buf = b;
+        }
+
+        void writeByte(int v) {
+            ensure(1);
+            buf[len++] = (byte)v;
+        }
+
+        void writeBytes(byte[] b, int off, int n) {
+            ensure(n);
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+        }
+
+        void writeVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[len++] = (byte)((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte)v;
+        }
+
+        void writeSignedVarint(long v) {
+            writeVarint((v << 1) ^ (v >> 63));
+        }
+
+        void writeRecord(Output record) {
+            writeVarint(record.len);
+            writeBytes(record.buf, 0, record.len);
+        }
+
+        byte[] toByteArray() {
+            byte[] b = new byte[len];
+            System.arraycopy(buf, 0, b, 0, len);
+            return b;
+        }
+    }
+
+    /**
+     * Single-use encoder, keeps the string table and one scratch buffer per nesting level.
+     */
+    protected static class Encoder {
+        final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+        final Output strings = new Output(1024);
+        final Output body = new Output(8192);
+        final Output threadScratch = new Output(4096);
+        final Output postScratch = new Output(1024);
+        final Output postListScratch = new Output(4096);
+        boolean threadFieldsOnly = false;
+
+        byte[] finish() {
+            Output out = new Output(strings.len + body.len + 16);
+            out.writeVarint(stringIndex.size());
+            out.writeBytes(strings.buf, 0, strings.len);
+            out.writeRecord(body);
+            return out.toByteArray();
+        }
+
+        void writeTableString(Output out, String s) {
+            if (s == null) {
+                out.writeVarint(0);
+                return;
+            }
+            Integer index = stringIndex.get(s);
+            if (index == null) {
+                index = stringIndex.size();
+                stringIndex.put(s, index);
+                writeInlineString(strings, s);
+            }
+            out.writeVarint(index + 1);
+        }
+
+        void writeInlineString(Output out, String s) {
+            if (s == null) {
+                out.writeVarint(0);
+                return;
+            }
+            byte[] b = s.getBytes(UTF_8);
+            out.writeVarint(b.length + 1);
+            out.writeBytes(b, 0, b.length);
+        }
+
+        void writePost(Output out, ChanPost post, long prevNo, long prevTime) {
+            writePost(out, post, prevNo, prevTime, true);
+        }
+
+        void writePost(Output out, ChanPost post, long prevNo, long prevTime, boolean counters) {
+            int flags = 0;
+            if (post.isDead && counters)
+                flags |= POST_IS_DEAD;
+            if (post.defData)
+                flags |= POST_DEF_DATA;
+            if (post.hideAllText)
+                flags |= POST_HIDE_ALL_TEXT;
+            if (post.hidePostNumbers)
+                flags |= POST_HIDE_POST_NUMBERS;
+            if (post.useFriendlyIds)
+                flags |= POST_USE_FRIENDLY_IDS;
+            if (post.created != null)
+                flags |= POST_HAS_CREATED;
+            out.writeVarint(flags);
+            out.writeSignedVarint(post.no - prevNo);
+            out.writeSignedVarint(post.time - prevTime);
+            out.writeSignedVarint(post.tim);
+            out.writeSignedVarint(post.resto);
+            out.writeSignedVarint(post.sticky);
+            out.writeSignedVarint(counters ? post.closed : 0);
+            out.writeSignedVarint(post.w);
+            out.writeSignedVarint(post.h);
+            out.writeSignedVarint(post.tn_w);
+            out.writeSignedVarint(post.tn_h);
+            out.writeSignedVarint(post.fsize);
+            out.writeSignedVarint(counters ? post.replies : 0);
+            out.writeSignedVarint(counters ? post.images : 0);
+            out.writeSignedVarint(post.omitted_posts);
+            out.writeSignedVarint(post.omitted_images);
+            out.writeSignedVarint(post.bumplimit);
+            out.writeSignedVarint(post.imagelimit);
+            out.writeSignedVarint(post.spoiler);
+            out.writeSignedVarint(post.filedeleted);
+            out.writeSignedVarint(post.jumpToPostNo);
+            if (post.created != null)
+                out.writeSignedVarint(post.created.getTime());
+            writeTableString(out, post.board);
+            writeTableString(out, post.id);
+            writeTableString(out, post.capcode);
+            writeTableString(out, post.country);
+            writeTableString(out, post.country_name);
+            writeTableString(out, post.email);
+            writeTableString(out, post.name);
+            writeTableString(out, post.trip);
+            writeTableString(out, post.ext);
+            writeInlineString(out, post.now);
+            writeInlineString(out, post.sub);
+            writeInlineString(out, post.com);
+            writeInlineString(out, post.filename);
+        }
+
+        void writePosts(Output out, ChanPost[] posts) {
+            if (posts == null) {
+                out.writeVarint(0);
+                return;
+            }
+            out.writeVarint(posts.length + 1);
+            long prevNo = 0;
+            long prevTime = 0;
+            for (ChanPost post : posts) {
+                if (post == null) {
+                    out.writeVarint(0);
+                    continue;
+                }
+                postScratch.reset();
+                writePost(postScratch, post, prevNo, prevTime);
+                writeQuoteLinks(postScratch, post);
+                out.writeRecord(postScratch);
+                prevNo = post.no;
+                prevTime = post.time;
+            }
+        }
+
+        void writeQuoteLinks(Output out, ChanPost post) {
+            long[] links = post.quoteLinks();
+            out.writeVarint(links.length);
+            long prevNo = post.no;
+            for (long link : links) {
+                out.writeSignedVarint(link - prevNo);
+                prevNo = link;
+            }
+        }
+
+        void writeThread(Output out, ChanThread thread) {
+            boolean counters = !threadFieldsOnly;
+            writePost(out, thread, 0, 0, counters);
+            out.writeSignedVarint(counters ? thread.lastFetched : 0);
+            out.writeVarint(thread.loadedFromBoard ? THREAD_LOADED_FROM_BOARD : 0);
+            out.writeSignedVarint(counters ? thread.viewPosition : 0);
+            out.writeSignedVarint(counters ? thread.viewOffset : 0);
+            postListScratch.reset();
+            writePosts(postListScratch, counters ? thread.posts : null);
+            out.writeRecord(postListScratch);
+            postListScratch.reset();
+            writePosts(postListScratch, thread.lastReplies);
+            out.writeRecord(postListScratch);
+        }
+
+        void writeThreads(Output out, ChanThread[] threads) {
+            if (threads == null) {
+                out.writeVarint(0);
+                return;
+            }
+            out.writeVarint(threads.length + 1);
+            for (ChanThread thread : threads) {
+                if (thread == null) {
+                    out.writeVarint(0);
+                    continue;
+                }
+                threadScratch.reset();
+                writeThread(threadScratch, thread);
+                out.writeRecord(threadScratch);
+            }
+        }
+
+        void writeBoard(Output out, ChanBoard board) {
+            int flags = 0;
+            if (board.workSafe)
+                flags |= BOARD_WORK_SAFE;
+            if (board.classic)
+                flags |= BOARD_CLASSIC;
+            if (board.textOnly)
+                flags |= BOARD_TEXT_ONLY;
+            if (board.defData)
+                flags |= BOARD_DEF_DATA;
+            out.writeVarint(flags);
+            writeTableString(out, board.board);
+            writeTableString(out, board.name);
+            writeTableString(out, board.link);
+            writeTableString(out, board.boardType == null ? null : board.boardType.name());
+            out.writeSignedVarint(board.iconId);
+            out.writeSignedVarint(board.no);
+            out.writeSignedVarint(board.newThreads);
+            out.writeSignedVarint(board.updatedThreads);
+            out.writeSignedVarint(board.lastFetched);
+            out.writeSignedVarint(board.lastSwapped);
+            writePosts(out, board.stickyPosts);
+            writeThreads(out, board.threads);
+            writeThreads(out, board.loadedThreads);
+        }
+    }
+
+    /**
+     * Reads a blob written by {@link Encoder}.
+     */
+    protected static class Decoder {
+        final byte[] buf;
+        int pos;
+        int limit;
+        String[] strings;
+
+        Decoder(byte[] buf, int off, int len) throws IOException {
+            this(buf, off, len, true);
+        }
+
+        Decoder(byte[] buf, int off, int len, boolean stringTable) throws IOException {
+            this.buf = buf;
+            this.pos = off;
+            this.limit = off + len;
+            if (!stringTable) {
+                strings = new String[0];
+                return;
+            }
+            int n = (int)readVarint();
+            strings = new String[n];
+            for (int i = 0; i < n; i++)
+                strings[i] = readInlineString();
+        }
+
+        int readByte() throws IOException {
+            if (pos >= limit)
+                throw new IOException("Truncated record at pos=" + pos);
+            return buf[pos++] & 0xff;
+        }
+
+        long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed varint at pos=" + pos);
+        }
+
+        long readSignedVarint() throws IOException {
+            long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        int readInt() throws IOException {
+            return (int)readSignedVarint();
+        }
+
+        String readTableString() throws IOException {
+            int i = (int)readVarint();
+            if (i == 0)
+                return null;
+            if (i > strings.length)
+                throw new IOException("String index out of range index=" + i);
+            return strings[i - 1];
+        }
+
+        String readInlineString() throws IOException {
+            int n = (int)readVarint();
+            if (n == 0)
+                return null;
+            n--;
+            if (n > limit - pos)
+                throw new IOException("Truncated string at pos=" + pos);
+            String s = new String(buf, pos, n, UTF_8);
+            pos += n;
+            return s;
+        }
+
+        /** Begins a length-prefixed record, returns the enclosing limit or -1 for a null record */
+        int enterRecord() throws IOException {
+            int n = (int)readVarint();
+            if (n == 0)
+                return -1;
+            if (n > limit - pos)
+                throw new IOException("Truncated record at pos=" + pos);
+            int outer = limit;
+            limit = pos + n;
+            return outer;
+        }
+
+        void exitRecord(int outer) {
+            pos = limit; // skip fields written by newer versions
+            limit = outer;
+        }
+
+        void readPost(ChanPost post, long prevNo, long prevTime) throws IOException {
+            int flags = (int)readVarint();
+            post.isDead = (flags & POST_IS_DEAD) != 0;
+            post.defData = (flags & POST_DEF_DATA) != 0;
+            post.hideAllText = (flags & POST_HIDE_ALL_TEXT) != 0;
+            post.hidePostNumbers = (flags & POST_HIDE_POST_NUMBERS) != 0;
+            post.useFriendlyIds = (flags & POST_USE_FRIENDLY_IDS) != 0;
+            post.no = prevNo + readSignedVarint();
+            post.time = prevTime + readSignedVarint();
+            post.tim = readSignedVarint();
+            post.resto = readSignedVarint();
+            post.sticky = readInt();
+            post.closed = readInt();
+            post.w = readInt();
+            post.h = readInt();
+            post.tn_w = readInt();
+            post.tn_h = readInt();
+            post.fsize = readInt();
+            post.replies = readInt();
+            post.images = readInt();
+            post.omitted_posts = readInt();
+            post.omitted_images = readInt();
+            post.bumplimit = readInt();
+            post.imagelimit = readInt();
+            post.spoiler = readInt();
+            post.filedeleted = readInt();
+            post.jumpToPostNo = readSignedVarint();
+            post.created = (flags & POST_HAS_CREATED) != 0 ? new Date(readSignedVarint()) : null;
+            post.board = readTableString();
+            post.id = readTableString();
+            post.capcode = readTableString();
+            post.country = readTableString();
+            post.country_name = readTableString();
+            post.email = readTableString();
+            post.name = readTableString();
+            post.trip = readTableString();
+            post.ext = readTableString();
+            post.now = readInlineString();
+            post.sub = readInlineString();
+            post.com = readInlineString();
+            post.filename = readInlineString();
+        }
+
+        ChanPost[] readPostArray() throws IOException {
+            int n = (int)readVarint();
+            if (n == 0)
+                return null;
+            ChanPost[] posts = new ChanPost[n - 1];
+            long prevNo = 0;
+            long prevTime = 0;
+            for (int i = 0; i < posts.length; i++) {
+                int outer = enterRecord();
+                if (outer < 0)
+                    continue;
+                ChanPost post = new ChanPost();
+                readPost(post, prevNo, prevTime);
+                if (pos < limit) // files written before quote links were stored scan the comment when needed
+                    post.setQuoteLinks(readQuoteLinks(post.no));
+                exitRecord(outer);
+                posts[i] = post;
+                prevNo = post.no;
+                prevTime = post.time;
+            }
+            return posts;
+        }
+
+        long[] readQuoteLinks(long postNo) throws IOException {
+            int n = (int)readVarint();
+            if (n > limit - pos)
+                throw new IOException("Too many quote links n=" + n + " at pos=" + pos);
+            long[] links = new long[n];
+            long prevNo = postNo;
+            for (int i = 0; i < n; i++) {
+                links[i] = prevNo + readSignedVarint();
+                prevNo = links[i];
+            }
+            return links;
+        }
+
+        ChanPost[] readPosts() throws IOException {
+            int outer = enterRecord();
+            if (outer < 0)
+                return null;
+            ChanPost[] posts = readPostArray();
+            exitRecord(outer);
+            return posts;
+        }
+
+        ChanThread readThreadFields() throws IOException {
+            ChanThread thread = new ChanThread();
+            readPost(thread, 0, 0);
+            thread.lastFetched = readSignedVarint();
+            thread.loadedFromBoard = (readVarint() & THREAD_LOADED_FROM_BOARD) != 0;
+            thread.viewPosition = readInt();
+            thread.viewOffset = readInt();
+            ChanPost[] posts = readPosts();
+            thread.posts = posts != null ? posts : new ChanPost[0];
+            ChanPost[] lastReplies = readPosts();
+            thread.lastReplies = lastReplies != null ? lastReplies : new ChanPost[0];
+            return thread;
+        }
+
+        ChanThread readThread() throws IOException {
+            int outer = enterRecord();
+            if (outer < 0)
+                return null;
+            ChanThread thread = readThreadFields();
+            exitRecord(outer);
+            return thread;
+        }
+
+        ChanThread[] readThreads() throws IOException {
+            int n = (int)readVarint();
+            if (n == 0)
+                return new ChanThread[0];
+            ChanThread[] threads = new ChanThread[n - 1];
+            for (int i = 0; i < threads.length; i++)
+                threads[i] = readThread();
+            return threads;
+        }
+
+        ChanBoard readBoard() throws IOException {
+            int outer = enterRecord();
+            if (outer < 0)
+                return null;
+            ChanBoard board = new ChanBoard();
+            int flags = (int)readVarint();
+            board.workSafe = (flags & BOARD_WORK_SAFE) != 0;
+            board.classic = (flags & BOARD_CLASSIC) != 0;
+            board.textOnly = (flags & BOARD_TEXT_ONLY) != 0;
+            board.defData = (flags & BOARD_DEF_DATA) != 0;
+            board.board = readTableString();
+            board.name = readTableString();
+            board.link = readTableString();
+            String boardType = readTableString();
+            try {
+                board.boardType = boardType == null ? null : BoardType.valueOf(boardType);
+            }
+            catch (IllegalArgumentException e) {
+                if (DEBUG) Log.w(TAG, "Unknown board type=" + boardType + " for /" + board.link + "/");
+            }
+            board.iconId = readInt();
+            board.no = readInt();
+            board.newThreads = readInt();
+            board.updatedThreads = readInt();
+            board.lastFetched = readSignedVarint();
+            board.lastSwapped = readSignedVarint();
+            ChanPost[] stickyPosts = readPostArray();
+            board.stickyPosts = stickyPosts != null ? stickyPosts : new ChanPost[0];
+            board.threads = readThreads();
+            board.loadedThreads = readThreads();
+            exitRecord(outer);
+            return board;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.chanapps.four.data;
+
+import android.util.Log;
+
+/**
+ * Picks when a thread is next worth polling, from how fast it is getting posts.
+ *
+ * The posting rate is the number of recent posts over the time from the oldest of them to now, so a thread
+ * that has gone quiet slows down on its own even before a refresh comes back empty.  The interval is the time
+ * expected for TARGET_NEW_POSTS new posts, doubled for every refresh in a row that brought nothing, and kept
+ * between MIN_INTERVAL_MS and MAX_INTERVAL_MS.  A refresh with new posts resets the backoff.
+ *
+ * The plan is kept in the thread (nextRefresh, emptyRefreshes) and stored in the thread log header, threads
+ * stored before it have no plan and fall back to the network profile refresh delay.
+ */
+public class ChanRefreshPlanner {
+
+    private static final String TAG = ChanRefreshPlanner.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final long MIN_INTERVAL_MS = 15000; // api rules ask for at least 10s between polls of a thread
+    public static final long MAX_INTERVAL_MS = 30 * 60000;
+
+    private static final int RATE_WINDOW_POSTS = 20;
+    private static final int TARGET_NEW_POSTS = 2;
+    private static final int MAX_BACKOFF_STEPS = 6;
+
+    /**
+     * Records a refresh of the thread at now that brought newPosts posts, 0 for an unmodified response,
+     * and plans the next one.
+     */
+    public static void refreshed(ChanThread thread, int newPosts, long now) {
+        if (newPosts > 0)
+            thread.emptyRefreshes = 0;
+        else if (thread.emptyRefreshes < MAX_BACKOFF_STEPS)
+            thread.emptyRefreshes++;
+        long interval = plannedInterval(thread, now);
+        thread.nextRefresh = now + interval;
+        if (DEBUG) Log.i(TAG, "refreshed /" + thread.board + "/" + thread.no + " newPosts=" + newPosts
+                + " empty=" + thread.emptyRefreshes + " next in " + (interval / 1000) + "s");
+    }
+
+    /**
+     * Makes the thread due now, for a thread known to have changed.
+     * @return true if the plan changed and should be stored
+     */
+    public static boolean expire(ChanThread thread, long now) {
+        if (thread.lastFetched <= 0 || (thread.nextRefresh > 0 && thread.nextRefresh <= now))
+            return false;
+        thread.nextRefresh = now;
+        return true;
+    }
+
+    /**
+     * @return true if the thread has a plan, otherwise callers use the network profile refresh delay
+     */
+    public static boolean hasPlan(ChanThread thread) {
+        return thread.nextRefresh > 0 && thread.lastFetched > 0;
+    }
+
+    /**
+     * @return true if the thread is due for a refresh at now
+     */
+    public static boolean isDue(ChanThread thread, long now, long fallbackDelay) {
+        if (thread.defData || thread.lastFetched <= 0)
+            return true;
+        if (now < thread.lastFetched) // clock was set back
+            return true;
+        if (!hasPlan(thread))
+            return now - thread.lastFetched > fallbackDelay;
+        return now >= thread.nextRefresh;
+    }
+
+    /**
+     * @return ms from now until the thread is due, bounded by the planner limits
+     */
+    public static long delayUntilDue(ChanThread thread, long now, long fallbackDelay) {
+        long due = hasPlan(thread) ? thread.nextRefresh : thread.lastFetched + fallbackDelay;
+        return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, due - now));
+    }
+
+    /**
+     * @return ms between posts over the last posts of the thread up to now
+     */
+    static long postGapMs(ChanThread thread, long now) {
+        ChanPost[] posts = thread.posts != null && thread.posts.length > 0 ? thread.posts : thread.lastReplies;
+        long oldest = 0;
+        int counted = 0;
+        if (posts != null) {
+            for (int i = posts.length - 1; i >= 0 && counted < RATE_WINDOW_POSTS; i--) {
+                if (posts[i] == null || posts[i].time <= 0)
+                    continue;
+                oldest = posts[i].time;
+                counted++;
+            }
+        }
+        if (counted == 0 && thread.time > 0) {
+            oldest = thread.time;
+            counted = 1;
+        }
+        if (counted == 0)
+            return MAX_INTERVAL_MS;
+        long span = now - oldest * 1000; // api times are in seconds
+        return Math.max(0, span) / counted;
+    }
+
+    static long plannedInterval(ChanThread thread, long now) {
+        long interval = postGapMs(thread, now) * TARGET_NEW_POSTS;
+        if (interval < MAX_INTERVAL_MS)
+            interval <<= Math.min(thread.emptyRefreshes, MAX_BACKOFF_STEPS);
+        return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, interval));
+    }
+
+}
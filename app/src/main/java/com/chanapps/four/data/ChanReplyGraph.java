@@ -0,0 +1,274 @@
+package com.chanapps.four.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Quote links between the posts of a thread: the posts each post quotes, the posts replying to it
+ * and the posts sharing its poster id.
+ *
+ * Posts are nodes in parallel arrays, found by post number through an open addressing table, and
+ * edges are kept in primitive long arrays so building the graph for a large thread doesn't box.
+ * The quoted posts come from ChanPost.quoteLinks(), which the record files store with each post,
+ * so loading a thread doesn't scan the comments again.  Posts added by a merge are linked in
+ * incrementally, anything else rebuilds the graph.  Methods are synchronized since fetch services
+ * merge posts while loaders read.
+ */
+public class ChanReplyGraph {
+
+    private static final String TAG = ChanReplyGraph.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final long[] NONE = new long[0];
+
+    /** A growable list of post numbers, the replies to a post or the posts of one id. */
+    private static class Edges {
+        long[] nos = new long[2];
+        int size = 0;
+
+        void add(long no) {
+            for (int i = 0; i < size; i++)
+                if (nos[i] == no)
+                    return;
+            if (size == nos.length)
+                nos = Arrays.copyOf(nos, size * 2);
+            nos[size++] = no;
+        }
+
+        void remove(long no) {
+            for (int i = 0; i < size; i++) {
+                if (nos[i] == no) {
+                    System.arraycopy(nos, i + 1, nos, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+
+        long[] toArray() {
+            return size == 0 ? NONE : Arrays.copyOf(nos, size);
+        }
+    }
+
+    // nodes
+    private long[] postNos = new long[16];
+    private long[][] links = new long[16][];
+    private Edges[] replies = new Edges[16];
+    private String[] ids = new String[16];
+    private boolean[] loaded = new boolean[16]; // false for posts only known as quote targets
+    private int nodeCount = 0;
+    private int postCount = 0;
+
+    // post number to node + 1, 0 is an empty slot
+    private long[] tableKeys = new long[32];
+    private int[] tableNodes = new int[32];
+
+    private final Map<String, Edges> sameIds = new HashMap<String, Edges>();
+
+    // the posts array the graph currently reflects
+    private ChanPost[] posts;
+
+    /**
+     * @return graph matching the posts, updated in place when possible
+     */
+    static ChanReplyGraph update(ChanReplyGraph graph, ChanPost[] posts) {
+        if (graph != null && graph.syncIfChanged(posts))
+            return graph;
+        graph = new ChanReplyGraph();
+        graph.syncIfChanged(posts);
+        return graph;
+    }
+
+    /**
+     * Links in posts added to or replaced in the posts array by a merge.  If the graph wasn't up to date with
+     * the posts before the merge it is left alone and synced on the next update().
+     */
+    synchronized void merge(ChanPost[] before, ChanPost[] posts, Iterable<ChanPost> merged) {
+        if (this.posts != before)
+            return;
+        for (ChanPost post : merged)
+            if (post != null)
+                put(post);
+        this.posts = posts;
+        if (DEBUG) Log.i(TAG, "merge() nodes=" + nodeCount + " posts=" + posts.length);
+    }
+
+    /**
+     * @return numbers of the posts the post quotes, in order of appearance
+     */
+    public synchronized long[] links(long postNo) {
+        int node = node(postNo);
+        return node < 0 ? NONE : links[node];
+    }
+
+    /**
+     * @return numbers of the posts quoting the post
+     */
+    public synchronized long[] replies(long postNo) {
+        int node = node(postNo);
+        return node < 0 || replies[node] == null ? NONE : replies[node].toArray();
+    }
+
+    /**
+     * @return numbers of all posts with the post's id including the post itself, empty without an id
+     */
+    public synchronized long[] sameIds(long postNo) {
+        int node = node(postNo);
+        if (node < 0 || ids[node] == null)
+            return NONE;
+        Edges same = sameIds.get(ids[node]);
+        return same == null ? NONE : same.toArray();
+    }
+
+    public synchronized int size() {
+        return postCount;
+    }
+
+    /**
+     * Rough number of bytes the graph keeps on the heap, part of the thread's cache weight.
+     */
+    public synchronized long estimatedSize() {
+        long size = 64 + 8L * postNos.length + 4L * links.length + 4L * replies.length + 4L * ids.length
+                + loaded.length + 12L * tableKeys.length + 48L * sameIds.size();
+        for (int i = 0; i < nodeCount; i++) {
+            if (links[i] != null && links[i] != NONE)
+                size += 16 + 8L * links[i].length;
+            if (replies[i] != null)
+                size += 32 + 8L * replies[i].nos.length;
+        }
+        for (Edges same : sameIds.values())
+            size += 32 + 8L * same.nos.length;
+        return size;
+    }
+
+    /**
+     * @return false if posts were removed, which needs a rebuild
+     */
+    private synchronized boolean syncIfChanged(ChanPost[] posts) {
+        if (this.posts == posts)
+            return true;
+        int live = 0;
+        for (ChanPost post : posts) {
+            if (post == null)
+                continue;
+            put(post);
+            live++;
+        }
+        this.posts = posts;
+        if (DEBUG) Log.i(TAG, "sync() nodes=" + nodeCount + " posts=" + live);
+        return live == postCount;
+    }
+
+    private void put(ChanPost post) {
+        long[] postLinks = post.quoteLinks();
+        String id = sameIdKey(post.id);
+        int node = node(post.no);
+        if (node >= 0) {
+            if (links[node] == postLinks && (id == null ? ids[node] == null : id.equals(ids[node])))
+                return;
+            unlink(node);
+        }
+        else {
+            node = addNode(post.no);
+        }
+        if (!loaded[node]) {
+            loaded[node] = true;
+            postCount++;
+        }
+        links[node] = postLinks;
+        for (long target : postLinks) {
+            int t = node(target);
+            if (t < 0)
+                t = addNode(target); // quoted post not loaded yet, or in another thread
+            if (replies[t] == null)
+                replies[t] = new Edges();
+            replies[t].add(post.no);
+        }
+        ids[node] = id;
+        if (id != null) {
+            Edges same = sameIds.get(id);
+            if (same == null) {
+                same = new Edges();
+                sameIds.put(id, same);
+            }
+            same.add(post.no);
+        }
+    }
+
+    private void unlink(int node) {
+        long no = postNos[node];
+        for (long target : links[node]) {
+            int t = node(target);
+            if (t >= 0 && replies[t] != null)
+                replies[t].remove(no);
+        }
+        links[node] = NONE;
+        if (ids[node] != null) {
+            Edges same = sameIds.get(ids[node]);
+            if (same != null)
+                same.remove(no);
+            ids[node] = null;
+        }
+    }
+
+    private static String sameIdKey(String id) {
+        if (id == null || id.isEmpty() || id.equals(ChanPost.SAGE_POST_ID))
+            return null;
+        return id;
+    }
+
+    private int node(long postNo) {
+        int mask = tableKeys.length - 1;
+        for (int i = slot(postNo, mask); ; i = (i + 1) & mask) {
+            int n = tableNodes[i];
+            if (n == 0)
+                return -1;
+            if (tableKeys[i] == postNo)
+                return n - 1;
+        }
+    }
+
+    private int addNode(long postNo) {
+        if (nodeCount == postNos.length) {
+            int capacity = nodeCount * 2;
+            postNos = Arrays.copyOf(postNos, capacity);
+            links = Arrays.copyOf(links, capacity);
+            replies = Arrays.copyOf(replies, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            loaded = Arrays.copyOf(loaded, capacity);
+        }
+        int node = nodeCount++;
+        postNos[node] = postNo;
+        links[node] = NONE;
+        if (nodeCount * 2 > tableKeys.length)
+            rehash(tableKeys.length * 2);
+        else
+            insert(postNo, node);
+        return node;
+    }
+
+    private void insert(long postNo, int node) {
+        int mask = tableKeys.length - 1;
+        int i = slot(postNo, mask);
+        while (tableNodes[i] != 0)
+            i = (i + 1) & mask;
+        tableKeys[i] = postNo;
+        tableNodes[i] = node + 1;
+    }
+
+    private void rehash(int capacity) {
+        tableKeys = new long[capacity];
+        tableNodes = new int[capacity];
+        for (int node = 0; node < nodeCount; node++)
+            insert(postNos[node], node);
+    }
+
+    private static int slot(long postNo, int mask) {
+        long h = postNo * 0x9e3779b97f4a7c15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+}
@@ -0,0 +1,426 @@
+package com.chanapps.four.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A board or thread search compiled once into an Aho-Corasick automaton over its terms.
+ *
+ * The query is split on whitespace into terms, "quoted phrases" are kept as one term and a leading - negates a term.
+ * A post matches if every plain term and none of the negated ones occur in its number, id, name, trip, email, country,
+ * subject or comment, ignoring case.  Html tags in the subject and comment are skipped and the common entities
+ * decoded, so a search doesn't match markup.  Terms are plain text, characters like ( or + have no special meaning.
+ */
+public class ChanSearchQuery {
+
+    private static final int MAX_TERMS = 64;
+    private static final int MAX_TABLE_NODES = 1024; // 512KB of transitions, larger blocklists step through the trie
+
+    public static final ChanSearchQuery EMPTY = new ChanSearchQuery("", new ArrayList<String>(), new ArrayList<String>());
+
+    private static volatile ChanSearchQuery last = EMPTY;
+
+    private final String source;
+    private final String[] terms;
+    private final long positiveMask;
+    private final long negativeMask;
+    private final boolean matchAny;
+
+    // trie, node 0 is the root
+    private char[][] childChars;
+    private int[][] childNodes;
+    private int[] childCounts;
+    private int[] fail;
+    private long[] output;
+    private int[] longest; // length of the longest plain term ending at the node
+    private int maxTermLength;
+    private int nodeCount;
+    private int[] asciiNext; // transitions for ascii chars of either case, indexed by node * 128 + char
+    private int tableNodes; // nodes below this have an asciiNext entry, the root is always included
+
+    private ChanSearchQuery(String source, List<String> positive, List<String> negative) {
+        this(source, positive, negative, false);
+    }
+
+    private ChanSearchQuery(String source, List<String> positive, List<String> negative, boolean matchAny) {
+        this.source = source;
+        this.matchAny = matchAny;
+        List<String> all = new ArrayList<String>(positive);
+        all.addAll(negative);
+        terms = all.toArray(new String[all.size()]);
+        positiveMask = positive.size() == 0 ? 0 : -1L >>> (64 - Math.min(positive.size(), 64));
+        negativeMask = negative.size() == 0 ? 0 : (-1L >>> (64 - negative.size())) << positive.size();
+        build();
+    }
+
+    /**
+     * @return compiled query, the last one is kept so repeated calls for the same search don't compile again
+     */
+    public static ChanSearchQuery of(String query) {
+        if (query == null)
+            return EMPTY;
+        ChanSearchQuery q = last;
+        if (q.source.equals(query))
+            return q;
+        q = compile(query);
+        last = q;
+        return q;
+    }
+
+    public static ChanSearchQuery compile(String query) {
+        if (query == null || query.trim().isEmpty())
+            return EMPTY;
+        List<String> positive = new ArrayList<String>();
+        List<String> negative = new ArrayList<String>();
+        int length = query.length();
+        int i = 0;
+        while (i < length) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            boolean negate = false;
+            if (c == '-' && i + 1 < length && !Character.isWhitespace(query.charAt(i + 1))) {
+                negate = true;
+                i++;
+            }
+            int end;
+            String term;
+            if (query.charAt(i) == '"') {
+                end = query.indexOf('"', i + 1);
+                if (end < 0)
+                    end = length;
+                term = query.substring(i + 1, end);
+                i = end + 1;
+            }
+            else {
+                end = i;
+                while (end < length && !Character.isWhitespace(query.charAt(end)))
+                    end++;
+                term = query.substring(i, end);
+                i = end;
+            }
+            term = lower(term);
+            if (term.isEmpty() || positive.contains(term) || negative.contains(term))
+                continue;
+            if (positive.size() + negative.size() >= MAX_TERMS)
+                break;
+            (negate ? negative : positive).add(term);
+        }
+        return new ChanSearchQuery(query, positive, negative);
+    }
+
+    /**
+     * Literal terms matched when any of them occurs, used by the blocklist.  Any number of terms is allowed, they
+     * share the output bits above 64 since only whether something was found matters.
+     */
+    static ChanSearchQuery anyOf(Collection<String> literals) {
+        Set<String> terms = new LinkedHashSet<String>(literals.size());
+        for (String literal : literals)
+            if (literal != null && !literal.isEmpty())
+                terms.add(lower(literal));
+        if (terms.isEmpty())
+            return EMPTY;
+        return new ChanSearchQuery("", new ArrayList<String>(terms), new ArrayList<String>(), true);
+    }
+
+    /**
+     * @return true if any term occurs in the html text outside of tags
+     */
+    boolean containsAny(String html) {
+        return !isEmpty() && scan(html, true, 0) != 0;
+    }
+
+    public boolean isEmpty() {
+        return terms.length == 0;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean matches(ChanPost post) {
+        if (isEmpty())
+            return true;
+        long found = 0;
+        if (post.no != 0)
+            found = scanNumber(post.no, found);
+        String[] fields = { post.id, post.name, post.trip, post.email, post.country_name, post.sub, post.com };
+        for (int i = 0; i < fields.length && !isDecided(found); i++)
+            found = scan(fields[i], i >= 5, found);
+        return (found & negativeMask) == 0 && (found & positiveMask) == positiveMask;
+    }
+
+    /**
+     * Finds the plain terms in html text outside of tags, overlapping matches are merged.  Entities are decoded as in
+     * matches(), a match covers the whole entity it starts or ends in.
+     *
+     * @return start and end offsets of the matches in html, start at even and end at odd indexes
+     */
+    public int[] find(String html) {
+        if (html == null || html.isEmpty() || positiveMask == 0)
+            return new int[0];
+        int[] spans = new int[8];
+        int n = 0;
+        int node = 0;
+        int[] starts = new int[maxTermLength]; // html offsets of the last decoded chars, a ring indexed by count
+        int count = 0;
+        int length = html.length();
+        for (int i = 0; i < length; i++) {
+            char c = html.charAt(i);
+            int from = i;
+            if (c == '<') {
+                int close = html.indexOf('>', i);
+                if (close > 0) {
+                    i = close;
+                    node = 0;
+                    continue;
+                }
+            }
+            else if (c == '&') {
+                int semi = html.indexOf(';', i);
+                if (semi > i && semi - i <= 6) {
+                    char decoded = decodeEntity(html, i + 1, semi);
+                    if (decoded != 0) {
+                        c = decoded;
+                        i = semi;
+                    }
+                }
+            }
+            starts[count++ % starts.length] = from;
+            node = step(node, c);
+            int len = longest[node];
+            if (len == 0)
+                continue;
+            int start = starts[(count - len) % starts.length];
+            int end = i + 1;
+            while (n > 0 && start <= spans[n - 1]) { // merge with earlier matches it overlaps
+                start = Math.min(start, spans[n - 2]);
+                n -= 2;
+            }
+            if (n + 2 > spans.length)
+                spans = Arrays.copyOf(spans, spans.length * 2);
+            spans[n++] = start;
+            spans[n++] = end;
+        }
+        return Arrays.copyOf(spans, n);
+    }
+
+    /**
+     * @return html with the matches of find() wrapped in the given markup
+     */
+    public String highlight(String html, String before, String after) {
+        int[] spans = find(html);
+        if (spans.length == 0)
+            return html;
+        StringBuilder out = new StringBuilder(html.length() + spans.length / 2 * (before.length() + after.length()));
+        int pos = 0;
+        for (int k = 0; k < spans.length; k += 2) {
+            out.append(html, pos, spans[k]).append(before).append(html, spans[k], spans[k + 1]).append(after);
+            pos = spans[k + 1];
+        }
+        out.append(html, pos, html.length());
+        return out.toString();
+    }
+
+    /**
+     * @return true if the rest of the post can't change the result, a negated term was found or all terms were found
+     *         and there are no negated ones to look for
+     */
+    private boolean isDecided(long found) {
+        if (matchAny)
+            return found != 0;
+        return (found & negativeMask) != 0 || (negativeMask == 0 && (found & positiveMask) == positiveMask);
+    }
+
+    private long scanNumber(long no, long found) {
+        int node = 0;
+        String digits = Long.toString(no);
+        for (int i = 0; i < digits.length(); i++) {
+            node = step(node, digits.charAt(i));
+            found |= output[node];
+        }
+        return found;
+    }
+
+    private long scan(String s, boolean html, long found) {
+        if (s == null)
+            return found;
+        int node = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (html && c == '<') {
+                int close = s.indexOf('>', i);
+                if (close > 0) {
+                    i = close;
+                    node = 0;
+                    continue;
+                }
+            }
+            else if (html && c == '&') {
+                int semi = s.indexOf(';', i);
+                if (semi > i && semi - i <= 6) {
+                    char decoded = decodeEntity(s, i + 1, semi);
+                    if (decoded != 0) {
+                        c = decoded;
+                        i = semi;
+                    }
+                }
+            }
+            node = step(node, c);
+            long out = output[node];
+            if (out != 0) {
+                found |= out;
+                if (isDecided(found))
+                    return found;
+            }
+        }
+        return found;
+    }
+
+    private static char decodeEntity(String s, int from, int to) {
+        switch (to - from) {
+            case 2:
+                if (s.startsWith("gt", from)) return '>';
+                if (s.startsWith("lt", from)) return '<';
+                return 0;
+            case 3:
+                return s.startsWith("amp", from) ? '&' : 0;
+            case 4:
+                if (s.startsWith("quot", from)) return '"';
+                if (s.startsWith("#039", from)) return '\'';
+                if (s.startsWith("#044", from)) return ',';
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    private static String lower(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = lower(chars[i]);
+        return new String(chars);
+    }
+
+    private static char lower(char c) {
+        if (c < 128)
+            return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * @return node after reading c, ignoring case
+     */
+    private int step(int node, char c) {
+        if (c < 128 && node < tableNodes)
+            return asciiNext[(node << 7) | c];
+        return slowStep(node, lower(c));
+    }
+
+    private int slowStep(int node, char c) {
+        while (true) {
+            int next = child(node, c);
+            if (next >= 0)
+                return next;
+            if (node == 0)
+                return 0;
+            node = fail[node];
+        }
+    }
+
+    private int child(int node, char c) {
+        char[] chars = childChars[node];
+        for (int i = 0; i < childCounts[node]; i++)
+            if (chars[i] == c)
+                return childNodes[node][i];
+        return -1;
+    }
+
+    private void build() {
+        int capacity = 1;
+        for (String term : terms)
+            capacity += term.length();
+        childChars = new char[capacity][];
+        childNodes = new int[capacity][];
+        childCounts = new int[capacity];
+        fail = new int[capacity];
+        output = new long[capacity];
+        longest = new int[capacity];
+        nodeCount = 1;
+        childChars[0] = new char[4];
+        childNodes[0] = new int[4];
+
+        for (int t = 0; t < terms.length; t++) {
+            int node = 0;
+            String term = terms[t];
+            for (int i = 0; i < term.length(); i++) {
+                char c = term.charAt(i);
+                int next = child(node, c);
+                if (next < 0)
+                    next = addChild(node, c);
+                node = next;
+            }
+            output[node] |= 1L << Math.min(t, 63);
+            if (matchAny || (t < 64 && (positiveMask & (1L << t)) != 0))
+                longest[node] = Math.max(longest[node], term.length());
+            maxTermLength = Math.max(maxTermLength, term.length());
+        }
+
+        // breadth first fail links, outputs of the fail node are inherited
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < childCounts[0]; i++)
+            queue[tail++] = childNodes[0][i];
+        while (head < tail) {
+            int node = queue[head++];
+            for (int i = 0; i < childCounts[node]; i++) {
+                char c = childChars[node][i];
+                int next = childNodes[node][i];
+                int f = fail[node];
+                int target;
+                while ((target = child(f, c)) < 0 && f != 0)
+                    f = fail[f];
+                fail[next] = target >= 0 && target != next ? target : 0;
+                output[next] |= output[fail[next]];
+                longest[next] = Math.max(longest[next], longest[fail[next]]);
+                queue[tail++] = next;
+            }
+        }
+
+        tableNodes = Math.min(nodeCount, MAX_TABLE_NODES);
+        asciiNext = new int[tableNodes << 7];
+        for (int node = 0; node < tableNodes; node++)
+            for (char c = 0; c < 128; c++)
+                asciiNext[(node << 7) | c] = slowStep(node, lower(c));
+    }
+
+    private int addChild(int node, char c) {
+        int n = childCounts[node];
+        if (n == childChars[node].length) {
+            childChars[node] = Arrays.copyOf(childChars[node], n * 2);
+            childNodes[node] = Arrays.copyOf(childNodes[node], n * 2);
+        }
+        int next = nodeCount++;
+        childChars[next] = new char[2];
+        childNodes[next] = new int[2];
+        childChars[node][n] = c;
+        childNodes[node][n] = next;
+        childCounts[node] = n + 1;
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return "ChanSearchQuery " + Arrays.toString(terms) + " positive=" + Long.toBinaryString(positiveMask)
+                + " negative=" + Long.toBinaryString(negativeMask);
+    }
+
+}
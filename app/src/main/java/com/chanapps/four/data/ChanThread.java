@@ -7,11 +7,11 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -48,6 +48,15 @@ public class ChanThread extends ChanPost {
     public int viewPosition = -1;
     public int viewOffset = 0;
 
+    // refresh plan, see ChanRefreshPlanner
+    public long nextRefresh = 0;
+    public int emptyRefreshes = 0;
+
+    // what the thread log file currently holds, see ChanThreadLog
+    transient ChanThreadLog.State logState;
+
+    private transient ChanReplyGraph replyGraph;
+
     public static final String THREAD_COMPOSITE_ID = "_id";
     public static final String THREAD_BOARD_CODE = "threadBoardCode";
     public static final String THREAD_NO = "threadNo";
@@ -229,8 +238,9 @@ public class ChanThread extends ChanPost {
 	}
 	
     public void mergePosts(List<ChanPost> newPosts) {
-        Map<Long,ChanPost> postMap = new HashMap<Long,ChanPost>(this.posts.length);
-        for (ChanPost post : this.posts)
+        ChanPost[] before = this.posts;
+        Map<Long,ChanPost> postMap = new HashMap<Long,ChanPost>(before.length);
+        for (ChanPost post : before)
             postMap.put(post.no, post);
         for (ChanPost newPost: newPosts)
             postMap.put(newPost.no, newPost); // overwrite any existing posts
@@ -246,47 +256,81 @@ public class ChanThread extends ChanPost {
                     return 1;
             }
         });
-        this.posts = postArray; // swap
-    }
-
-    public Map<Long, HashSet<Long>> backlinksMap() {
-        Map<Long, HashSet<Long>> backlinksMap = new HashMap<Long, HashSet<Long>>();
-        for (ChanPost post : posts) {
-            HashSet<Long> backlinks = post.backlinks();
-            if (backlinks != null && !backlinks.isEmpty())
-                backlinksMap.put(post.no, backlinks);
+        synchronized (this) {
+            this.posts = postArray; // swap
+            if (replyGraph != null)
+                replyGraph.merge(before, postArray, newPosts);
         }
-        return backlinksMap;
     }
 
-    public Map<Long, HashSet<Long>> repliesMap(Map<Long, HashSet<Long>> backlinksMap) {
-        Map<Long, HashSet<Long>> repliesMap = new HashMap<Long, HashSet<Long>>();
-        for (Long laterPostNo : backlinksMap.keySet()) {
-            for (Long originalPostNo : backlinksMap.get(laterPostNo)) {
-                HashSet<Long> replies = repliesMap.get(originalPostNo);
-                if (replies == null) {
-                    replies = new HashSet<Long>();
-                    repliesMap.put(originalPostNo, replies);
+    /**
+     * Merges a thread tail, the thread post followed by the last replies, without touching the posts before it:
+     * the thread post and the stored replies in the tail are replaced and newer replies are appended.
+     * @return false if the tail doesn't reach back to the stored replies, the full thread is needed then
+     */
+    public boolean mergeTail(List<ChanPost> tail) {
+        ChanPost[] before = this.posts;
+        if (tail.isEmpty() || before.length == 0 || before[0] == null
+                || tail.get(0).no != no || before[0].no != no)
+            return false;
+        ChanPost op = tail.get(0);
+        int tailReplies = tail.size() - 1;
+        long lastNo = before[before.length - 1].no;
+        // the tail is contiguous, so it connects if it starts at or before the last stored post or holds every reply
+        if (tailReplies > 0 && tail.get(1).no > lastNo && tailReplies < op.replies)
+            return false;
+        ChanPost[] postArray = Arrays.copyOf(before, before.length + tailReplies);
+        int size = before.length;
+        postArray[0] = op;
+        List<ChanPost> merged = new ArrayList<ChanPost>(tail.size());
+        merged.add(op);
+        for (int i = 1; i < tail.size(); i++) {
+            ChanPost post = tail.get(i);
+            if (post.no > postArray[size - 1].no) {
+                postArray[size++] = post;
+            }
+            else {
+                int j = indexOfPost(postArray, size, post.no);
+                if (j < 0) { // a reply inside the stored range we never had, merge the slow way
+                    mergePosts(tail);
+                    return true;
                 }
-                replies.add(laterPostNo);
+                postArray[j] = post;
             }
+            merged.add(post);
+        }
+        if (size < postArray.length)
+            postArray = Arrays.copyOf(postArray, size);
+        synchronized (this) {
+            this.posts = postArray; // swap
+            if (replyGraph != null)
+                replyGraph.merge(before, postArray, merged);
         }
-        return repliesMap;
+        return true;
     }
 
-    public Map<String, HashSet<Long>> sameIdsMap() {
-        Map<String, HashSet<Long>> sameIdsMap = new HashMap<String, HashSet<Long>>();
-        for (ChanPost post : posts) {
-            if (post.id == null || post.id.isEmpty() || post.id.equals(ChanPost.SAGE_POST_ID))
-                continue;
-            HashSet<Long> sameIds = sameIdsMap.get(post.id);
-            if (sameIds == null) {
-                sameIds = new HashSet<Long>();
-                sameIdsMap.put(post.id, sameIds);
-            }
-            sameIds.add(post.no);
+    private static int indexOfPost(ChanPost[] posts, int size, long postNo) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midNo = posts[mid].no;
+            if (midNo < postNo)
+                lo = mid + 1;
+            else if (midNo > postNo)
+                hi = mid - 1;
+            else
+                return mid;
         }
-        return sameIdsMap;
+        return -1;
+    }
+
+    /**
+     * @return quote links between the posts, kept with the thread and brought up to date with the posts
+     */
+    public synchronized ChanReplyGraph replyGraph() {
+        replyGraph = ChanReplyGraph.update(replyGraph, posts);
+        return replyGraph;
     }
     
     public ChanThread cloneForWatchlist() {
@@ -340,14 +384,7 @@ public class ChanThread extends ChanPost {
 
     public boolean isCurrent() {
         FetchParams params = NetworkProfileManager.instance().getCurrentProfile().getFetchParams();
-        if (defData)
-            return false;
-        else if (lastFetched <= 0)
-            return false;
-        else if (Math.abs(new Date().getTime() - lastFetched) > params.refreshDelay)
-            return false;
-        else
-            return true;
+        return !ChanRefreshPlanner.isDue(this, new Date().getTime(), params.refreshDelay);
     }
 
     public static byte[] blobifyLastReplies(ChanPost[] list) {
@@ -380,8 +417,16 @@ public class ChanThread extends ChanPost {
         return null;
     }
 
-    public boolean matchesQuery(String query) {
-        if (query == null || query.isEmpty())
+    @Override
+    public long estimatedSize() {
+        ChanReplyGraph graph = replyGraph;
+        return super.estimatedSize() + 32 + estimatedSize(posts) + estimatedSize(lastReplies)
+                + (graph == null ? 0 : graph.estimatedSize());
+    }
+
+    @Override
+    public boolean matchesQuery(ChanSearchQuery query) {
+        if (query.isEmpty())
             return true;
         if (super.matchesQuery(query))
             return true;
@@ -0,0 +1,444 @@
+package com.chanapps.four.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/**
+ * Append-only thread log.  A refresh that only added a few posts appends those posts and replaces
+ * the fixed size header instead of rewriting the whole thread.  Where the bytes live is up to
+ * {@link ChanThreadStore}; this class only works out what to write and how to read it back.
+ *
+ * <pre>
+ *   header block (HEADER_BLOCK_SIZE bytes, replaced on every store)
+ *       long log length, long lastFetched, int replies, int images, int closed,
+ *       int viewPosition, int viewOffset, byte flags, int live posts, int garbage entries,
+ *       long nextRefresh, int emptyRefreshes (zero in headers written before the refresh planner)
+ *   entries, each: byte type, varint length, payload
+ *       ENTRY_THREAD     thread fields without posts or header counters
+ *       ENTRY_POSTS      new or changed posts, later entries replace earlier ones with the same no
+ *       ENTRY_TOMBSTONE  numbers of deleted posts
+ * </pre>
+ * Superseded and deleted posts are counted as garbage; once there is enough of it the caller is
+ * told to schedule a rewrite in the background.
+ *
+ * Standalone per-thread files written before the store kept the header block right after the
+ * record file header with the log length as an absolute file offset, they are still readable.
+ */
+public class ChanThreadLog {
+
+    private static final String TAG = ChanThreadLog.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    static final int HEADER_BLOCK_SIZE = 64;
+    private static final int ENTRIES_OFFSET = ChanRecordCodec.HEADER_SIZE + HEADER_BLOCK_SIZE;
+
+    private static final int ENTRY_THREAD = 1;
+    private static final int ENTRY_POSTS = 2;
+    private static final int ENTRY_TOMBSTONE = 3;
+
+    private static final int HEADER_IS_DEAD = 0x01;
+
+    private static final int MIN_GARBAGE_FOR_COMPACTION = 32;
+
+    /**
+     * What is currently in the file, kept with the thread instance that was last read or written.
+     */
+    static class State {
+        long logLength;
+        long[] postNos;      // sorted
+        long[] postPrints;   // parallel to postNos
+        long fieldsPrint;
+        Header header;
+        int garbage;
+        boolean compactionQueued;
+
+        int indexOf(long postNo) {
+            return Arrays.binarySearch(postNos, postNo);
+        }
+
+        boolean needsCompaction() {
+            return garbage >= MIN_GARBAGE_FOR_COMPACTION && garbage >= postNos.length / 2;
+        }
+    }
+
+    static class Header {
+        long committed;
+        long lastFetched;
+        int replies;
+        int images;
+        int closed;
+        int viewPosition;
+        int viewOffset;
+        int flags;
+        int livePosts;
+        int garbage;
+        long nextRefresh;
+        int emptyRefreshes;
+
+        static Header of(ChanThread thread, long committed, int livePosts, int garbage) {
+            Header h = new Header();
+            h.committed = committed;
+            h.lastFetched = thread.lastFetched;
+            h.replies = thread.replies;
+            h.images = thread.images;
+            h.closed = thread.closed;
+            h.viewPosition = thread.viewPosition;
+            h.viewOffset = thread.viewOffset;
+            h.flags = thread.isDead ? HEADER_IS_DEAD : 0;
+            h.livePosts = livePosts;
+            h.garbage = garbage;
+            h.nextRefresh = thread.nextRefresh;
+            h.emptyRefreshes = thread.emptyRefreshes;
+            return h;
+        }
+
+        boolean sameAs(Header h) {
+            return h != null
+                    && committed == h.committed
+                    && lastFetched == h.lastFetched
+                    && replies == h.replies
+                    && images == h.images
+                    && closed == h.closed
+                    && viewPosition == h.viewPosition
+                    && viewOffset == h.viewOffset
+                    && flags == h.flags
+                    && livePosts == h.livePosts
+                    && garbage == h.garbage
+                    && nextRefresh == h.nextRefresh
+                    && emptyRefreshes == h.emptyRefreshes;
+        }
+
+        void applyTo(ChanThread thread) {
+            thread.lastFetched = lastFetched;
+            thread.replies = replies;
+            thread.images = images;
+            thread.closed = closed;
+            thread.viewPosition = viewPosition;
+            thread.viewOffset = viewOffset;
+            thread.isDead = (flags & HEADER_IS_DEAD) != 0;
+            thread.nextRefresh = nextRefresh;
+            thread.emptyRefreshes = emptyRefreshes;
+        }
+
+        byte[] toByteArray() {
+            byte[] b = new byte[HEADER_BLOCK_SIZE];
+            int pos = putLong(b, 0, committed);
+            pos = putLong(b, pos, lastFetched);
+            pos = putInt(b, pos, replies);
+            pos = putInt(b, pos, images);
+            pos = putInt(b, pos, closed);
+            pos = putInt(b, pos, viewPosition);
+            pos = putInt(b, pos, viewOffset);
+            b[pos++] = (byte)flags;
+            pos = putInt(b, pos, livePosts);
+            pos = putInt(b, pos, garbage);
+            pos = putLong(b, pos, nextRefresh);
+            putInt(b, pos, emptyRefreshes);
+            return b;
+        }
+
+        static Header parse(byte[] b, int off) {
+            Header h = new Header();
+            h.committed = getLong(b, off);
+            h.lastFetched = getLong(b, off + 8);
+            h.replies = getInt(b, off + 16);
+            h.images = getInt(b, off + 20);
+            h.closed = getInt(b, off + 24);
+            h.viewPosition = getInt(b, off + 28);
+            h.viewOffset = getInt(b, off + 32);
+            h.flags = b[off + 36] & 0xff;
+            h.livePosts = getInt(b, off + 37);
+            h.garbage = getInt(b, off + 41);
+            h.nextRefresh = getLong(b, off + 45);
+            h.emptyRefreshes = getInt(b, off + 53);
+            return h;
+        }
+    }
+
+    /**
+     * Bytes produced by one store: log entries to append (or the whole log for a rewrite) and the
+     * header block to record alongside them.
+     */
+    static class Update {
+        final boolean rewrite;
+        final byte[] entries;
+        final byte[] header;
+        final State next;
+        final boolean headerChanged;
+
+        Update(boolean rewrite, byte[] entries, State next, Header previousHeader) {
+            this.rewrite = rewrite;
+            this.entries = entries;
+            this.header = next.header.toByteArray();
+            this.next = next;
+            this.headerChanged = !next.header.sameAs(previousHeader);
+        }
+
+        boolean isEmpty() {
+            return !rewrite && entries.length == 0 && !headerChanged;
+        }
+    }
+
+    /**
+     * Works out what has to be written for the thread given the length of the log currently
+     * stored for it, or -1 if nothing is stored.  Falls back to a full rewrite when the thread
+     * instance doesn't know what the stored log holds.
+     */
+    static Update prepare(ChanThread thread, long storedLength) {
+        State state = thread.logState;
+        if (state == null || storedLength < 0 || state.logLength != storedLength)
+            return prepareRewrite(thread);
+        ChanPost[] posts = nonNullPosts(thread.posts);
+        long[] prints = ChanRecordCodec.fingerprintPosts(posts);
+        List<ChanPost> changed = new ArrayList<ChanPost>();
+        int replaced = 0;
+        for (int i = 0; i < posts.length; i++) {
+            int j = state.indexOf(posts[i].no);
+            if (j < 0) {
+                changed.add(posts[i]);
+            }
+            else if (state.postPrints[j] != prints[i]) {
+                changed.add(posts[i]);
+                replaced++;
+            }
+        }
+        long[] currentNos = sortedPostNos(posts);
+        List<Long> deleted = new ArrayList<Long>();
+        for (long postNo : state.postNos) {
+            if (Arrays.binarySearch(currentNos, postNo) < 0)
+                deleted.add(postNo);
+        }
+        byte[] fields = ChanRecordCodec.encodeThreadFields(thread);
+        long fieldsPrint = ChanRecordCodec.fingerprint(fields, 0, fields.length);
+
+        ChanRecordCodec.Output entries = new ChanRecordCodec.Output(1024);
+        int garbage = state.garbage + replaced + deleted.size();
+        if (fieldsPrint != state.fieldsPrint) {
+            writeEntry(entries, ENTRY_THREAD, fields);
+            garbage++;
+        }
+        if (!changed.isEmpty())
+            writeEntry(entries, ENTRY_POSTS, ChanRecordCodec.encodePosts(changed.toArray(new ChanPost[changed.size()])));
+        if (!deleted.isEmpty()) {
+            long[] deletedNos = new long[deleted.size()];
+            for (int i = 0; i < deletedNos.length; i++)
+                deletedNos[i] = deleted.get(i);
+            writeEntry(entries, ENTRY_TOMBSTONE, ChanRecordCodec.encodePostNos(deletedNos));
+        }
+        long logLength = state.logLength + entries.len;
+        Header header = Header.of(thread, logLength, posts.length, garbage);
+        State next = makeState(posts, prints, fieldsPrint, header);
+        next.compactionQueued = state.compactionQueued;
+        Update update = new Update(false, entries.toByteArray(), next, state.header);
+        if (DEBUG) Log.i(TAG, "Prepared append /" + thread.board + "/" + thread.no + " bytes=" + entries.len
+                + " changed=" + changed.size() + " replaced=" + replaced + " deleted=" + deleted.size()
+                + " garbage=" + garbage);
+        return update;
+    }
+
+    /**
+     * Prepares the whole thread as a fresh log with a single thread entry and a single posts entry.
+     */
+    static Update prepareRewrite(ChanThread thread) {
+        ChanPost[] posts = nonNullPosts(thread.posts);
+        byte[] fields = ChanRecordCodec.encodeThreadFields(thread);
+        ChanRecordCodec.Output entries = new ChanRecordCodec.Output(fields.length + posts.length * 256 + 16);
+        writeEntry(entries, ENTRY_THREAD, fields);
+        if (posts.length > 0)
+            writeEntry(entries, ENTRY_POSTS, ChanRecordCodec.encodePosts(posts));
+        Header header = Header.of(thread, entries.len, posts.length, 0);
+        State next = makeState(posts, ChanRecordCodec.fingerprintPosts(posts),
+                ChanRecordCodec.fingerprint(fields, 0, fields.length), header);
+        if (DEBUG) Log.i(TAG, "Prepared rewrite /" + thread.board + "/" + thread.no + " posts=" + posts.length
+                + " bytes=" + entries.len);
+        return new Update(true, entries.toByteArray(), next, null);
+    }
+
+    /**
+     * Records that the update was written.
+     *
+     * @return true the first time the log has accumulated enough garbage to be worth compacting
+     */
+    static boolean commit(ChanThread thread, Update update) {
+        State next = update.next;
+        thread.logState = next;
+        if (next.needsCompaction() && !next.compactionQueued) {
+            next.compactionQueued = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rebuilds a thread by replaying log entries over the given header block.
+     */
+    static ChanThread replay(byte[] header, int headerOffset, byte[] b, int off, int len) throws IOException {
+        Header h = Header.parse(header, headerOffset);
+        ChanThread thread = null;
+        TreeMap<Long, ChanPost> posts = new TreeMap<Long, ChanPost>();
+        int pos = off;
+        int end = off + len;
+        while (pos < end) {
+            int entryType = b[pos++] & 0xff;
+            long n = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= end || shift > 28)
+                    throw new IOException("Malformed thread log entry at pos=" + pos);
+                int v = b[pos++] & 0xff;
+                n |= (long)(v & 0x7f) << shift;
+                if ((v & 0x80) == 0)
+                    break;
+            }
+            if (n > end - pos)
+                throw new IOException("Truncated thread log entry at pos=" + pos);
+            int entryLen = (int)n;
+            switch (entryType) {
+                case ENTRY_THREAD:
+                    thread = ChanRecordCodec.decodeThread(b, pos, entryLen);
+                    break;
+                case ENTRY_POSTS:
+                    ChanPost[] entryPosts = ChanRecordCodec.decodePosts(b, pos, entryLen);
+                    if (entryPosts != null)
+                        for (ChanPost post : entryPosts)
+                            if (post != null)
+                                posts.put(post.no, post);
+                    break;
+                case ENTRY_TOMBSTONE:
+                    for (long postNo : ChanRecordCodec.decodePostNos(b, pos, entryLen))
+                        posts.remove(postNo);
+                    break;
+                default:
+                    if (DEBUG) Log.w(TAG, "Skipping unknown thread log entry type=" + entryType);
+                    break;
+            }
+            pos += entryLen;
+        }
+        if (thread == null)
+            throw new IOException("Thread log has no thread entry");
+        h.applyTo(thread);
+        thread.posts = posts.values().toArray(new ChanPost[posts.size()]);
+        byte[] fields = ChanRecordCodec.encodeThreadFields(thread);
+        thread.logState = makeState(thread.posts, ChanRecordCodec.fingerprintPosts(thread.posts),
+                ChanRecordCodec.fingerprint(fields, 0, fields.length), h);
+        if (DEBUG) Log.i(TAG, "Replayed /" + thread.board + "/" + thread.no + " posts=" + thread.posts.length
+                + " garbage=" + h.garbage + " bytes=" + len);
+        return thread;
+    }
+
+    /**
+     * Reads a standalone per-thread file, either a thread log or a plain thread record.  These
+     * were written before threads moved into {@link ChanThreadStore}; the thread comes back
+     * without log state so that storing it writes a fresh log into the store.
+     */
+    public static ChanThread readFile(File file) throws IOException {
+        byte[] b = ChanRecordCodec.readFile(file, -1);
+        int type = b[ChanRecordCodec.HEADER_SIZE - 1] & 0xff;
+        if (type == ChanRecordCodec.TYPE_THREAD)
+            return ChanRecordCodec.decodeThread(b, ChanRecordCodec.HEADER_SIZE, b.length - ChanRecordCodec.HEADER_SIZE);
+        if (type != ChanRecordCodec.TYPE_THREAD_LOG)
+            throw new IOException("Unexpected record type=" + type + " for thread log " + file);
+        if (b.length < ENTRIES_OFFSET)
+            throw new IOException("Truncated thread log header " + file);
+        long committed = Header.parse(b, ChanRecordCodec.HEADER_SIZE).committed;
+        if (committed < ENTRIES_OFFSET || committed > b.length)
+            throw new IOException("Thread log " + file + " committed=" + committed + " length=" + b.length);
+        ChanThread thread = replay(b, ChanRecordCodec.HEADER_SIZE, b, ENTRIES_OFFSET, (int)committed - ENTRIES_OFFSET);
+        thread.logState = null;
+        return thread;
+    }
+
+    static long logLength(byte[] header, int off) {
+        return Header.parse(header, off).committed;
+    }
+
+    static long lastFetched(byte[] header, int off) {
+        return Header.parse(header, off).lastFetched;
+    }
+
+    private static void writeEntry(ChanRecordCodec.Output out, int type, byte[] payload) {
+        out.writeByte(type);
+        out.writeVarint(payload.length);
+        out.writeBytes(payload, 0, payload.length);
+    }
+
+    private static State makeState(ChanPost[] posts, long[] prints, long fieldsPrint, Header header) {
+        Integer[] order = new Integer[posts.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        final ChanPost[] sortPosts = posts;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = sortPosts[lhs].no;
+                long r = sortPosts[rhs].no;
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        State state = new State();
+        state.postNos = new long[posts.length];
+        state.postPrints = new long[posts.length];
+        for (int i = 0; i < order.length; i++) {
+            state.postNos[i] = posts[order[i]].no;
+            state.postPrints[i] = prints[order[i]];
+        }
+        state.fieldsPrint = fieldsPrint;
+        state.header = header;
+        state.garbage = header.garbage;
+        state.logLength = header.committed;
+        return state;
+    }
+
+    private static ChanPost[] nonNullPosts(ChanPost[] posts) {
+        if (posts == null)
+            return new ChanPost[0];
+        int n = 0;
+        for (ChanPost post : posts)
+            if (post != null)
+                n++;
+        if (n == posts.length)
+            return posts;
+        ChanPost[] result = new ChanPost[n];
+        int i = 0;
+        for (ChanPost post : posts)
+            if (post != null)
+                result[i++] = post;
+        return result;
+    }
+
+    private static long[] sortedPostNos(ChanPost[] posts) {
+        long[] nos = new long[posts.length];
+        for (int i = 0; i < posts.length; i++)
+            nos[i] = posts[i].no;
+        Arrays.sort(nos);
+        return nos;
+    }
+
+    private static int putLong(byte[] b, int pos, long v) {
+        pos = putInt(b, pos, (int)(v >>> 32));
+        return putInt(b, pos, (int)v);
+    }
+
+    private static int putInt(byte[] b, int pos, int v) {
+        b[pos] = (byte)(v >>> 24);
+        b[pos + 1] = (byte)(v >>> 16);
+        b[pos + 2] = (byte)(v >>> 8);
+        b[pos + 3] = (byte)v;
+        return pos + 4;
+    }
+
+    private static long getLong(byte[] b, int pos) {
+        return ((long)getInt(b, pos) << 32) | (getInt(b, pos + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+
+}
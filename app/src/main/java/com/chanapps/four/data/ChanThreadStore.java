@@ -0,0 +1,583 @@
+package com.chanapps.four.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Log;
+
+/**
+ * Packed store for all cached threads of one board, replacing one file per thread.
+ *
+ * Thread logs (see {@link ChanThreadLog}) are appended to segment files threads_&lt;n&gt;.seg, a
+ * thread is a list of extents (segment, offset, length) that are concatenated on load.  The index
+ * threads.idx is itself an append-only journal of put/remove records holding the extents and the
+ * thread log header; it is replayed into memory when the store is opened and rewritten once it
+ * has grown well past the live entries.
+ *
+ * Replacing or evicting a thread leaves its old extents as dead bytes in the segments,
+ * {@link #compact} copies the live extents into new segments and drops the old ones.
+ */
+public class ChanThreadStore {
+
+    private static final String TAG = ChanThreadStore.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final String INDEX_FILE = "threads.idx";
+    private static final String SEGMENT_PREFIX = "threads_";
+    private static final String SEGMENT_EXT = ".seg";
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile(SEGMENT_PREFIX + "([0-9]+)\\" + SEGMENT_EXT);
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    private static final long MAX_SEGMENT_BYTES = 2 * 1024 * 1024;
+    private static final long MIN_DEAD_BYTES_FOR_COMPACTION = 256 * 1024;
+    private static final long MIN_INDEX_BYTES_FOR_REWRITE = 64 * 1024;
+
+    private static class Entry {
+        long threadNo;
+        long lastFetched;
+        byte[] header;
+        int[] segments;
+        long[] offsets;
+        int[] lengths;
+
+        long logLength() {
+            long n = 0;
+            for (int length : lengths)
+                n += length;
+            return n;
+        }
+
+        static Entry empty(long threadNo) {
+            Entry e = new Entry();
+            e.threadNo = threadNo;
+            e.segments = new int[0];
+            e.offsets = new long[0];
+            e.lengths = new int[0];
+            return e;
+        }
+
+        Entry copy(int extraExtents) {
+            Entry e = new Entry();
+            e.threadNo = threadNo;
+            e.lastFetched = lastFetched;
+            e.header = header;
+            int n = segments.length;
+            e.segments = new int[n + extraExtents];
+            e.offsets = new long[n + extraExtents];
+            e.lengths = new int[n + extraExtents];
+            System.arraycopy(segments, 0, e.segments, 0, n);
+            System.arraycopy(offsets, 0, e.offsets, 0, n);
+            System.arraycopy(lengths, 0, e.lengths, 0, n);
+            return e;
+        }
+
+        Entry withExtent(int segment, long offset, int length) {
+            Entry e = copy(1);
+            int n = segments.length;
+            e.segments[n] = segment;
+            e.offsets[n] = offset;
+            e.lengths[n] = length;
+            return e;
+        }
+    }
+
+    private final File dir;
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    private final Map<Integer, RandomAccessFile> segmentFiles = new HashMap<Integer, RandomAccessFile>();
+    private int activeSegment = 0;
+    private long activeLength = 0;
+    private long indexLength = 0;
+    private long liveIndexBytes = 0;
+    private long totalBytes = 0;
+    private long liveBytes = 0;
+    private boolean closed = false;
+
+    private ChanThreadStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Opens the store in the given board cache directory, replaying the index.
+     */
+    public static ChanThreadStore open(File dir) throws IOException {
+        ChanThreadStore store = new ChanThreadStore(dir);
+        store.readIndex();
+        store.scanSegments();
+        return store;
+    }
+
+    public static boolean isStoreFile(String fileName) {
+        return INDEX_FILE.equals(fileName) || SEGMENT_PATTERN.matcher(fileName).matches();
+    }
+
+    public synchronized boolean contains(long threadNo) {
+        return entries.containsKey(threadNo);
+    }
+
+    public synchronized long lastFetched(long threadNo) {
+        Entry e = entries.get(threadNo);
+        return e == null ? 0 : e.lastFetched;
+    }
+
+    /**
+     * @return lastFetched of each of the threads the store has, looked up from the index under one lock
+     */
+    public synchronized Map<Long, Long> lastFetched(Collection<Long> threadNos) {
+        Map<Long, Long> stored = new HashMap<Long, Long>();
+        for (Long threadNo : threadNos) {
+            Entry e = entries.get(threadNo);
+            if (e != null)
+                stored.put(threadNo, e.lastFetched);
+        }
+        return stored;
+    }
+
+    public synchronized long[] threadNos() {
+        long[] nos = new long[entries.size()];
+        int i = 0;
+        for (Long threadNo : entries.keySet())
+            nos[i++] = threadNo;
+        return nos;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the thread rebuilt from its extents, or null if the store doesn't have it
+     */
+    public synchronized ChanThread load(long threadNo) throws IOException {
+        Entry e = entries.get(threadNo);
+        if (e == null)
+            return null;
+        long logLength = e.logLength();
+        if (logLength != ChanThreadLog.logLength(e.header, 0))
+            throw new IOException("Thread " + threadNo + " extents length=" + logLength + " don't match log header");
+        byte[] b = new byte[(int)logLength];
+        int pos = 0;
+        for (int i = 0; i < e.segments.length; i++) {
+            read(e.segments[i], e.offsets[i], b, pos, e.lengths[i]);
+            pos += e.lengths[i];
+        }
+        ChanThread thread = ChanThreadLog.replay(e.header, 0, b, 0, b.length);
+        if (DEBUG) Log.i(TAG, "Loaded " + dir.getName() + "/" + threadNo + " extents=" + e.segments.length
+                + " bytes=" + logLength);
+        return thread;
+    }
+
+    /**
+     * Inserts, replaces or appends to the thread, whichever the thread's log state allows.
+     *
+     * @return true if the thread or the store has accumulated enough garbage to be worth compacting
+     */
+    public synchronized boolean store(ChanThread thread) throws IOException {
+        Entry current = entries.get(thread.no);
+        ChanThreadLog.Update update = ChanThreadLog.prepare(thread, current == null ? -1 : current.logLength());
+        return write(thread, current, update);
+    }
+
+    /**
+     * Stores a batch of threads in one pass: unchanged threads are skipped, the changes of the
+     * others are appended back to back with one sync per segment and a single index append.
+     *
+     * @return the threads that were actually written
+     */
+    public synchronized List<ChanThread> storeAll(List<ChanThread> threads) throws IOException {
+        List<ChanThread> written = new ArrayList<ChanThread>();
+        List<ChanThreadLog.Update> updates = new ArrayList<ChanThreadLog.Update>();
+        List<Entry> nextEntries = new ArrayList<Entry>();
+        Set<Integer> touchedSegments = new HashSet<Integer>();
+        ChanRecordCodec.Output records = new ChanRecordCodec.Output(threads.size() * (ChanThreadLog.HEADER_BLOCK_SIZE + 40));
+        for (ChanThread thread : threads) {
+            Entry current = entries.get(thread.no);
+            ChanThreadLog.Update update = ChanThreadLog.prepare(thread, current == null ? -1 : current.logLength());
+            if (update.isEmpty())
+                continue;
+            Entry next = update.rewrite || current == null ? Entry.empty(thread.no) : current;
+            if (update.entries.length > 0) {
+                long offset = append(update.entries, false);
+                touchedSegments.add(activeSegment);
+                next = next.withExtent(activeSegment, offset, update.entries.length);
+            }
+            else {
+                next = next.copy(0); // header only
+            }
+            next.header = update.header;
+            next.lastFetched = thread.lastFetched;
+            records.writeByte(OP_PUT);
+            records.writeRecord(encodeEntry(next));
+            written.add(thread);
+            updates.add(update);
+            nextEntries.add(next);
+        }
+        if (written.isEmpty())
+            return written;
+        for (int segment : touchedSegments)
+            segmentFile(segment).getChannel().force(false); // extents must be durable before the index points at them
+        appendIndexRecords(records, records.len);
+        // the index has the new entries on disk, only now do the index in memory and the thread logs follow
+        for (int i = 0; i < written.size(); i++) {
+            replace(entries.get(nextEntries.get(i).threadNo), nextEntries.get(i));
+            ChanThreadLog.commit(written.get(i), updates.get(i));
+        }
+        maybeRewriteIndex();
+        if (DEBUG) Log.i(TAG, "Stored batch " + dir.getName() + " threads=" + threads.size() + " written=" + written.size()
+                + " segments=" + touchedSegments.size() + " live=" + liveBytes + " total=" + totalBytes);
+        return written;
+    }
+
+    /**
+     * Writes the thread as a single extent, dropping superseded and deleted posts from its log.
+     */
+    public synchronized void rewrite(ChanThread thread) throws IOException {
+        write(thread, entries.get(thread.no), ChanThreadLog.prepareRewrite(thread));
+    }
+
+    private boolean write(ChanThread thread, Entry current, ChanThreadLog.Update update) throws IOException {
+        if (update.isEmpty())
+            return false;
+        Entry next = update.rewrite || current == null ? Entry.empty(thread.no) : current;
+        if (update.entries.length > 0) {
+            long offset = append(update.entries, true);
+            next = next.withExtent(activeSegment, offset, update.entries.length);
+        }
+        else {
+            next = next.copy(0); // header only
+        }
+        next.header = update.header;
+        next.lastFetched = thread.lastFetched;
+        putIndex(next); // on disk before the index in memory and the thread log say the thread is stored
+        replace(current, next);
+        boolean compact = ChanThreadLog.commit(thread, update);
+        maybeRewriteIndex();
+        if (DEBUG) Log.i(TAG, "Stored " + dir.getName() + "/" + thread.no + " rewrite=" + update.rewrite
+                + " bytes=" + update.entries.length + " extents=" + next.segments.length
+                + " live=" + liveBytes + " total=" + totalBytes);
+        return compact || needsCompaction();
+    }
+
+    /**
+     * Drops the thread from the index, its bytes are reclaimed by the next {@link #compact}.
+     */
+    public synchronized boolean remove(long threadNo) throws IOException {
+        Entry current = entries.get(threadNo);
+        if (current == null)
+            return false;
+        ChanRecordCodec.Output out = new ChanRecordCodec.Output(16);
+        out.writeVarint(threadNo);
+        appendIndex(OP_REMOVE, out);
+        replace(current, null);
+        maybeRewriteIndex();
+        return true;
+    }
+
+    /**
+     * Removes threads last fetched before the given time that aren't in keepThreadNos.
+     *
+     * @return the number of threads removed
+     */
+    public synchronized int evict(long olderThan, Set<Long> keepThreadNos) throws IOException {
+        int removed = 0;
+        for (long threadNo : threadNos()) {
+            Entry e = entries.get(threadNo);
+            if (e.lastFetched >= olderThan)
+                continue;
+            if (keepThreadNos != null && keepThreadNos.contains(threadNo))
+                continue;
+            remove(threadNo);
+            removed++;
+        }
+        if (DEBUG) Log.i(TAG, "Evicted " + removed + " threads from " + dir.getName() + " older than " + olderThan);
+        return removed;
+    }
+
+    public synchronized long totalBytes() {
+        return totalBytes + indexLength;
+    }
+
+    public synchronized boolean needsCompaction() {
+        long dead = totalBytes - liveBytes;
+        return dead >= MIN_DEAD_BYTES_FOR_COMPACTION && dead >= liveBytes;
+    }
+
+    /**
+     * Copies every live thread into fresh segments as a single extent each, rewrites the index
+     * and deletes the old segments.
+     */
+    public synchronized void compact() throws IOException {
+        long before = totalBytes();
+        Map<Integer, RandomAccessFile> oldFiles = new HashMap<Integer, RandomAccessFile>(segmentFiles);
+        int firstNewSegment = activeSegment + 1;
+        activeSegment = firstNewSegment;
+        activeLength = 0;
+        Map<Long, Entry> compacted = new HashMap<Long, Entry>(entries.size());
+        for (Entry e : entries.values()) {
+            byte[] b = new byte[(int)e.logLength()];
+            int pos = 0;
+            for (int i = 0; i < e.segments.length; i++) {
+                read(e.segments[i], e.offsets[i], b, pos, e.lengths[i]);
+                pos += e.lengths[i];
+            }
+            Entry c = Entry.empty(e.threadNo);
+            c.lastFetched = e.lastFetched;
+            c.header = e.header;
+            if (b.length > 0)
+                c = c.withExtent(activeSegment, append(b, false), b.length);
+            compacted.put(c.threadNo, c);
+        }
+        for (int segment = firstNewSegment; segment <= activeSegment; segment++)
+            segmentFile(segment).getChannel().force(false);
+        entries.clear();
+        entries.putAll(compacted);
+        rewriteIndex();
+        for (Map.Entry<Integer, RandomAccessFile> old : oldFiles.entrySet()) {
+            IOUtils.closeQuietly(old.getValue());
+            segmentFiles.remove(old.getKey());
+        }
+        deleteSegmentsBefore(firstNewSegment);
+        recount();
+        if (DEBUG) Log.i(TAG, "Compacted " + dir.getName() + " threads=" + entries.size()
+                + " bytes " + before + " -> " + totalBytes());
+    }
+
+    public synchronized void close() {
+        for (RandomAccessFile raf : segmentFiles.values())
+            IOUtils.closeQuietly(raf);
+        segmentFiles.clear();
+        closed = true;
+    }
+
+    private void replace(Entry current, Entry next) {
+        if (current != null) {
+            entries.remove(current.threadNo);
+            liveBytes -= current.logLength();
+        }
+        if (next != null) {
+            entries.put(next.threadNo, next);
+            liveBytes += next.logLength();
+        }
+    }
+
+    private long append(byte[] b, boolean sync) throws IOException {
+        if (activeLength > 0 && activeLength + b.length > MAX_SEGMENT_BYTES) {
+            activeSegment++;
+            activeLength = 0;
+        }
+        FileChannel channel = segmentFile(activeSegment).getChannel();
+        long offset = activeLength;
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        while (buf.hasRemaining())
+            channel.write(buf, offset + buf.position());
+        if (sync)
+            channel.force(false); // extents must be durable before the index points at them
+        activeLength += b.length;
+        totalBytes += b.length;
+        return offset;
+    }
+
+    private void read(int segment, long offset, byte[] b, int off, int len) throws IOException {
+        FileChannel channel = segmentFile(segment).getChannel();
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, offset + buf.position() - off);
+            if (n < 0)
+                throw new IOException("Unexpected end of segment " + segment + " at offset=" + offset);
+        }
+    }
+
+    private RandomAccessFile segmentFile(int segment) throws IOException {
+        RandomAccessFile raf = segmentFiles.get(segment);
+        if (raf == null) {
+            if (closed)
+                throw new IOException("Thread store " + dir + " is closed");
+            raf = new RandomAccessFile(new File(dir, SEGMENT_PREFIX + segment + SEGMENT_EXT), "rw");
+            segmentFiles.put(segment, raf);
+        }
+        return raf;
+    }
+
+    private void putIndex(Entry e) throws IOException {
+        appendIndex(OP_PUT, encodeEntry(e));
+    }
+
+    private ChanRecordCodec.Output encodeEntry(Entry e) {
+        ChanRecordCodec.Output out = new ChanRecordCodec.Output(ChanThreadLog.HEADER_BLOCK_SIZE + 32);
+        out.writeVarint(e.threadNo);
+        out.writeBytes(e.header, 0, e.header.length);
+        out.writeVarint(e.segments.length);
+        for (int i = 0; i < e.segments.length; i++) {
+            out.writeVarint(e.segments[i]);
+            out.writeVarint(e.offsets[i]);
+            out.writeVarint(e.lengths[i]);
+        }
+        return out;
+    }
+
+    private void appendIndex(int op, ChanRecordCodec.Output payload) throws IOException {
+        ChanRecordCodec.Output record = new ChanRecordCodec.Output(payload.len + 8);
+        record.writeByte(op);
+        record.writeRecord(payload);
+        appendIndexRecords(record, op == OP_PUT ? record.len : 0);
+    }
+
+    /**
+     * Appends and syncs index records, the caller updates the index in memory once this returns.
+     */
+    private void appendIndexRecords(ChanRecordCodec.Output records, int putBytes) throws IOException {
+        if (closed)
+            throw new IOException("Thread store " + dir + " is closed");
+        File indexFile = new File(dir, INDEX_FILE);
+        if (indexLength == 0 || !indexFile.exists())
+            rewriteIndex();
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try {
+            raf.setLength(indexLength); // drop a torn record left by an interrupted append
+            raf.seek(indexLength);
+            raf.write(records.buf, 0, records.len);
+            raf.getChannel().force(false);
+        }
+        finally {
+            raf.close();
+        }
+        indexLength += records.len;
+        liveIndexBytes += putBytes;
+    }
+
+    /**
+     * Rewrites the index from memory once it has grown well past the live entries, so only call it once the
+     * index in memory has the records just appended.
+     */
+    private void maybeRewriteIndex() throws IOException {
+        if (indexLength >= MIN_INDEX_BYTES_FOR_REWRITE && indexLength > 4 * liveIndexBytes)
+            rewriteIndex();
+    }
+
+    private void rewriteIndex() throws IOException {
+        ChanRecordCodec.Output out = new ChanRecordCodec.Output(entries.size() * (ChanThreadLog.HEADER_BLOCK_SIZE + 32) + 16);
+        for (Entry e : entries.values()) {
+            ChanRecordCodec.Output payload = encodeEntry(e);
+            out.writeByte(OP_PUT);
+            out.writeRecord(payload);
+        }
+        ChanRecordCodec.writeFile(new File(dir, INDEX_FILE), ChanRecordCodec.TYPE_THREAD_INDEX, out.toByteArray());
+        indexLength = ChanRecordCodec.HEADER_SIZE + out.len;
+        liveIndexBytes = out.len;
+    }
+
+    private void readIndex() throws IOException {
+        File indexFile = new File(dir, INDEX_FILE);
+        if (!indexFile.exists())
+            return;
+        byte[] b = ChanRecordCodec.readFile(indexFile, ChanRecordCodec.TYPE_THREAD_INDEX);
+        ChanRecordCodec.Decoder d = new ChanRecordCodec.Decoder(b, ChanRecordCodec.HEADER_SIZE,
+                b.length - ChanRecordCodec.HEADER_SIZE, false);
+        int pos = ChanRecordCodec.HEADER_SIZE;
+        try {
+            while (d.pos < b.length) {
+                int op = d.readByte();
+                int outer = d.enterRecord();
+                if (outer < 0)
+                    throw new IOException("Empty index record at pos=" + pos);
+                long threadNo = d.readVarint();
+                if (op == OP_PUT) {
+                    Entry e = new Entry();
+                    e.threadNo = threadNo;
+                    e.header = new byte[ChanThreadLog.HEADER_BLOCK_SIZE];
+                    for (int i = 0; i < e.header.length; i++)
+                        e.header[i] = (byte)d.readByte();
+                    int n = (int)d.readVarint();
+                    e.segments = new int[n];
+                    e.offsets = new long[n];
+                    e.lengths = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        e.segments[i] = (int)d.readVarint();
+                        e.offsets[i] = d.readVarint();
+                        e.lengths[i] = (int)d.readVarint();
+                    }
+                    e.lastFetched = ChanThreadLog.lastFetched(e.header, 0);
+                    entries.put(threadNo, e);
+                }
+                else if (op == OP_REMOVE) {
+                    entries.remove(threadNo);
+                }
+                d.exitRecord(outer);
+                pos = d.pos;
+            }
+        }
+        catch (IOException e) {
+            // a torn record at the end of the journal, everything before it is good
+            if (DEBUG) Log.w(TAG, "Ignoring index tail of " + dir.getName() + " from pos=" + pos, e);
+        }
+        indexLength = pos;
+        liveIndexBytes = 0;
+        for (Entry e : entries.values())
+            liveIndexBytes += encodeEntry(e).len + 4;
+    }
+
+    private void scanSegments() {
+        int maxSegment = -1;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher m = SEGMENT_PATTERN.matcher(name);
+                if (m.matches())
+                    maxSegment = Math.max(maxSegment, Integer.parseInt(m.group(1)));
+            }
+        }
+        int minLive = Integer.MAX_VALUE;
+        for (Entry e : entries.values())
+            for (int segment : e.segments)
+                minLive = Math.min(minLive, segment);
+        if (maxSegment >= 0 && minLive != Integer.MAX_VALUE)
+            deleteSegmentsBefore(minLive); // left behind by an interrupted compaction
+        activeSegment = Math.max(maxSegment, 0);
+        File active = new File(dir, SEGMENT_PREFIX + activeSegment + SEGMENT_EXT);
+        activeLength = active.exists() ? active.length() : 0;
+        recount();
+    }
+
+    private void recount() {
+        totalBytes = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (SEGMENT_PATTERN.matcher(name).matches())
+                    totalBytes += new File(dir, name).length();
+            }
+        }
+        liveBytes = 0;
+        for (Entry e : entries.values())
+            liveBytes += e.logLength();
+    }
+
+    private void deleteSegmentsBefore(int segment) {
+        String[] names = dir.list();
+        if (names == null)
+            return;
+        for (String name : names) {
+            Matcher m = SEGMENT_PATTERN.matcher(name);
+            if (m.matches() && Integer.parseInt(m.group(1)) < segment) {
+                if (!new File(dir, name).delete())
+                    Log.e(TAG, "Couldn't delete segment " + name + " in " + dir);
+            }
+        }
+    }
+
+}
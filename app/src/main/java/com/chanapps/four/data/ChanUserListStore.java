@@ -0,0 +1,362 @@
+package com.chanapps.four.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Write-behind persistence for the watchlist and favorites.
+ *
+ * Edits are applied to the board in memory by ChanFileStorage and handed here.  The caller appends and syncs
+ * each edit to a small journal next to the board record before edit() returns, and a single writer thread
+ * rewrites the record itself (tmp file plus rename, see ChanRecordCodec) FLUSH_DELAY_MS after the first pending
+ * change, so a burst of edits such as a dead thread sweep costs one rewrite.  A flush first moves the journal
+ * aside, so edits made while the record is written go to a new journal, and deletes the moved one once the
+ * record is written.
+ *
+ * Loading a board replays the moved journal and then the journal over the record, which recovers edits made
+ * before the process died.
+ * <pre>
+ *   journal entry: byte op, int payload length, payload, long fingerprint of op and payload
+ *       OP_ADD_THREAD     encoded thread, added to the front unless present (by board for the favorites)
+ *       OP_REMOVE_THREAD  board, thread no
+ *       OP_REMOVE_BOARD   board, all its threads are removed
+ *       OP_CLEAR          no payload
+ * </pre>
+ * Entries are idempotent, so replaying one the record already reflects is harmless.  A torn entry at the end
+ * of the journal ends the replay.
+ */
+public class ChanUserListStore {
+
+    private static final String TAG = ChanUserListStore.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final String JOURNAL_EXT = ".journal";
+    private static final String FLUSHING_EXT = ".flushing"; // journal of a flush in progress or failed
+
+    private static final int OP_ADD_THREAD = 1;
+    private static final int OP_REMOVE_THREAD = 2;
+    private static final int OP_REMOVE_BOARD = 3;
+    private static final int OP_CLEAR = 4;
+
+    private static final long FLUSH_DELAY_MS = 2000;
+    private static final int MAX_ENTRY_BYTES = 1024 * 1024;
+
+    private static final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ChanUserListWriter");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+
+    // held to append to a journal or move it aside, never while a record is written
+    private static final Object journalLock = new Object();
+
+    // boards with a record rewrite scheduled, by board code
+    private static final Map<String, ChanBoard> pendingFlushes = new HashMap<String, ChanBoard>();
+
+    public static byte[] addThreadEntry(ChanThread thread) {
+        return entry(OP_ADD_THREAD, ChanRecordCodec.encodeThread(thread));
+    }
+
+    public static byte[] removeThreadEntry(String boardCode, long threadNo) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(boardCode == null ? "" : boardCode);
+            out.writeLong(threadNo);
+            out.close();
+            return entry(OP_REMOVE_THREAD, bytes.toByteArray());
+        }
+        catch (IOException e) { // not thrown by a byte array stream
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] removeBoardEntry(String boardCode) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(boardCode == null ? "" : boardCode);
+            out.close();
+            return entry(OP_REMOVE_BOARD, bytes.toByteArray());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] clearEntry() {
+        return entry(OP_CLEAR, new byte[0]);
+    }
+
+    /**
+     * Journals the edits already applied to the board, synced to disk on return, and schedules a rewrite of its
+     * record.
+     * @throws IOException if the journal couldn't be written, the edits are then only saved by the rewrite
+     */
+    public static void edit(Context context, ChanBoard board, List<byte[]> entries) throws IOException {
+        Context appContext = context.getApplicationContext();
+        store(appContext, board);
+        try {
+            appendJournal(journalFile(appContext, board.link), entries);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Couldn't journal " + entries.size() + " edits of " + board.link, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Schedules a rewrite of the board record with whatever the board holds when it runs.
+     */
+    public static void store(Context context, ChanBoard board) {
+        final Context appContext = context.getApplicationContext();
+        final String boardCode = board.link;
+        synchronized (pendingFlushes) {
+            boolean scheduled = pendingFlushes.containsKey(boardCode);
+            pendingFlushes.put(boardCode, board);
+            if (scheduled)
+                return;
+        }
+        writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush(appContext, boardCode);
+            }
+        }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the journal left by edits that weren't flushed yet to a board just read from disk, or to the default
+     * board if there is no record.  Anything applied gets flushed again.
+     * @return number of entries applied
+     */
+    public static int replayJournal(Context context, ChanBoard board) {
+        File journal = journalFile(context, board.link);
+        if (journal == null)
+            return 0;
+        int applied = replayJournal(board, new File(journal.getParentFile(), board.link + FLUSHING_EXT))
+                + replayJournal(board, journal);
+        if (DEBUG) Log.i(TAG, "replayJournal /" + board.link + "/ applied=" + applied);
+        if (applied > 0)
+            store(context, board);
+        return applied;
+    }
+
+    private static int replayJournal(ChanBoard board, File journal) {
+        if (!journal.exists() || journal.length() == 0)
+            return 0;
+        int applied = 0;
+        try {
+            byte[] b = readJournal(journal);
+            int valid = validLength(b);
+            int pos = 0;
+            while (pos < valid) {
+                int len = readInt(b, pos + 1);
+                apply(board, b[pos], b, pos + 5, len);
+                applied++;
+                pos += 5 + len + 8;
+            }
+            if (pos < b.length)
+                Log.e(TAG, "Ignored " + (b.length - pos) + " bytes at the end of journal " + journal);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Couldn't replay journal " + journal, e);
+        }
+        return applied;
+    }
+
+    private static void flush(Context context, String boardCode) {
+        ChanBoard board;
+        synchronized (pendingFlushes) {
+            board = pendingFlushes.remove(boardCode);
+        }
+        if (board == null || board.defData)
+            return;
+        File boardDir = ChanFileStorage.getBoardCacheDirectory(context, boardCode);
+        if (boardDir == null || !(boardDir.exists() || boardDir.mkdirs())) {
+            Log.e(TAG, "Cannot create board folder for " + boardCode + ", edits stay journaled");
+            return;
+        }
+        File flushing = new File(boardDir, boardCode + FLUSHING_EXT);
+        try {
+            // the moved journal holds edits already in memory, so the record written next reflects all of them
+            moveJournalAside(new File(boardDir, boardCode + JOURNAL_EXT), flushing);
+            ChanRecordCodec.writeBoard(new File(boardDir, boardCode + ChanRecordCodec.RECORD_EXT), board);
+            flushing.delete();
+            if (DEBUG) Log.i(TAG, "Flushed /" + boardCode + "/ threads=" + board.threads.length);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Couldn't write " + boardCode + ", edits stay journaled", e);
+        }
+    }
+
+    private static void moveJournalAside(File journal, File flushing) throws IOException {
+        synchronized (journalLock) {
+            if (!journal.exists())
+                return;
+            if (!flushing.exists()) {
+                if (!journal.renameTo(flushing))
+                    throw new IOException("Couldn't rename " + journal + " to " + flushing);
+                return;
+            }
+            // left by a failed flush, keep its edits ahead of the newer ones, without a torn end that would hide them
+            byte[] older = readJournal(flushing);
+            File tmpFile = new File(flushing.getParentFile(), flushing.getName() + ".tmp");
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(tmpFile);
+                fos.write(older, 0, validLength(older));
+                fos.write(readJournal(journal));
+                fos.getFD().sync();
+            }
+            finally {
+                IOUtils.closeQuietly(fos);
+            }
+            if (!tmpFile.renameTo(flushing) || !journal.delete())
+                throw new IOException("Couldn't move " + journal + " to " + flushing);
+        }
+    }
+
+    private static void apply(ChanBoard board, int op, byte[] b, int off, int len) throws IOException {
+        if (board.defData || (board.threads.length > 0 && board.threads[0].defData)) {
+            board.threads = new ChanThread[0];
+            board.defData = false;
+        }
+        List<ChanThread> threads = new ArrayList<ChanThread>(Arrays.asList(board.threads));
+        switch (op) {
+            case OP_ADD_THREAD:
+                ChanThread thread = ChanRecordCodec.decodeThread(b, off, len);
+                boolean present = ChanBoard.FAVORITES_BOARD_CODE.equals(board.link)
+                        ? board.hasThreadsFromBoard(thread.board)
+                        : board.hasThread(thread.board, thread.no);
+                if (!present)
+                    threads.add(0, thread);
+                break;
+            case OP_REMOVE_THREAD:
+            case OP_REMOVE_BOARD:
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, off, len));
+                String boardCode = in.readUTF();
+                long no = op == OP_REMOVE_THREAD ? in.readLong() : 0;
+                for (int i = threads.size() - 1; i >= 0; i--) {
+                    ChanThread t = threads.get(i);
+                    if (boardCode.equals(t.board) && (op == OP_REMOVE_BOARD || t.no == no))
+                        threads.remove(i);
+                }
+                break;
+            case OP_CLEAR:
+                threads.clear();
+                break;
+            default:
+                Log.e(TAG, "Unknown journal op " + op + " for " + board.link);
+                return;
+        }
+        board.threads = threads.toArray(new ChanThread[threads.size()]);
+    }
+
+    /**
+     * @return length of the whole entries at the start of the journal, up to a torn write
+     */
+    private static int validLength(byte[] b) {
+        int pos = 0;
+        while (pos + 5 <= b.length) {
+            int len = readInt(b, pos + 1);
+            int end = pos + 5 + len;
+            if (len < 0 || len > MAX_ENTRY_BYTES || end + 8 > b.length
+                    || ChanRecordCodec.fingerprint(b, pos, 5 + len) != readLong(b, end))
+                break;
+            pos = end + 8;
+        }
+        return pos;
+    }
+
+    private static byte[] entry(int op, byte[] payload) {
+        byte[] e = new byte[5 + payload.length + 8];
+        e[0] = (byte)op;
+        putInt(e, 1, payload.length);
+        System.arraycopy(payload, 0, e, 5, payload.length);
+        putLong(e, 5 + payload.length, ChanRecordCodec.fingerprint(e, 0, 5 + payload.length));
+        return e;
+    }
+
+    private static File journalFile(Context context, String boardCode) {
+        File boardDir = ChanFileStorage.getBoardCacheDirectory(context, boardCode);
+        return boardDir == null ? null : new File(boardDir, boardCode + JOURNAL_EXT);
+    }
+
+    private static void appendJournal(File journal, List<byte[]> entries) throws IOException {
+        if (journal == null)
+            throw new IOException("No board folder for journal");
+        File dir = journal.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create journal folder " + dir);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] entry : entries)
+            bytes.write(entry);
+        synchronized (journalLock) {
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(journal, true);
+                fos.write(bytes.toByteArray()); // one write, a torn one is dropped whole on replay
+                fos.getFD().sync();
+            }
+            finally {
+                IOUtils.closeQuietly(fos);
+            }
+        }
+        if (DEBUG) Log.i(TAG, "Journaled " + entries.size() + " edits to " + journal);
+    }
+
+    private static byte[] readJournal(File journal) throws IOException {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(journal);
+            return IOUtils.toByteArray(fis);
+        }
+        finally {
+            IOUtils.closeQuietly(fis);
+        }
+    }
+
+    private static void putInt(byte[] b, int pos, int v) {
+        b[pos] = (byte)(v >>> 24);
+        b[pos + 1] = (byte)(v >>> 16);
+        b[pos + 2] = (byte)(v >>> 8);
+        b[pos + 3] = (byte)v;
+    }
+
+    private static void putLong(byte[] b, int pos, long v) {
+        putInt(b, pos, (int)(v >>> 32));
+        putInt(b, pos + 4, (int)v);
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xff) << 24 | (b[pos + 1] & 0xff) << 16 | (b[pos + 2] & 0xff) << 8 | (b[pos + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] b, int pos) {
+        return (long)readInt(b, pos) << 32 | (readInt(b, pos + 4) & 0xffffffffL);
+    }
+
+}
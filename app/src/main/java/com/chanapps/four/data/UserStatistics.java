@@ -25,6 +25,7 @@ public class UserStatistics {
 	public static final int MAX_TOP_THREADS = 50;
 	private static final long MIN_STORE_DELAY = 5000;  // 15s
 	private static final long MIN_DELAY_FOR_TIPS = 5 * 60 * 1000; // 5min
+	private static final long MIN_OPEN_GAP = 30 * 60 * 1000; // visits closer than this are the same open
 
 	public static enum ChanFeature {
 		NONE,
@@ -102,6 +103,10 @@ public class UserStatistics {
 	 *  list of displayed tips for features
 	 */
 	public Set<ChanFeature> displayedTips = new HashSet<ChanFeature>();
+	/*
+	 * hits and misses of the prefetch planner
+	 */
+	public ChanPrefetchStat prefetchStats = new ChanPrefetchStat();
 	
 	public long tipDisplayed = 0;
 	
@@ -125,9 +130,21 @@ public class UserStatistics {
 		ChanActivityId activityId = activity.getChanActivityId();
 		switch(activityId.activity) {
 		case BOARD_ACTIVITY:
+			if (activityId.boardCode != null && !ChanBoard.isVirtualBoard(activityId.boardCode)) {
+				ChanBoardStat boardStat = boardStats.get(activityId.boardCode);
+				registerOpen(activityId.boardCode, boardStat == null ? 0 : boardStat.lastUsage);
+			}
 			boardUse(activityId.boardCode);
 			break;
 		case THREAD_ACTIVITY:
+			if (activityId.boardCode != null && activityId.threadNo > 0) {
+				String threadKey = ChanPrefetchStat.threadKey(activityId.boardCode, activityId.threadNo);
+				ChanThreadStat threadStat = boardThreadStats.get(threadKey);
+				registerOpen(threadKey, threadStat == null ? 0 : threadStat.lastUsage);
+			}
+			boardUse(activityId.boardCode);
+			threadUse(activityId.boardCode, activityId.threadNo);
+			break;
 		case GALLERY_ACTIVITY:
 		case POST_REPLY_ACTIVITY:
 			boardUse(activityId.boardCode);
@@ -141,12 +158,22 @@ public class UserStatistics {
 		}
 	}
 
+	/**
+	 * Counts a prefetch hit or miss for a board or thread the user hasn't been on for a while.
+	 */
+	private void registerOpen(String key, long lastUsage) {
+		long now = new Date().getTime();
+		if (now - lastUsage > MIN_OPEN_GAP)
+			prefetchStats.opened(key, now);
+	}
+
     public void reset() {
         boardStats.clear();
         threadStats.clear();
         boardThreadStats.clear();
         usedFeatures.clear();
         displayedTips.clear();
+        prefetchStats.reset();
         tipDisplayed = 0;
         lastUpdate = 0;
         ChanIdentifiedActivity activity = NetworkProfileManager.instance().getActivity();
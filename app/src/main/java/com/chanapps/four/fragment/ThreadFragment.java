@@ -69,6 +69,8 @@ import com.chanapps.four.data.ChanBlocklist;
 import com.chanapps.four.data.ChanBoard;
 import com.chanapps.four.data.ChanFileStorage;
 import com.chanapps.four.data.ChanPost;
+import com.chanapps.four.data.ChanPostIndex;
+import com.chanapps.four.data.ChanRefreshPlanner;
 import com.chanapps.four.data.ChanThread;
 import com.chanapps.four.data.LastActivity;
 import com.chanapps.four.loader.ChanImageLoader;
@@ -416,7 +418,8 @@ public class ThreadFragment extends Fragment implements ThreadViewable
         }).start();
     }
 
-    protected static final int AUTOUPDATE_THREAD_DELAY_MS = 30000;
+    protected static final int AUTOUPDATE_THREAD_DELAY_MS = 30000; // for threads without a refresh plan
+    protected static final int AUTOUPDATE_EARLY_TOLERANCE_MS = 1000;
 
     protected void scheduleAutoUpdate() {
         if (DEBUG) Log.i(TAG, "scheduleAutoUpdate() checking /" + boardCode + "/" + threadNo + " q=" + query);
@@ -445,8 +448,10 @@ public class ThreadFragment extends Fragment implements ThreadViewable
         }
         if (handler != null)
             handler.removeCallbacks(autoUpdateRunnable); // deschedule any current updates
+        long delay = ChanRefreshPlanner.delayUntilDue(thread, System.currentTimeMillis(), AUTOUPDATE_THREAD_DELAY_MS);
         if (handler != null)
-            handler.postDelayed(autoUpdateRunnable, AUTOUPDATE_THREAD_DELAY_MS);
+            handler.postDelayed(autoUpdateRunnable, delay);
+        if (DEBUG) Log.i(TAG, "scheduleAutoUpdate() next auto refresh in " + delay + "ms /" + boardCode + "/" + threadNo);
         if (handler == null) {
             if (DEBUG) Log.i(TAG, "scheduleAutoUpdate() null handler exiting /" + boardCode + "/" + threadNo);
         }
@@ -464,10 +469,19 @@ public class ThreadFragment extends Fragment implements ThreadViewable
                 if (DEBUG) Log.i(TAG, "autoUpdateRunnable null handler, cancelling update /" + boardCode + "/" + threadNo);
                 return;
             }
-            if (DEBUG) Log.i(TAG, "autoUpdateRunnable manually refreshing /" + boardCode + "/" + threadNo);
-            manualRefresh();
+            Context context = getActivityContext();
+            ChanThread thread = context == null ? null : ChanFileStorage.loadThreadData(context, boardCode, threadNo);
+            if (thread != null && !ChanRefreshPlanner.isDue(thread,
+                    System.currentTimeMillis() + AUTOUPDATE_EARLY_TOLERANCE_MS, AUTOUPDATE_THREAD_DELAY_MS)) {
+                if (DEBUG) Log.i(TAG, "autoUpdateRunnable refreshed meanwhile, rescheduling /" + boardCode + "/" + threadNo);
+                scheduleAutoUpdate();
+                return;
+            }
+            if (DEBUG) Log.i(TAG, "autoUpdateRunnable refreshing /" + boardCode + "/" + threadNo);
+            autoRefresh();
+            // replaced by the planned delay once the refreshed thread loads, until then keep the fallback delay
             if (DEBUG) Log.i(TAG, "autoUpdateRunnable scheduling next auto refresh /" + boardCode + "/" + threadNo);
-            scheduleAutoUpdate();
+            handler.postDelayed(autoUpdateRunnable, AUTOUPDATE_THREAD_DELAY_MS);
         }
     };
 
@@ -523,20 +537,13 @@ public class ThreadFragment extends Fragment implements ThreadViewable
             return;
         }
         Cursor cursor = adapter.getCursor();
-        cursor.moveToPosition(-1);
-        boolean found = false;
-        int pos = 0;
-        while (cursor.moveToNext()) {
-            long postNoAtPos = cursor.getLong(cursor.getColumnIndex(ChanPost.POST_ID));
-            if (postNoAtPos == scrollToPostNo) {
-                found = true;
-                break;
-            }
-            pos++;
+        if (cursor == null) {
+            if (DEBUG) Log.i(TAG, "scrollToPost() postNo=" + scrollToPostNo + " null cursor, exiting");
+            return;
         }
-        final boolean hasPost = found;
+        final int pos = ChanPostIndex.of(cursor).positionOf(scrollToPostNo);
         final int postPos = pos;
-        if (!hasPost) {
+        if (pos < 0) {
             if (DEBUG) Log.i(TAG, "scrollToPost() didn't find postNo=" + scrollToPostNo);
             return;
         }
@@ -792,6 +799,15 @@ public class ThreadFragment extends Fragment implements ThreadViewable
         NetworkProfileManager.instance().manualRefresh(getChanActivity());
     }
 
+    // timer driven, unlike a pull to refresh it is fine with the thread tail and a conditional request
+    protected void autoRefresh() {
+        if (handler != null)
+            handler.removeCallbacks(autoUpdateRunnable); // deschedule autoupdates while refreshing
+        setProgress(true);
+        setActivityIdToFragment();
+        NetworkProfileManager.instance().autoRefresh(getChanActivity());
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         ThreadActivity a = getActivity() != null && getActivity() instanceof ThreadActivity ? (ThreadActivity)getActivity() : null;
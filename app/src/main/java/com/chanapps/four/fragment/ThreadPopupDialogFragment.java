@@ -23,6 +23,7 @@ import com.chanapps.four.component.ThemeSelector;
 import com.chanapps.four.component.ThreadViewable;
 import com.chanapps.four.data.ChanBoard;
 import com.chanapps.four.data.ChanPost;
+import com.chanapps.four.data.ChanPostIndex;
 import com.chanapps.four.data.ChanThread;
 import com.chanapps.four.loader.ChanImageLoader;
 import com.chanapps.four.loader.ThreadCursorLoader;
@@ -30,7 +31,6 @@ import com.chanapps.four.viewer.ThreadListener;
 import com.chanapps.four.viewer.ThreadViewer;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.assist.PauseOnScrollListener;
-import java.util.HashSet;
 
 /**
 * Created with IntelliJ IDEA.
@@ -248,23 +248,14 @@ public class ThreadPopupDialogFragment extends DialogFragment implements ThreadV
         new Thread(new Runnable() {
             @Override
             public void run() {
-                //if (pos == 0 && postNo != threadNo && cursor.moveToFirst()) { // on multi-jump the original position is invalid, so re-scan position
-                pos = -1;
-                if (cursor.moveToFirst()) { // on multi-jump the original position is invalid, so re-scan position
-                    while (!cursor.isAfterLast()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(ChanPost.POST_ID));
-                        if (id == postNo) {
-                            pos = cursor.getPosition();
-                            break;
-                        }
-                        cursor.moveToNext();
-                    }
-                }
+                // on multi-jump the original position is invalid, so look it up again
+                ChanPostIndex index = ChanPostIndex.of(cursor);
+                pos = index.positionOf(postNo);
                 if (pos == -1) {
                     Log.e(TAG, "Couldn't find post position in cursor");
                     return;
                 }
-                final Cursor detailCursor = detailsCursor();
+                final Cursor detailCursor = detailsCursor(index);
                 if (DEBUG) Log.i(TAG, "loadAdapter /" + boardCode + "/" + threadNo + " detail cursor size=" + detailCursor.getCount());
                 if (handler != null)
                     handler.post(new Runnable() {
@@ -378,7 +369,7 @@ public class ThreadPopupDialogFragment extends DialogFragment implements ThreadV
         return handler;
     }
 
-    protected Cursor detailsCursor() {
+    protected Cursor detailsCursor(ChanPostIndex index) {
         MatrixCursor matrixCursor = ChanPost.buildMatrixCursor(0);
         if (pos == -1) {
             Log.e(TAG, "Error: invalid pos position pos=" + -1);
@@ -386,64 +377,51 @@ public class ThreadPopupDialogFragment extends DialogFragment implements ThreadV
         }
         switch (popupType) {
             case BACKLINKS:
-                addBlobRows(matrixCursor, ChanPost.POST_BACKLINKS_BLOB);
+                addBlobRows(matrixCursor, index, ChanPost.POST_BACKLINKS_BLOB);
                 break;
             case REPLIES:
-                addBlobRows(matrixCursor, ChanPost.POST_REPLIES_BLOB);
+                addBlobRows(matrixCursor, index, ChanPost.POST_REPLIES_BLOB);
                 break;
             case SAME_ID:
-                addBlobRows(matrixCursor, ChanPost.POST_SAME_IDS_BLOB);
+                addBlobRows(matrixCursor, index, ChanPost.POST_SAME_IDS_BLOB);
                 break;
             case SELF:
-                addSelfRow(matrixCursor);
+                addSelfRow(matrixCursor, index);
                 break;
         }
         return matrixCursor;
     }
 
-    protected int addBlobRows(MatrixCursor matrixCursor, String columnName) {
+    protected int addBlobRows(MatrixCursor matrixCursor, ChanPostIndex index, String columnName) {
         if (DEBUG) Log.i(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " popupType=" + popupType + " columnName=" + columnName);
-        if (!cursor.moveToPosition(pos)) {
-            if (DEBUG) Log.i(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " could not move to position");
-            return 0;
-        }
-        byte[] b = cursor.getBlob(cursor.getColumnIndex(columnName));
+        byte[] b = index.blobAt(pos, columnName);
         if (b == null || b.length == 0) {
             if (DEBUG) Log.i(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " no blob found for columnName=" + columnName);
             return 0;
         }
-        HashSet<?> links = ChanPost.parseBlob(b);
-        if (links == null || links.size() <= 0) {
+        long[] links = ChanPost.parsePostNos(b);
+        if (links == null || links.length <= 0) {
             if (DEBUG) Log.i(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " no links found in blob");
             return 0;
         }
-        int count = links.size();
+        int count = links.length;
         if (DEBUG) Log.i(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " found links count=" + count);
-        if (!cursor.moveToFirst()) {
-            if (DEBUG) Log.i(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " could not move to first");
-            return 0;
-        }
-        while (!cursor.isAfterLast()) {
-            long id = cursor.getLong(cursor.getColumnIndex(ChanPost.POST_ID));
-            if (DEBUG) Log.d(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " checking pos=" + cursor.getPosition() + " id=" + id);
-            if (links.contains(id)) {
-                if (DEBUG) Log.d(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " found link at pos=" + cursor.getPosition());
-                Object[] row = ChanPost.extractPostRow(cursor);
-                if (row != null)
-                    matrixCursor.addRow(row);
+        for (long link : links) { // sorted, so rows stay in thread order
+            int linkPos = index.positionOf(link);
+            if (linkPos < 0) {
+                if (DEBUG) Log.d(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " link=" + link + " not in cursor");
+                continue;
             }
-            if (!cursor.moveToNext())
-                break;
+            if (DEBUG) Log.d(TAG, "addBlobRows() /" + boardCode + "/" + threadNo + " pos=" + pos + " found link at pos=" + linkPos);
+            Object[] row = index.popupRowAt(linkPos);
+            if (row != null)
+                matrixCursor.addRow(row);
         }
         return count;
     }
 
-    protected void addSelfRow(MatrixCursor matrixCursor) {
-        if (!cursor.moveToPosition(pos)) {
-            if (DEBUG) Log.i(TAG, "addSelfRow() /" + boardCode + "/" + threadNo + " could not move to pos=" + pos);
-            return;
-        }
-        Object[] row = ChanPost.extractPostRow(cursor);
+    protected void addSelfRow(MatrixCursor matrixCursor, ChanPostIndex index) {
+        Object[] row = index.popupRowAt(pos);
         if (row == null) {
             if (DEBUG) Log.i(TAG, "addSelfRow() /" + boardCode + "/" + threadNo + " null row from pos=" + pos);
             return;
@@ -104,7 +104,7 @@ public class ChanOffLineAlbum extends MediaSet {
 		File[] files = dir.listFiles(new FilenameFilter() {
             public boolean accept(File directory, String fileName) {
             	if (DEBUG) Log.d(TAG, "Checking file " + directory.getAbsolutePath() + "/" + fileName);
-                return !fileName.endsWith(".txt");
+                return !ChanFileStorage.isCacheDataFile(fileName);
             }
         });
         if (files == null || files.length == 0) {
@@ -90,7 +90,7 @@ public class ChanOffLineAlbumSet extends MediaSet {
 	private boolean folderContainsImages(File dir) {
 		File[] files = dir.listFiles(new FilenameFilter() {
             public boolean accept(File directory, String fileName) {
-                return !fileName.endsWith(".txt");
+                return !ChanFileStorage.isCacheDataFile(fileName);
             }
         });
 		return files.length > 0;
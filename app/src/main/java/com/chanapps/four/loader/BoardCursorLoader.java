@@ -29,6 +29,7 @@ public class BoardCursorLoader extends AsyncTaskLoader<Cursor> {
 
     protected String boardName;
     protected String query;
+    protected ChanSearchQuery searchQuery;
     protected boolean abbrev;
     protected boolean header;
 
@@ -48,6 +49,7 @@ public class BoardCursorLoader extends AsyncTaskLoader<Cursor> {
         this.context = context;
         this.boardName = boardName;
         this.query = query == null ? "" : query.toLowerCase().trim();
+        this.searchQuery = ChanSearchQuery.of(this.query);
         this.abbrev = abbrev;
         this.header = header;
         this.boardSortType = boardSortType != null ? boardSortType : BoardSortType.BUMP_ORDER;
@@ -242,7 +244,7 @@ public class BoardCursorLoader extends AsyncTaskLoader<Cursor> {
             //return false;
             return;
         }
-        if (!thread.matchesQuery(query)) {
+        if (!thread.matchesQuery(searchQuery)) {
             if (DEBUG) Log.i(TAG, "Skipped non-matching to query thread " + thread);
             return;
         }
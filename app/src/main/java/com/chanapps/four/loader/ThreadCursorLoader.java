@@ -2,8 +2,6 @@ package com.chanapps.four.loader;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.util.HashSet;
-import java.util.Map;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
@@ -12,6 +10,7 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.chanapps.four.data.*;
+import com.chanapps.four.viewer.PostTextRenderer;
 
 public class ThreadCursorLoader extends BoardCursorLoader {
 
@@ -33,6 +32,7 @@ public class ThreadCursorLoader extends BoardCursorLoader {
         this.boardName = boardName;
         this.threadNo = threadNo;
         this.query = query == null ? "" : query.toLowerCase().trim();
+        this.searchQuery = ChanSearchQuery.of(this.query);
         this.showRelatedBoards = false; // not so nice design
         if (threadNo <= 0)
             throw new ExceptionInInitializerError("Can't have zero threadNo in a thread cursor loader");
@@ -65,6 +65,7 @@ public class ThreadCursorLoader extends BoardCursorLoader {
 
             if (board != null && thread != null && thread.posts != null && thread.posts.length > 0) { // show loading for no thread data
                 loadMatrixCursor(matrixCursor, board, thread);
+                PostTextRenderer.prerender(context, matrixCursor);
                 if (DEBUG) Log.i(TAG, "Remaining to load:" + (thread.posts[0].replies - thread.posts.length));
             }
             registerContentObserver(matrixCursor, mObserver);
@@ -79,17 +80,17 @@ public class ThreadCursorLoader extends BoardCursorLoader {
         if (DEBUG) Log.i(TAG, "Thread toplevel thumb=" + thread.tn_w + "x" + thread.tn_h + " full=" + thread.w + "x" + thread.h);
         if (DEBUG) Log.i(TAG, "Thread postlevel thumb=" + thread.posts[0].tn_w + "x" + thread.posts[0].tn_h + " full=" + thread.posts[0].w + "x" + thread.posts[0].h);
 
-        // first get the maps for thread references
-        Map<Long, HashSet<Long>> backlinksMap = thread.backlinksMap();
-        Map<Long, HashSet<Long>> repliesMap = thread.repliesMap(backlinksMap);
-        Map<String, HashSet<Long>> sameIdsMap = thread.sameIdsMap();
+        // first get the quote links between posts
+        ChanReplyGraph replyGraph = thread.replyGraph();
+        ChanFileStorage.threadChangedInPlace(thread);
+        ChanPostIndex index = new ChanPostIndex(thread.posts.length);
 
         int i = 0;
         int numQueryMatches = 0;
         for (ChanPost post : thread.posts) {
             if (ChanBlocklist.isBlocked(context, post))
                 continue;
-            if (!post.matchesQuery(query))
+            if (!post.matchesQuery(searchQuery))
                 continue;
             if (!query.isEmpty())
                 numQueryMatches++;
@@ -97,13 +98,16 @@ public class ThreadCursorLoader extends BoardCursorLoader {
             post.closed = thread.closed; // inherit
             post.hidePostNumbers = false; // always show
             post.useFriendlyIds = useFriendlyIds;
-            byte[] backlinksBlob = ChanPost.blobify(backlinksMap.get(post.no));
-            byte[] repliesBlob = ChanPost.blobify(repliesMap.get(post.no));
-            HashSet<Long> sameIds = sameIdsMap.get(post.id);
-            byte[] sameIdsBlob = (sameIds != null && sameIds.size() > 1) ? ChanPost.blobify(sameIds) : null;
-            matrixCursor.addRow(post.makeRow(context, query, i, backlinksBlob, repliesBlob, sameIdsBlob));
+            byte[] backlinksBlob = ChanPost.blobify(replyGraph.links(post.no));
+            byte[] repliesBlob = ChanPost.blobify(replyGraph.replies(post.no));
+            long[] sameIds = replyGraph.sameIds(post.no);
+            byte[] sameIdsBlob = sameIds.length > 1 ? ChanPost.blobify(sameIds) : null;
+            Object[] row = post.makeRow(context, query, i, backlinksBlob, repliesBlob, sameIdsBlob);
+            matrixCursor.addRow(row);
+            index.add(post.no, row);
             i++;
         }
+        index.attachTo(matrixCursor);
 
         if (thread.defData)
             return;
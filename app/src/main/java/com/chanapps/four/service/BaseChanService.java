@@ -47,6 +47,9 @@ public abstract class BaseChanService extends Service {
     protected int nonPriorityMessageCounter = 0;
     protected int priorityMessageCounter = 0;
 
+    private int runningParses = 0;
+    private int lastStartId = 0;
+
     protected volatile Looper mServiceLooper;
     protected volatile ServiceHandler mServiceHandler;
     private String mName;
@@ -144,6 +147,12 @@ public abstract class BaseChanService extends Service {
         	}
         	return START_NOT_STICKY;
         }
+
+        String parseKey = intent != null ? getParseKey(intent) : null;
+        if (parseKey != null) {
+            executeParse(parseKey, intent, startId);
+            return START_NOT_STICKY;
+        }
         
         Message msg = mServiceHandler.obtainMessage();
         msg.arg1 = startId;
@@ -165,6 +174,31 @@ public abstract class BaseChanService extends Service {
         return START_NOT_STICKY;
     }
 	
+    private void executeParse(String parseKey, final Intent intent, int startId) {
+        synchronized(this) {
+            runningParses++;
+            lastStartId = startId;
+        }
+        boolean priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) == 1;
+        ParseExecutor.instance().execute(parseKey, priority, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onHandleIntent(intent);
+                } finally {
+                    int stopId = 0;
+                    synchronized(BaseChanService.this) {
+                        runningParses--;
+                        if (runningParses == 0)
+                            stopId = lastStartId;
+                    }
+                    if (stopId > 0)
+                        stopSelf(stopId);
+                }
+            }
+        });
+    }
+
     /*
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -205,6 +239,17 @@ public abstract class BaseChanService extends Service {
      */
     protected abstract void onHandleIntent(Intent intent);
 
+    /**
+     * Services doing parse and store work return a key here to have their intents handled on the shared
+     * {@link ParseExecutor} instead of the service thread.  Intents with the same key are handled in order, intents
+     * with different keys may run in parallel, so onHandleIntent must not keep per-intent state in fields.
+     *
+     * @return board or thread key of the intent, null to handle it on the service thread
+     */
+    protected String getParseKey(Intent intent) {
+        return null;
+    }
+
 	protected void closeConnection(HttpURLConnection tc) {
 		if (tc != null) {
 			try {
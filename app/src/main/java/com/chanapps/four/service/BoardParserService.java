@@ -3,24 +3,25 @@
  */
 package com.chanapps.four.service;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
-import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.DeserializationConfig;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.MappingJsonFactory;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import android.content.Context;
@@ -34,6 +35,7 @@ import com.chanapps.four.activity.ChanIdentifiedService;
 import com.chanapps.four.activity.SettingsActivity;
 import com.chanapps.four.data.ChanBoard;
 import com.chanapps.four.data.ChanFileStorage;
+import com.chanapps.four.data.ChanJsonReader;
 import com.chanapps.four.data.ChanPost;
 import com.chanapps.four.data.ChanThread;
 import com.chanapps.four.data.JacksonNonBlockingObjectMapperFactory;
@@ -43,7 +45,7 @@ import com.chanapps.four.service.profile.NetworkProfile.Failure;
  * @author "Grzegorz Nittner" <grzegorz.nittner@gmail.com>
  *
  */
-public class BoardParserService extends BaseChanService implements ChanIdentifiedService {
+public class BoardParserService extends BaseChanService {
 
     protected static final String TAG = BoardParserService.class.getSimpleName();
     private static final boolean DEBUG = false;
@@ -56,13 +58,6 @@ public class BoardParserService extends BaseChanService implements ChanIdentifie
         MAPPER.setDateFormat(new SimpleDateFormat("MMM d, yyyy h:mm:ss aaa")); // "Jan 15, 2013 10:16:20 AM"
     }
 
-    private String boardCode;
-    private boolean boardCatalog;
-    private int pageNo;
-    private boolean priority;
-    private long secondaryThreadNo = 0;
-    private ChanBoard board;
-
     public static void startService(Context context, String boardCode, int pageNo, boolean priority, long secondaryThreadNo) {
     	if (ChanBoard.isVirtualBoard(boardCode)) {
     		return;
@@ -117,24 +112,63 @@ public class BoardParserService extends BaseChanService implements ChanIdentifie
         return MAPPER;
     }
 
+    /**
+     * Creates a parser over api json with the lenient features of configureJsonParser() set.
+     */
+    public static JsonParser createJsonParser(InputStream in) throws IOException {
+        JsonParser jp = MAPPER.getJsonFactory().createJsonParser(in);
+        configureJsonParser(jp);
+        return jp;
+    }
+
+    public static JsonParser createJsonParser(File in) throws IOException {
+        return createJsonParser(new BufferedInputStream(new FileInputStream(in)));
+    }
+
+    @Override
+    protected String getParseKey(Intent intent) {
+        return intent.getStringExtra(ChanBoard.BOARD_CODE);
+    }
+
     @Override
 	protected void onHandleIntent(Intent intent) {
-		boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
-		boardCatalog = intent.getIntExtra(ChanBoard.BOARD_CATALOG, 0) == 1;
-		pageNo = intent.getIntExtra(ChanBoard.PAGE, 0);
-        priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0;
-		secondaryThreadNo = intent.getLongExtra(FetchChanDataService.SECONDARY_THREAD_NO, 0);
+		String boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
+		boolean boardCatalog = intent.getIntExtra(ChanBoard.BOARD_CATALOG, 0) == 1;
+		int pageNo = intent.getIntExtra(ChanBoard.PAGE, 0);
+        boolean priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0;
+		long secondaryThreadNo = intent.getLongExtra(FetchChanDataService.SECONDARY_THREAD_NO, 0);
         if (DEBUG) Log.i(TAG, "Handling board=" + boardCode + " priority=" + priority);
 
+        // intents are handled in parallel, each one reports with its own id
+        final ChanActivityId activityId = new ChanActivityId(boardCode, pageNo, priority);
+        if (secondaryThreadNo > 0)
+            activityId.secondaryThreadNo = secondaryThreadNo;
+        final Context applicationContext = getApplicationContext();
+        final ChanIdentifiedService service = new ChanIdentifiedService() {
+            @Override
+            public ChanActivityId getChanActivityId() {
+                return activityId;
+            }
+            @Override
+            public Context getApplicationContext() {
+                return applicationContext;
+            }
+            @Override
+            public String toString() {
+                return "BoardParserService: " + activityId;
+            }
+        };
+
         long startTime = Calendar.getInstance().getTimeInMillis();
 		try {
             Context context = getBaseContext();
 
             File boardFile = ChanFileStorage.getBoardFile(context, boardCode, pageNo);
+            ChanBoard board;
             if (boardCatalog) {
-            	parseBoardCatalog(boardFile);
+            	board = parseBoardCatalog(boardFile, boardCode, pageNo);
             } else {
-            	parseBoard(boardFile);
+            	board = parseBoard(boardFile, boardCode, pageNo);
             }
             if (board != null)
                 board.lastFetched = Calendar.getInstance().getTimeInMillis();
@@ -157,17 +191,17 @@ public class BoardParserService extends BaseChanService implements ChanIdentifie
 	            	BoardThreadsParserService.startService(getBaseContext(), boardCode, pageNo);
 	            }
             }
-            NetworkProfileManager.instance().finishedParsingData(this);
+            NetworkProfileManager.instance().finishedParsingData(service);
         } catch (Exception e) {
-        	NetworkProfileManager.instance().failedParsingData(this, Failure.WRONG_DATA);
+        	NetworkProfileManager.instance().failedParsingData(service, Failure.WRONG_DATA);
             Log.e(TAG, "IO Error reading Chan board json", e);
 		}
 	}
 
-    private void parseBoard(File in) throws IOException {
+    private ChanBoard parseBoard(File in, String boardCode, int pageNo) throws IOException {
 //    	List<ChanPost> stickyPosts = new ArrayList<ChanPost>();
     	List<ChanPost> threads = new ArrayList<ChanPost>();
-    	board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
+    	ChanBoard board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
     	if (board.defData) {
     		// default board we should not use it
     		board = ChanBoard.getBoardByCode(getBaseContext(), boardCode);
@@ -192,29 +226,35 @@ public class BoardParserService extends BaseChanService implements ChanIdentifie
             }
         }
 
-        ObjectMapper mapper = getJsonMapper();
-        JsonNode rootNode = mapper.readValue(in, JsonNode.class);
-        for (JsonNode threadValue : rootNode.path("threads")) { // iterate over threads
-            JsonNode postValue = threadValue.path("posts").get(0); // first object is the thread post
-            try {
-                ChanPost post = mapper.readValue(postValue, ChanPost.class);
-                if (post != null) {
-                    post.board = boardCode;
-                    post.mergeIntoThreadList(threads);
+        Map<Long, ChanPost> threadsByNo = ChanPost.indexThreadList(threads);
+        JsonParser jp = createJsonParser(in);
+        try {
+            if (jp.nextToken() == JsonToken.START_OBJECT && ChanJsonReader.nextField(jp, "threads")
+                    && jp.getCurrentToken() == JsonToken.START_ARRAY) {
+                while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over threads
+                    if (!ChanJsonReader.nextField(jp, "posts"))
+                        continue;
+                    ChanPost post = ChanJsonReader.readFirstPost(jp, boardCode); // first object is the thread post
+                    ChanJsonReader.skipRestOfObject(jp);
+                    if (post != null) {
+                        post.board = boardCode;
+                        post.mergeIntoThreadList(threads, threadsByNo);
+                    }
                 }
             }
-            catch (JsonMappingException e) { // if we have just one error, try and recover
-                Log.e(TAG, "Couldn't parseBoard deserialize postValue for board=" + boardCode, e);
-            }
+        }
+        finally {
+            jp.close();
         }
 
         board.threads = threads.toArray(new ChanThread[threads.size()]);
         if (DEBUG) Log.i(TAG, "Now have " + threads.size() + " threads ");
+        return board;
     }
 
-    private void parseBoardCatalog(File in) throws IOException {
+    private ChanBoard parseBoardCatalog(File in, String boardCode, int pageNo) throws IOException {
     	List<ChanThread> threads = new ArrayList<ChanThread>();
-    	board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
+    	ChanBoard board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
     	boolean firstLoad = false;
     	if (board != null && board.defData) {
     		// default board we should not use it
@@ -223,29 +263,22 @@ public class BoardParserService extends BaseChanService implements ChanIdentifie
     	}
 
     	try {
-	        ObjectMapper mapper = getJsonMapper();
-	        JsonParser jp = new MappingJsonFactory().createJsonParser(in);
-	    	configureJsonParser(jp);
-	    	JsonToken current = jp.nextToken(); // will return JsonToken.START_ARRAY
-	    	while (jp.nextToken() != JsonToken.END_ARRAY) {
-        		current = jp.nextToken(); // should be JsonToken.START_OBJECT
-        		JsonNode pageNode = jp.readValueAsTree();
-    	        for (JsonNode threadValue : pageNode.path("threads")) { // iterate over threads
-    	            try {
-                        ChanThread thread = mapper.readValue(threadValue, ChanThread.class);
+	        JsonParser jp = createJsonParser(in);
+	    	jp.nextToken(); // will return JsonToken.START_ARRAY
+	    	while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over pages
+                if (!ChanJsonReader.nextField(jp, "threads"))
+                    continue;
+                if (jp.getCurrentToken() == JsonToken.START_ARRAY) {
+                    while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over threads
+                        ChanThread thread = ChanJsonReader.readThread(jp, boardCode);
+                        thread.board = boardCode;
+                        threads.add(thread);
                         if (DEBUG) Log.i(TAG, "thread sub=" + thread.sub + " thumb=" + thread.tn_w + "x" + thread.tn_h
-                                + " full=" + thread.w + "x" + thread.h + " com=" + thread.com);
-                        if (thread != null) {
-                            thread.board = boardCode;
-                            threads.add(thread);
-                            if (DEBUG) Log.i(TAG, "thread lastReplies=" + thread.lastReplies
-                                    + " len=" + (thread.lastReplies == null ? 0 : thread.lastReplies.length));
-                        }
-                    }
-                    catch (JsonMappingException e) { // if we have just one error, try and recover
-                        Log.e(TAG, "Couldn't parseBoardCatalog deserialize threadValue for board=" + boardCode);
+                                + " full=" + thread.w + "x" + thread.h + " com=" + thread.com
+                                + " lastReplies=" + thread.lastReplies.length);
                     }
-    	        }
+                }
+                ChanJsonReader.skipRestOfObject(jp);
 	    	}
 	    	jp.close();
 		} catch (Exception e) {
@@ -259,11 +292,12 @@ public class BoardParserService extends BaseChanService implements ChanIdentifie
 			}
 		}
 
-        updateBoardData(threads, firstLoad);
+        updateBoardData(board, threads, firstLoad);
         if (DEBUG) Log.i(TAG, "Now have " + threads.size() + " threads ");
+        return board;
     }
 
-	private void updateBoardData(List<ChanThread> threads, boolean firstLoad) {
+	private void updateBoardData(ChanBoard board, List<ChanThread> threads, boolean firstLoad) {
 		if (board == null)
             return;
 
@@ -333,17 +367,5 @@ public class BoardParserService extends BaseChanService implements ChanIdentifie
 		}
 	}
     */
-	@Override
-	public ChanActivityId getChanActivityId() {
-		ChanActivityId id = new ChanActivityId(boardCode, pageNo, priority);
-        if (secondaryThreadNo > 0)
-            id.secondaryThreadNo = secondaryThreadNo;
-        return id;
-	}
-
-    @Override
-    public String toString() {
-        return "BoardParserService: " + getChanActivityId();
-    }
 
 }
@@ -3,29 +3,25 @@
  */
 package com.chanapps.four.service;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.MappingJsonFactory;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
-import com.chanapps.four.activity.ChanActivityId;
-import com.chanapps.four.activity.ChanIdentifiedService;
 import com.chanapps.four.data.ChanBoard;
 import com.chanapps.four.data.ChanFileStorage;
+import com.chanapps.four.data.ChanJsonReader;
 import com.chanapps.four.data.ChanPost;
 import com.chanapps.four.data.ChanThread;
 
@@ -33,16 +29,10 @@ import com.chanapps.four.data.ChanThread;
  * @author "Grzegorz Nittner" <grzegorz.nittner@gmail.com>
  *
  */
-public class BoardThreadsParserService extends BaseChanService implements ChanIdentifiedService {
+public class BoardThreadsParserService extends BaseChanService {
     protected static final String TAG = "BoardThreadsParserService";
     private static final boolean DEBUG = false;
 	
-    private String boardCode;
-    private boolean boardCatalog;
-    private int pageNo;
-    private boolean priority;
-    private ChanBoard board;
-
     public static void startService(Context context, String boardCode, int pageNo) {
         if (DEBUG) Log.i(TAG, "Start board load service for board=" + boardCode + " page=" + pageNo + " priority=" + false );
         Intent intent = new Intent(context, BoardThreadsParserService.class);
@@ -69,19 +59,23 @@ public class BoardThreadsParserService extends BaseChanService implements ChanId
    		super(name);
    	}
 	
+    @Override
+    protected String getParseKey(Intent intent) {
+        return intent.getStringExtra(ChanBoard.BOARD_CODE);
+    }
+
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
-		boardCatalog = intent.getIntExtra(ChanBoard.BOARD_CATALOG, 0) == 1;
-		pageNo = boardCatalog ? -1 : intent.getIntExtra(ChanBoard.PAGE, 0);
-        priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0;
+		String boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
+		boolean boardCatalog = intent.getIntExtra(ChanBoard.BOARD_CATALOG, 0) == 1;
+		int pageNo = boardCatalog ? -1 : intent.getIntExtra(ChanBoard.PAGE, 0);
 		if (DEBUG) Log.i(TAG, "Handling board=" + boardCode + " page=" + pageNo);
 
         long startTime = Calendar.getInstance().getTimeInMillis();
 		try {
             Context context = getBaseContext();
 
-        	board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
+        	ChanBoard board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
         	if (board.defData) {
         		// at this point valid board object should be available
         		return;
@@ -90,9 +84,9 @@ public class BoardThreadsParserService extends BaseChanService implements ChanId
             File boardFile = ChanFileStorage.getBoardFile(context, boardCode, pageNo);
             if (boardCatalog) {
             	// there's no point in parsing catalog for threads
-            	parseBoardCatalog(new BufferedReader(new FileReader(boardFile)));
+            	parseBoardCatalog(boardFile, board, boardCode);
             } else {
-            	parseBoard(new BufferedReader(new FileReader(boardFile)));
+            	parseBoard(boardFile, board, boardCode);
             }
             boardFile.delete();
 
@@ -104,107 +98,115 @@ public class BoardThreadsParserService extends BaseChanService implements ChanId
 		}
 	}
 
-    private void parseBoard(BufferedReader in) throws IOException {
+    private void parseBoard(File in, ChanBoard board, String boardCode) throws IOException {
     	List<ChanPost> threads = new ArrayList<ChanPost>();
+        Map<Long, ChanPost> threadsByNo = new HashMap<Long, ChanPost>();
+        Map<Long, List<ChanPost>> pagePosts = new LinkedHashMap<Long, List<ChanPost>>();
+
+        JsonParser jp = BoardParserService.createJsonParser(in);
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT || !ChanJsonReader.nextField(jp, "threads")
+                    || jp.getCurrentToken() != JsonToken.START_ARRAY)
+                return;
+            while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over threads
+                if (!ChanJsonReader.nextField(jp, "posts"))
+                    continue;
+                List<ChanPost> posts = ChanJsonReader.readPosts(jp, boardCode); // first object is the thread post
+                ChanJsonReader.skipRestOfObject(jp);
+                if (!posts.isEmpty())
+                    pagePosts.put(posts.get(0).no, posts);
+            }
+        }
+        finally {
+            jp.close();
+        }
 
-        ObjectMapper mapper = BoardParserService.getJsonMapper();
-        JsonNode rootNode = mapper.readValue(in, JsonNode.class);
-        for (JsonNode threadValue : rootNode.path("threads")) { // iterate over threads
-            ChanThread thread = null;
-            List<ChanPost> posts = new ArrayList<ChanPost>();
-            boolean first = true;
-            for (JsonNode postValue : threadValue.path("posts")) { // first object is the thread post
-                try {
-                    ChanPost post = mapper.readValue(postValue, ChanPost.class);
-                    if (post != null) {
-                        if (post.board == null || post.board.isEmpty())
-                            post.board = boardCode;
-                        if (first) {
-                            thread = ChanFileStorage.loadThreadData(getBaseContext(), post.board, post.no);
-                            // if thread was not stored create a new object
-                            if (thread == null || thread.defData) {
-                                thread = new ChanThread();
-                                thread.board = post.board;
-                                thread.lastFetched = 0;
-                                thread.no = post.no;
-                                // note we don't set the lastUpdated here because we didn't pull the full thread yet
-                            } else if (board != null && board.lastFetched < thread.lastFetched) {
-                                // do not update thread if was fetched later than board
-                                break;
-                            }
-                            post.mergeIntoThreadList(threads);
-                            first = false;
-                        }
-                        posts.add(post);
-                    }
-                }
-                catch (JsonMappingException e) { // if we have just one error, try and recover
-                    Log.e(TAG, "Couldn't parseBoard threadValue for board=" + boardCode, e);
-                }
-
+        // which threads are stored and when they were fetched, for the whole page at once
+        Map<Long, Long> storedLastFetched = ChanFileStorage.loadThreadsLastFetched(getBaseContext(), boardCode,
+                pagePosts.keySet());
+        List<ChanThread> upserts = new ArrayList<ChanThread>(pagePosts.size());
+        for (List<ChanPost> posts : pagePosts.values()) {
+            ChanPost post = posts.get(0);
+            Long lastFetched = storedLastFetched.get(post.no);
+            if (lastFetched != null && board != null && board.lastFetched < lastFetched) {
+                // do not update thread if was fetched later than board
+                continue;
             }
-            if (thread != null) {
-                thread.mergePosts(posts);
-                if (DEBUG) Log.i(TAG, "After parseBoard calling storeThreadData for /" + thread.board + "/" + thread.no);
-                ChanFileStorage.storeThreadData(getBaseContext(), thread);
+            ChanThread thread = lastFetched == null
+                    ? null
+                    : ChanFileStorage.loadThreadData(getBaseContext(), post.board, post.no);
+            // if thread was not stored create a new object
+            if (thread == null || thread.defData) {
+                thread = new ChanThread();
+                thread.board = post.board;
+                thread.lastFetched = 0;
+                thread.no = post.no;
+                copyBoardFields(thread, post);
+                // note we don't set the lastUpdated here because we didn't pull the full thread yet
             }
+            else if (thread.loadedFromBoard) { // made from an older board page, keep it but take the newer fields
+                copyBoardFields(thread, post);
+            }
+            post.mergeIntoThreadList(threads, threadsByNo);
+            thread.mergePosts(posts);
+            upserts.add(thread);
         }
-        if (DEBUG) Log.i(TAG, "Stored " + threads.size() + " threads for board " + boardCode);
+        int stored = ChanFileStorage.storeThreadsData(getBaseContext(), boardCode, upserts);
+        if (DEBUG) Log.i(TAG, "Stored " + stored + " of " + upserts.size() + " threads for board " + boardCode
+                + ", " + storedLastFetched.size() + " were stored before");
+    }
+
+    /**
+     * Copies what a board page tells about a thread onto a thread not loaded from the store, the rest comes with the
+     * full thread.
+     */
+    private static void copyBoardFields(ChanThread thread, ChanPost post) {
+        thread.copyUpdatedInfoFields(post); // replies, images, closed, dead and limits
+        thread.sticky = post.sticky;
+        thread.tim = post.tim;
+        thread.ext = post.ext;
+        thread.tn_w = post.tn_w;
+        thread.tn_h = post.tn_h;
     }
 
-    private void parseBoardCatalog(BufferedReader in) throws IOException {
-    	int updatedThreads = 0;
+    private void parseBoardCatalog(File in, ChanBoard board, String boardCode) throws IOException {
+        Map<Long, ChanPost> catalogPosts = new LinkedHashMap<Long, ChanPost>();
     	try {
-	        ObjectMapper mapper = BoardParserService.getJsonMapper();
-	        JsonParser jp = new MappingJsonFactory().createJsonParser(in);
-	    	BoardParserService.configureJsonParser(jp);
+	        JsonParser jp = BoardParserService.createJsonParser(in);
 	    	jp.nextToken(); // will return JsonToken.START_ARRAY
-	    	while (jp.nextToken() != JsonToken.END_ARRAY) {
-        		jp.nextToken(); // should be JsonToken.START_OBJECT
-        		JsonNode pageNode = jp.readValueAsTree();
-    	        for (JsonNode threadValue : pageNode.path("threads")) { // iterate over threads
-                    try {
-                        ChanPost post = mapper.readValue(threadValue, ChanPost.class);
-                        if (post != null) {
-                            if (post.board == null || post.board.isEmpty())
-                                post.board = boardCode;
-                            ChanThread thread = ChanFileStorage.loadThreadData(getBaseContext(), post.board, post.no);
-                            if (thread == null || thread.defData) {
-                                thread = new ChanThread();
-                                if (thread != null) {
-                                    thread.board = post.board;
-                                    thread.lastFetched = 0;
-                                    thread.no = post.no;
-                                    thread.posts = new ChanPost[]{post};
-                                    if (DEBUG) Log.i(TAG, "After parseBoardCatalog calling storeThreadData for /" + thread.board + "/" + thread.no);
-                                    ChanFileStorage.storeThreadData(getBaseContext(), thread);
-                                    updatedThreads++;
-                                }
-                            }
-                        }
-                    }
-                    catch (JsonMappingException e) { // if we have just one error, try and recover
-                        Log.e(TAG, "Couldn't parseBoardCatalog threadValue for board=" + boardCode, e);
+	    	while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over pages
+                if (!ChanJsonReader.nextField(jp, "threads"))
+                    continue;
+                if (jp.getCurrentToken() == JsonToken.START_ARRAY) {
+                    while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over threads
+                        ChanPost post = ChanJsonReader.readPost(jp, boardCode);
+                        catalogPosts.put(post.no, post);
                     }
                 }
+                ChanJsonReader.skipRestOfObject(jp);
 	    	}
 	    	jp.close();
 		} catch (Exception e) {
 			// we don't care about parse exceptions here
 			// error is thrown at the BoardParserService level
 		}
-    	
-        if (DEBUG) Log.i(TAG, "Updated " + updatedThreads + " threads for board " + boardCode);
-    }
-
-    @Override
-	public ChanActivityId getChanActivityId() {
-		return new ChanActivityId(boardCode, pageNo, priority);
-	}
-
-    @Override
-    public String toString() {
-        return "BoardThreadsParserService : " + getChanActivityId();
+        // only threads neither stored nor on the board yet are added, the index tells which without loading any
+        Map<Long, Long> storedLastFetched = ChanFileStorage.loadThreadsLastFetched(getBaseContext(), boardCode,
+                catalogPosts.keySet());
+        List<ChanThread> upserts = new ArrayList<ChanThread>();
+        for (ChanPost post : catalogPosts.values()) {
+            if (storedLastFetched.containsKey(post.no) || board.hasThread(boardCode, post.no))
+                continue;
+            ChanThread thread = new ChanThread();
+            thread.board = post.board;
+            thread.lastFetched = 0;
+            thread.no = post.no;
+            thread.posts = new ChanPost[]{post};
+            copyBoardFields(thread, post);
+            upserts.add(thread);
+        }
+        int updatedThreads = ChanFileStorage.storeThreadsData(getBaseContext(), boardCode, upserts);
+        if (DEBUG) Log.i(TAG, "Updated " + updatedThreads + " of " + upserts.size() + " threads for board " + boardCode);
     }
 
 }
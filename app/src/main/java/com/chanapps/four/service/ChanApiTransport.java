@@ -0,0 +1,342 @@
+package com.chanapps.four.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chanapps.four.data.FetchParams;
+
+/**
+ * Shared HTTP transport for the JSON api.
+ *
+ * Connections go back to the platform keep-alive pool: a response is read to the end and closed instead of
+ * disconnected, so the next fetch from the same host reuses the socket and skips the TCP and TLS handshakes.
+ * Requests ask for gzip themselves and decode it here, so both the wire and the decoded size are known.
+ * The ETag and Last-Modified of every response a caller has handled are remembered per url, persisted in the
+ * cache folder, and sent back on conditional requests.  A 304 has no body and callers return before parsing.
+ */
+public class ChanApiTransport {
+
+    private static final String TAG = ChanApiTransport.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int HTTP_NOT_MODIFIED = HttpURLConnection.HTTP_NOT_MODIFIED;
+
+    private static final int MAX_KEEP_ALIVE_CONNECTIONS = 6;
+    private static final int MAX_DRAIN_BYTES = 64 * 1024; // anything bigger is cheaper to drop than to read
+    private static final int MAX_VALIDATORS = 512;
+    private static final long SAVE_DELAY_MS = 5000;
+    private static final String VALIDATORS_FILE = "http_validators.dat";
+    private static final int VALIDATORS_VERSION = 1;
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_KEEP_ALIVE_CONNECTIONS));
+    }
+
+    // url to {etag, last modified}, least recently used first
+    @SuppressWarnings("serial")
+    private static final Map<String, String[]> validators = new LinkedHashMap<String, String[]>(16, .75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > MAX_VALIDATORS;
+        }
+    };
+    private static File validatorsFile;
+    private static boolean saveScheduled = false;
+
+    private static final ScheduledThreadPoolExecutor saver = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ChanApiValidators");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * A response whose body, if any, is the decoded content.  Always close() it, in a finally block.
+     */
+    public static class Response {
+        public final String url;
+        public final int code;
+        public final String contentType;
+
+        private final HttpURLConnection connection;
+        private final long startTime;
+        private final long headersTime;
+        private final String etag;
+        private final String lastModified;
+        private CountingInputStream wire;
+        private CountingInputStream body;
+        private boolean wireClosed = false;
+        private long endTime;
+
+        private Response(String url, HttpURLConnection connection, long startTime) throws IOException {
+            this.url = url;
+            this.connection = connection;
+            this.startTime = startTime;
+            code = connection.getResponseCode();
+            headersTime = System.currentTimeMillis();
+            contentType = connection.getContentType();
+            etag = connection.getHeaderField("ETag");
+            lastModified = connection.getHeaderField("Last-Modified");
+        }
+
+        public boolean isNotModified() {
+            return code == HTTP_NOT_MODIFIED;
+        }
+
+        public boolean isOk() {
+            return code == HttpURLConnection.HTTP_OK;
+        }
+
+        public boolean isJson() {
+            return contentType != null && contentType.contains("json");
+        }
+
+        /**
+         * @return the decoded body, gunzipped if the server compressed it
+         */
+        public InputStream body() throws IOException {
+            if (body == null) {
+                wire = new CountingInputStream(connection.getInputStream()) {
+                    @Override
+                    public void close() throws IOException {
+                        wireClosed = true;
+                        super.close();
+                    }
+                };
+                InputStream in = wire;
+                if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+                    in = new GZIPInputStream(in, 8192);
+                body = new CountingInputStream(in);
+            }
+            return body;
+        }
+
+        /** @return bytes received for the body so far, compressed */
+        public long wireBytes() {
+            return wire == null ? 0 : wire.getByteCount();
+        }
+
+        /** @return bytes of the decoded body read so far */
+        public long bodyBytes() {
+            return body == null ? 0 : body.getByteCount();
+        }
+
+        /** @return ms until the response headers arrived, connecting included */
+        public long headersMs() {
+            return headersTime - startTime;
+        }
+
+        /** @return ms from the request to the close of the response, or until now while it is open */
+        public long elapsedMs() {
+            return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+        }
+
+        /**
+         * Remembers the validators of this response for the next conditional request, call once the body is
+         * stored so a failed store doesn't leave the url looking up to date.
+         */
+        public void saveValidators() {
+            if (isOk())
+                putValidators(url, etag, lastModified);
+        }
+
+        /**
+         * Reads what is left of a short body so the connection can be reused, a long one drops the connection.
+         */
+        public void close() {
+            if (endTime > 0)
+                return;
+            boolean reusable = false;
+            InputStream in = null;
+            try {
+                if (wireClosed) { // closed by the reader, the platform has kept or dropped the socket already
+                    reusable = true;
+                }
+                else {
+                    // drain the raw stream, a 304 or an error without a body has nothing to drain
+                    in = wire != null ? wire : (isOk() ? connection.getInputStream() : connection.getErrorStream());
+                    byte[] buf = new byte[4096];
+                    int drained = 0;
+                    int n = 0;
+                    while (in != null && drained < MAX_DRAIN_BYTES && (n = in.read(buf)) >= 0)
+                        drained += n;
+                    reusable = in == null || n < 0;
+                }
+            }
+            catch (IOException e) {
+                if (DEBUG) Log.i(TAG, "Couldn't drain response of " + url, e);
+            }
+            finally {
+                IOUtils.closeQuietly(in);
+                if (!reusable)
+                    connection.disconnect();
+                endTime = System.currentTimeMillis();
+            }
+            if (DEBUG) Log.i(TAG, "GET " + url + " code=" + code + " wire=" + wireBytes() + " body=" + bodyBytes()
+                    + " headers=" + headersMs() + "ms total=" + elapsedMs() + "ms reusable=" + reusable);
+            if (reusable && (isOk() || isNotModified())) // a cut transfer would understate the connection
+                NetworkProfileManager.instance().measuredTransfer((int)elapsedMs(), (int)wireBytes(), (int)headersMs());
+        }
+    }
+
+    /**
+     * Sends a GET for the url.  A conditional request carries the stored ETag and Last-Modified of the url, or
+     * ifModifiedSince when the url has none.
+     */
+    public static Response get(Context context, String url, FetchParams fetchParams, boolean conditional,
+                               long ifModifiedSince) throws IOException {
+        return get(context.getApplicationContext().getCacheDir(), url, fetchParams, conditional, ifModifiedSince);
+    }
+
+    /**
+     * As {@link #get(Context, String, FetchParams, boolean, long)}, with the validators persisted in cacheDir.
+     */
+    static Response get(File cacheDir, String url, FetchParams fetchParams, boolean conditional,
+                        long ifModifiedSince) throws IOException {
+        loadValidators(cacheDir);
+        long startTime = System.currentTimeMillis();
+        HttpURLConnection tc = (HttpURLConnection) new URL(url).openConnection();
+        tc.setReadTimeout(fetchParams.readTimeout);
+        tc.setConnectTimeout(fetchParams.connectTimeout);
+        tc.setRequestProperty("Accept-Encoding", "gzip");
+        if (conditional) {
+            String[] v;
+            synchronized (validators) {
+                v = validators.get(url);
+            }
+            if (v != null && v[0] != null)
+                tc.setRequestProperty("If-None-Match", v[0]);
+            if (v != null && v[1] != null)
+                tc.setRequestProperty("If-Modified-Since", v[1]);
+            else if (ifModifiedSince > 0)
+                tc.setIfModifiedSince(ifModifiedSince);
+        }
+        try {
+            return new Response(url, tc, startTime);
+        }
+        catch (IOException e) {
+            tc.disconnect();
+            throw e;
+        }
+    }
+
+    private static void putValidators(String url, String etag, String lastModified) {
+        if (etag == null && lastModified == null)
+            return;
+        synchronized (validators) {
+            validators.put(url, new String[]{ etag, lastModified });
+            if (validatorsFile == null || saveScheduled)
+                return;
+            saveScheduled = true;
+        }
+        saver.schedule(new Runnable() {
+            @Override
+            public void run() {
+                saveValidators();
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void loadValidators(File cacheDir) {
+        synchronized (validators) {
+            if (validatorsFile != null)
+                return;
+            validatorsFile = new File(cacheDir, VALIDATORS_FILE);
+            if (!validatorsFile.exists())
+                return;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(validatorsFile));
+                if (in.readInt() != VALIDATORS_VERSION)
+                    return;
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String url = in.readUTF();
+                    String etag = in.readUTF();
+                    String lastModified = in.readUTF();
+                    validators.put(url, new String[]{ etag.isEmpty() ? null : etag,
+                            lastModified.isEmpty() ? null : lastModified });
+                }
+                if (DEBUG) Log.i(TAG, "Loaded " + validators.size() + " validators");
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Couldn't read validators, starting without", e);
+                validators.clear();
+            }
+            finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    static void saveValidators() {
+        File file;
+        List<Map.Entry<String, String[]>> entries;
+        synchronized (validators) {
+            saveScheduled = false;
+            file = validatorsFile;
+            if (file == null)
+                return;
+            entries = new ArrayList<Map.Entry<String, String[]>>(validators.entrySet());
+        }
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeInt(VALIDATORS_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, String[]> e : entries) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue()[0] == null ? "" : e.getValue()[0]);
+                out.writeUTF(e.getValue()[1] == null ? "" : e.getValue()[1]);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Couldn't rename " + tmpFile + " to " + file);
+            if (DEBUG) Log.i(TAG, "Saved " + entries.size() + " validators");
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Couldn't save validators", e);
+            tmpFile.delete();
+        }
+        finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Drops the validators held in memory, the next request reads them back from the file as after a restart.
+     */
+    static void forgetValidators() {
+        synchronized (validators) {
+            validators.clear();
+            validatorsFile = null;
+        }
+    }
+
+}
@@ -42,9 +42,11 @@ public class CleanUpService extends BaseChanService {
 
     private static final String NOMEDIA_FILE_PATTERN = ".*/\\.nomedia";
     private static final Pattern nomediaFilePattern = Pattern.compile(NOMEDIA_FILE_PATTERN);
-    private static final String BOARD_FILE_PATTERN_FORMAT = ".*/%s(_catalog)?\\.txt";
-    private static final String THREAD_FILE_PATTERN = ".*/t_([0-9]*)\\.txt";
+    private static final String BOARD_FILE_PATTERN_FORMAT = ".*/%s(_catalog)?\\.(txt|dat)";
+    private static final String THREAD_FILE_PATTERN = ".*/t_([0-9]*)\\.(txt|dat)";
     private static final Pattern threadFilePattern = Pattern.compile(THREAD_FILE_PATTERN);
+    private static final String THREAD_STORE_FILE_PATTERN = ".*/(threads\\.idx|threads_[0-9]+\\.seg)";
+    private static final Pattern threadStoreFilePattern = Pattern.compile(THREAD_STORE_FILE_PATTERN);
 
     private File cacheFolder = null;
     private List<FileDesc> otherFiles = null;
@@ -421,6 +423,8 @@ public class CleanUpService extends BaseChanService {
                         continue;
                     if (isRootBoardFile(d, boardFilePattern))
                         continue;
+                    if (isThreadStoreFile(d))
+                        continue;
                     if (isWatchedThreadFile(d, watchedBoardThreadNos))
                         continue;
                     boardFiles.add(d);
@@ -431,9 +435,19 @@ public class CleanUpService extends BaseChanService {
             }
 
             deleteByType(boardFiles, olderThanMsOrMaxKeepSizeBytes, deleteType);
+            evictStoredThreads(board, olderThanMsOrMaxKeepSizeBytes, deleteType, watchedBoardThreadNos);
         }
     }
 
+    private void evictStoredThreads(String board, long olderThanMs, DeleteType deleteType, Set<Long> watchedBoardThreadNos) {
+        if (totalSize < targetCacheSize || deleteType == DeleteType.BY_SIZE)
+            return;
+        Set<Long> keep = deleteType == DeleteType.BY_DATE_INCL_WATCHED ? null : watchedBoardThreadNos;
+        long freed = ChanFileStorage.evictThreads(getBaseContext(), board, new Date().getTime() - olderThanMs, keep);
+        totalSize -= freed;
+        if (DEBUG) Log.i(TAG, "Evicted stored threads of /" + board + "/ freeing " + (freed / 1024) + "KB");
+    }
+
     private void deleteByType(List<FileDesc> inFiles, long olderThanMsOrMaxKeepSizeBytes, DeleteType deleteType) {
         List<FileDesc> files;
         if (deleteType == DeleteType.BY_DATE_INCL_WATCHED) {
@@ -494,6 +508,10 @@ public class CleanUpService extends BaseChanService {
         return boardFilePattern.matcher(d.path).matches();
     }
 
+    private boolean isThreadStoreFile(FileDesc d) {
+        return threadStoreFilePattern.matcher(d.path).matches();
+    }
+
     private boolean isWatchedThreadFile(FileDesc d, Set<Long> threadNos) {
         if (threadNos == null || threadNos.size() == 0)
             return false;
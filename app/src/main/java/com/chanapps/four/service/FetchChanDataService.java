@@ -6,11 +6,19 @@ package com.chanapps.four.service;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.content.Intent;
@@ -25,8 +33,9 @@ import com.chanapps.four.component.ActivityDispatcher;
 import com.chanapps.four.component.URLFormatComponent;
 import com.chanapps.four.data.ChanBoard;
 import com.chanapps.four.data.ChanFileStorage;
+import com.chanapps.four.data.ChanPost;
+import com.chanapps.four.data.ChanRefreshPlanner;
 import com.chanapps.four.data.ChanThread;
-import com.chanapps.four.data.FetchParams;
 import com.chanapps.four.service.profile.NetworkProfile;
 import com.chanapps.four.service.profile.NetworkProfile.Failure;
 
@@ -34,23 +43,28 @@ import com.chanapps.four.service.profile.NetworkProfile.Failure;
  * @author "Grzegorz Nittner" <grzegorz.nittner@gmail.com>
  *
  */
-public class FetchChanDataService extends BaseChanService implements ChanIdentifiedService {
+public class FetchChanDataService extends BaseChanService {
 	private static final String TAG = FetchChanDataService.class.getSimpleName();
 	private static final boolean DEBUG = false;
+    // keep the raw thread json in t_<no>f.txt and parse it in ThreadParserService, useful for inspecting api responses
+    private static final boolean DEBUG_STAGE_THREAD_FILE = false;
 
     public static final String SECONDARY_THREAD_NO = "secondaryThreadNo";
+    // set for the periodic update of the open thread, which may use the tail and a conditional request
+    public static final String AUTO_REFRESH = "autoRefresh";
 
-    private String boardCode;
-    private boolean boardCatalog;
-    private int pageNo;
-    private long threadNo;
-    private long secondaryThreadNo;
-    private boolean boardHandling = true;
-    private boolean priority;
-    private boolean backgroundLoad;
-    
-    private ChanBoard board;
-    private ChanThread thread;
+    // automatic refreshes of threads this big fetch only the tail, the thread post and the last replies
+    private static final int MIN_POSTS_FOR_TAIL_REFRESH = 100;
+
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ChanFetch-" + count.incrementAndGet());
+        }
+    });
+
+    private int lastStartId = 0;
 
     public static boolean scheduleBoardFetch(Context context, String boardCode, boolean priority, boolean backgroundLoad) {
         return scheduleBoardFetch(context, boardCode, priority, backgroundLoad, 0);
@@ -89,6 +103,15 @@ public class FetchChanDataService extends BaseChanService implements ChanIdentif
     }
 
     public static boolean scheduleThreadFetch(Context context, String boardCode, long threadNo, boolean priority, boolean backgroundLoad) {
+        return scheduleThreadFetch(context, boardCode, threadNo, priority, backgroundLoad, false);
+    }
+
+    /**
+     * @param autoRefresh a periodic update rather than one the user asked for, a priority fetch then still
+     *                    refreshes big threads from their tail and revalidates instead of fetching everything
+     */
+    public static boolean scheduleThreadFetch(Context context, String boardCode, long threadNo, boolean priority,
+                                              boolean backgroundLoad, boolean autoRefresh) {
     	if (!ChanThread.threadNeedsRefresh(context, boardCode, threadNo, priority)) {
             if (DEBUG) Log.i(TAG, "skipping refresh, thread doesn't need it for /" + boardCode + "/" + threadNo);
         	return false;
@@ -111,6 +134,9 @@ public class FetchChanDataService extends BaseChanService implements ChanIdentif
         if (backgroundLoad) {
             intent.putExtra(BACKGROUND_LOAD, true);
         }
+        if (autoRefresh) {
+            intent.putExtra(AUTO_REFRESH, true);
+        }
         context.startService(intent);
 
         //optionallyDownloadAllImages(context, boardCode, threadNo); // really slow on large image threads
@@ -150,274 +176,510 @@ public class FetchChanDataService extends BaseChanService implements ChanIdentif
    		super(name);
    	}
     
-	@Override
-	protected void onHandleIntent(Intent intent) {
-        backgroundLoad = intent.getBooleanExtra(BACKGROUND_LOAD, false);
-		if (!isChanForegroundActivity() && !backgroundLoad) {
-            if (DEBUG)
-                Log.i(TAG, "Not foreground activity, exiting");
-			return;
-		}
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        FetchScheduler scheduler = FetchScheduler.instance();
+        ChanActivityId screen = NetworkProfileManager.instance().getActivityId();
+        synchronized (this) {
+            lastStartId = startId;
+            if (intent != null && intent.getIntExtra(CLEAR_FETCH_QUEUE, 0) == 1) {
+                int cancelled = scheduler.cancelStale(screen);
+                if (DEBUG) Log.i(TAG, "Cancelled " + cancelled + " fetches not needed by " + screen);
+            }
+            else if (intent != null) {
+                String boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
+                long threadNo = intent.getLongExtra(ChanThread.THREAD_NO, 0);
+                int pageNo = intent.getIntExtra(ChanBoard.BOARD_CATALOG, 0) == 1 ? -1 : intent.getIntExtra(ChanBoard.PAGE, 0);
+                FetchScheduler.FetchClass fetchClass;
+                if (intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0)
+                    fetchClass = FetchScheduler.FetchClass.FOREGROUND;
+                else if (intent.getBooleanExtra(BACKGROUND_LOAD, false))
+                    fetchClass = FetchScheduler.FetchClass.BACKGROUND;
+                else
+                    fetchClass = FetchScheduler.FetchClass.PREFETCH;
+                scheduler.submit(FetchScheduler.requestKey(boardCode, threadNo, pageNo), FetchScheduler.API_HOST,
+                        boardCode, fetchClass, screen, intent);
+            }
+        }
+        dispatch();
+        return START_NOT_STICKY;
+    }
 
-        NetworkProfileManager.NetworkBroadcastReceiver.checkNetwork(this.getBaseContext());
-        NetworkProfile profile = NetworkProfileManager.instance().getCurrentProfile();
-        if (profile.getConnectionType() == NetworkProfile.Type.NO_CONNECTION
-                || profile.getConnectionHealth() == NetworkProfile.Health.NO_CONNECTION) {
-            if (DEBUG) Log.i(TAG, "No network connection, exiting");
-            profile.onDataFetchFailure(this, Failure.NETWORK);
-            return;
+    /**
+     * Starts as many queued fetches as the scheduler allows and stops the service once nothing is left.
+     */
+    private void dispatch() {
+        FetchScheduler scheduler = FetchScheduler.instance();
+        FetchScheduler.Request request;
+        while ((request = scheduler.next(NetworkProfileManager.instance().getActivityId())) != null) {
+            final FetchScheduler.Request fetch = request;
+            if (DEBUG) Log.i(TAG, "Dispatching " + fetch + " " + scheduler);
+            FETCH_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onHandleIntent(fetch.intent);
+                    } finally {
+                        FetchScheduler.instance().finished(fetch);
+                        dispatch();
+                    }
+                }
+            });
+        }
+        synchronized (this) {
+            if (scheduler.isIdle()) {
+                scheduler.reportMetrics(System.currentTimeMillis());
+                stopSelf(lastStartId);
+            }
         }
+    }
 
-		boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
-		boardCatalog = intent.getIntExtra(ChanBoard.BOARD_CATALOG, 0) == 1;
-		pageNo = boardCatalog ? -1 : intent.getIntExtra(ChanBoard.PAGE, 0);
-		threadNo = intent.getLongExtra(ChanThread.THREAD_NO, 0);
-        secondaryThreadNo = intent.getLongExtra(SECONDARY_THREAD_NO, 0);
-		boardHandling = threadNo == 0;
-		priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0;
-
-        if (boardHandling) {
-			if (DEBUG) Log.i(TAG, "Handling board " + boardCode + (boardCatalog ? " catalog" : " page=" + pageNo) + " priority=" + priority);
-			handleBoard();
-		} else {
-			if (DEBUG) Log.i(TAG, "Handling thread " + boardCode + "/" + threadNo + " priority=" + priority);
-			handleThread();
-		}
+	@Override
+	protected void onHandleIntent(Intent intent) {
+        new Fetch().run(intent);
 	}
-	
+
 	private boolean isChanForegroundActivity() {
         return ActivityDispatcher.safeGetIsChanForegroundActivity(this);
 	}
 
-	private void handleBoard() {
-        if (ChanBoard.WATCHLIST_BOARD_CODE.equals(boardCode)) {
-            Log.e(TAG, "Watchlist cannot be fetched from external site, only added and removed within the program");
-            return;
-        }
-        else if (ChanBoard.FAVORITES_BOARD_CODE.equals(boardCode)) {
-            Log.e(TAG, "Favorites cannot be fetched from external site, only added and removed within the program");
-            return;
-        }
+    /**
+     * State of one fetch, fetches of different keys run in parallel.
+     */
+    private class Fetch implements ChanIdentifiedService {
+        private String boardCode;
+        private boolean boardCatalog;
+        private int pageNo;
+        private long threadNo;
+        private long secondaryThreadNo;
+        private boolean boardHandling = true;
+        private boolean priority;
+        private boolean backgroundLoad;
+        private boolean fullRefresh; // asked for by the user, fetch everything unconditionally
 
-        HttpURLConnection tc = null;
-		try {
-			board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
-			if (board != null && board.defData) {
-				board = ChanBoard.getBoardByCode(getBaseContext(), boardCode);
-				board.lastFetched = 0;
-			}
-	        File boardFile = ChanFileStorage.getBoardFile(getBaseContext(), boardCode, pageNo);
-			if (board != null && !board.defData
-                    && boardFile != null && boardFile.exists()
-                    && (new Date().getTime() - boardFile.lastModified() < 10000) ) {
-				if (DEBUG) Log.i(TAG, "Board file exists within last modified time, quiting fetch");
+        private ChanBoard board;
+        private ChanThread thread;
+
+		void run(Intent intent) {
+            backgroundLoad = intent.getBooleanExtra(BACKGROUND_LOAD, false);
+			if (!isChanForegroundActivity() && !backgroundLoad) {
+                if (DEBUG)
+                    Log.i(TAG, "Not foreground activity, exiting");
 				return;
 			}
-		
-            String apiUrl;
-			if (boardCatalog) {
-                apiUrl = String.format(URLFormatComponent.getUrl(getApplicationContext(),
-                        URLFormatComponent.CHAN_CATALOG_API_URL_FORMAT), boardCode);
+
+            NetworkProfileManager.NetworkBroadcastReceiver.checkNetwork(getBaseContext());
+            NetworkProfile profile = NetworkProfileManager.instance().getCurrentProfile();
+            if (profile.getConnectionType() == NetworkProfile.Type.NO_CONNECTION
+                    || profile.getConnectionHealth() == NetworkProfile.Health.NO_CONNECTION) {
+                if (DEBUG) Log.i(TAG, "No network connection, exiting");
+                profile.onDataFetchFailure(this, Failure.NETWORK);
+                return;
+            }
+
+			boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
+			boardCatalog = intent.getIntExtra(ChanBoard.BOARD_CATALOG, 0) == 1;
+			pageNo = boardCatalog ? -1 : intent.getIntExtra(ChanBoard.PAGE, 0);
+			threadNo = intent.getLongExtra(ChanThread.THREAD_NO, 0);
+            secondaryThreadNo = intent.getLongExtra(SECONDARY_THREAD_NO, 0);
+			boardHandling = threadNo == 0;
+			priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0;
+            fullRefresh = priority && !intent.getBooleanExtra(AUTO_REFRESH, false);
+
+            if (boardHandling) {
+				if (DEBUG) Log.i(TAG, "Handling board " + boardCode + (boardCatalog ? " catalog" : " page=" + pageNo) + " priority=" + priority);
+				handleBoard();
 			} else {
-                apiUrl = String.format(URLFormatComponent.getUrl(getApplicationContext(),
-                        URLFormatComponent.CHAN_PAGE_API_URL_FORMAT), boardCode, pageNo);
+				if (DEBUG) Log.i(TAG, "Handling thread " + boardCode + "/" + threadNo + " priority=" + priority);
+				handleThread();
 			}
-			URL chanApi = new URL(apiUrl);
-        	if (DEBUG) Log.i(TAG, "Fetching " + apiUrl + " priority=" + priority);
-			
-    		final long startTime = new Date().getTime();
-            tc = (HttpURLConnection) chanApi.openConnection();
-            FetchParams fetchParams = NetworkProfileManager.instance().getFetchParams();
-            tc.setReadTimeout(fetchParams.readTimeout);
-            tc.setConnectTimeout(fetchParams.connectTimeout);
-            
-            if (board != null && board.lastFetched > 0 && !priority) {
-            	if (DEBUG) Log.i(TAG, "IfModifiedSince set as last fetch happened "
-        				+ ((startTime - board.lastFetched) / 1000) + "s ago");
-                tc.setIfModifiedSince(board.lastFetched);
+		}
+
+		private void handleBoard() {
+            if (ChanBoard.WATCHLIST_BOARD_CODE.equals(boardCode)) {
+                Log.e(TAG, "Watchlist cannot be fetched from external site, only added and removed within the program");
+                return;
             }
-            String contentType = tc.getContentType();
-            if (DEBUG) Log.i(TAG, "handleBoard() Called API " + tc.getURL() + " response length=" + tc.getContentLength()
-            		+ " code=" + tc.getResponseCode() + " type=" + contentType);
-            if (tc.getResponseCode() == 304) {
-            	if (DEBUG) Log.i(TAG, "Got 304 for " + chanApi + " so was not modified since " + board.lastFetched);
-                int fetchTime = (int)(new Date().getTime() - startTime);
-                NetworkProfileManager.instance().finishedFetchingData(this, fetchTime, 0);
+            else if (ChanBoard.FAVORITES_BOARD_CODE.equals(boardCode)) {
+                Log.e(TAG, "Favorites cannot be fetched from external site, only added and removed within the program");
                 return;
             }
 
-            if (pageNo > 0 && tc.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
-                if (DEBUG) Log.i(TAG, "Got 404 on next page, assuming last page at pageNo=" + pageNo);
-                board.lastFetched = new Date().getTime();
-                ChanFileStorage.storeBoardData(getBaseContext(), board);
+            ChanApiTransport.Response response = null;
+			try {
+				board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
+				if (board != null && board.defData) {
+					board = ChanBoard.getBoardByCode(getBaseContext(), boardCode);
+					board.lastFetched = 0;
+				}
+		        File boardFile = ChanFileStorage.getBoardFile(getBaseContext(), boardCode, pageNo);
+				if (board != null && !board.defData
+                        && boardFile != null && boardFile.exists()
+                        && (new Date().getTime() - boardFile.lastModified() < 10000) ) {
+					if (DEBUG) Log.i(TAG, "Board file exists within last modified time, quiting fetch");
+					return;
+				}
+		
+                String apiUrl;
+				if (boardCatalog) {
+                    apiUrl = String.format(URLFormatComponent.getUrl(getApplicationContext(),
+                            URLFormatComponent.CHAN_CATALOG_API_URL_FORMAT), boardCode);
+				} else {
+                    apiUrl = String.format(URLFormatComponent.getUrl(getApplicationContext(),
+                            URLFormatComponent.CHAN_PAGE_API_URL_FORMAT), boardCode, pageNo);
+				}
+            	if (DEBUG) Log.i(TAG, "Fetching " + apiUrl + " priority=" + priority);
+			
+        		final long startTime = new Date().getTime();
+                boolean conditional = board != null && board.lastFetched > 0 && !priority;
+                if (DEBUG && conditional) Log.i(TAG, "Conditional fetch as last fetch happened "
+                        + ((startTime - board.lastFetched) / 1000) + "s ago");
+                response = ChanApiTransport.get(getApplicationContext(), apiUrl,
+                        NetworkProfileManager.instance().getFetchParams(), conditional, board == null ? 0 : board.lastFetched);
+                String contentType = response.contentType;
+                if (DEBUG) Log.i(TAG, "handleBoard() Called API " + apiUrl + " code=" + response.code + " type=" + contentType
+                        + " in " + response.headersMs() + "ms");
+                if (response.isNotModified()) {
+                	if (DEBUG) Log.i(TAG, "Got 304 for " + apiUrl + " so was not modified since " + board.lastFetched);
+                    NetworkProfileManager.instance().finishedFetchingData(this, (int)response.elapsedMs(), 0);
+                    return;
+                }
+
+                if (pageNo > 0 && response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+                    if (DEBUG) Log.i(TAG, "Got 404 on next page, assuming last page at pageNo=" + pageNo);
+                    board.lastFetched = new Date().getTime();
+                    ChanFileStorage.storeBoardData(getBaseContext(), board);
+                }
+                else if (contentType == null || !contentType.contains("json")) {
+                    // happens if 4chan is temporarily down or when access requires authentication to wifi router
+                    if (DEBUG) Log.i(TAG, "Wrong content type returned board=" + board + " contentType='" + contentType
+                            + "' responseCode=" + response.code);
+                }
+                else {
+                    board.lastFetched = new Date().getTime();
+                    long fileSize = ChanFileStorage.storeBoardFile(getBaseContext(), boardCode, pageNo, new BufferedInputStream(response.body()));
+                    response.saveValidators();
+                	long fetchTime = board.lastFetched - startTime;
+                    long storeTime = new Date().getTime() - board.lastFetched;
+                
+                    if (DEBUG) Log.w(TAG, "Fetched " + apiUrl + " in " + fetchTime + "ms, stored in " + storeTime + "ms, "
+                            + "stored fileSize=" + fileSize/1024 + "KB wire=" + response.wireBytes()/1024 + "KB");
+                    if (DEBUG) Log.i(TAG, "Calling finishedFetchingData priority=" + priority);
+                    /*
+                    final ChanActivityId activityId = getChanActivityId();
+                    final Context context = getApplicationContext();
+                    final ChanIdentifiedService service = new ChanIdentifiedService() {
+                        @Override
+                        public ChanActivityId getChanActivityId() {
+                            return activityId;
+                        }
+                        @Override
+                        public Context getApplicationContext() {
+                            return context;
+                        }
+                    };
+                    */
+                    NetworkProfileManager.instance().finishedFetchingData(this, (int)fetchTime, (int)response.wireBytes());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "IO Error fetching Chan board json", e);
+                NetworkProfileManager.instance().failedFetchingData(this, Failure.NETWORK);
+            } catch (Exception e) {
+                NetworkProfileManager.instance().failedFetchingData(this, Failure.WRONG_DATA);
+				Log.e(TAG, "Error fetching Chan board json", e);
+			} finally {
+                if (response != null)
+                    response.close();
+			}
+		}
+
+		private void handleThread() {
+            ChanApiTransport.Response response = null;
+            if (threadNo == 0) {
+                Log.e(TAG, "Board-level loading must be done via the BoardLoadService");
+                return;
             }
-            else if (contentType == null || !contentType.contains("json")) {
-                // happens if 4chan is temporarily down or when access requires authentication to wifi router
-                if (DEBUG) Log.i(TAG, "Wrong content type returned board=" + board + " contentType='" + contentType
-                        + "' responseCode=" + tc.getResponseCode() + " content=" + tc.getContent().toString());
+            else if (boardCode.equals(ChanBoard.WATCHLIST_BOARD_CODE)) {
+                Log.e(TAG, "Watchlist should not be fetched");
+                return;
             }
-            else {
-                board.lastFetched = new Date().getTime();
-                long fileSize = ChanFileStorage.storeBoardFile(getBaseContext(), boardCode, pageNo, new BufferedInputStream(tc.getInputStream()));
-            	long fetchTime = board.lastFetched - startTime;
-                long storeTime = new Date().getTime() - board.lastFetched;
-                
-                if (DEBUG) Log.w(TAG, "Fetched " + chanApi + " in " + fetchTime + "ms, stored in " + storeTime + "ms, "
-                        + "stored fileSize=" + fileSize/1024 + "KB");
-                if (DEBUG) Log.i(TAG, "Calling finishedFetchingData priority=" + priority);
-                /*
-                final ChanActivityId activityId = getChanActivityId();
-                final Context context = getApplicationContext();
-                final ChanIdentifiedService service = new ChanIdentifiedService() {
-                    @Override
-                    public ChanActivityId getChanActivityId() {
-                        return activityId;
-                    }
-                    @Override
-                    public Context getApplicationContext() {
-                        return context;
-                    }
-                };
-                */
-                NetworkProfileManager.instance().finishedFetchingData(this, (int)fetchTime, (int)fileSize);
+            else if (boardCode.equals(ChanBoard.FAVORITES_BOARD_CODE)) {
+                Log.e(TAG, "Favorites should not be fetched");
+                return;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "IO Error fetching Chan board json", e);
-            NetworkProfileManager.instance().failedFetchingData(this, Failure.NETWORK);
-        } catch (Exception e) {
-            NetworkProfileManager.instance().failedFetchingData(this, Failure.WRONG_DATA);
-			Log.e(TAG, "Error fetching Chan board json", e);
-		} finally {
-			closeConnection(tc);
-		}
-	}
 
-	private void handleThread() {
-        HttpURLConnection tc = null;
-        if (threadNo == 0) {
-            Log.e(TAG, "Board-level loading must be done via the BoardLoadService");
-            return;
-        }
-        else if (boardCode.equals(ChanBoard.WATCHLIST_BOARD_CODE)) {
-            Log.e(TAG, "Watchlist should not be fetched");
-            return;
-        }
-        else if (boardCode.equals(ChanBoard.FAVORITES_BOARD_CODE)) {
-            Log.e(TAG, "Favorites should not be fetched");
-            return;
-        }
+			try {
+                thread = ChanFileStorage.loadThreadData(getBaseContext(), boardCode, threadNo);
+                final long now = (new Date()).getTime();
+                if (thread == null) {
+                	if (DEBUG) Log.i(TAG, "Load thread data returned null, therefore service is terminating");
+                	return;
+                } else if (thread.defData) {
+                    thread = new ChanThread();
+                    thread.board = boardCode;
+                    thread.no = threadNo;
+                    thread.isDead = false;
+                    thread.lastFetched = 0;
+                } else {
+                    if (thread.isDead && thread.posts.length == thread.replies) {
+                        updateAfterDeadThread();
+                        if (DEBUG) Log.i(TAG, "Dead thread retrieved from storage, therefore service is terminating");
+                        return;
+                    }
+                }
+
+        		long startTime = Calendar.getInstance().getTimeInMillis();
+                if (!fullRefresh && !DEBUG_STAGE_THREAD_FILE && thread.lastFetched > 0
+                        && thread.posts.length >= MIN_POSTS_FOR_TAIL_REFRESH && handleThreadTail(startTime, now))
+                    return;
+
+                String apiUrl = String.format(
+                        URLFormatComponent.getUrl(getApplicationContext(), URLFormatComponent.CHAN_THREAD_URL_FORMAT), boardCode, threadNo);
+                if (DEBUG) Log.i(TAG, "Fetching " + apiUrl);
+                boolean conditional = thread.lastFetched > 0 && !fullRefresh;
+                if (DEBUG && conditional) Log.i(TAG, "Conditional fetch as last fetch happened "
+                        + ((startTime - thread.lastFetched) / 1000) + "s ago");
+                response = ChanApiTransport.get(getApplicationContext(), apiUrl,
+                        NetworkProfileManager.instance().getFetchParams(), conditional, thread.lastFetched);
+                String contentType = response.contentType;
+                if (DEBUG) Log.i(TAG, "handleThread() Called API " + apiUrl + " code=" + response.code + " type=" + contentType
+                        + " in " + response.headersMs() + "ms");
+                if (response.isNotModified()) {
+                	if (DEBUG) Log.i(TAG, "Got 304 for " + apiUrl + " so was not modified since " + thread.lastFetched);
+                    storeUnmodifiedThread(now);
+                    NetworkProfileManager.instance().failedFetchingData(this, Failure.THREAD_UNMODIFIED);
+                    return;
+                }
+
+                thread.lastFetched = now;
+                if (response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+                    if (DEBUG) Log.i(TAG, "Got 404 on thread, thread no longer exists, setting dead thread");
 
-		try {
-            thread = ChanFileStorage.loadThreadData(this, boardCode, threadNo);
-            long now = (new Date()).getTime();
-            if (thread == null) {
-            	if (DEBUG) Log.i(TAG, "Load thread data returned null, therefore service is terminating");
-            	return;
-            } else if (thread.defData) {
-                thread = new ChanThread();
-                thread.board = boardCode;
-                thread.no = threadNo;
-                thread.isDead = false;
-                thread.lastFetched = 0;
-            } else {
-                if (thread.isDead && thread.posts.length == thread.replies) {
+                    // store dead status for thread
+                    runSerialized(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            adoptCachedThread(now);
+                            thread.isDead = true;
+                            if (thread.posts != null && thread.posts.length > 0 && thread.posts[0] != null)
+                                thread.posts[0].isDead = true;
+                            if (DEBUG) Log.i(TAG, "After handleBoard dead thread calling storeThreadData for /" + thread.board + "/" + thread.no);
+                            ChanFileStorage.storeThreadData(getBaseContext(), thread);
+                            return null;
+                        }
+                    });
                     updateAfterDeadThread();
-                    if (DEBUG) Log.i(TAG, "Dead thread retrieved from storage, therefore service is terminating");
+                    NetworkProfileManager.instance().failedFetchingData(this, Failure.DEAD_THREAD);
+                    return;
+                } else if (contentType == null || !contentType.contains("json")) {
+                    if (DEBUG) Log.i(TAG, "Failed fetching data, contentType = " + contentType);
+                    NetworkProfileManager.instance().failedFetchingData(this, Failure.NETWORK);
                     return;
                 }
-            }
+                else {
+                    ChanIdentifiedService service = identifiedService();
+                    if (DEBUG_STAGE_THREAD_FILE) {
+                        if (DEBUG) Log.i(TAG, "Fetch succeeded, storing thread file");
+                        long fileSize = ChanFileStorage.storeThreadFile(getBaseContext(), boardCode, threadNo, new BufferedInputStream(response.body()));
+                        int fetchTime = (int)(new Date().getTime() - startTime);
+                        if (DEBUG) Log.i(TAG, "Thread file store succeeded, calling profile manager finished fetching data");
+                        NetworkProfileManager.instance().finishedFetchingData(service, fetchTime, (int)fileSize);
+                    }
+                    else {
+                        if (DEBUG) Log.i(TAG, "Fetch succeeded, parsing thread from response stream");
+                        final List<ChanPost> posts = ThreadParserService.parsePosts(new BufferedInputStream(response.body()), boardCode);
+                        int fetchTime = (int)(new Date().getTime() - startTime);
+                        runSerialized(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                adoptCachedThread(now);
+                                int previousPostNum = thread.posts.length;
+                                thread.mergePosts(posts);
+                                ChanRefreshPlanner.refreshed(thread, thread.posts.length - previousPostNum, now);
+                                ThreadParserService.storeParsedThread(getBaseContext(), thread, boardCode, previousPostNum);
+                                return null;
+                            }
+                        });
+                        response.saveValidators();
+                        if (DEBUG) Log.i(TAG, "Parsed and stored thread /" + boardCode + "/" + threadNo + " with " + thread.posts.length
+                                + " posts in " + (new Date().getTime() - startTime) + "ms wire=" + response.wireBytes()
+                                + " json=" + response.bodyBytes());
+                        NetworkProfileManager.instance().finishedFetchingAndParsingData(service, fetchTime, (int)response.wireBytes());
+                    }
+                }
 
-    		long startTime = Calendar.getInstance().getTimeInMillis();
-            String apiUrl = String.format(
-                    URLFormatComponent.getUrl(getApplicationContext(), URLFormatComponent.CHAN_THREAD_URL_FORMAT), boardCode, threadNo);
-            URL chanApi = new URL(apiUrl);
-            if (DEBUG) Log.i(TAG, "Fetching " + apiUrl);
-            tc = (HttpURLConnection) chanApi.openConnection();
-            tc.setReadTimeout(NetworkProfileManager.instance().getFetchParams().readTimeout);
-            if (thread.lastFetched > 0 && !priority) {
-            	if (DEBUG) Log.i(TAG, "IfModifiedSince set as last fetch happened "
-        				+ ((startTime - thread.lastFetched) / 1000) + "s ago");
-                tc.setIfModifiedSince(thread.lastFetched);
-            }
-            String contentType = tc.getContentType();
-            if (DEBUG) Log.i(TAG, "handleThread() Called API " + tc.getURL() + " response length=" + tc.getContentLength()
-            		+ " code=" + tc.getResponseCode() + " type=" + contentType);
-            if (tc.getResponseCode() == 304) {
-            	if (DEBUG) Log.i(TAG, "Got 304 for " + chanApi + " so was not modified since " + thread.lastFetched);
-                NetworkProfileManager.instance().failedFetchingData(this, Failure.THREAD_UNMODIFIED);
-                return;
-            }
+            } catch (IOException e) {
+            	NetworkProfileManager.instance().failedFetchingData(this, Failure.NETWORK);
+                Log.e(TAG, "IO Error reading Chan thread json. " + e.getMessage(), e);
+			} catch (Exception e) {
+				NetworkProfileManager.instance().failedFetchingData(this, Failure.WRONG_DATA);
+				Log.e(TAG, "Error parsing Chan thread json. " + e.getMessage(), e);
+			} finally {
+                if (response != null)
+                    response.close();
+			}
+		}
 
-            thread.lastFetched = now;
-            if (tc.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
-                if (DEBUG) Log.i(TAG, "Got 404 on thread, thread no longer exists, setting dead thread");
-
-                // store dead status for thread
-                thread.isDead = true;
-                if (thread.posts != null && thread.posts.length > 0 && thread.posts[0] != null)
-                    thread.posts[0].isDead = true;
-                if (DEBUG) Log.i(TAG, "After handleBoard dead thread calling storeThreadData for /" + thread.board + "/" + thread.no);
-                ChanFileStorage.storeThreadData(getBaseContext(), thread);
-                updateAfterDeadThread();
-                NetworkProfileManager.instance().failedFetchingData(this, Failure.DEAD_THREAD);
-                return;
-            } else if (contentType == null || !contentType.contains("json")) {
-                if (DEBUG) Log.i(TAG, "Failed fetching data, contentType = " + contentType);
-                NetworkProfileManager.instance().failedFetchingData(this, Failure.NETWORK);
-                return;
-            }
-            else {
-                if (DEBUG) Log.i(TAG, "Fetch succeeded, storing thread file");
-                long fileSize = ChanFileStorage.storeThreadFile(getBaseContext(), boardCode, threadNo, new BufferedInputStream(tc.getInputStream()));
+        /**
+         * Refreshes the thread from its tail, merging only the thread post and the replies in it.
+         * @return false if the full thread has to be fetched: the tail doesn't reach back to the stored replies,
+         * isn't there or couldn't be read
+         */
+        private boolean handleThreadTail(long startTime, final long now) {
+            ChanApiTransport.Response response = null;
+            try {
+                String apiUrl = String.format(URLFormatComponent.getUrl(getApplicationContext(),
+                        URLFormatComponent.CHAN_THREAD_TAIL_URL_FORMAT), boardCode, threadNo);
+                if (DEBUG) Log.i(TAG, "Fetching " + apiUrl);
+                response = ChanApiTransport.get(getApplicationContext(), apiUrl,
+                        NetworkProfileManager.instance().getFetchParams(), true, thread.lastFetched);
+                if (response.isNotModified()) {
+                    if (DEBUG) Log.i(TAG, "Got 304 for " + apiUrl + " so was not modified since " + thread.lastFetched);
+                    storeUnmodifiedThread(now);
+                    NetworkProfileManager.instance().failedFetchingData(this, Failure.THREAD_UNMODIFIED);
+                    return true;
+                }
+                if (!response.isOk() || !response.isJson()) { // a 404 is confirmed dead by the full fetch
+                    if (DEBUG) Log.i(TAG, "No tail for /" + boardCode + "/" + threadNo + " code=" + response.code);
+                    return false;
+                }
+                final List<ChanPost> tail = ThreadParserService.parsePosts(new BufferedInputStream(response.body()), boardCode);
                 int fetchTime = (int)(new Date().getTime() - startTime);
-                final ChanActivityId activityId = getChanActivityId();
-                final Context context = getApplicationContext();
-                final ChanIdentifiedService service = new ChanIdentifiedService() {
+                boolean merged = runSerialized(new Callable<Boolean>() {
                     @Override
-                    public ChanActivityId getChanActivityId() {
-                        return activityId;
+                    public Boolean call() throws IOException {
+                        long lastFetched = thread.lastFetched;
+                        adoptCachedThread(lastFetched);
+                        thread.lastFetched = lastFetched; // stays as it was unless the tail merges
+                        int previousPostNum = thread.posts.length;
+                        if (!thread.mergeTail(tail)) {
+                            if (DEBUG) Log.i(TAG, "Tail of " + tail.size() + " posts doesn't reach back to post "
+                                    + thread.posts[thread.posts.length - 1].no + ", fetching full thread");
+                            return false;
+                        }
+                        thread.lastFetched = now;
+                        ChanRefreshPlanner.refreshed(thread, thread.posts.length - previousPostNum, now);
+                        ThreadParserService.storeParsedThread(getBaseContext(), thread, boardCode, previousPostNum);
+                        return true;
                     }
+                });
+                if (!merged)
+                    return false;
+                response.saveValidators();
+                if (DEBUG) Log.i(TAG, "Merged tail of /" + boardCode + "/" + threadNo + " now " + thread.posts.length
+                        + " posts, in " + (new Date().getTime() - startTime) + "ms wire="
+                        + response.wireBytes() + " json=" + response.bodyBytes());
+                NetworkProfileManager.instance().finishedFetchingAndParsingData(identifiedService(), fetchTime,
+                        (int)response.wireBytes());
+                return true;
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Error refreshing tail of /" + boardCode + "/" + threadNo + ", fetching full thread", e);
+                return false;
+            }
+            finally {
+                if (response != null)
+                    response.close();
+            }
+        }
+
+        // an unmodified thread is an empty refresh for the planner, only the thread log header changes
+        private void storeUnmodifiedThread(final long now) {
+            try {
+                runSerialized(new Callable<Void>() {
                     @Override
-                    public Context getApplicationContext() {
-                        return context;
+                    public Void call() throws IOException {
+                        ChanRefreshPlanner.refreshed(thread, 0, now);
+                        ChanFileStorage.storeThreadPlans(getBaseContext(), boardCode, Collections.singletonList(thread));
+                        return null;
                     }
-                };
-                if (DEBUG) Log.i(TAG, "Thread file store succeeded, calling profile manager finished fetching data");
-                NetworkProfileManager.instance().finishedFetchingData(service, fetchTime, (int)fileSize);
+                });
             }
+            catch (IOException e) {
+                Log.e(TAG, "Couldn't store refresh plan of /" + boardCode + "/" + threadNo, e);
+            }
+        }
 
-        } catch (IOException e) {
-        	NetworkProfileManager.instance().failedFetchingData(this, Failure.NETWORK);
-            Log.e(TAG, "IO Error reading Chan thread json. " + e.getMessage(), e);
-		} catch (Exception e) {
-			NetworkProfileManager.instance().failedFetchingData(this, Failure.WRONG_DATA);
-			Log.e(TAG, "Error parsing Chan thread json. " + e.getMessage(), e);
-		} finally {
-			closeConnection(tc);
-		}
-	}
+        /**
+         * Runs a merge and store step of this thread on the {@link ParseExecutor} under the thread's key, the one
+         * ThreadParserService uses, and waits for it.  Fetches and parses of the same thread so merge and store one
+         * after another instead of interleaving.
+         */
+        private <T> T runSerialized(Callable<T> step) throws IOException {
+            FutureTask<T> task = new FutureTask<T>(step);
+            ParseExecutor.instance().execute(boardCode + "/" + threadNo, priority, task);
+            try {
+                return task.get();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted storing /" + boardCode + "/" + threadNo);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException)cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException)cause;
+                throw new RuntimeException(cause);
+            }
+        }
 
-    private void updateAfterDeadThread() throws IOException {
-        Context context = getBaseContext();
-        if (PreferenceManager
-                .getDefaultSharedPreferences(context)
-                .getBoolean(SettingsActivity.PREF_AUTOMATICALLY_MANAGE_WATCHLIST, true)) {
-            ChanFileStorage.cleanDeadWatchedThreads(context);
-            BoardActivity.refreshWatchlist(context);
+        // another fetch of this thread may have stored posts while this one was on the network, merge into those
+        private void adoptCachedThread(long lastFetched) {
+            ChanThread cached = ChanFileStorage.getCachedThreadData(getBaseContext(), boardCode, threadNo);
+            if (cached != null && cached != thread && !cached.defData)
+                thread = cached;
+            thread.lastFetched = lastFetched;
         }
-    }
 
-	@Override
-	public ChanActivityId getChanActivityId() {
-        ChanActivityId id;
-		if (threadNo > 0) {
-			id = new ChanActivityId(boardCode, threadNo, priority);
-		} else {
-			id = new ChanActivityId(boardCode, pageNo, priority);
+        // identifies this fetch to the profile manager after the service may have moved on
+        private ChanIdentifiedService identifiedService() {
+            final ChanActivityId activityId = getChanActivityId();
+            final Context context = getApplicationContext();
+            return new ChanIdentifiedService() {
+                @Override
+                public ChanActivityId getChanActivityId() {
+                    return activityId;
+                }
+                @Override
+                public Context getApplicationContext() {
+                    return context;
+                }
+            };
+        }
+
+        private void updateAfterDeadThread() throws IOException {
+            Context context = getBaseContext();
+            if (PreferenceManager
+                    .getDefaultSharedPreferences(context)
+                    .getBoolean(SettingsActivity.PREF_AUTOMATICALLY_MANAGE_WATCHLIST, true)) {
+                ChanFileStorage.cleanDeadWatchedThreads(context);
+                BoardActivity.refreshWatchlist(context);
+            }
+        }
+
+		@Override
+		public ChanActivityId getChanActivityId() {
+            ChanActivityId id;
+			if (threadNo > 0) {
+				id = new ChanActivityId(boardCode, threadNo, priority);
+			} else {
+				id = new ChanActivityId(boardCode, pageNo, priority);
+			}
+            if (secondaryThreadNo > 0)
+                id.secondaryThreadNo = secondaryThreadNo;
+            return id;
 		}
-        if (secondaryThreadNo > 0)
-            id.secondaryThreadNo = secondaryThreadNo;
-        return id;
-	}
+
+        @Override
+        public Context getApplicationContext() {
+            return FetchChanDataService.this.getApplicationContext();
+        }
+
+        @Override
+        public String toString() {
+            return "FetchChanDataService: " + getChanActivityId();
+        }
+    }
 
 }
@@ -146,6 +146,7 @@ public class FetchPopularThreadsService extends BaseChanService implements ChanI
                 tc.setIfModifiedSince(board.lastFetched);
             }
             String contentType = tc.getContentType();
+            long headersTime = Calendar.getInstance().getTimeInMillis();
             if (DEBUG) Log.i(TAG, "Called API " + tc.getURL() + " response length=" + tc.getContentLength()
             		+ " code=" + tc.getResponseCode() + " type=" + contentType);
             if (tc.getResponseCode() == 304) {
@@ -169,6 +170,9 @@ public class FetchPopularThreadsService extends BaseChanService implements ChanI
                     is = new BufferedInputStream(tc.getInputStream());
                     String response = IOUtils.toString(is);
                     IOUtils.closeQuietly(is);
+                    NetworkProfileManager.instance().measuredTransfer(
+                            (int)(Calendar.getInstance().getTimeInMillis() - startTime), response.length(),
+                            (int)(headersTime - startTime));
                     closeConnection(tc);
                     parseAndStore(board, response, startTime);
                 }
@@ -0,0 +1,285 @@
+package com.chanapps.four.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Intent;
+import android.util.Log;
+
+import com.chanapps.four.activity.ChanActivityId;
+
+/**
+ * Queue of pending api fetches for FetchChanDataService.
+ *
+ * Requests are keyed by board, thread and page.  A request for a key already queued or in flight is coalesced into
+ * the existing one.  A more urgent request upgrades a queued one in place, and has a running one queued again with
+ * its class and intent once it finishes, since the running fetch may skip work the new request asked for.  Within
+ * the foreground class a refresh the user asked for is more urgent than the periodic update of the open thread.
+ * Requests are handed out by class (foreground before prefetch before background work of the alarm and widgets)
+ * and in arrival order within a class, while keeping at most a fixed number of connections open per host.
+ * Foreground and prefetch requests are cancelled once the user left the screen they were made for, background
+ * requests always run.  The queue metrics are logged when the queue drains, at most every REPORT_INTERVAL_MS.
+ */
+public class FetchScheduler {
+	private static final String TAG = FetchScheduler.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final String API_HOST = "a.4cdn.org";
+    private static final int API_HOST_CONNECTIONS = 2;
+    private static final int DEFAULT_HOST_CONNECTIONS = 1;
+    private static final long REPORT_INTERVAL_MS = 5 * 60 * 1000;
+
+    public enum FetchClass {
+        FOREGROUND,
+        PREFETCH,
+        BACKGROUND
+    }
+
+    public static class Request {
+        public final String key;
+        public final String host;
+        public final String boardCode;
+        public final ChanActivityId screen;
+        public FetchClass fetchClass;
+        public Intent intent;
+        public final long queuedAt;
+
+        // a more urgent request that came in while this one was running, queued when it finishes
+        private FetchClass rerunClass;
+        private Intent rerunIntent;
+        private ChanActivityId rerunScreen;
+
+        Request(String key, String host, String boardCode, FetchClass fetchClass, ChanActivityId screen, Intent intent) {
+            this.key = key;
+            this.host = host;
+            this.boardCode = boardCode;
+            this.fetchClass = fetchClass;
+            this.screen = screen;
+            this.intent = intent;
+            this.queuedAt = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "Request " + key + " " + fetchClass + " host=" + host;
+        }
+    }
+
+    private static FetchScheduler instance;
+
+    private final Map<String, Request> queued = new LinkedHashMap<String, Request>();
+    private final Map<String, Request> inFlight = new HashMap<String, Request>();
+    private final Map<String, Integer> hostConnections = new HashMap<String, Integer>();
+    private final Map<String, Integer> hostLimits = new HashMap<String, Integer>();
+
+    private long submitted = 0;
+    private long coalesced = 0;
+    private long upgraded = 0;
+    private long cancelled = 0;
+    private long dispatched = 0;
+    private long totalWaitMs = 0;
+    private long maxWaitMs = 0;
+    private long lastReport = 0;
+    private long reportedDispatched = 0;
+
+    public static synchronized FetchScheduler instance() {
+        if (instance == null)
+            instance = new FetchScheduler();
+        return instance;
+    }
+
+    FetchScheduler() {
+        hostLimits.put(API_HOST, API_HOST_CONNECTIONS);
+    }
+
+    public static String requestKey(String boardCode, long threadNo, int pageNo) {
+        return boardCode + "/" + threadNo + "/" + pageNo;
+    }
+
+    /**
+     * Queues a fetch unless one for the same key is queued or running already.  A running one is run again when it
+     * finishes if the new request is more urgent.
+     *
+     * @param screen activity the request was made for, foreground and prefetch requests are dropped once it is gone
+     * @return false if the request was coalesced into an existing one
+     */
+    public synchronized boolean submit(String key, String host, String boardCode, FetchClass fetchClass,
+                                       ChanActivityId screen, Intent intent) {
+        submitted++;
+        Request running = inFlight.get(key);
+        if (running != null) {
+            coalesced++;
+            int strongest = running.rerunClass != null
+                    ? urgency(running.rerunClass, running.rerunIntent)
+                    : urgency(running.fetchClass, running.intent);
+            if (urgency(fetchClass, intent) < strongest) {
+                // the running fetch may be conditional or only fetch the tail, the urgent request gets its own run
+                running.rerunClass = fetchClass;
+                running.rerunIntent = intent;
+                running.rerunScreen = screen;
+                upgraded++;
+                if (DEBUG) Log.i(TAG, "Rerun " + key + " as " + fetchClass + " once the running fetch finishes");
+            }
+            else {
+                if (DEBUG) Log.i(TAG, "Coalesced " + key + " into running fetch");
+            }
+            return false;
+        }
+        Request request = queued.get(key);
+        if (request != null) {
+            coalesced++;
+            if (urgency(fetchClass, intent) < urgency(request.fetchClass, request.intent)) {
+                // more urgent request, take over its class and intent so it skips If-Modified-Since like it asked
+                request.fetchClass = fetchClass;
+                request.intent = intent;
+                upgraded++;
+                if (DEBUG) Log.i(TAG, "Upgraded queued fetch " + key + " to " + fetchClass);
+            }
+            return false;
+        }
+        queued.put(key, new Request(key, host, boardCode, fetchClass, screen, intent));
+        if (DEBUG) Log.i(TAG, "Queued fetch " + key + " " + fetchClass + " " + this);
+        return true;
+    }
+
+    // lower is more urgent, an auto refresh may only fetch the tail or revalidate so it ranks below its class
+    private static int urgency(FetchClass fetchClass, Intent intent) {
+        boolean autoRefresh = intent != null && intent.getBooleanExtra(FetchChanDataService.AUTO_REFRESH, false);
+        return fetchClass.ordinal() * 2 + (autoRefresh ? 1 : 0);
+    }
+
+    /**
+     * Takes the most urgent queued request, the oldest of equally urgent ones, whose host has a free connection and marks it running, dropping requests
+     * whose screen is gone on the way.
+     *
+     * @return null if nothing can run right now
+     */
+    public synchronized Request next(ChanActivityId currentScreen) {
+        cancelStale(currentScreen);
+        Request best = null;
+        int bestUrgency = Integer.MAX_VALUE;
+        for (Request request : queued.values()) { // in arrival order, the first of equally urgent ones wins
+            if (connections(request.host) >= limit(request.host))
+                continue;
+            int urgency = urgency(request.fetchClass, request.intent);
+            if (urgency < bestUrgency) {
+                best = request;
+                bestUrgency = urgency;
+            }
+            if (bestUrgency == 0)
+                break;
+        }
+        if (best == null)
+            return null;
+        queued.remove(best.key);
+        inFlight.put(best.key, best);
+        hostConnections.put(best.host, connections(best.host) + 1);
+        long waitMs = System.currentTimeMillis() - best.queuedAt;
+        dispatched++;
+        totalWaitMs += waitMs;
+        if (waitMs > maxWaitMs)
+            maxWaitMs = waitMs;
+        return best;
+    }
+
+    /**
+     * Releases the connection of a request returned by next(), and queues it again if a more urgent request for
+     * its key came in while it was running.
+     */
+    public synchronized void finished(Request request) {
+        if (inFlight.remove(request.key) == null)
+            return;
+        int n = connections(request.host) - 1;
+        if (n > 0)
+            hostConnections.put(request.host, n);
+        else
+            hostConnections.remove(request.host);
+        if (request.rerunClass != null && !queued.containsKey(request.key)) {
+            queued.put(request.key, new Request(request.key, request.host, request.boardCode, request.rerunClass,
+                    request.rerunScreen, request.rerunIntent));
+            if (DEBUG) Log.i(TAG, "Queued rerun of " + request.key + " as " + request.rerunClass + " " + this);
+        }
+    }
+
+    /**
+     * Drops queued foreground and prefetch requests made for another screen than the current one.
+     *
+     * @return number of requests dropped
+     */
+    public synchronized int cancelStale(ChanActivityId currentScreen) {
+        int n = 0;
+        Iterator<Request> i = queued.values().iterator();
+        while (i.hasNext()) {
+            Request request = i.next();
+            if (isScreenGone(request, currentScreen)) {
+                if (DEBUG) Log.i(TAG, "Cancelled " + request + " for screen " + request.screen + " now " + currentScreen);
+                i.remove();
+                n++;
+            }
+        }
+        cancelled += n;
+        return n;
+    }
+
+    private boolean isScreenGone(Request request, ChanActivityId currentScreen) {
+        if (request.fetchClass == FetchClass.BACKGROUND || request.screen == null)
+            return false;
+        if (currentScreen == null)
+            return true;
+        if (request.screen.equals(currentScreen))
+            return false;
+        // still on the board or one of its threads, the data is wanted
+        return request.boardCode == null || !request.boardCode.equals(currentScreen.boardCode);
+    }
+
+    public synchronized boolean isIdle() {
+        return queued.isEmpty() && inFlight.isEmpty();
+    }
+
+    /**
+     * @return number of queued requests per class, indexed by FetchClass.ordinal()
+     */
+    public synchronized int[] getQueueDepthByClass() {
+        int[] depth = new int[FetchClass.values().length];
+        for (Request request : queued.values())
+            depth[request.fetchClass.ordinal()]++;
+        return depth;
+    }
+
+    public synchronized long getAverageWaitMs() {
+        return dispatched == 0 ? 0 : totalWaitMs / dispatched;
+    }
+
+    /**
+     * Logs the queue metrics, at most once every REPORT_INTERVAL_MS and only if something was dispatched since.
+     */
+    public synchronized void reportMetrics(long now) {
+        if (dispatched == reportedDispatched || now - lastReport < REPORT_INTERVAL_MS)
+            return;
+        lastReport = now;
+        reportedDispatched = dispatched;
+        Log.i(TAG, toString());
+    }
+
+    private int connections(String host) {
+        Integer n = hostConnections.get(host);
+        return n == null ? 0 : n;
+    }
+
+    private int limit(String host) {
+        Integer n = hostLimits.get(host);
+        return n == null ? DEFAULT_HOST_CONNECTIONS : n;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int[] depth = getQueueDepthByClass();
+        return "FetchScheduler queued=" + queued.size() + " (foreground=" + depth[0] + " prefetch=" + depth[1]
+                + " background=" + depth[2] + ") running=" + inFlight.size() + " submitted=" + submitted
+                + " coalesced=" + coalesced + " upgraded=" + upgraded + " cancelled=" + cancelled
+                + " avgWait=" + getAverageWaitMs() + "ms maxWait=" + maxWaitMs + "ms";
+    }
+
+}
@@ -0,0 +1,275 @@
+package com.chanapps.four.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import android.content.Context;
+import android.content.Intent;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.chanapps.four.activity.BoardActivity;
+import com.chanapps.four.activity.SettingsActivity;
+import com.chanapps.four.component.GlobalAlarmReceiver;
+import com.chanapps.four.component.URLFormatComponent;
+import com.chanapps.four.data.ChanBoard;
+import com.chanapps.four.data.ChanFileStorage;
+import com.chanapps.four.data.ChanJsonReader;
+import com.chanapps.four.data.ChanRefreshPlanner;
+import com.chanapps.four.data.ChanThread;
+
+/**
+ * Refreshes the watchlist from the threads.json index of each watched board.
+ *
+ * The index lists every live thread of a board with its last_modified time, so one request per board tells which
+ * watched threads changed since they were last fetched.  Only those are fetched, threads missing from the index have
+ * fallen off the board and are marked dead without asking for them.  If the index of a board can't be loaded its
+ * watched threads are fetched one by one as before.
+ *
+ * A scheduled refresh only looks at threads their refresh plan (see ChanRefreshPlanner) says are due and skips
+ * boards without any, an unchanged thread counts as an empty refresh.  The watchlist alarm is then set for the
+ * next thread coming due.
+ */
+public class FetchWatchlistService extends BaseChanService {
+	private static final String TAG = FetchWatchlistService.class.getSimpleName();
+	private static final boolean DEBUG = false;
+
+    public static final String SCHEDULED_REFRESH = "scheduledRefresh";
+
+    public static void startService(Context context) {
+        startService(context, false);
+    }
+
+    /**
+     * @param scheduled true for a refresh by alarm, which only fetches threads due for a refresh
+     */
+    public static void startService(Context context, boolean scheduled) {
+        if (DEBUG) Log.i(TAG, "Start watchlist refresh service scheduled=" + scheduled);
+        Intent intent = new Intent(context, FetchWatchlistService.class);
+        intent.putExtra(BACKGROUND_LOAD, true);
+        intent.putExtra(SCHEDULED_REFRESH, scheduled);
+        context.startService(intent);
+    }
+
+    public FetchWatchlistService() {
+        super("watchlist_fetch");
+    }
+
+    protected FetchWatchlistService(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Context context = getBaseContext();
+        ChanBoard watchlist = ChanFileStorage.loadBoardData(context, ChanBoard.WATCHLIST_BOARD_CODE);
+        if (watchlist == null || watchlist.threads == null || watchlist.threads.length == 0)
+            return;
+        boolean scheduled = intent.getBooleanExtra(SCHEDULED_REFRESH, false);
+        long now = new Date().getTime();
+        long refreshDelay = NetworkProfileManager.instance().getFetchParams().refreshDelay;
+        long nextDue = Long.MAX_VALUE;
+
+        Map<String, List<ChanThread>> boards = new LinkedHashMap<String, List<ChanThread>>();
+        int notDue = 0;
+        for (ChanThread watched : watchlist.threads) {
+            if (watched == null || watched.board == null || watched.no <= 0 || watched.isDead)
+                continue;
+            ChanThread thread = ChanFileStorage.loadThreadData(context, watched.board, watched.no);
+            if (thread != null && thread.isDead)
+                continue;
+            if (scheduled && thread != null && !ChanRefreshPlanner.isDue(thread, now, refreshDelay)) {
+                nextDue = Math.min(nextDue, thread.nextRefresh);
+                notDue++;
+                continue;
+            }
+            List<ChanThread> threads = boards.get(watched.board);
+            if (threads == null) {
+                threads = new ArrayList<ChanThread>();
+                boards.put(watched.board, threads);
+            }
+            threads.add(watched);
+        }
+
+        int fetched = 0;
+        int dead = 0;
+        for (Map.Entry<String, List<ChanThread>> entry : boards.entrySet()) {
+            String boardCode = entry.getKey();
+            List<ChanThread> threads = entry.getValue();
+            Map<Long, Long> lastModified = fetchThreadIndex(context, boardCode);
+            if (lastModified == null) {
+                for (ChanThread watched : threads) {
+                    if (FetchChanDataService.scheduleThreadFetch(context, boardCode, watched.no, false, true))
+                        fetched++;
+                }
+                continue;
+            }
+            List<ChanThread> deadThreads = new ArrayList<ChanThread>();
+            List<ChanThread> plannedThreads = new ArrayList<ChanThread>();
+            List<Long> changedThreadNos = new ArrayList<Long>();
+            for (ChanThread watched : threads) {
+                Long modified = lastModified.get(watched.no);
+                if (modified == null) {
+                    ChanThread thread = markDead(context, boardCode, watched.no);
+                    if (thread != null)
+                        deadThreads.add(thread);
+                    continue;
+                }
+                ChanThread thread = ChanFileStorage.loadThreadData(context, boardCode, watched.no);
+                boolean known = thread != null && !thread.defData;
+                long lastFetched = known ? thread.lastFetched : 0;
+                if (modified > lastFetched) {
+                    if (known && ChanRefreshPlanner.expire(thread, now)) // due even if the plan didn't expect it
+                        plannedThreads.add(thread);
+                    changedThreadNos.add(watched.no);
+                    nextDue = Math.min(nextDue, now + ChanRefreshPlanner.MIN_INTERVAL_MS);
+                }
+                else {
+                    if (DEBUG) Log.i(TAG, "Thread /" + boardCode + "/" + watched.no + " unchanged since " + new Date(lastFetched));
+                    if (known) {
+                        ChanRefreshPlanner.refreshed(thread, 0, now);
+                        plannedThreads.add(thread);
+                        nextDue = Math.min(nextDue, thread.nextRefresh);
+                    }
+                }
+            }
+            if (!plannedThreads.isEmpty()) {
+                try {
+                    ChanFileStorage.storeThreadPlans(context, boardCode, plannedThreads);
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Exception storing refresh plans of watched threads for /" + boardCode + "/", e);
+                }
+            }
+            for (long threadNo : changedThreadNos) {
+                if (FetchChanDataService.scheduleThreadFetch(context, boardCode, threadNo, false, true))
+                    fetched++;
+            }
+            if (!deadThreads.isEmpty()) {
+                try {
+                    ChanFileStorage.storeThreadsData(context, boardCode, deadThreads);
+                    dead += deadThreads.size();
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Exception storing dead watched threads for /" + boardCode + "/", e);
+                }
+            }
+        }
+        if (DEBUG) Log.i(TAG, "Refreshed watchlist of " + watchlist.threads.length + " threads on " + boards.size()
+                + " boards, fetching " + fetched + " threads, " + dead + " dead, " + notDue + " not due");
+
+        if (nextDue < Long.MAX_VALUE)
+            GlobalAlarmReceiver.scheduleWatchlistAlarm(context, nextDue - now);
+
+        if (dead > 0)
+            updateAfterDeadThreads(context);
+    }
+
+    /**
+     * @return last_modified in ms of each live thread of the board by thread number, null if the index couldn't be read
+     */
+    private Map<Long, Long> fetchThreadIndex(Context context, String boardCode) {
+        ChanApiTransport.Response response = null;
+        try {
+            String apiUrl = String.format(URLFormatComponent.getUrl(context,
+                    URLFormatComponent.CHAN_THREADS_API_URL_FORMAT), boardCode);
+            if (DEBUG) Log.i(TAG, "Fetching " + apiUrl);
+            long startTime = new Date().getTime();
+            response = ChanApiTransport.get(context, apiUrl, NetworkProfileManager.instance().getFetchParams(), false, 0);
+            if (!response.isOk() || !response.isJson()) {
+                if (DEBUG) Log.i(TAG, "Couldn't fetch thread index of /" + boardCode + "/ code=" + response.code
+                        + " type=" + response.contentType);
+                return null;
+            }
+            Map<Long, Long> lastModified = parseThreadIndex(new BufferedInputStream(response.body()));
+            if (lastModified.isEmpty()) // a board always has threads, don't take every watched thread for dead
+                return null;
+            if (DEBUG) Log.i(TAG, "Fetched thread index of /" + boardCode + "/ with " + lastModified.size() + " threads in "
+                    + (new Date().getTime() - startTime) + "ms");
+            return lastModified;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Error fetching thread index of /" + boardCode + "/", e);
+            return null;
+        }
+        finally {
+            if (response != null)
+                response.close();
+        }
+    }
+
+    /**
+     * Reads threads.json, an array of pages each with a threads array of {no, last_modified} objects.
+     */
+    protected static Map<Long, Long> parseThreadIndex(InputStream in) throws IOException {
+        Map<Long, Long> lastModified = new HashMap<Long, Long>();
+        JsonParser jp = BoardParserService.createJsonParser(in);
+        try {
+            if (jp.nextToken() != JsonToken.START_ARRAY)
+                throw new IOException("Thread index is not an array, found " + jp.getCurrentToken());
+            while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over pages
+                if (!ChanJsonReader.nextField(jp, "threads"))
+                    continue;
+                if (jp.getCurrentToken() == JsonToken.START_ARRAY) {
+                    while (jp.nextToken() == JsonToken.START_OBJECT) { // iterate over threads
+                        long no = 0;
+                        long modified = 0;
+                        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                            String field = jp.getCurrentName();
+                            JsonToken token = jp.nextToken();
+                            if ("no".equals(field) && token == JsonToken.VALUE_NUMBER_INT)
+                                no = jp.getLongValue();
+                            else if ("last_modified".equals(field) && token == JsonToken.VALUE_NUMBER_INT)
+                                modified = jp.getLongValue() * 1000; // api times are in seconds
+                            else
+                                jp.skipChildren();
+                        }
+                        if (no > 0)
+                            lastModified.put(no, modified);
+                    }
+                }
+                ChanJsonReader.skipRestOfObject(jp);
+            }
+        }
+        finally {
+            jp.close();
+        }
+        return lastModified;
+    }
+
+    private ChanThread markDead(Context context, String boardCode, long threadNo) {
+        ChanThread thread = ChanFileStorage.loadThreadData(context, boardCode, threadNo);
+        if (thread == null || thread.defData)
+            return null;
+        if (DEBUG) Log.i(TAG, "Thread /" + boardCode + "/" + threadNo + " not in thread index, setting dead thread");
+        thread.isDead = true;
+        if (thread.posts != null && thread.posts.length > 0 && thread.posts[0] != null)
+            thread.posts[0].isDead = true;
+        thread.lastFetched = new Date().getTime();
+        return thread;
+    }
+
+    private void updateAfterDeadThreads(Context context) {
+        try {
+            if (PreferenceManager
+                    .getDefaultSharedPreferences(context)
+                    .getBoolean(SettingsActivity.PREF_AUTOMATICALLY_MANAGE_WATCHLIST, true))
+                ChanFileStorage.cleanDeadWatchedThreads(context);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Exception cleaning dead watched threads", e);
+        }
+        BoardActivity.refreshWatchlist(context);
+    }
+
+}
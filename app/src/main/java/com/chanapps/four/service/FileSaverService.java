@@ -27,9 +27,10 @@ public class FileSaverService extends BaseChanService {
     private static final String PARAM_TYPE = "paramType";
     private static final String PARAM_VALUE = "paramValue";
     private static final String PARAM_STACKTRACE = "paramStack";
+    private static final String PARAM_THREAD_NO = "paramThreadNo";
     public static final String NAME = "name";
 
-    public enum FileType {USER_STATISTICS, LOG_EVENT, BOARD_SAVE};
+    public enum FileType {USER_STATISTICS, LOG_EVENT, BOARD_SAVE, RECORD_MIGRATION, THREAD_COMPACTION};
     
     public static void startService(Context context, FileType fileType) {
         if (DEBUG) Log.i(TAG, "Start file saver service for " + fileType);
@@ -47,6 +48,15 @@ public class FileSaverService extends BaseChanService {
         context.startService(intent);
     }
     
+    public static void startService(Context context, FileType fileType, String boardCode, long threadNo) {
+        if (DEBUG) Log.i(TAG, "Start file saver service for " + fileType + " /" + boardCode + "/" + threadNo);
+        Intent intent = new Intent(context, FileSaverService.class);
+        intent.putExtra(NAME, fileType.toString());
+        intent.putExtra(PARAM_VALUE, boardCode);
+        intent.putExtra(PARAM_THREAD_NO, threadNo);
+        context.startService(intent);
+    }
+
     public static void startService(Context context, FileType fileType, String type, String value) {
         if (DEBUG) Log.i(TAG, "Start file saver service for " + fileType);
         Intent intent = new Intent(context, FileSaverService.class);
@@ -99,6 +109,14 @@ public class FileSaverService extends BaseChanService {
 				ChanBoard board = ChanFileStorage.loadBoardData(getBaseContext(), boardCode);
 				ChanFileStorage.storeBoardData(getBaseContext(), board);
 				break;
+			case RECORD_MIGRATION:
+				ChanFileStorage.migrateLegacyFile(getBaseContext(), intent.getStringExtra(PARAM_VALUE),
+						intent.getLongExtra(PARAM_THREAD_NO, 0));
+				break;
+			case THREAD_COMPACTION:
+				ChanFileStorage.compactThreadData(getBaseContext(), intent.getStringExtra(PARAM_VALUE),
+						intent.getLongExtra(PARAM_THREAD_NO, 0));
+				break;
 			}
 			
 			long endTime = Calendar.getInstance().getTimeInMillis();
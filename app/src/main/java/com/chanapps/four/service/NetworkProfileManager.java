@@ -87,6 +87,15 @@ public class NetworkProfileManager {
 		return userStats;
 	}
 
+	/**
+	 * Loads the user statistics if no activity has yet, for work started by alarms.
+	 */
+	public synchronized UserStatistics getUserStatistics(Context context) {
+		if (userStats == null)
+			userStats = ChanFileStorage.loadUserStats(context);
+		return userStats;
+	}
+
     protected void forceMenuKey(Context context) {
         try {
             ViewConfiguration config = ViewConfiguration.get(context);
@@ -251,6 +260,27 @@ public class NetworkProfileManager {
         }
     }
 	
+	/**
+	 * Periodic update of the open thread, which may be served from the thread tail or a 304.  Other screens
+	 * are refreshed as by manualRefresh().
+	 */
+	public void autoRefresh(ChanIdentifiedActivity newActivity) {
+		if (newActivity == null)
+			return;
+		if (newActivity.getChanActivityId().activity != LastActivity.THREAD_ACTIVITY) {
+			manualRefresh(newActivity);
+			return;
+		}
+		if (DEBUG) Log.i(TAG, "autoRefresh " + newActivity.getChanActivityId());
+		currentActivityId = newActivity.getChanActivityId();
+		currentActivity = newActivity;
+		if (activeProfile == null) {
+			NetworkBroadcastReceiver.checkNetwork(newActivity.getBaseContext());
+		}
+		activeProfile.onThreadAutoRefreshed(newActivity.getBaseContext(), newActivity.getChanHandler(),
+				currentActivityId.boardCode, currentActivityId.threadNo);
+	}
+
 	/**
 	 * Replaces currently viewed data with the one fetched recently
 	 */
@@ -283,6 +313,16 @@ public class NetworkProfileManager {
 		activeProfile.onImageDownloadSuccess(service.getApplicationContext(), time, size);
 	}
 
+	/**
+	 * Network timing of a response read to the end, see NetworkProfile.onTransferMeasured.  Comes from the
+	 * transport, which has no context to check the network with, so it is dropped until a profile is active.
+	 */
+	public void measuredTransfer(int time, int size, int headersTime) {
+		NetworkProfile profile = activeProfile;
+		if (profile != null)
+			profile.onTransferMeasured(time, size, headersTime);
+	}
+
 	public void finishedFetchingData(ChanIdentifiedService service, int time, int size) {
 		service = checkService(service);
 		if (activeProfile == null) {
@@ -291,6 +331,14 @@ public class NetworkProfileManager {
 		activeProfile.onDataFetchSuccess(service, time, size);
 	}
 	
+	public void finishedFetchingAndParsingData(ChanIdentifiedService service, int time, int size) {
+		service = checkService(service);
+		if (activeProfile == null) {
+			NetworkBroadcastReceiver.checkNetwork(service.getApplicationContext());
+		}
+		activeProfile.onDataFetchAndParseSuccess(service, time, size);
+	}
+	
 	public void failedFetchingData(ChanIdentifiedService service, Failure failure) {
         if (DEBUG) Log.i(TAG, "failedFetchingData service=" + service);
 		service = checkService(service);
@@ -0,0 +1,188 @@
+package com.chanapps.four.service;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Shared executor for parse and store work of the chan services.
+ *
+ * Tasks with different keys run in parallel on at most one worker per core, tasks with the same key (a board or a
+ * thread) run strictly one after another in submission order, so a later parse never overtakes an earlier one and
+ * the lastFetched checks done while storing stay correct.  A key runs one task per turn and then goes to the back
+ * of the queue, a busy board does not starve the others.  Priority keys are queued at the front.
+ */
+public class ParseExecutor {
+	private static final String TAG = ParseExecutor.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static ParseExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final LinkedBlockingDeque<Runnable> queue = new LinkedBlockingDeque<Runnable>();
+    private final Map<String, Serial> serials = new HashMap<String, Serial>();
+
+    private int pendingTasks = 0;
+    private long executedTasks = 0;
+    private long totalWaitMs = 0;
+    private long maxWaitMs = 0;
+
+    public static synchronized ParseExecutor instance() {
+        if (instance == null)
+            instance = new ParseExecutor(Runtime.getRuntime().availableProcessors());
+        return instance;
+    }
+
+    ParseExecutor(int workers) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS, queue, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ChanParse-" + threadCount.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues task behind all earlier tasks of the same key.
+     */
+    public void execute(String key, boolean priority, Runnable task) {
+        Task t = new Task(task);
+        Serial serial;
+        boolean schedule = false;
+        synchronized (this) {
+            pendingTasks++;
+            serial = serials.get(key);
+            if (serial == null) {
+                serial = new Serial(key);
+                serials.put(key, serial);
+            }
+            serial.pending.add(t);
+            serial.priority |= priority;
+            if (!serial.scheduled) {
+                serial.scheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule)
+            schedule(serial);
+        if (DEBUG) Log.i(TAG, "Queued parse " + key + " priority=" + priority + " " + this);
+    }
+
+    private void schedule(Serial serial) {
+        boolean front;
+        synchronized (this) {
+            front = serial.priority;
+            serial.priority = false;
+        }
+        if (front) {
+            // workers take from the head of the deque, make sure one is alive to pick it up
+            queue.offerFirst(serial);
+            executor.prestartCoreThread();
+        }
+        else {
+            executor.execute(serial);
+        }
+    }
+
+    /**
+     * @return number of tasks waiting to run
+     */
+    public synchronized int getQueueDepth() {
+        return pendingTasks;
+    }
+
+    /**
+     * @return number of tasks running right now
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return average time in ms tasks waited between being queued and starting
+     */
+    public synchronized long getAverageWaitMs() {
+        return executedTasks == 0 ? 0 : totalWaitMs / executedTasks;
+    }
+
+    public synchronized long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ParseExecutor queued=" + pendingTasks + " active=" + executor.getActiveCount()
+                + " keys=" + serials.size() + " executed=" + executedTasks
+                + " avgWait=" + getAverageWaitMs() + "ms maxWait=" + maxWaitMs + "ms";
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final long queuedAt;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+            this.queuedAt = System.currentTimeMillis();
+        }
+    }
+
+    private class Serial implements Runnable {
+        final String key;
+        final ArrayDeque<Task> pending = new ArrayDeque<Task>();
+        boolean priority = false;
+        boolean scheduled = false;
+
+        Serial(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            synchronized (ParseExecutor.this) {
+                task = pending.poll();
+                if (task == null) {
+                    scheduled = false;
+                    serials.remove(key);
+                    return;
+                }
+                long waitMs = System.currentTimeMillis() - task.queuedAt;
+                pendingTasks--;
+                executedTasks++;
+                totalWaitMs += waitMs;
+                if (waitMs > maxWaitMs)
+                    maxWaitMs = waitMs;
+            }
+            try {
+                task.runnable.run();
+            }
+            catch (Throwable e) {
+                Log.e(TAG, "Error running parse task for " + key, e);
+            }
+            finally {
+                boolean more;
+                synchronized (ParseExecutor.this) {
+                    more = !pending.isEmpty();
+                    if (!more) {
+                        scheduled = false;
+                        serials.remove(key);
+                    }
+                }
+                if (more)
+                    schedule(this);
+            }
+        }
+    }
+
+}
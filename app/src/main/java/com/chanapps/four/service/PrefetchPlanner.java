@@ -0,0 +1,406 @@
+package com.chanapps.four.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.chanapps.four.activity.SettingsActivity;
+import com.chanapps.four.data.ChanBoard;
+import com.chanapps.four.data.ChanBoardStat;
+import com.chanapps.four.data.ChanFileStorage;
+import com.chanapps.four.data.ChanPost;
+import com.chanapps.four.data.ChanPrefetchStat;
+import com.chanapps.four.data.ChanThreadStat;
+import com.chanapps.four.data.UserStatistics;
+import com.chanapps.four.service.profile.NetworkProfile;
+import com.chanapps.four.service.profile.NetworkProfile.Health;
+import com.chanapps.four.widget.WidgetProviderUtils;
+
+/**
+ * Fetches ahead the boards and threads the user is likely to open next, within a budget for the network.
+ *
+ * Candidates are the boards and threads of the user statistics, and the favorite boards.  A candidate scores its
+ * visits halved every half-life since the last one, and its open probability is its share of all scores.  They are
+ * taken by probability per estimated byte until the byte or time budget of the network class runs out: board
+ * catalogs and threads go to the fetch service in the background class, so they never hold up what the user asked
+ * for, and the thumbnails of the top threads of a cached board are downloaded here.  Candidates already fresh cost
+ * nothing and are passed over, and off unmetered networks so are earlier prefetches not opened yet.  The budget of
+ * a network class can be set in the preferences, an empty one turns prefetching off on the class.
+ *
+ * Prefetched boards and threads are recorded in the prefetch stats of the user statistics, where opening them
+ * counts as hits and opening anything else as misses.
+ */
+public class PrefetchPlanner {
+
+    private static final String TAG = PrefetchPlanner.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public enum NetworkClass {UNMETERED, METERED, LOW_BATTERY}
+
+    public static class Budget {
+        public final long bytes;
+        public final long timeMs;
+
+        public Budget(long bytes, long timeMs) {
+            this.bytes = bytes;
+            this.timeMs = timeMs;
+        }
+    }
+
+    private static final Map<NetworkClass, Budget> DEFAULT_BUDGETS = new EnumMap<NetworkClass, Budget>(NetworkClass.class);
+
+    static {
+        /* Budget of one planning run, unless set in the preferences, same as the defaults in preferences.xml
+         *               NETWORK CLASS  ----->   BYTES, TIME
+         */
+        DEFAULT_BUDGETS.put(NetworkClass.UNMETERED,   new Budget(4 * 1024 * 1024, 60000));
+        DEFAULT_BUDGETS.put(NetworkClass.METERED,     new Budget(512 * 1024, 20000));
+        DEFAULT_BUDGETS.put(NetworkClass.LOW_BATTERY, new Budget(128 * 1024, 5000));
+    }
+
+    private static final long MIN_PLAN_INTERVAL_MS = 15 * 60 * 1000;
+    private static final long BOARD_HALF_LIFE_MS = 3 * 24 * 60 * 60 * 1000;
+    private static final long THREAD_HALF_LIFE_MS = 12 * 60 * 60 * 1000;
+    private static final long MAX_THREAD_AGE_MS = 2 * 24 * 60 * 60 * 1000;
+    private static final double FAVORITE_SCORE = 1; // worth one recent visit
+    private static final double THUMBNAILS_WEIGHT = 0.5; // a cached board still shows without them
+    private static final double MIN_PROBABILITY = 0.02;
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    // estimated wire size, gzipped json
+    private static final long CATALOG_BYTES = 80 * 1024;
+    private static final long THREAD_BYTES = 24 * 1024;
+    private static final long THUMBNAIL_BYTES = 6 * 1024;
+
+    enum Kind {CATALOG, THREAD, THUMBNAILS}
+
+    static class Candidate {
+        final Kind kind;
+        final String boardCode;
+        final long threadNo;
+        double score;
+        double probability;
+        List<String> thumbnailUrls;
+
+        Candidate(Kind kind, String boardCode, long threadNo) {
+            this.kind = kind;
+            this.boardCode = boardCode;
+            this.threadNo = threadNo;
+        }
+
+        long bytes() {
+            switch (kind) {
+                case CATALOG: return CATALOG_BYTES;
+                case THREAD: return THREAD_BYTES;
+                default: return THUMBNAIL_BYTES * (thumbnailUrls == null ? 0 : thumbnailUrls.size());
+            }
+        }
+
+        int requests() {
+            return kind == Kind.THUMBNAILS ? (thumbnailUrls == null ? 0 : thumbnailUrls.size()) : 1;
+        }
+
+        double density() {
+            return probability / Math.max(1, bytes());
+        }
+
+        String key() {
+            return kind == Kind.THREAD ? ChanPrefetchStat.threadKey(boardCode, threadNo) : boardCode;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + key() + " p=" + Math.round(probability * 1000) / 1000.0 + " bytes=" + bytes();
+        }
+    }
+
+    interface Starter {
+        /**
+         * @return true if the candidate wasn't fresh already and its fetch was started
+         */
+        boolean start(Candidate candidate);
+    }
+
+    private static long lastPlanned = 0; // last run that got to prefetch, skipped runs don't count
+    private static boolean planning = false;
+
+    /**
+     * Plans and starts prefetches on a thread of its own.
+     */
+    public static void startPlanning(final Context context) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                plan(context.getApplicationContext());
+            }
+        }, "PrefetchPlanner").start();
+    }
+
+    /**
+     * Plans and starts prefetches, at most once every MIN_PLAN_INTERVAL_MS.  A run skipped for a bad connection or
+     * an empty budget doesn't count, the next trigger tries again.  Blocks while thumbnails download.
+     */
+    public static void plan(Context context) {
+        long now = System.currentTimeMillis();
+        synchronized (PrefetchPlanner.class) {
+            if (planning) {
+                if (DEBUG) Log.i(TAG, "Already planning, skipping");
+                return;
+            }
+            if (now - lastPlanned < MIN_PLAN_INTERVAL_MS) {
+                if (DEBUG) Log.i(TAG, "Planned " + ((now - lastPlanned) / 1000) + "s ago, skipping");
+                return;
+            }
+            planning = true;
+        }
+        try {
+            plan(context, now);
+        }
+        finally {
+            synchronized (PrefetchPlanner.class) {
+                planning = false;
+            }
+        }
+    }
+
+    private static void plan(final Context context, long now) {
+        NetworkProfile profile = NetworkProfileManager.instance().getCurrentProfile();
+        Health health = profile.getConnectionHealth();
+        if (health == Health.NO_CONNECTION || health == Health.BAD) {
+            if (DEBUG) Log.i(TAG, "Connection " + health + ", skipping");
+            return;
+        }
+        NetworkClass networkClass = networkClass(context, profile);
+        Budget budget = budget(context, networkClass);
+        if (budget.bytes <= 0 || budget.timeMs <= 0) {
+            if (DEBUG) Log.i(TAG, "No budget on " + networkClass + ", skipping");
+            return;
+        }
+        synchronized (PrefetchPlanner.class) {
+            lastPlanned = now;
+        }
+        UserStatistics userStats = NetworkProfileManager.instance().getUserStatistics(context);
+        ChanPrefetchStat prefetchStats = userStats.prefetchStats;
+        prefetchStats.planned(now);
+
+        List<Candidate> candidates = candidates(context, userStats, profile.getFetchParams().maxThumbnailPrefetches, now);
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate o1, Candidate o2) {
+                return Double.compare(o2.density(), o1.density());
+            }
+        });
+        if (DEBUG) Log.i(TAG, "Planning " + networkClass + " health=" + health + " budget=" + budget.bytes / 1024
+                + "kB/" + budget.timeMs + "ms candidates=" + candidates);
+
+        // on a paid network a prefetch nobody opened yet is left as it is, it still opens from the cache
+        boolean refreshPending = networkClass == NetworkClass.UNMETERED;
+        List<Candidate> started = startWithin(candidates, budget, health, prefetchStats, refreshPending, now,
+                new Starter() {
+                    @Override
+                    public boolean start(Candidate candidate) {
+                        return PrefetchPlanner.start(context, candidate);
+                    }
+                });
+        if (!started.isEmpty())
+            FileSaverService.startService(context, FileSaverService.FileType.USER_STATISTICS);
+        if (DEBUG) Log.i(TAG, "Started " + started.size() + " prefetches, " + prefetchStats);
+    }
+
+    /**
+     * Starts the candidates in order until the budget runs out, one that doesn't fit or isn't started is passed
+     * over for the ones after it.  Started boards and threads are recorded as prefetched.
+     *
+     * @return the started candidates
+     */
+    static List<Candidate> startWithin(List<Candidate> candidates, Budget budget, Health health,
+                                       ChanPrefetchStat prefetchStats, boolean refreshPending, long now,
+                                       Starter starter) {
+        List<Candidate> started = new ArrayList<Candidate>();
+        long bytes = 0;
+        long timeMs = 0;
+        for (Candidate candidate : candidates) {
+            if (candidate.probability < MIN_PROBABILITY)
+                continue;
+            if (!refreshPending && candidate.kind != Kind.THUMBNAILS && prefetchStats.isPending(candidate.key(), now))
+                continue;
+            long candidateBytes = candidate.bytes();
+            long candidateMs = estimatedMs(health, candidateBytes, candidate.requests());
+            if (candidateBytes <= 0 || bytes + candidateBytes > budget.bytes || timeMs + candidateMs > budget.timeMs)
+                continue;
+            if (!starter.start(candidate))
+                continue;
+            bytes += candidateBytes;
+            timeMs += candidateMs;
+            started.add(candidate);
+            if (candidate.kind != Kind.THUMBNAILS)
+                prefetchStats.prefetched(candidate.key(), candidateBytes, now);
+            if (DEBUG) Log.i(TAG, "Prefetching " + candidate);
+        }
+        if (DEBUG) Log.i(TAG, "Within budget " + bytes / 1024 + "kB est " + timeMs + "ms");
+        return started;
+    }
+
+    /**
+     * @return low battery when not charging and nearly empty, otherwise metered or not by the active network
+     */
+    public static NetworkClass networkClass(Context context, NetworkProfile profile) {
+        // a null receiver only reads the sticky broadcast, allowed from any context but a receiver's own
+        Intent battery = context.getApplicationContext()
+                .registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            boolean plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            if (!plugged && level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT)
+                return NetworkClass.LOW_BATTERY;
+        }
+        if (profile.getConnectionType() != NetworkProfile.Type.WIFI)
+            return NetworkClass.METERED;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) { // tethered wifi
+            ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (cm != null && cm.isActiveNetworkMetered())
+                return NetworkClass.METERED;
+        }
+        return NetworkClass.UNMETERED;
+    }
+
+    /**
+     * @return budget of a planning run on the network class, from the preferences or the default one,
+     * an empty budget turns prefetching off on the class
+     */
+    public static Budget budget(Context context, NetworkClass networkClass) {
+        Budget budget = DEFAULT_BUDGETS.get(networkClass);
+        String suffix = networkClass.name().toLowerCase(Locale.US);
+        Map<String, ?> prefs = PreferenceManager.getDefaultSharedPreferences(context).getAll();
+        long kb = budgetValue(prefs.get(SettingsActivity.PREF_PREFETCH_BUDGET_KB + suffix), budget.bytes / 1024);
+        long secs = budgetValue(prefs.get(SettingsActivity.PREF_PREFETCH_BUDGET_SECS + suffix), budget.timeMs / 1000);
+        return new Budget(kb * 1024, secs * 1000);
+    }
+
+    /**
+     * @return value of a budget preference, kept as a string by its EditTextPreference, an empty one is 0
+     */
+    static long budgetValue(Object value, long defaultValue) {
+        if (value instanceof Number)
+            return ((Number)value).longValue();
+        if (!(value instanceof String))
+            return defaultValue;
+        String text = ((String)value).trim();
+        if (text.isEmpty())
+            return 0;
+        try {
+            return Long.parseLong(text);
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static List<Candidate> candidates(Context context, UserStatistics userStats, int maxThumbnails, long now) {
+        Map<String, Candidate> boards = new HashMap<String, Candidate>();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        double total = 0;
+        for (ChanBoardStat stat : new ArrayList<ChanBoardStat>(userStats.boardStats.values())) {
+            if (stat.board == null || ChanBoard.isVirtualBoard(stat.board))
+                continue;
+            Candidate candidate = new Candidate(Kind.CATALOG, stat.board, 0);
+            candidate.score = decayedScore(stat.usage, now - stat.lastUsage, BOARD_HALF_LIFE_MS);
+            boards.put(stat.board, candidate);
+        }
+        ChanBoard favorites = ChanFileStorage.loadBoardData(context, ChanBoard.FAVORITES_BOARD_CODE);
+        if (favorites != null && favorites.hasData()) {
+            for (ChanPost favorite : favorites.threads) {
+                if (favorite == null || favorite.board == null || ChanBoard.isVirtualBoard(favorite.board))
+                    continue;
+                Candidate candidate = boards.get(favorite.board);
+                if (candidate == null) {
+                    candidate = new Candidate(Kind.CATALOG, favorite.board, 0);
+                    boards.put(favorite.board, candidate);
+                }
+                candidate.score += FAVORITE_SCORE;
+            }
+        }
+        for (Candidate candidate : boards.values()) {
+            candidates.add(candidate);
+            total += candidate.score;
+        }
+        for (ChanThreadStat stat : new ArrayList<ChanThreadStat>(userStats.boardThreadStats.values())) {
+            if (stat.board == null || stat.no <= 0 || now - stat.lastUsage > MAX_THREAD_AGE_MS)
+                continue;
+            Candidate candidate = new Candidate(Kind.THREAD, stat.board, stat.no);
+            candidate.score = decayedScore(stat.usage, now - stat.lastUsage, THREAD_HALF_LIFE_MS);
+            candidates.add(candidate);
+            total += candidate.score;
+        }
+        if (total <= 0)
+            return candidates;
+        for (Candidate candidate : candidates)
+            candidate.probability = candidate.score / total;
+
+        // thumbnails of boards with a cached catalog, the catalogs fetched now get theirs on the next run
+        for (Candidate board : boards.values()) {
+            if (board.probability < MIN_PROBABILITY || maxThumbnails <= 0 || !ChanBoard.boardHasData(context, board.boardCode))
+                continue;
+            List<String> urls = WidgetProviderUtils.preloadThumbnailURLs(context, board.boardCode, maxThumbnails);
+            if (urls == null || urls.isEmpty())
+                continue;
+            Candidate thumbnails = new Candidate(Kind.THUMBNAILS, board.boardCode, 0);
+            thumbnails.thumbnailUrls = urls;
+            thumbnails.probability = board.probability * THUMBNAILS_WEIGHT;
+            candidates.add(thumbnails);
+        }
+        return candidates;
+    }
+
+    private static double decayedScore(int usage, long age, long halfLife) {
+        return usage * Math.pow(0.5, (double)Math.max(0, age) / halfLife);
+    }
+
+    /**
+     * @return true if the candidate wasn't fresh already and its fetch was started
+     */
+    private static boolean start(Context context, Candidate candidate) {
+        switch (candidate.kind) {
+            case CATALOG:
+                return FetchChanDataService.scheduleBoardFetch(context, candidate.boardCode, false, true);
+            case THREAD:
+                return FetchChanDataService.scheduleThreadFetch(context, candidate.boardCode, candidate.threadNo,
+                        false, true);
+            default:
+                for (String url : candidate.thumbnailUrls)
+                    WidgetProviderUtils.downloadAndCacheUrl(context, url, null);
+                return true;
+        }
+    }
+
+    /**
+     * @return expected ms for the transfers at the nominal rate and round trip of the health level
+     */
+    private static long estimatedMs(Health health, long bytes, int requests) {
+        long bytesPerMs; // same as kB/s
+        long latencyMs;
+        switch (health) {
+            case PERFECT: bytesPerMs = 300; latencyMs = 150; break;
+            case GOOD: bytesPerMs = 100; latencyMs = 400; break;
+            case SLOW: bytesPerMs = 25; latencyMs = 1000; break;
+            default: bytesPerMs = 5; latencyMs = 2500; break;
+        }
+        return requests * latencyMs + bytes / bytesPerMs;
+    }
+
+}
@@ -3,17 +3,19 @@
  */
 package com.chanapps.four.service;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 
 import android.content.Context;
 import android.content.Intent;
@@ -23,7 +25,9 @@ import com.chanapps.four.activity.ChanActivityId;
 import com.chanapps.four.activity.ChanIdentifiedService;
 import com.chanapps.four.data.ChanBoard;
 import com.chanapps.four.data.ChanFileStorage;
+import com.chanapps.four.data.ChanJsonReader;
 import com.chanapps.four.data.ChanPost;
+import com.chanapps.four.data.ChanRefreshPlanner;
 import com.chanapps.four.data.ChanThread;
 import com.chanapps.four.service.profile.NetworkProfile.Failure;
 
@@ -31,7 +35,7 @@ import com.chanapps.four.service.profile.NetworkProfile.Failure;
  * @author "Grzegorz Nittner" <grzegorz.nittner@gmail.com>
  *
  */
-public class ThreadParserService extends BaseChanService implements ChanIdentifiedService {
+public class ThreadParserService extends BaseChanService {
 
     protected static final String TAG = ThreadParserService.class.getName();
     private static final boolean DEBUG = false;
@@ -39,12 +43,6 @@ public class ThreadParserService extends BaseChanService implements ChanIdentifi
     protected static final long STORE_INTERVAL_MS = 2000;
     public static final String THREAD_FETCH_TIME = "threadFetchTime";
 
-    private String boardCode;
-    private long threadNo;
-    private boolean priority;
-    private ChanThread thread;
-    private long threadFetchTime;
-
     public static void startService(Context context, String boardCode, long threadNo, boolean priority) {
         if (DEBUG) Log.i(TAG, "Start thread load service for " + boardCode + " thread " + threadNo
                 + " priority=" + priority);
@@ -65,12 +63,17 @@ public class ThreadParserService extends BaseChanService implements ChanIdentifi
    		super(name);
    	}
 	
+    @Override
+    protected String getParseKey(Intent intent) {
+        return intent.getStringExtra(ChanBoard.BOARD_CODE) + "/" + intent.getLongExtra(ChanThread.THREAD_NO, 0);
+    }
+	
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
-        threadNo = intent.getLongExtra(ChanThread.THREAD_NO, 0);
-        priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0;
-        threadFetchTime = intent.getLongExtra(THREAD_FETCH_TIME, 0);
+		String boardCode = intent.getStringExtra(ChanBoard.BOARD_CODE);
+        long threadNo = intent.getLongExtra(ChanThread.THREAD_NO, 0);
+        boolean priority = intent.getIntExtra(PRIORITY_MESSAGE_FETCH, 0) > 0;
+        long threadFetchTime = intent.getLongExtra(THREAD_FETCH_TIME, 0);
 
         if (DEBUG) Log.i(TAG, "Handling board=" + boardCode + " threadNo=" + threadNo + " priority=" + priority);
 
@@ -86,9 +89,27 @@ public class ThreadParserService extends BaseChanService implements ChanIdentifi
             return;
         }
 
+        // intents are handled in parallel, each one reports with its own id
+        final ChanActivityId activityId = new ChanActivityId(boardCode, threadNo, priority);
+        final Context context = getApplicationContext();
+        final ChanIdentifiedService service = new ChanIdentifiedService() {
+            @Override
+            public ChanActivityId getChanActivityId() {
+                return activityId;
+            }
+            @Override
+            public Context getApplicationContext() {
+                return context;
+            }
+            @Override
+            public String toString() {
+                return "ThreadParserService : " + activityId;
+            }
+        };
+
         long startTime = Calendar.getInstance().getTimeInMillis();
 		try {
-			thread = ChanFileStorage.loadThreadData(this, boardCode, threadNo);
+			ChanThread thread = ChanFileStorage.loadThreadData(this, boardCode, threadNo);
 			if (thread == null || thread.defData) {
 				thread = new ChanThread();
                 thread.board = boardCode;
@@ -97,7 +118,7 @@ public class ThreadParserService extends BaseChanService implements ChanIdentifi
 			} else if (thread.lastFetched > threadFetchTime) {
 				if (DEBUG) Log.i(TAG, "Thread " + boardCode + "/" + threadNo + " won't be parsed. "
 					+ "Last fetched " + new Date(thread.lastFetched) + ", scheduled " + new Date(threadFetchTime));
-				NetworkProfileManager.instance().finishedParsingData(this);
+				NetworkProfileManager.instance().finishedParsingData(service);
 				return;
 			}
 			thread.lastFetched = threadFetchTime;
@@ -106,70 +127,70 @@ public class ThreadParserService extends BaseChanService implements ChanIdentifi
 			File threadFile = ChanFileStorage.getThreadFile(getBaseContext(), boardCode, threadNo);
 			if (threadFile == null || !threadFile.exists()) {
                 if (DEBUG) Log.i(TAG, "Thread file " + threadFile.getAbsolutePath() + " was deleted, probably already parsed.");
-                NetworkProfileManager.instance().failedParsingData(this, Failure.MISSING_DATA);
+                NetworkProfileManager.instance().failedParsingData(service, Failure.MISSING_DATA);
 				return;
 			}
-			parseThread(threadFile);
+			parseThread(threadFile, thread, boardCode);
+            ChanRefreshPlanner.refreshed(thread, thread.posts.length - previousPostNum, threadFetchTime);
 
 			if (DEBUG) Log.i(TAG, "Parsed thread " + boardCode + "/" + threadNo
             		+ " in " + (Calendar.getInstance().getTimeInMillis() - startTime) + "ms");
             startTime = Calendar.getInstance().getTimeInMillis();
             threadFile.delete();
 
-            if (previousPostNum > 0 && thread.posts.length == 0) {
-                if (DEBUG) Log.w(TAG, "Thread " + boardCode + "/" + threadNo + " has 0 posts after parsing, won't be stored");
-            } else {
-                if (!boardCode.equals(thread.board)) {
-                    if (DEBUG) Log.i(TAG, "Found inconsistent thread boardCode=" + thread.board + ", repairing to=" + boardCode);
-                    thread.board = boardCode;
-                }
-                if (DEBUG) Log.i(TAG, "In onHandleIntent in ThreadParserService calling storeThreadData for /" + thread.board + "/" + thread.no);
-                ChanFileStorage.storeThreadData(getBaseContext(), thread);
-                if (DEBUG) Log.i(TAG, "Stored thread " + boardCode + "/" + threadNo + " with " + thread.posts.length + " posts"
-                		+ " in " + (Calendar.getInstance().getTimeInMillis() - startTime) + "ms");
-            }
-            threadUpdateMessage = null;
-            NetworkProfileManager.instance().finishedParsingData(this);
+            storeParsedThread(getBaseContext(), thread, boardCode, previousPostNum);
+            if (DEBUG) Log.i(TAG, "Stored thread " + boardCode + "/" + threadNo + " with " + thread.posts.length + " posts"
+                    + " in " + (Calendar.getInstance().getTimeInMillis() - startTime) + "ms");
+            NetworkProfileManager.instance().finishedParsingData(service);
         } catch (Exception e) {
 			Log.e(TAG, "Error parsing thread json. " + e.getMessage(), e);
-        	NetworkProfileManager.instance().failedParsingData(this, Failure.WRONG_DATA);
+        	NetworkProfileManager.instance().failedParsingData(service, Failure.WRONG_DATA);
 		}
 	}
 
-    String threadUpdateMessage = null;
-
-	protected void parseThread(File in) throws IOException {
-    	if (DEBUG) Log.i(TAG, "starting parsing thread " + boardCode + "/" + threadNo);
-
-    	List<ChanPost> posts = new ArrayList<ChanPost>();
-    	ObjectMapper mapper = BoardParserService.getJsonMapper();
-        JsonNode rootNode = mapper.readValue(in, JsonNode.class);
+	protected void parseThread(File in, ChanThread thread, String boardCode) throws IOException {
+    	if (DEBUG) Log.i(TAG, "starting parsing thread " + boardCode + "/" + thread.no);
+        List<ChanPost> posts = parsePosts(new BufferedInputStream(new FileInputStream(in)), boardCode);
+        thread.mergePosts(posts);
+        if (DEBUG) Log.i(TAG, "finished parsing thread " + boardCode + "/" + thread.no);
+    }
 
-        for (JsonNode postValue : rootNode.path("posts")) { // first object is the thread post
-            ChanPost post = mapper.readValue(postValue, ChanPost.class);
-            if (post != null) {
+    /**
+     * Reads the posts of a thread api response one at a time, without building a tree of the whole document.
+     * The stream is closed when done.
+     */
+    public static List<ChanPost> parsePosts(InputStream in, String boardCode) throws IOException {
+        List<ChanPost> posts = new ArrayList<ChanPost>();
+        JsonParser jp = BoardParserService.createJsonParser(in);
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Thread json is not an object, found " + jp.getCurrentToken());
+            if (ChanJsonReader.nextField(jp, "posts")) // first object is the thread post
+                posts = ChanJsonReader.readPosts(jp, boardCode);
+            for (ChanPost post : posts)
                 post.board = boardCode;
-                posts.add(post);
-            }
-            //if (DEBUG) Log.v(TAG, "Added post " + post.no + " to thread " + boardCode + "/" + threadNo);
+        } finally {
+            jp.close();
+            IOUtils.closeQuietly(in);
         }
-        if (thread != null)
-            thread.mergePosts(posts);
-
-        if (DEBUG) Log.i(TAG, "finished parsing thread " + boardCode + "/" + threadNo);
-    }
-	
-	@Override
-	public ChanActivityId getChanActivityId() {
-		ChanActivityId id = new ChanActivityId(boardCode, threadNo, priority);
-        if (threadUpdateMessage != null)
-            id.threadUpdateMessage = threadUpdateMessage;
-	    return id;
+        return posts;
     }
 
-    @Override
-    public String toString() {
-        return "ThreadParserService : " + getChanActivityId();
+    /**
+     * Stores a thread after new posts were merged into it, unless parsing left it without any posts.
+     */
+    public static void storeParsedThread(Context context, ChanThread thread, String boardCode, int previousPostNum)
+            throws IOException {
+        if (previousPostNum > 0 && thread.posts.length == 0) {
+            if (DEBUG) Log.w(TAG, "Thread " + boardCode + "/" + thread.no + " has 0 posts after parsing, won't be stored");
+            return;
+        }
+        if (!boardCode.equals(thread.board)) {
+            if (DEBUG) Log.i(TAG, "Found inconsistent thread boardCode=" + thread.board + ", repairing to=" + boardCode);
+            thread.board = boardCode;
+        }
+        if (DEBUG) Log.i(TAG, "storeParsedThread calling storeThreadData for /" + thread.board + "/" + thread.no);
+        ChanFileStorage.storeThreadData(context, thread);
     }
 
 }
@@ -4,7 +4,6 @@
 package com.chanapps.four.service.profile;
 
 import java.util.Date;
-import java.util.Stack;
 
 import android.content.Context;
 import android.os.Handler;
@@ -28,9 +27,7 @@ public abstract class AbstractNetworkProfile implements NetworkProfile {
 	
 	protected int usageCounter = 0;
 	
-	private static final int MAX_STORED_DATATRANSFERS = 5;
-	private static final int MAX_DATATRANSFER_INACTIVITY = 600000;  // 10 min
-	private Stack<DataTransfer> dataTransfers = new Stack<DataTransfer>();
+	private final NetworkEstimator estimator = new NetworkEstimator();
 	
 	private Health currentHealth = null;
 	/*
@@ -43,77 +40,31 @@ public abstract class AbstractNetworkProfile implements NetworkProfile {
 		return DEFAULT_FETCH_PARAMS;
 	}
 
-	protected synchronized void checkDataTransfer() {
-		if (dataTransfers.size() > 0) {
-			if (new Date().getTime() - dataTransfers.get(0).time.getTime() > MAX_DATATRANSFER_INACTIVITY) {
-				dataTransfers.clear();
-			}
-		}
+	protected void checkDataTransfer() {
+		estimator.expire(new Date().getTime());
 	}
 	
-	protected synchronized void storeDataTransfer(int time, int size) {
-		DataTransfer transfer = new DataTransfer(time, size);
-		dataTransfers.push(transfer);
-		if (DEBUG) Log.i(TAG, "Storing transfer " + transfer);
-		if (dataTransfers.size() > MAX_STORED_DATATRANSFERS) {
-			dataTransfers.setSize(MAX_STORED_DATATRANSFERS);
-		}
+	/**
+	 * @param headersTime ms until the response headers arrived, -1 if unknown
+	 */
+	protected void storeDataTransfer(int time, int size, int headersTime) {
+		estimator.transferred(time, size, headersTime, new Date().getTime());
 	}
 	
-	protected synchronized void storeFailedDataTransfer() {
-		DataTransfer transfer = new DataTransfer();
-		dataTransfers.push(transfer);
-		if (DEBUG) Log.i(TAG, "Storing transfer " + transfer);
-		if (dataTransfers.size() > MAX_STORED_DATATRANSFERS) {
-			dataTransfers.setSize(MAX_STORED_DATATRANSFERS);
-		}
+	protected void storeFailedDataTransfer() {
+		estimator.failed(new Date().getTime());
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public Health getConnectionHealth() {
-		double rateSum = 0.0;
-		int rateNum = 0;
-		int failures = 0;
-		Stack<DataTransfer> clonedTransfers = (Stack<DataTransfer>)dataTransfers.clone();
-		if (clonedTransfers.size() < 2) {
-			Health defaultHealth = getDefaultConnectionHealth();
-			if (currentHealth != defaultHealth) {
-                if (DEBUG) Log.i(TAG, "Less than 2 transfers, changing default health to " + defaultHealth);
-                currentHealth = defaultHealth;
-            }
-			return defaultHealth;
-		}
-		for (DataTransfer transfer : clonedTransfers) {
-			if (transfer.failed) {
-				rateNum++;
-				rateSum /= 2.0;
-				failures++;
-			} else {
-				rateSum += transfer.dataRate;
-				rateNum++;
-			}
-		}
-		if (failures > 2) {
-			if (currentHealth != Health.BAD) {
-                if (DEBUG) Log.i(TAG, "More than 2 failures, switching to BAD from " + currentHealth);
-                makeToast(R.string.network_profile_health_bad);
-                currentHealth = Health.BAD;
-            }
-			return currentHealth;
-		}
-		double avgRate = rateSum / rateNum;
-		if (avgRate > 200) {
-			currentHealth = Health.PERFECT;
-		} else if (avgRate > 50) {
-			currentHealth = Health.GOOD;
-		} else if (avgRate > 10) {
-			currentHealth = Health.SLOW;
-		} else {
-			currentHealth = Health.VERY_SLOW;
+		Health health = estimator.getHealth(getDefaultConnectionHealth());
+		if (health != currentHealth) {
+			if (DEBUG) Log.i(TAG, "Switching health to " + health + " from " + currentHealth + ", " + estimator);
+			if (health == Health.BAD)
+				makeToast(R.string.network_profile_health_bad);
+			currentHealth = health;
 		}
-		//if (DEBUG) Log.i(TAG, "Avg rate " + avgRate + " kB/s, setting health " + currentHealth);
-		return currentHealth;
+		return health;
 	}
 	
 	@Override
@@ -181,6 +132,11 @@ public abstract class AbstractNetworkProfile implements NetworkProfile {
 		usageCounter++;
 	}
 
+	@Override
+	public void onThreadAutoRefreshed(Context context, Handler handler, String board, long threadId) {
+		if (DEBUG) Log.d(TAG, "onThreadAutoRefreshed called with board: " + board + " threadId: " + threadId);
+	}
+
 	@Override
 	public void onFullImageLoading(Context context, String board, long threadId, long postId) {
 		if (DEBUG) Log.d(TAG, "onFullImageLoading called with board: " + board + " threadId: " + threadId + " postId: " + postId);
@@ -202,8 +158,6 @@ public abstract class AbstractNetworkProfile implements NetworkProfile {
 	public void onDataFetchSuccess(ChanIdentifiedService service, int time, int size) {
 		if (DEBUG) Log.i(TAG, "finishedFetchingData called for " + service + " " + size + " bytes during " + time + "ms");
 		
-		storeDataTransfer(time, size);
-		
 		ChanActivityId data = service.getChanActivityId();
         if (DEBUG) Log.i(TAG, "fetchData success for /" + data.boardCode + "/" + data.threadNo + "/" + data.postNo + " priority=" + data.priority);
 
@@ -221,10 +175,17 @@ public abstract class AbstractNetworkProfile implements NetworkProfile {
 		}
 	}
 
+	@Override
+	public void onDataFetchAndParseSuccess(ChanIdentifiedService service, int time, int size) {
+		if (DEBUG) Log.i(TAG, "finishedFetchingAndParsingData called for " + service + " " + size + " bytes during " + time + "ms");
+		onDataParseSuccess(service);
+	}
+
 	@Override
 	public void onDataFetchFailure(ChanIdentifiedService service, Failure failure) {
 		if (DEBUG) Log.d(TAG, "failedFetchingData called for " + service);
-		storeFailedDataTransfer();
+		if (failure == Failure.NETWORK) // the others are answers, the connection worked
+			storeFailedDataTransfer();
         final ChanActivityId data = service.getChanActivityId();
         if (data == null || (data.threadNo > 0 && data.postNo > 0)) { // ignore post/image fetch failures
             if (DEBUG) Log.i(TAG, "null data or image fetch failure, ignoring");
@@ -283,7 +244,12 @@ public abstract class AbstractNetworkProfile implements NetworkProfile {
 	
 	@Override
 	public void onImageDownloadSuccess(Context context, int time, int size) {
-		storeDataTransfer(time, size);
+		storeDataTransfer(time, size, -1);
+	}
+
+	@Override
+	public void onTransferMeasured(int time, int size, int headersTime) {
+		storeDataTransfer(time, size, headersTime);
 	}
 
 	protected void makeToast(final String text) {
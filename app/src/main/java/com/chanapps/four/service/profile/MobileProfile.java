@@ -15,6 +15,7 @@ import com.chanapps.four.data.LastActivity;
 import com.chanapps.four.service.FetchChanDataService;
 import com.chanapps.four.service.FetchPopularThreadsService;
 import com.chanapps.four.service.NetworkProfileManager;
+import com.chanapps.four.service.PrefetchPlanner;
 import com.chanapps.four.widget.WidgetProviderUtils;
 
 public class MobileProfile extends AbstractNetworkProfile {
@@ -67,6 +68,8 @@ public class MobileProfile extends AbstractNetworkProfile {
         if (health == Health.NO_CONNECTION)
             return;
 
+        PrefetchPlanner.startPlanning(context);
+
         ChanIdentifiedActivity activity = NetworkProfileManager.instance().getActivity();
         ChanActivityId activityId = NetworkProfileManager.instance().getActivityId();
         if (activityId == null)
@@ -122,6 +125,7 @@ public class MobileProfile extends AbstractNetworkProfile {
     @Override
     public void onApplicationStart(Context context) {
         super.onApplicationStart(context);
+        PrefetchPlanner.startPlanning(context);
     }
 
     @Override
@@ -392,6 +396,20 @@ public class MobileProfile extends AbstractNetworkProfile {
         }
     }
 
+    @Override
+    public void onThreadAutoRefreshed(Context context, Handler handler, String boardCode, long threadNo) {
+        super.onThreadAutoRefreshed(context, handler, boardCode, threadNo);
+        if (getConnectionHealth() == Health.NO_CONNECTION) {
+            postStopMessage(handler, null);
+            return;
+        }
+        // in the foreground like a manual refresh, but a big thread refreshes from its tail and a quiet one gets a 304
+        boolean canFetch = FetchChanDataService.scheduleThreadFetch(context, boardCode, threadNo, true, false, true);
+        if (DEBUG) Log.i(TAG, "onThreadAutoRefreshed canFetch=" + canFetch + " handler=" + handler);
+        if (!canFetch)
+            postStopMessage(handler, null);
+    }
+
     @Override
     public void onDataFetchSuccess(ChanIdentifiedService service, int time, int size) {
         // default behaviour is to parse properly loaded item
@@ -0,0 +1,177 @@
+package com.chanapps.four.service.profile;
+
+import android.util.Log;
+
+import com.chanapps.four.service.profile.NetworkProfile.Health;
+
+/**
+ * Smoothed estimate of the connection quality, from the transfers a profile has seen.
+ *
+ * Throughput and latency are tracked apart.  A small api response says nothing about bandwidth, its time is
+ * almost all round trips, so it only feeds the latency, measured to the first byte when the caller knows it.
+ * A transfer of at least LARGE_TRANSFER_BYTES feeds the throughput over its body time as well.  Both are
+ * exponentially weighted moving averages, and network failures feed a third one with the failure ratio.
+ *
+ * Each average maps to a health level through thresholds, with hysteresis: to move up a level the average has
+ * to clear the threshold by HYSTERESIS, to move down it has to miss it by the same factor, so an average
+ * sitting on a boundary doesn't flip the health on every transfer.  The health is the worse of the two levels,
+ * BAD while the failure ratio is high, and the profile default until there are enough samples.
+ */
+public class NetworkEstimator {
+
+    private static final String TAG = NetworkEstimator.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int LARGE_TRANSFER_BYTES = 32 * 1024;
+
+    private static final double ALPHA = 0.2; // weight of a new sample
+    private static final double FAILURE_ALPHA = 0.25;
+    private static final int MIN_SAMPLES = 2;
+    private static final int MIN_FAILURE_SAMPLES = 3;
+    private static final double BAD_FAILURE_RATIO = 0.5;
+    private static final double RECOVERED_FAILURE_RATIO = 0.3;
+    private static final double HYSTERESIS = 1.3;
+    private static final long MAX_INACTIVITY_MS = 600000; // 10 min, older samples are for another network
+
+    // level boundaries VERY_SLOW|SLOW, SLOW|GOOD, GOOD|PERFECT
+    private static final double[] THROUGHPUT_KBS = { 10, 50, 200 };
+    private static final double[] LATENCY_MS = { 2000, 800, 300 };
+    private static final Health[] LEVELS = { Health.VERY_SLOW, Health.SLOW, Health.GOOD, Health.PERFECT };
+
+    private double throughput; // kB/s, same as bytes per ms
+    private int throughputSamples;
+    private int throughputLevel = -1;
+    private double latency; // ms
+    private int latencySamples;
+    private int latencyLevel = -1;
+    private double failureRatio;
+    private int failureSamples;
+    private boolean failing;
+    private long lastSampleTime;
+
+    /**
+     * Records a transfer of size bytes which took time ms, headersTime ms of them until the response headers
+     * arrived, or -1 when that is unknown.
+     */
+    public synchronized void transferred(int time, int size, int headersTime, long now) {
+        if (time < 0 || size < 0)
+            return;
+        lastSampleTime = now;
+        addOutcome(0);
+        boolean large = size >= LARGE_TRANSFER_BYTES;
+        if (headersTime >= 0 && headersTime <= time) {
+            addLatency(headersTime);
+            if (large)
+                addThroughput((double)size / Math.max(1, time - headersTime));
+        }
+        else if (large) {
+            addThroughput((double)size / Math.max(1, time));
+        }
+        else {
+            addLatency(time);
+        }
+        if (DEBUG) Log.i(TAG, "transfer " + size + "B in " + time + "ms headers=" + headersTime + "ms, " + this);
+    }
+
+    /**
+     * Records a transfer which failed on the network.
+     */
+    public synchronized void failed(long now) {
+        lastSampleTime = now;
+        addOutcome(1);
+        if (DEBUG) Log.i(TAG, "failure, " + this);
+    }
+
+    /**
+     * Forgets the samples if none came for a while.
+     */
+    public synchronized void expire(long now) {
+        if (lastSampleTime > 0 && now - lastSampleTime > MAX_INACTIVITY_MS) {
+            if (DEBUG) Log.i(TAG, "No transfers for " + ((now - lastSampleTime) / 1000) + "s, resetting");
+            reset();
+        }
+    }
+
+    public synchronized void reset() {
+        throughput = latency = failureRatio = 0;
+        throughputSamples = latencySamples = failureSamples = 0;
+        throughputLevel = latencyLevel = -1;
+        failing = false;
+        lastSampleTime = 0;
+    }
+
+    /**
+     * @return estimated health, or defaultHealth when there aren't enough samples yet
+     */
+    public synchronized Health getHealth(Health defaultHealth) {
+        if (failing)
+            return Health.BAD;
+        int level = -1;
+        if (throughputSamples >= MIN_SAMPLES)
+            level = throughputLevel;
+        if (latencySamples >= MIN_SAMPLES)
+            level = level < 0 ? latencyLevel : Math.min(level, latencyLevel);
+        return level < 0 ? defaultHealth : LEVELS[level];
+    }
+
+    /** @return smoothed throughput of large transfers in kB/s, 0 if none yet */
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    /** @return smoothed time to first byte in ms, 0 if none yet */
+    public synchronized double getLatency() {
+        return latency;
+    }
+
+    private void addThroughput(double kbs) {
+        throughput = throughputSamples == 0 ? kbs : ALPHA * kbs + (1 - ALPHA) * throughput;
+        throughputSamples++;
+        throughputLevel = nextLevel(throughputLevel, throughput, THROUGHPUT_KBS, true);
+    }
+
+    private void addLatency(double ms) {
+        latency = latencySamples == 0 ? ms : ALPHA * ms + (1 - ALPHA) * latency;
+        latencySamples++;
+        latencyLevel = nextLevel(latencyLevel, latency, LATENCY_MS, false);
+    }
+
+    private void addOutcome(int failure) {
+        failureRatio = FAILURE_ALPHA * failure + (1 - FAILURE_ALPHA) * failureRatio;
+        failureSamples++;
+        if (!failing && failureSamples >= MIN_FAILURE_SAMPLES && failureRatio > BAD_FAILURE_RATIO)
+            failing = true;
+        else if (failing && failureRatio < RECOVERED_FAILURE_RATIO)
+            failing = false;
+    }
+
+    private static int nextLevel(int current, double value, double[] bounds, boolean higherIsBetter) {
+        if (current < 0)
+            return level(value, bounds, higherIsBetter, 1);
+        int up = level(value, bounds, higherIsBetter, HYSTERESIS);
+        if (up > current)
+            return up;
+        int down = level(value, bounds, higherIsBetter, 1 / HYSTERESIS);
+        return down < current ? down : current;
+    }
+
+    /**
+     * @return number of bounds the value clears, each bound made stricter by margin above 1, looser below
+     */
+    private static int level(double value, double[] bounds, boolean higherIsBetter, double margin) {
+        int level = 0;
+        for (double bound : bounds) {
+            if (higherIsBetter ? value > bound * margin : value < bound / margin)
+                level++;
+        }
+        return level;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NetworkEstimator throughput=" + Math.round(throughput) + "kB/s (" + throughputSamples + ")"
+                + " latency=" + Math.round(latency) + "ms (" + latencySamples + ")"
+                + " failures=" + Math.round(failureRatio * 100) + "%" + (failing ? " failing" : "");
+    }
+
+}
@@ -26,10 +26,10 @@ public interface NetworkProfile {
 	/**
 	 * NO_CONNECTION - phisical connection not established
 	 * BAD - connection established but non of recent request worked
-	 * VERY_SLOW - data are received but at rate 10kB/s or slower
-	 * SLOW - data received at rate 50kB/s or slower
-	 * GOOD - data received at rate 200kB/s or slower
-	 * PERFECT - data received above rate 200kB/s
+	 * VERY_SLOW - data are received but at rate 10kB/s or slower, or first bytes take over 2s
+	 * SLOW - data received at rate 50kB/s or slower, or first bytes take over 800ms
+	 * GOOD - data received at rate 200kB/s or slower, or first bytes take over 300ms
+	 * PERFECT - data received above rate 200kB/s with first bytes in 300ms
 	 */
 	enum Health {NO_CONNECTION, BAD, VERY_SLOW, SLOW, GOOD, PERFECT};
 
@@ -101,6 +101,14 @@ public interface NetworkProfile {
 	 * @param threadId Thread id
 	 */
 	void onThreadRefreshed(Context context, Handler handler, String board, long threadId);
+
+	/**
+	 * Called when the open thread is due for its periodic update.  Unlike a refresh the user asked for it may
+	 * only fetch the tail of a big thread and send the stored validators.
+	 * @param board Board name
+	 * @param threadId Thread id
+	 */
+	void onThreadAutoRefreshed(Context context, Handler handler, String board, long threadId);
 	
 	/**
 	 * Called when user wants to open full image view.
@@ -125,6 +133,11 @@ public interface NetworkProfile {
 	 * Called when data fetch is finished. It's intended to decide what will be done next.
 	 */
 	void onDataFetchSuccess(ChanIdentifiedService service, int time, int size);
+
+	/**
+	 * Called when data was fetched and parsed in one pass, so no separate parse step will follow.
+	 */
+	void onDataFetchAndParseSuccess(ChanIdentifiedService service, int time, int size);
 	
 	/**
 	 * Called when data fetch has failed. It's intended to decide what will be done next.
@@ -144,5 +157,12 @@ public interface NetworkProfile {
 	/**
 	 * Called when image download is completed. It's intended to decide what will be done next.
 	 */
-	void onImageDownloadSuccess(Context context, int time, int size);	
+	void onImageDownloadSuccess(Context context, int time, int size);
+
+	/**
+	 * Called when a response was read to the end, with its network timing only.  Data fetch callbacks time
+	 * parsing and storing as well, so the connection health is estimated from these.
+	 * @param headersTime ms until the response headers arrived, -1 if unknown
+	 */
+	void onTransferMeasured(int time, int size, int headersTime);
 }
@@ -67,6 +67,12 @@ public class NoConnectionProfile extends AbstractNetworkProfile {
             });
     }
 
+    @Override
+    public void onThreadAutoRefreshed(Context context, Handler handler, String boardCode, long threadNo) {
+        super.onThreadAutoRefreshed(context, handler, boardCode, threadNo);
+        postStopMessage(handler, null); // nothing to tell, the next update tries again
+    }
+
     @Override
     public void onThreadRefreshed(Context context, Handler handler, String boardCode, long threadNo) {
         super.onThreadRefreshed(context, handler, boardCode, threadNo);
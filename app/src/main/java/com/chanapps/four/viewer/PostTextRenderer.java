@@ -0,0 +1,538 @@
+package com.chanapps.four.viewer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.ClickableSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.TextView;
+import com.chanapps.four.activity.R;
+import com.chanapps.four.data.ChanPost;
+
+/**
+ * Turns the sanitized post markup of the thread cursor into spanned text for ThreadViewer.
+ *
+ * The markup only holds br, b, i, u, s and font tags and quote, spoiler and link spans are set while the markup is
+ * scanned, so rows don't go through Html.fromHtml, the quote regex and the link patterns on every bind.  Rendered text
+ * is kept in an LRU keyed by post number, field and options and checked against the markup it was built from.
+ * Clickable spans don't hold listeners, they look them up in the tags of the TextView they are clicked in, so cached
+ * text can be shared between fragments.  Spoilers are the exception as revealing one changes its span, the cache only
+ * marks them and text with spoilers is handed out as a copy with spoiler spans of its own, hidden again on every bind.
+ */
+public class PostTextRenderer {
+
+    private static final String TAG = PostTextRenderer.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int CACHE_SIZE = 1024;
+    private static final int PRERENDER_POSTS = CACHE_SIZE / 3;
+
+    private static final int FIELD_HEADLINE = 0;
+    private static final int FIELD_SUBJECT = 1;
+    private static final int FIELD_TEXT = 2;
+
+    private static final int LINK_POSTS = 0x1;
+    private static final int LINK_IDS = 0x2;
+    private static final int LINK_EXIF = 0x4;
+    private static final int QUOTES = 0x8;
+
+    private static final int QUOTE_COLOR = 0xff7a9441;
+    private static final String ID_PREFIX = "Id: ";
+
+    private static class Entry {
+        final String source;
+        final Spanned spanned;
+        final boolean spoilers;
+
+        Entry(String source, Spanned spanned) {
+            this.source = source;
+            this.spanned = spanned;
+            spoilers = spanned.getSpans(0, spanned.length(), SpoilerMark.class).length > 0;
+        }
+
+        Spanned bind() {
+            return spoilers ? withSpoilerSpans(spanned) : spanned;
+        }
+    }
+
+    private static final LruCache<Long, Entry> cache = new LruCache<Long, Entry>(CACHE_SIZE);
+
+    public static Spanned headline(long postNo, String markup, boolean linkIds) {
+        return cached(postNo, FIELD_HEADLINE, linkIds ? LINK_IDS : 0, markup, null);
+    }
+
+    public static Spanned subject(long postNo, String markup, boolean linkPosts) {
+        return cached(postNo, FIELD_SUBJECT, linkPosts ? LINK_POSTS : 0, markup, null);
+    }
+
+    /**
+     * @param exifLabel text of the exif link appended to the post text, null for none
+     */
+    public static Spanned text(long postNo, String markup, boolean linkPosts, String exifLabel) {
+        int options = QUOTES | (linkPosts ? LINK_POSTS : 0) | (exifLabel != null ? LINK_EXIF : 0);
+        return cached(postNo, FIELD_TEXT, options, markup, exifLabel);
+    }
+
+    /**
+     * Renders the rows of a thread cursor into the cache the way ThreadFragment binds them.  Called by the loader before
+     * it hands out the cursor, so scrolling through the thread finds the text ready.
+     */
+    public static void prerender(Context context, Cursor cursor) {
+        long start = System.currentTimeMillis();
+        String exifLabel = context.getString(R.string.exif);
+        int idIdx = cursor.getColumnIndex(ChanPost.POST_ID);
+        int flagsIdx = cursor.getColumnIndex(ChanPost.POST_FLAGS);
+        int headlineIdx = cursor.getColumnIndex(ChanPost.POST_HEADLINE_TEXT);
+        int subjectIdx = cursor.getColumnIndex(ChanPost.POST_SUBJECT_TEXT);
+        int textIdx = cursor.getColumnIndex(ChanPost.POST_TEXT);
+        int sameIdsIdx = cursor.getColumnIndex(ChanPost.POST_SAME_IDS_BLOB);
+        int n = Math.min(cursor.getCount(), PRERENDER_POSTS);
+        for (int i = 0; i < n; i++) {
+            if (!cursor.moveToPosition(i))
+                break;
+            long postNo = cursor.getLong(idIdx);
+            int flags = cursor.getInt(flagsIdx);
+            String headline = cursor.getString(headlineIdx);
+            if (headline != null && !headline.isEmpty())
+                headline(postNo, headline, cursor.getBlob(sameIdsIdx) != null);
+            if ((flags & ChanPost.FLAG_HAS_SUBJECT) != 0)
+                subject(postNo, cursor.getString(subjectIdx), true);
+            if ((flags & (ChanPost.FLAG_HAS_TEXT | ChanPost.FLAG_HAS_EXIF)) != 0)
+                text(postNo, cursor.getString(textIdx), true, (flags & ChanPost.FLAG_HAS_EXIF) != 0 ? exifLabel : null);
+        }
+        cursor.moveToPosition(-1);
+        if (DEBUG) Log.i(TAG, "Prerendered " + n + " rows in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static Spanned cached(long postNo, int field, int options, String markup, String exifLabel) {
+        if (markup == null)
+            markup = "";
+        Long key = (postNo << 6) | (field << 4) | options;
+        Entry entry = cache.get(key);
+        if (entry == null || entry.source.hashCode() != markup.hashCode() || !entry.source.equals(markup)) {
+            entry = new Entry(markup, render(markup, options, exifLabel));
+            cache.put(key, entry);
+        }
+        return entry.bind();
+    }
+
+    /**
+     * @return a copy of the cached text with a fresh spoiler span on each spoiler mark
+     */
+    private static Spanned withSpoilerSpans(Spanned cached) {
+        SpannableString s = new SpannableString(cached);
+        for (SpoilerMark mark : s.getSpans(0, s.length(), SpoilerMark.class)) {
+            int start = s.getSpanStart(mark);
+            int end = s.getSpanEnd(mark);
+            s.removeSpan(mark);
+            s.setSpan(new SpoilerSpan(start, end), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return s;
+    }
+
+    private static final int BOLD = 0;
+    private static final int ITALIC = 1;
+    private static final int UNDERLINE = 2;
+    private static final int SPOILER = 3;
+    private static final int FONT = 4;
+
+    private static class Builder {
+        final StringBuilder out;
+        int[] spanType = new int[8];
+        int[] spanStart = new int[8];
+        int[] spanEnd = new int[8];
+        int[] spanColor = new int[8];
+        int spanCount = 0;
+        int[] openType = new int[4];
+        int[] openStart = new int[4];
+        int[] openColor = new int[4];
+        int openCount = 0;
+
+        Builder(String markup) {
+            out = new StringBuilder(markup.length());
+        }
+
+        void addSpan(int type, int start, int end, int color) {
+            if (spanCount == spanType.length) {
+                spanType = grow(spanType);
+                spanStart = grow(spanStart);
+                spanEnd = grow(spanEnd);
+                spanColor = grow(spanColor);
+            }
+            spanType[spanCount] = type;
+            spanStart[spanCount] = start;
+            spanEnd[spanCount] = end;
+            spanColor[spanCount] = color;
+            spanCount++;
+        }
+
+        void open(int type, int color) {
+            if (openCount == openType.length) {
+                openType = grow(openType);
+                openStart = grow(openStart);
+                openColor = grow(openColor);
+            }
+            openType[openCount] = type;
+            openStart[openCount] = out.length();
+            openColor[openCount] = color;
+            openCount++;
+        }
+
+        void close(int type) { // like Html.fromHtml, closes the innermost open tag of the type and drops unclosed ones
+            for (int i = openCount - 1; i >= 0; i--) {
+                if (openType[i] != type)
+                    continue;
+                if (openStart[i] != out.length())
+                    addSpan(type, openStart[i], out.length(), openColor[i]);
+                System.arraycopy(openType, i + 1, openType, i, openCount - i - 1);
+                System.arraycopy(openStart, i + 1, openStart, i, openCount - i - 1);
+                System.arraycopy(openColor, i + 1, openColor, i, openCount - i - 1);
+                openCount--;
+                return;
+            }
+        }
+
+        void appendText(char c) { // Html.fromHtml collapses spaces and newlines and drops them at the start of a line
+            if (c == ' ' || c == '\n') {
+                int len = out.length();
+                char pred = len == 0 ? '\n' : out.charAt(len - 1);
+                if (pred != ' ' && pred != '\n')
+                    out.append(' ');
+            }
+            else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static Spanned render(String markup, int options, String exifLabel) {
+        if (exifLabel != null)
+            markup += (markup.isEmpty() ? "" : " ") + "<b>" + exifLabel + "</b>";
+        Builder b = new Builder(markup);
+        String m = markup;
+        int length = m.length();
+        int quoteStart = -1;
+        int i = 0;
+        while (i < length) {
+            char c = m.charAt(i);
+            if (quoteStart >= 0 && (c == '<' || c == '>')) {
+                b.addSpan(FONT, quoteStart, b.out.length(), QUOTE_COLOR);
+                quoteStart = -1;
+            }
+            if (c == '<') {
+                int end = tagEnd(m, i);
+                if (end > 0) {
+                    handleTag(b, m, i + 1, end);
+                    i = end + 1;
+                    continue;
+                }
+            }
+            else if (c == '>' && (options & QUOTES) != 0 && startsQuote(m, i)) {
+                quoteStart = b.out.length();
+            }
+            if (c == '&') {
+                int semi = entityEnd(m, i);
+                if (semi > 0) {
+                    char decoded = decodeEntity(m, i + 1, semi);
+                    if (decoded != 0) {
+                        b.appendText(decoded);
+                        i = semi + 1;
+                        continue;
+                    }
+                }
+            }
+            b.appendText(c);
+            i++;
+        }
+        if (quoteStart >= 0)
+            b.addSpan(FONT, quoteStart, b.out.length(), QUOTE_COLOR);
+
+        String text = b.out.toString();
+        SpannableString s = new SpannableString(text);
+        for (int k = 0; k < b.spanCount; k++) {
+            int start = b.spanStart[k];
+            int end = b.spanEnd[k];
+            Object span;
+            switch (b.spanType[k]) {
+                case BOLD: span = new StyleSpan(Typeface.BOLD); break;
+                case ITALIC: span = new StyleSpan(Typeface.ITALIC); break;
+                case UNDERLINE: span = new UnderlineSpan(); break;
+                case SPOILER: span = new SpoilerMark(); break;
+                default: span = new ForegroundColorSpan(b.spanColor[k]); break;
+            }
+            s.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        if ((options & LINK_POSTS) != 0)
+            addPostLinks(s, text);
+        if ((options & LINK_IDS) != 0)
+            addIdLinks(s, text);
+        if ((options & LINK_EXIF) != 0 && text.endsWith(exifLabel))
+            s.setSpan(new ListenerSpan(R.id.EXIF_LISTENER), text.length() - exifLabel.length(), text.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        if (DEBUG) Log.v(TAG, "Rendered " + markup.length() + " chars into " + b.spanCount + " spans");
+        return s;
+    }
+
+    /**
+     * A bare > in the text starts a quote running up to the next tag or >, except in post links.  This follows the
+     * lookbehinds of the old quote regex, which was applied to the markup before parsing it.
+     */
+    private static boolean startsQuote(String m, int i) {
+        if (i + 1 >= m.length() || m.charAt(i + 1) == '<' || m.charAt(i + 1) == '>')
+            return false;
+        if (i >= 1 && (m.charAt(i - 1) == '/' || m.charAt(i - 1) == 'u'))
+            return false;
+        if (i >= 2 && m.charAt(i - 2) == '>' && m.charAt(i - 1) == '>')
+            return false;
+        if (i == 1 && m.charAt(0) == '>')
+            return false;
+        return true;
+    }
+
+    /**
+     * @return index of the > closing a tag starting at start, -1 if the < is text
+     */
+    private static int tagEnd(String m, int start) {
+        int i = start + 1;
+        if (i < m.length() && m.charAt(i) == '/')
+            i++;
+        if (i >= m.length() || !Character.isLetter(m.charAt(i)))
+            return -1;
+        for (; i < m.length(); i++) {
+            char c = m.charAt(i);
+            if (c == '>')
+                return i;
+            if (c == '<')
+                return -1;
+        }
+        return -1;
+    }
+
+    private static void handleTag(Builder b, String m, int from, int to) {
+        boolean closing = m.charAt(from) == '/';
+        int nameStart = closing ? from + 1 : from;
+        int nameEnd = nameStart;
+        while (nameEnd < to && Character.isLetter(m.charAt(nameEnd)))
+            nameEnd++;
+        String name = m.substring(nameStart, nameEnd).toLowerCase();
+        int type;
+        if (name.equals("br")) {
+            if (!closing)
+                b.out.append('\n');
+            return;
+        }
+        else if (name.equals("b") || name.equals("strong"))
+            type = BOLD;
+        else if (name.equals("i") || name.equals("em"))
+            type = ITALIC;
+        else if (name.equals("u"))
+            type = UNDERLINE;
+        else if (name.equals("s"))
+            type = SPOILER;
+        else if (name.equals("font"))
+            type = FONT;
+        else
+            return; // other tags don't occur in sanitized text, drop them
+        if (closing)
+            b.close(type);
+        else
+            b.open(type, type == FONT ? fontColor(m, nameEnd, to) : 0);
+    }
+
+    private static int fontColor(String m, int from, int to) {
+        int attr = m.indexOf("color=\"", from);
+        if (attr < 0 || attr >= to)
+            return 0;
+        int end = m.indexOf('"', attr + 7);
+        if (end < 0 || end > to)
+            return 0;
+        try {
+            return Color.parseColor(m.substring(attr + 7, end));
+        }
+        catch (IllegalArgumentException e) {
+            Log.e(TAG, "Unknown font color in " + m.substring(from, to));
+            return 0;
+        }
+    }
+
+    private static int entityEnd(String m, int amp) {
+        int limit = Math.min(m.length(), amp + 10);
+        for (int i = amp + 1; i < limit; i++) {
+            char c = m.charAt(i);
+            if (c == ';')
+                return i > amp + 1 ? i : -1;
+            if (!Character.isLetterOrDigit(c) && c != '#')
+                return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return char of the entity between from and to, 0 if not known
+     */
+    private static char decodeEntity(String m, int from, int to) {
+        String name = m.substring(from, to);
+        if (name.equals("amp"))
+            return '&';
+        if (name.equals("lt"))
+            return '<';
+        if (name.equals("gt"))
+            return '>';
+        if (name.equals("quot"))
+            return '"';
+        if (name.equals("apos"))
+            return '\'';
+        if (name.equals("nbsp"))
+            return '\u00a0';
+        if (name.length() > 1 && name.charAt(0) == '#') {
+            try {
+                int code = name.charAt(1) == 'x' || name.charAt(1) == 'X'
+                        ? Integer.parseInt(name.substring(2), 16)
+                        : Integer.parseInt(name.substring(1));
+                return code > 0 && code < 0xffff ? (char)code : 0;
+            }
+            catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Links >>123 post references, matching (>>(\d+))( \(OP\))? with the span on the first group.
+     */
+    private static void addPostLinks(Spannable s, String text) {
+        int length = text.length();
+        int i = 0;
+        while (i + 2 < length) {
+            if (text.charAt(i) != '>' || text.charAt(i + 1) != '>' || !isDigit(text.charAt(i + 2))) {
+                i++;
+                continue;
+            }
+            int end = i + 2;
+            while (end < length && isDigit(text.charAt(end)))
+                end++;
+            long postNo = -1;
+            try {
+                postNo = Long.parseLong(text.substring(i + 2, end));
+            }
+            catch (NumberFormatException e) {
+                Log.e(TAG, "Exception parsing long: " + text.substring(i + 2, end));
+            }
+            s.setSpan(new PostLinkSpan(postNo), i, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            i = end;
+        }
+    }
+
+    /**
+     * Links the user id of a headline, matching Id: ([A-Za-z0-9+./_:!-]+) with the span on the group.
+     */
+    private static void addIdLinks(Spannable s, String text) {
+        int i = text.indexOf(ID_PREFIX);
+        while (i >= 0) {
+            int start = i + ID_PREFIX.length();
+            int end = start;
+            while (end < text.length() && isIdChar(text.charAt(end)))
+                end++;
+            if (end > start)
+                s.setSpan(new ListenerSpan(R.id.SAME_ID_LISTENER), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            i = text.indexOf(ID_PREFIX, Math.max(end, i + 1));
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || isDigit(c) || "+./_:!-".indexOf(c) >= 0;
+    }
+
+    private static class PostLinkSpan extends ClickableSpan {
+        private final long postNo;
+
+        PostLinkSpan(long postNo) {
+            this.postNo = postNo;
+        }
+
+        @Override
+        public void onClick(View widget) {
+            Object listener = widget.getTag(R.id.POST_LINK_LISTENER);
+            if (listener instanceof SpannableOnClickListener)
+                ((SpannableOnClickListener)listener).onClick(widget, postNo);
+        }
+    }
+
+    private static class ListenerSpan extends ClickableSpan {
+        private final int tagId;
+
+        ListenerSpan(int tagId) {
+            this.tagId = tagId;
+        }
+
+        @Override
+        public void onClick(View widget) {
+            Object listener = widget.getTag(tagId);
+            if (listener instanceof View.OnClickListener)
+                ((View.OnClickListener)listener).onClick(widget);
+        }
+    }
+
+    /** Place of a spoiler in cached text, turned into a SpoilerSpan when the text is bound. */
+    private static final class SpoilerMark {
+    }
+
+    static class SpoilerSpan extends ClickableSpan {
+        private final int start;
+        private final int end;
+        private boolean blackout = true;
+
+        SpoilerSpan(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void onClick(View widget) {
+            if (!(widget instanceof TextView))
+                return;
+            TextView tv = (TextView) widget;
+            CharSequence cs = tv.getText();
+            if (!(cs instanceof Spannable))
+                return;
+            Spannable s = (Spannable) cs;
+            Object[] spans = s.getSpans(start, end, this.getClass());
+            if (spans == null || spans.length == 0)
+                return;
+            if (DEBUG)
+                Log.i(TAG, "Found " + spans.length + " spans");
+            blackout = false;
+            widget.invalidate();
+        }
+
+        @Override
+        public void updateDrawState(TextPaint ds) {
+            if (blackout) {
+                int textColor = ds.getColor();
+                ds.bgColor = textColor;
+            }
+        }
+    }
+
+}
@@ -41,13 +41,9 @@ import com.nostra13.universalimageloader.core.assist.ImageScaleType;
 import com.nostra13.universalimageloader.core.assist.ImageSize;
 import com.nostra13.universalimageloader.core.display.FadeInBitmapDisplayer;
 
-import org.xml.sax.XMLReader;
 
 import java.io.File;
 import java.net.URI;
-import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Created with IntelliJ IDEA. User: johnarleyburns Date: 5/10/13 Time: 3:32 PM
@@ -377,12 +373,7 @@ public class ThreadViewer {
     static protected int numDirectReplies(Cursor cursor) {
         byte[] b = cursor.getBlob(cursor
                 .getColumnIndex(ChanPost.POST_REPLIES_BLOB));
-        if (b == null || b.length == 0)
-            return 0;
-        HashSet<?> links = ChanPost.parseBlob(b);
-        if (links == null || links.size() <= 0)
-            return 0;
-        return links.size();
+        return ChanPost.blobCount(b);
     }
 
     static private boolean setHeaderValue(ThreadViewHolder viewHolder,
@@ -401,17 +392,16 @@ public class ThreadViewer {
         }
         // if (repliesOnClickListener != null || sameIdOnClickListener != null)
         // tv.setMovementMethod(LinkMovementMethod.getInstance());
-        Spannable spannable = Spannable.Factory.getInstance().newSpannable(
-                Html.fromHtml(text));
-        // if (repliesOnClickListener != null)
-        // addLinkedSpans(spannable, REPLY_PATTERN, repliesOnClickListener);
-        if (cursor.getBlob(cursor.getColumnIndex(ChanPost.POST_SAME_IDS_BLOB)) != null
-                && sameIdOnClickListener != null) {
+        boolean linkIds = cursor.getBlob(cursor.getColumnIndex(ChanPost.POST_SAME_IDS_BLOB)) != null
+                && sameIdOnClickListener != null;
+        long postNo = cursor.getLong(cursor.getColumnIndex(ChanPost.POST_ID));
+        Spanned spanned = PostTextRenderer.headline(postNo, text, linkIds);
+        if (linkIds) {
             tv.setMovementMethod(LinkMovementMethod.getInstance());
-            addLinkedSpans(spannable, ID_PATTERN, sameIdOnClickListener);
+            tv.setTag(R.id.SAME_ID_LISTENER, sameIdOnClickListener);
         }
         FontSize.sizeTextView(tv);
-        tv.setText(spannable);
+        tv.setText(spanned);
         tv.setVisibility(View.VISIBLE);
         return true;
     }
@@ -431,19 +421,19 @@ public class ThreadViewer {
                 .getColumnIndex(ChanPost.POST_SUBJECT_TEXT));
         if (DEBUG)
             Log.v(TAG, "setSubject text=" + text);
-        Spannable spannable = Spannable.Factory.getInstance().newSpannable(
-                Html.fromHtml(text, null, spoilerTagHandler));
-        if (spannable.length() > 0) {
+        long postNo = cursor.getLong(cursor.getColumnIndex(ChanPost.POST_ID));
+        Spanned spanned = PostTextRenderer.subject(postNo, text, backlinkOnClickListener != null);
+        if (spanned.length() > 0) {
             if ((flags & ChanPost.FLAG_IS_HEADER) > 0) {
                 tv.setTypeface(subjectTypeface);
             } else {
                 FontSize.sizeTextView(tv);
             }
-            tv.setText(spannable);
             if (backlinkOnClickListener != null) {
                 tv.setMovementMethod(LinkMovementMethod.getInstance());
-                addLinkedSpans(spannable, POST_PATTERN, backlinkOnClickListener);
+                tv.setTag(R.id.POST_LINK_LISTENER, backlinkOnClickListener);
             }
+            tv.setText(spanned);
             tv.setVisibility(View.VISIBLE);
         } else {
             tv.setText("");
@@ -488,106 +478,33 @@ public class ThreadViewer {
 
         String text = cursor.getString(cursor
                 .getColumnIndex(ChanPost.POST_TEXT));
-        String exifText = tv.getContext().getResources()
-                .getString(R.string.exif);
-        if ((flags & ChanPost.FLAG_HAS_EXIF) > 0 && exifOnClickListener != null)
-            text += (text.isEmpty() ? "" : " ") + "<b>" + exifText + "</b>";
-
-        String html = markupHtml(text);
-        // if (DEBUG) Log.i(TAG, "text before replace:" + text);
-        // if (DEBUG) Log.i(TAG, "text after  replace:" + html);
-        Spannable spannable = Spannable.Factory.getInstance().newSpannable(
-                Html.fromHtml(html, null, spoilerTagHandler));
-        if (spannable.length() == 0) {
+        String exifText = (flags & ChanPost.FLAG_HAS_EXIF) > 0 && exifOnClickListener != null
+                ? tv.getContext().getResources().getString(R.string.exif)
+                : null;
+        long postNo = cursor.getLong(cursor.getColumnIndex(ChanPost.POST_ID));
+        Spanned spanned = PostTextRenderer.text(postNo, text, backlinkOnClickListener != null, exifText);
+        if (spanned.length() == 0) {
             tv.setVisibility(View.GONE);
             tv.setText("");
             return true;
         }
 
-        if (backlinkOnClickListener != null || exifOnClickListener != null)
+        if (backlinkOnClickListener != null || exifOnClickListener != null) {
             tv.setMovementMethod(LinkMovementMethod.getInstance());
-        if ((flags & ChanPost.FLAG_HAS_EXIF) > 0 && exifOnClickListener != null)
-            addExifSpan(tv, spannable, exifOnClickListener);
-        if (backlinkOnClickListener != null)
-            addLinkedSpans(spannable, POST_PATTERN, backlinkOnClickListener);
+            tv.setTag(R.id.POST_LINK_LISTENER, backlinkOnClickListener);
+            tv.setTag(R.id.EXIF_LISTENER, exifOnClickListener);
+        }
 
-        // if (DEBUG) Log.v(TAG, "setText spannable=" + spannable + " len=" +
-        // spannable.length());
+        // if (DEBUG) Log.v(TAG, "setText spanned=" + spanned + " len=" +
+        // spanned.length());
         FontSize.sizeTextView(tv);
-        tv.setText(spannable);
+        tv.setText(spanned);
         tv.setVisibility(View.VISIBLE);
         return true;
     }
 
-    static private void addExifSpan(TextView tv, Spannable spannable,
-            final View.OnClickListener listener) {
-        if (listener == null)
-            return;
-        if (tv == null)
-            return;
-        ClickableSpan exif = new ClickableSpan() {
-            @Override
-            public void onClick(View widget) {
-                listener.onClick(widget);
-            }
-        };
-        String exifText = tv.getContext().getResources()
-                .getString(R.string.exif);
-        spannable.setSpan(exif, spannable.length() - exifText.length(),
-                spannable.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-    }
-
     static private final String QUOTE_RE = "((?<!<b|/|<br|u|>>|^>)>[^<>]+?(?=<br/?>)|(?<!<b|/|<br|u|>>|^>)>[^<>]+)";
     static private final String QUOTE_RE_REPLACE = "<font color=\"#7a9441\">$1</font>"; // #7a9441
-    static private final Pattern POST_PATTERN = Pattern
-            .compile("(>>(\\d+))( \\(OP\\))?");
-    // static private final Pattern REPLY_PATTERN =
-    // Pattern.compile("(1 Reply|\\d+ Replies)");
-    static private final Pattern ID_PATTERN = Pattern
-            .compile("Id: ([A-Za-z0-9+./_:!-]+)");
-
-    static private void addLinkedSpans(Spannable spannable, Pattern pattern,
-            final View.OnClickListener listener) {
-        if (listener == null)
-            return;
-        Matcher m = pattern.matcher(spannable);
-        while (m.find()) {
-            ClickableSpan popup = new ClickableSpan() {
-                @Override
-                public void onClick(View widget) {
-                    listener.onClick(widget);
-                }
-            };
-            spannable.setSpan(popup, m.start(1), m.end(1),
-                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-    }
-
-    static private void addLinkedSpans(Spannable spannable, Pattern pattern,
-            final SpannableOnClickListener listener) {
-        if (listener == null)
-            return;
-        Matcher m = pattern.matcher(spannable);
-        while (m.find()) {
-            String post = m.group(2);
-            long postNo = -1;
-            try {
-                postNo = Long.parseLong(post);
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Exception parsing long: " + post);
-            }
-            final long finalPostNo = postNo;
-            ClickableSpan popup = new ClickableSpan() {
-                @Override
-                public void onClick(View widget) {
-                    listener.onClick(widget, finalPostNo);
-                }
-            };
-            spannable.setSpan(popup, m.start(1), m.end(1),
-                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-    }
-
     static public String markupHtml(String in) {
         return in.replaceAll(QUOTE_RE, QUOTE_RE_REPLACE);
     }
@@ -1071,126 +988,6 @@ public class ThreadViewer {
         return true;
     }
 
-    static private final Html.TagHandler spoilerTagHandler = new Html.TagHandler() {
-        static private final String SPOILER_TAG = "s";
-
-        class SpoilerSpan extends ClickableSpan {
-            private int start = 0;
-            private int end = 0;
-            private boolean blackout = true;
-
-            public SpoilerSpan() {
-                super();
-            }
-
-            public SpoilerSpan(int start, int end) {
-                this();
-                this.start = start;
-                this.end = end;
-            }
-
-            @Override
-            public void onClick(View widget) {
-                if (!(widget instanceof TextView))
-                    return;
-                TextView tv = (TextView) widget;
-                CharSequence cs = tv.getText();
-                if (!(cs instanceof Spannable))
-                    return;
-                Spannable s = (Spannable) cs;
-                Object[] spans = s.getSpans(start, end, this.getClass());
-                if (spans == null || spans.length == 0)
-                    return;
-                if (DEBUG)
-                    Log.i(TAG, "Found " + spans.length + " spans");
-                blackout = false;
-                widget.invalidate();
-            }
-
-            @Override
-            public void updateDrawState(TextPaint ds) {
-                if (blackout) {
-                    int textColor = ds.getColor();
-                    ds.bgColor = textColor;
-                }
-            }
-        }
-
-        class SpanFactory {
-            public Class getSpanClass() {
-                return SpoilerSpan.class;
-            }
-
-            public Object getSpan(final int start, final int end) {
-                return new SpoilerSpan(start, end);
-            }
-        }
-
-        SpanFactory spanFactory = new SpanFactory();
-
-        public void handleTag(boolean opening, String tag, Editable output,
-                XMLReader xmlReader) {
-            if (SPOILER_TAG.equals(tag))
-                handleSpoiler(opening, output);
-        }
-
-        private void handleSpoiler(boolean opening, Editable output) {
-            if (opening)
-                handleSpoilerOpen(output);
-            else
-                handleSpoilerClose(output);
-        }
-
-        private void handleSpoilerOpen(Editable output) {
-            if (DEBUG)
-                Log.i(TAG, "handleSpoilerOpen(" + output + ")");
-            int len = output.length();
-            output.setSpan(spanFactory.getSpan(len, len), len, len,
-                    Spannable.SPAN_MARK_MARK);
-        }
-
-        private void handleSpoilerClose(Editable output) {
-            if (DEBUG)
-                Log.i(TAG, "handleSpoilerClose(" + output + ")");
-            int len = output.length();
-            Object obj = getFirst(output, spanFactory.getSpanClass());
-            int start = output.getSpanStart(obj);
-            output.removeSpan(obj);
-            if (start >= 0 && len >= 0 && start != len) {
-                output.setSpan(spanFactory.getSpan(start, len), start, len,
-                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                if (DEBUG)
-                    Log.i(TAG, "setSpan(" + start + ", " + len + ")");
-            }
-        }
-
-        private Object getFirst(Editable text, Class kind) {
-            Object[] objs = text.getSpans(0, text.length(), kind);
-            if (objs.length == 0)
-                return null;
-            if (DEBUG)
-                Log.i(TAG, "Found " + objs.length + " matching spans");
-            for (int i = 0; i < objs.length; i++) {
-                Object span = objs[i];
-                if (text.getSpanFlags(span) == Spannable.SPAN_MARK_MARK)
-                    return span;
-            }
-            return null;
-        }
-
-        private Object getLast(Editable text, Class kind) {
-            Object[] objs = text.getSpans(0, text.length(), kind);
-            if (objs.length == 0)
-                return null;
-            for (int i = objs.length - 1; i >= 0; i--) {
-                Object span = objs[i];
-                if (text.getSpanFlags(span) == Spannable.SPAN_MARK_MARK)
-                    return span;
-            }
-            return null;
-        }
-    };
-
     public static void clearBigImageView(final ImageView v) {
         new Thread(new Runnable() {
             @Override
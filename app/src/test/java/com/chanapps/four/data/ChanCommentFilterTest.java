@@ -0,0 +1,146 @@
+package com.chanapps.four.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the single pass filter against the regex chain it replaced, on api style comments and fuzzed fragments.
+ */
+public class ChanCommentFilterTest {
+
+    private static final String[] CORPUS = {
+            // quotes
+            "<a href=\"#p123\" class=\"quotelink\">&gt;&gt;123</a><br>Nice thread<br><span class=\"quote\">&gt;implying</span>",
+            "<a href=\"/g/thread/1#p2\" class=\"quotelink\">&gt;&gt;2</a><a href=\"#p3\" class=\"quotelink\">&gt;&gt;3</a> both",
+            "<a href=\"//boards.4chan.org/v/thread/9#p9\" class=\"quotelink\">&gt;&gt;&gt;/v/9</a> cross board",
+            "<span class=\"deadlink\">&gt;&gt;999</span> dead",
+            "<span class=\"quote\">&gt;be me</span><br><span class=\"quote\">&gt;greentext</span><br>end",
+            // spoilers
+            "<s>spoiler</s> text with <wbr>break",
+            "<s>a</s><s>b</s> <sup>1</sup> <small>s</small> </strong>",
+            "<s><span class=\"quote\">&gt;spoiled quote</span></s>",
+            // code blocks
+            "<pre class=\"prettyprint\">int main() {<br>    return a &lt; b &amp;&amp; c &gt; d;<br>}</pre>",
+            "<b>bold</b> <u>under</u> <i>it</i> <pre class=\"prettyprint\">code &lt;x&gt;</pre>",
+            // entities
+            "&#039;quotes&#039; &quot;dq&quot; &amp; amp",
+            "&amp;quot; &amp;#039; &amp;lt; &amp;amp; &#44; &#0044; &#x41; &#1234; &#abc;",
+            // links
+            "look at this http://example.com/<wbr>path<wbr>more",
+            "<a href=\"https://example.com/x?a=1&amp;b=2\" target=\"_blank\">https://example.com/x?a=1&amp;b=2</a>",
+            // exif
+            "<span class=\"abbr\">[EXIF data available. Click <a href=\"javascript:void(0)\" onclick=\"toggle('exif1')\">here</a>"
+                    + " to show/hide.]</span><br><table class=\"exif\" id=\"exif1\"><tr><td colspan=\"2\"><b>Camera-Specific"
+                    + " Properties:</b></td></tr><tr><td>Make</td><td>Canon</td></tr></table>",
+            "<span class=\"fortune\" style=\"color:#ff0000\"><br><br><b>Your fortune: Bad Luck</b></span>",
+            // line breaks
+            "line1<br><br><br>line2<br>",
+            "<br><br>leading and trailing<br><br>",
+            "<br/><br />x<br  />y",
+            "\u2028x<br>\r\n",
+            // malformed
+            "a < b and c > d",
+            "unclosed <span class=\"quote\" tag",
+            "<> empty </> tags <",
+            "<a href=\"#p1\" class=\"quotelink\">&gt;&gt;1",
+            "<span <b>nested</b>>",
+            "",
+    };
+
+    private static final String[] FRAGMENTS = {
+            "<br>", "<br/>", "<br />", "<s>", "</s>", "<b>", "</b>", "<span class=\"quote\">", "</span>",
+            "<a href=\"#p1\" class=\"quotelink\">", "</a>", "<wbr>", "<pre class=\"prettyprint\">", "</pre>",
+            "&gt;", "&lt;", "&amp;", "&quot;", "&#039;", "&#44;", "&#abc;", "&#;", "&", "#", "quot;", "lt;",
+            "<span class=\"abbr\">", "<table class=\"exif\">", "</table>", "\n", "\r", "\u2028", "\u0085", "\t",
+            " ", "  ", "x", "yz", "\u00e9\u4e2d", ">", "<", "<>", "</>", "<sp>", "</sx>", "<p>", "</p>", "s", "/",
+            "&#0039;",
+    };
+
+    private static final int FUZZED = 50000;
+    private static final int BENCHMARK_ROUNDS = 20000;
+
+    private static List<String> inputs() {
+        List<String> inputs = new ArrayList<String>(Arrays.asList(CORPUS));
+        Random random = new Random(11);
+        for (int i = 0; i < FUZZED; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = random.nextInt(14);
+            for (int j = 0; j < n; j++)
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            inputs.add(sb.toString());
+        }
+        return inputs;
+    }
+
+    @Test
+    public void sanitizeMatchesRegexChain() {
+        for (String html : inputs()) {
+            for (int mode = 0; mode < 4; mode++) {
+                boolean hidePostNumbers = (mode & 1) != 0;
+                boolean collapseNewlines = (mode & 2) != 0;
+                assertEquals("sanitize hide=" + hidePostNumbers + " collapse=" + collapseNewlines + " of " + escape(html),
+                        ChanCommentFilter.regexSanitize(html, hidePostNumbers, collapseNewlines),
+                        ChanCommentFilter.sanitize(html, hidePostNumbers, collapseNewlines));
+            }
+        }
+    }
+
+    @Test
+    public void textViewFilterMatchesRegexChain() {
+        for (String html : inputs()) {
+            for (int collapse = 0; collapse < 2; collapse++) {
+                assertEquals("textViewFilter collapse=" + (collapse == 1) + " of " + escape(html),
+                        ChanCommentFilter.regexTextViewFilter(html, collapse == 1),
+                        ChanCommentFilter.textViewFilter(html, collapse == 1));
+            }
+        }
+    }
+
+    @Test
+    public void sanitizeExamples() {
+        assertEquals(">>123<br/>Nice thread<br/>>implying", ChanCommentFilter.sanitize(CORPUS[0], false, false));
+        assertEquals("Nice thread<br/>>implying", ChanCommentFilter.sanitize(CORPUS[0], true, false));
+        assertEquals("Nice thread >implying", ChanCommentFilter.sanitize(CORPUS[0], true, true));
+        assertEquals("<s>spoiler</s> text with break", ChanCommentFilter.sanitize(CORPUS[5], true, false));
+        assertEquals("", ChanCommentFilter.sanitize(null, true, false));
+    }
+
+    @Test
+    public void fasterThanRegexChain() {
+        String[] comments = Arrays.copyOf(CORPUS, CORPUS.length - 1);
+        long regexNs = Long.MAX_VALUE;
+        long singlePassNs = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < 3; round++) { // the best of three, the first warms up
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                for (String html : comments)
+                    sink += ChanCommentFilter.regexSanitize(html, false, false).length();
+            long middle = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                for (String html : comments)
+                    sink += ChanCommentFilter.sanitize(html, false, false).length();
+            long end = System.nanoTime();
+            regexNs = Math.min(regexNs, middle - start);
+            singlePassNs = Math.min(singlePassNs, end - middle);
+        }
+        long filtered = (long)BENCHMARK_ROUNDS * comments.length;
+        System.out.println("ChanCommentFilter per comment: regex chain " + regexNs / filtered + "ns, single pass "
+                + singlePassNs / filtered + "ns (" + sink + ")");
+        assertTrue("single pass " + singlePassNs + "ns not faster than regex chain " + regexNs + "ns",
+                singlePassNs < regexNs);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\n", "\\n").replace("\r", "\\r").replace("\u2028", "\\u2028").replace("\u0085", "\\u0085")
+                .replace("\t", "\\t");
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.chanapps.four.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChanDataCacheTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 200000;
+    private static final int KEYS = 500;
+    private static final long MAX_WEIGHT = 64 * 1024;
+
+    /** A value whose weight changes in place, like a thread that gets posts merged. */
+    private static class Value {
+        volatile int size;
+
+        Value(int size) {
+            this.size = size;
+        }
+    }
+
+    private static class ValueCache extends ChanDataCache<Integer, Value> {
+        ValueCache(long maxWeight) {
+            super("test", maxWeight);
+        }
+
+        @Override
+        protected long weigh(Value value) {
+            return value.size;
+        }
+    }
+
+    @Test
+    public void putAndGet() {
+        ValueCache cache = new ValueCache(MAX_WEIGHT);
+        Value value = new Value(100);
+        cache.put(1, value);
+        assertSame(value, cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals(100, cache.weight());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertSame(value, cache.remove(1));
+        assertEquals(0, cache.weight());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyAccessed() {
+        ValueCache cache = new ValueCache(1000);
+        for (int i = 0; i < 10; i++)
+            cache.put(i, new Value(100));
+        assertNotNull(cache.get(0)); // 0 is now the most recently accessed
+        cache.put(10, new Value(100));
+        assertTrue(cache.weight() <= 900);
+        assertTrue(cache.containsKey(0));
+        assertTrue(cache.containsKey(10));
+        assertFalse(cache.containsKey(1));
+        assertEquals(cache.size() * 100, cache.weight());
+    }
+
+    @Test
+    public void rePutAfterMergeReweighs() {
+        ValueCache cache = new ValueCache(MAX_WEIGHT);
+        Value value = new Value(100);
+        cache.put(1, value);
+        value.size = 300; // merged in place
+        assertEquals(100, cache.weight());
+        cache.put(1, value);
+        assertEquals(300, cache.weight());
+        value.size = 50;
+        cache.put(1, value);
+        assertEquals(50, cache.weight());
+    }
+
+    @Test
+    public void reweighChangedInPlace() {
+        ValueCache cache = new ValueCache(1000);
+        Value value = new Value(100);
+        cache.put(1, value);
+        cache.put(2, new Value(100));
+        value.size = 700;
+        assertTrue(cache.reweigh(1, value));
+        assertEquals(800, cache.weight());
+        assertFalse(cache.reweigh(1, new Value(5))); // not the cached value
+        assertFalse(cache.reweigh(3, value));
+        assertEquals(800, cache.weight());
+        value.size = 2000; // over the budget, evicts down to it
+        assertTrue(cache.reweigh(1, value));
+        assertTrue(cache.weight() <= 1000);
+    }
+
+    @Test
+    public void concurrentAccessKeepsWeightConsistent() throws Exception {
+        final ValueCache cache = new ValueCache(MAX_WEIGHT);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            Integer key = random.nextInt(KEYS);
+                            int op = random.nextInt(10);
+                            if (op < 5) {
+                                cache.get(key);
+                            }
+                            else if (op < 8) {
+                                cache.put(key, new Value(1 + random.nextInt(1024)));
+                            }
+                            else if (op < 9) {
+                                cache.remove(key);
+                            }
+                            else if (random.nextBoolean()) {
+                                cache.trimTo(MAX_WEIGHT / 2);
+                            }
+                            else {
+                                for (Integer k : cache.keySet())
+                                    if (k < 0)
+                                        throw new AssertionError("bad key " + k);
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        long weight = 0;
+        for (Integer key : cache.keySet()) {
+            Value value = cache.get(key);
+            assertNotNull(value);
+            weight += value.size;
+        }
+        assertEquals(weight, cache.weight());
+        assertTrue("weight " + cache.weight() + " over budget", cache.weight() <= MAX_WEIGHT);
+        assertTrue(cache.evictionCount() > 0);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void concurrentMergesAndReweighs() throws Exception {
+        final ValueCache cache = new ValueCache(MAX_WEIGHT * 16);
+        final Value[] values = new Value[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            values[i] = new Value(100);
+            cache.put(i, values[i]);
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // each thread owns every THREADS-th key, as a fetch owns the thread it merges
+                    for (int i = 0; i < OPERATIONS / 10; i++) {
+                        int key = first + THREADS * (i % (KEYS / THREADS));
+                        synchronized (values[key]) {
+                            values[key].size = 100 + (i % 7) * 10;
+                            if (i % 2 == 0)
+                                cache.put(key, values[key]);
+                            else
+                                cache.reweigh(key, values[key]);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long weight = 0;
+        for (Integer key : cache.keySet())
+            weight += values[key].size;
+        assertEquals(weight, cache.weight());
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.chanapps.four.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import com.chanapps.four.service.BoardParserService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads api shaped thread and catalog documents with ChanJsonReader and with the JsonNode and ObjectMapper path it
+ * replaced, checks both give the same posts and compares posts per second.
+ */
+public class ChanJsonReaderTest {
+
+    private static final int THREAD_POSTS = 1500;
+    private static final int CATALOG_PAGES = 10;
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    private static String post(Random random, long no, boolean op) {
+        StringBuilder sb = new StringBuilder("{\"no\":" + no + ",\"now\":\"01/02/14(Thu)12:00:" + random.nextInt(60)
+                + "\",\"name\":\"Anonymous\",\"time\":" + (1390000000 + no) + ",\"resto\":" + (op ? 0 : 1000)
+                + ",\"id\":\"abc" + random.nextInt(999) + "\",\"country\":\"US\",\"country_name\":\"United States\""
+                + ",\"md5\":\"Zm9vYmFyYmF6cXV4cXV1eA==\",\"unique_ips\":12,");
+        if (op)
+            sb.append("\"sticky\":0,\"closed\":0,\"sub\":\"Thread " + no + "\",\"replies\":" + random.nextInt(300)
+                    + ",\"images\":" + random.nextInt(100) + ",\"bumplimit\":0,\"imagelimit\":0,\"omitted_posts\":5"
+                    + ",\"omitted_images\":2,\"semantic_url\":\"thread-" + no + "\",");
+        if (random.nextBoolean())
+            sb.append("\"filename\":\"img" + no + "\",\"ext\":\".jpg\",\"w\":1920,\"h\":1080,\"tn_w\":250,\"tn_h\":140"
+                    + ",\"tim\":" + (1390000000000L + no) + ",\"fsize\":" + random.nextInt(3000000) + ",\"spoiler\":0,");
+        sb.append("\"com\":\"<a href=\\\"#p" + (no - 1) + "\\\" class=\\\"quotelink\\\">&gt;&gt;" + (no - 1)
+                + "</a><br>");
+        int n = 20 + random.nextInt(300);
+        for (int i = 0; i < n; i++)
+            sb.append((char)('a' + random.nextInt(26)));
+        return sb.append(" \\u00e9 end\"}").toString();
+    }
+
+    private static byte[] thread() throws IOException {
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder("{\"posts\":[");
+        for (int i = 0; i < THREAD_POSTS; i++)
+            sb.append(i > 0 ? "," : "").append(post(random, 1000 + i, i == 0));
+        return sb.append("]}").toString().getBytes("UTF-8");
+    }
+
+    private static byte[] catalog() throws IOException {
+        Random random = new Random(2);
+        StringBuilder sb = new StringBuilder("[");
+        long no = 5000;
+        for (int page = 0; page < CATALOG_PAGES; page++) {
+            sb.append(page > 0 ? "," : "").append("{\"page\":" + (page + 1) + ",\"threads\":[");
+            for (int t = 0; t < 15; t++) {
+                String op = post(random, no++, true);
+                sb.append(t > 0 ? "," : "").append(op, 0, op.length() - 1).append(",\"last_replies\":[");
+                for (int k = 0; k < 5; k++)
+                    sb.append(k > 0 ? "," : "").append(post(random, no++, false));
+                sb.append("]}");
+            }
+            sb.append("]}");
+        }
+        return sb.append("]").toString().getBytes("UTF-8");
+    }
+
+    private static JsonParser parser(byte[] json) throws IOException {
+        return BoardParserService.createJsonParser(new ByteArrayInputStream(json));
+    }
+
+    // the JsonNode and ObjectMapper path the parser services used before
+
+    private static List<ChanPost> mapThread(byte[] json) throws IOException {
+        ObjectMapper mapper = BoardParserService.getJsonMapper();
+        JsonNode root = mapper.readValue(json, 0, json.length, JsonNode.class);
+        List<ChanPost> posts = new ArrayList<ChanPost>();
+        for (JsonNode postValue : root.path("posts"))
+            posts.add(mapper.readValue(postValue, ChanPost.class));
+        return posts;
+    }
+
+    private static List<ChanPost> mapCatalog(byte[] json) throws IOException {
+        ObjectMapper mapper = BoardParserService.getJsonMapper();
+        List<ChanPost> threads = new ArrayList<ChanPost>();
+        JsonParser jp = parser(json);
+        jp.nextToken();
+        while (jp.nextToken() != JsonToken.END_ARRAY) {
+            JsonNode pageNode = jp.readValueAsTree();
+            for (JsonNode threadValue : pageNode.path("threads"))
+                threads.add(mapper.readValue(threadValue, ChanThread.class));
+        }
+        jp.close();
+        return threads;
+    }
+
+    private static List<ChanPost> readThread(byte[] json) throws IOException {
+        JsonParser jp = parser(json);
+        jp.nextToken();
+        List<ChanPost> posts = ChanJsonReader.nextField(jp, "posts")
+                ? ChanJsonReader.readPosts(jp, null)
+                : new ArrayList<ChanPost>();
+        jp.close();
+        return posts;
+    }
+
+    private static List<ChanPost> readCatalog(byte[] json) throws IOException {
+        List<ChanPost> threads = new ArrayList<ChanPost>();
+        JsonParser jp = parser(json);
+        jp.nextToken();
+        while (jp.nextToken() == JsonToken.START_OBJECT) {
+            if (!ChanJsonReader.nextField(jp, "threads"))
+                continue;
+            while (jp.nextToken() == JsonToken.START_OBJECT)
+                threads.add(ChanJsonReader.readThread(jp, null));
+            ChanJsonReader.skipRestOfObject(jp);
+        }
+        jp.close();
+        return threads;
+    }
+
+    private static int count(List<ChanPost> posts) {
+        int n = posts.size();
+        for (ChanPost post : posts)
+            if (post instanceof ChanThread)
+                n += ((ChanThread)post).lastReplies.length;
+        return n;
+    }
+
+    /** Public fields of the posts, the last replies of catalog threads included. */
+    private static String dump(List<ChanPost> posts) throws IllegalAccessException {
+        StringBuilder sb = new StringBuilder();
+        for (ChanPost post : posts)
+            dump(post, sb);
+        return sb.toString();
+    }
+
+    private static void dump(ChanPost post, StringBuilder sb) throws IllegalAccessException {
+        for (Field field : post.getClass().getFields()) {
+            if (Modifier.isStatic(field.getModifiers()))
+                continue;
+            Object value = field.get(post);
+            if (value instanceof ChanPost[]) {
+                for (ChanPost p : (ChanPost[])value)
+                    dump(p, sb);
+            }
+            else {
+                sb.append(field.getName()).append('=')
+                        .append(value instanceof Object[] ? Arrays.deepToString((Object[])value) : value).append(';');
+            }
+        }
+        sb.append('\n');
+    }
+
+    @Test
+    public void threadMatchesObjectMapper() throws Exception {
+        byte[] json = thread();
+        List<ChanPost> posts = readThread(json);
+        assertEquals(THREAD_POSTS, posts.size());
+        assertEquals(dump(mapThread(json)), dump(posts));
+    }
+
+    @Test
+    public void catalogMatchesObjectMapper() throws Exception {
+        byte[] json = catalog();
+        List<ChanPost> threads = readCatalog(json);
+        assertEquals(CATALOG_PAGES * 15 * 6, count(threads));
+        assertEquals(dump(mapCatalog(json)), dump(threads));
+    }
+
+    @Test
+    public void unknownAndMistypedFieldsAreSkipped() throws Exception {
+        byte[] json = ("{\"posts\":[{\"no\":12,\"extra\":{\"a\":[1,{\"b\":2}]},\"w\":\"x\",\"sticky\":true,"
+                + "\"sub\":null,\"com\":\"text\",'name':'single quoted'}]}").getBytes("UTF-8");
+        List<ChanPost> posts = readThread(json);
+        assertEquals(1, posts.size());
+        ChanPost post = posts.get(0);
+        assertEquals(12, post.no);
+        assertEquals(0, post.w);
+        assertEquals(1, post.sticky);
+        assertEquals(null, post.sub);
+        assertEquals("text", post.com);
+        assertEquals("single quoted", post.name);
+    }
+
+    @Test
+    public void fasterThanObjectMapper() throws Exception {
+        byte[] thread = thread();
+        byte[] catalog = catalog();
+        long mapNs = Long.MAX_VALUE;
+        long readNs = Long.MAX_VALUE;
+        int posts = 0;
+        for (int round = 0; round < 5; round++) { // the best of five, the first warms up
+            posts = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                posts += count(mapThread(thread)) + count(mapCatalog(catalog));
+            long middle = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                posts -= count(readThread(thread)) + count(readCatalog(catalog));
+            long end = System.nanoTime();
+            mapNs = Math.min(mapNs, middle - start);
+            readNs = Math.min(readNs, end - middle);
+        }
+        long read = (long)BENCHMARK_ROUNDS * (THREAD_POSTS + CATALOG_PAGES * 15 * 6);
+        System.out.println("ChanJsonReader thread and catalog: ObjectMapper " + read * 1000000000L / mapNs
+                + " posts/s, ChanJsonReader " + read * 1000000000L / readNs + " posts/s");
+        assertEquals(0, posts);
+        assertTrue("ChanJsonReader " + readNs + "ns not faster than ObjectMapper " + mapNs + "ns", readNs < mapNs);
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.chanapps.four.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips post number blobs in both formats and times the delta varint encoding against the serialized
+ * HashSet it replaced.
+ */
+public class ChanPostBlobTest {
+
+    private static final int BENCHMARK_ROUNDS = 2000;
+
+    private static long[] postNos(int n, long seed) {
+        Random random = new Random(seed);
+        HashSet<Long> set = new HashSet<Long>();
+        while (set.size() < n)
+            set.add(812000000L + random.nextInt(5000));
+        long[] postNos = new long[n];
+        int i = 0;
+        for (Long postNo : set)
+            postNos[i++] = postNo;
+        return postNos;
+    }
+
+    private static HashSet<Long> set(long[] postNos) {
+        HashSet<Long> set = new HashSet<Long>();
+        for (long postNo : postNos)
+            set.add(postNo);
+        return set;
+    }
+
+    private static byte[] serialize(HashSet<Long> set) { // the old ChanPost.blobify
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(set);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static HashSet<?> deserialize(byte[] b) { // the old ChanPost.parseBlob
+        try {
+            return (HashSet<?>)new ObjectInputStream(new ByteArrayInputStream(b)).readObject();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        for (int n : new int[] { 1, 2, 10, 50, 500 }) {
+            long[] postNos = postNos(n, n);
+            byte[] b = ChanPost.blobify(postNos);
+            long[] sorted = postNos.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(sorted, ChanPost.parsePostNos(b));
+            assertEquals(n, ChanPost.blobCount(b));
+            assertEquals(set(postNos), ChanPost.parseBlob(b));
+        }
+    }
+
+    @Test
+    public void readsSerializedBlobs() {
+        long[] postNos = postNos(10, 3);
+        byte[] old = serialize(set(postNos));
+        long[] sorted = postNos.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(sorted, ChanPost.parsePostNos(old));
+        assertEquals(10, ChanPost.blobCount(old));
+        assertEquals(set(postNos), ChanPost.parseBlob(old));
+    }
+
+    @Test
+    public void emptyBlobs() {
+        assertEquals(null, ChanPost.blobify(new long[0]));
+        assertEquals(null, ChanPost.parsePostNos(null));
+        assertEquals(0, ChanPost.blobCount(null));
+    }
+
+    @Test
+    public void smallerAndFasterThanSerializedSets() {
+        for (int n : new int[] { 1, 10, 50 }) {
+            long[] postNos = postNos(n, 17);
+            HashSet<Long> set = set(postNos);
+            byte[] old = serialize(set);
+            byte[] b = ChanPost.blobify(postNos);
+            long encodeOld = Long.MAX_VALUE;
+            long encodeNew = Long.MAX_VALUE;
+            long decodeOld = Long.MAX_VALUE;
+            long decodeNew = Long.MAX_VALUE;
+            long sink = 0;
+            for (int round = 0; round < 5; round++) { // the best of five, the first warms up
+                long t0 = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                    sink += serialize(set).length;
+                long t1 = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                    sink += ChanPost.blobify(postNos).length;
+                long t2 = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                    sink += deserialize(old).size();
+                long t3 = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                    sink += ChanPost.parsePostNos(b).length;
+                long t4 = System.nanoTime();
+                encodeOld = Math.min(encodeOld, t1 - t0);
+                encodeNew = Math.min(encodeNew, t2 - t1);
+                decodeOld = Math.min(decodeOld, t3 - t2);
+                decodeNew = Math.min(decodeNew, t4 - t3);
+            }
+            System.out.println("ChanPost blob of " + n + ": " + old.length + " -> " + b.length + " bytes, encode "
+                    + encodeOld / BENCHMARK_ROUNDS + " -> " + encodeNew / BENCHMARK_ROUNDS + "ns, decode "
+                    + decodeOld / BENCHMARK_ROUNDS + " -> " + decodeNew / BENCHMARK_ROUNDS + "ns (" + sink + ")");
+            assertTrue(b.length < old.length);
+            assertTrue("encode " + encodeNew + "ns not faster than " + encodeOld + "ns", encodeNew < encodeOld);
+            assertTrue("decode " + decodeNew + "ns not faster than " + decodeOld + "ns", decodeNew < decodeOld);
+        }
+    }
+
+}
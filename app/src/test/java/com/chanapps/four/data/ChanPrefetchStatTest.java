@@ -0,0 +1,89 @@
+package com.chanapps.four.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how opens and the prefetch ttl count as hits, misses and expired prefetches.
+ */
+public class ChanPrefetchStatTest {
+
+    private static final long NOW = 1390000000000L;
+    private static final long TTL = ChanPrefetchStat.PREFETCH_TTL_MS;
+
+    @Test
+    public void openWhilePendingIsAHit() {
+        ChanPrefetchStat stats = new ChanPrefetchStat();
+        stats.prefetched("a", 1024, NOW);
+        assertTrue(stats.isPending("a", NOW + TTL));
+        stats.opened("a", NOW + TTL);
+        assertEquals(1, stats.hits);
+        assertEquals(0, stats.misses);
+        assertFalse(stats.isPending("a", NOW + TTL));
+        stats.opened("a", NOW + TTL); // a second open wasn't served by the prefetch
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+    }
+
+    @Test
+    public void openOfAnythingElseIsAMiss() {
+        ChanPrefetchStat stats = new ChanPrefetchStat();
+        stats.prefetched("a", 1024, NOW);
+        stats.opened(ChanPrefetchStat.threadKey("a", 123), NOW + 1000);
+        assertEquals(0, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(0, stats.expired);
+        assertTrue(stats.isPending("a", NOW + 1000));
+    }
+
+    @Test
+    public void openAfterTtlIsExpiredAndAMiss() {
+        ChanPrefetchStat stats = new ChanPrefetchStat();
+        stats.prefetched("a", 1024, NOW);
+        assertFalse(stats.isPending("a", NOW + TTL + 1));
+        stats.opened("a", NOW + TTL + 1);
+        assertEquals(0, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.expired);
+    }
+
+    @Test
+    public void planningExpiresUnopenedPrefetches() {
+        ChanPrefetchStat stats = new ChanPrefetchStat();
+        stats.prefetched("a", 1024, NOW);
+        stats.prefetched("b", 1024, NOW + TTL);
+        stats.planned(NOW + TTL + 1);
+        assertEquals(1, stats.runs);
+        assertEquals(1, stats.expired);
+        assertEquals(1, stats.pending.size());
+        assertTrue(stats.isPending("b", NOW + TTL + 1));
+        stats.opened("a", NOW + TTL + 2); // expired already, counted once
+        assertEquals(1, stats.expired);
+        assertEquals(1, stats.misses);
+    }
+
+    @Test
+    public void ratesAndReset() {
+        ChanPrefetchStat stats = new ChanPrefetchStat();
+        assertEquals(0, stats.hitRate(), 0);
+        assertEquals(0, stats.precision(), 0);
+        for (int i = 0; i < 4; i++)
+            stats.prefetched("b" + i, 2048, NOW);
+        stats.opened("b0", NOW + 1);
+        stats.opened("b1", NOW + 1);
+        stats.opened("c", NOW + 1);
+        assertEquals(4, stats.prefetched);
+        assertEquals(8192, stats.prefetchedBytes);
+        assertEquals(2.0 / 3, stats.hitRate(), 1e-9);
+        assertEquals(0.5, stats.precision(), 1e-9);
+        stats.reset();
+        assertEquals(0, stats.prefetched);
+        assertEquals(0, stats.hits);
+        assertEquals(0, stats.misses);
+        assertTrue(stats.pending.isEmpty());
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.chanapps.four.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chanapps.four.service.BoardParserService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips threads and boards through the binary record files and compares their size and load and store time
+ * with the json files written through the ObjectMapper before.
+ */
+public class ChanRecordCodecTest {
+
+    private static final int THREAD_POSTS = 800;
+    private static final int BOARD_THREADS = 150;
+    private static final int BENCHMARK_ROUNDS = 50;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("records", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+
+    private static ChanThread thread(long threadNo, int size, Random random) {
+        ChanThread thread = new ChanThread();
+        thread.board = "g";
+        thread.no = threadNo;
+        thread.lastFetched = 1390000000000L + threadNo;
+        thread.created = new Date(1390000000000L);
+        thread.sub = "Thread " + threadNo;
+        List<ChanPost> posts = new ArrayList<ChanPost>(size);
+        long no = threadNo;
+        long time = 1390000000;
+        for (int i = 0; i < size; i++) {
+            ChanPost post = new ChanPost();
+            post.board = "g";
+            post.no = no;
+            post.time = time;
+            post.resto = i == 0 ? 0 : threadNo;
+            post.name = "Anonymous";
+            post.now = "01/02/14(Thu)12:00";
+            post.id = i % 5 == 0 ? "abcdEFGH" : null;
+            post.com = "<a href=\"#p" + (no - 3) + "\" class=\"quotelink\">&gt;&gt;" + (no - 3)
+                    + "</a><br>some comment text n\u00famero " + i;
+            if (i % 3 == 0) {
+                post.tim = 1390000000000L + no;
+                post.ext = ".jpg";
+                post.filename = "file" + i;
+                post.w = 1000;
+                post.h = 800;
+                post.tn_w = 250;
+                post.tn_h = 200;
+                post.fsize = 100000 + random.nextInt(2000000);
+            }
+            posts.add(post);
+            no += 1 + random.nextInt(50);
+            time += random.nextInt(100);
+        }
+        thread.posts = posts.toArray(new ChanPost[posts.size()]);
+        return thread;
+    }
+
+    private static ChanBoard board(Random random) {
+        ChanBoard board = new ChanBoard();
+        board.link = "g";
+        board.boardType = BoardType.ALL_BOARDS;
+        board.lastFetched = 1390000000000L;
+        board.threads = new ChanThread[BOARD_THREADS];
+        for (int i = 0; i < BOARD_THREADS; i++)
+            board.threads[i] = thread(40000000 + i * 1000, 1, random);
+        board.loadedThreads = new ChanThread[] { board.threads[0] };
+        return board;
+    }
+
+    private static String json(Object o) throws IOException {
+        return BoardParserService.getJsonMapper().writeValueAsString(o);
+    }
+
+    @Test
+    public void threadRoundTrip() throws IOException {
+        ChanThread thread = thread(1000, THREAD_POSTS, new Random(1));
+        File file = new File(dir, "t_1000.dat");
+        ChanRecordCodec.writeThread(file, thread);
+        assertTrue(ChanRecordCodec.isRecordFile(file));
+        assertEquals(json(thread), json(ChanRecordCodec.readThread(file)));
+    }
+
+    @Test
+    public void boardRoundTrip() throws IOException {
+        ChanBoard board = board(new Random(2));
+        File file = new File(dir, "g.dat");
+        ChanRecordCodec.writeBoard(file, board);
+        assertEquals(json(board), json(ChanRecordCodec.readBoard(file)));
+    }
+
+    @Test
+    public void jsonIsNotARecordFile() throws IOException {
+        File file = new File(dir, "t_1000.txt");
+        BoardParserService.getJsonMapper().writeValue(file, thread(1000, 3, new Random(3)));
+        assertFalse(ChanRecordCodec.isRecordFile(file));
+    }
+
+    @Test
+    public void smallerAndFasterThanJson() throws IOException {
+        ObjectMapper mapper = BoardParserService.getJsonMapper();
+        ChanThread thread = thread(1000, THREAD_POSTS, new Random(1));
+        File json = new File(dir, "t_1000.txt");
+        File record = new File(dir, "t_1000.dat");
+        long storeJson = Long.MAX_VALUE;
+        long storeRecord = Long.MAX_VALUE;
+        long loadJson = Long.MAX_VALUE;
+        long loadRecord = Long.MAX_VALUE;
+        long sink = 0;
+        mapper.writeValue(json, thread);
+        ChanRecordCodec.writeThread(record, thread);
+        for (int round = 0; round < 5; round++) { // the best of five, the first warms up
+            // record files are synced and json files weren't, so stores compare encoding only
+            long t0 = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                sink += mapper.writeValueAsBytes(thread).length;
+            long t1 = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                sink += ChanRecordCodec.encodeThread(thread).length;
+            long t2 = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                sink += mapper.readValue(json, ChanThread.class).posts.length;
+            long t3 = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                sink += ChanRecordCodec.readThread(record).posts.length;
+            long t4 = System.nanoTime();
+            storeJson = Math.min(storeJson, t1 - t0);
+            storeRecord = Math.min(storeRecord, t2 - t1);
+            loadJson = Math.min(loadJson, t3 - t2);
+            loadRecord = Math.min(loadRecord, t4 - t3);
+        }
+        System.out.println("ChanRecordCodec " + THREAD_POSTS + " post thread: " + json.length() / 1024 + " -> "
+                + record.length() / 1024 + "KB, encode " + storeJson / BENCHMARK_ROUNDS / 1000 + " -> "
+                + storeRecord / BENCHMARK_ROUNDS / 1000 + "us, load " + loadJson / BENCHMARK_ROUNDS / 1000 + " -> "
+                + loadRecord / BENCHMARK_ROUNDS / 1000 + "us (" + sink + ")");
+        assertTrue(record.length() < json.length());
+        assertTrue("load " + loadRecord + "ns not faster than json " + loadJson + "ns", loadRecord < loadJson);
+        assertTrue("encode " + storeRecord + "ns not faster than json " + storeJson + "ns", storeRecord < storeJson);
+    }
+
+}
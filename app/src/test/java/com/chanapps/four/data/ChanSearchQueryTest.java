@@ -0,0 +1,167 @@
+package com.chanapps.four.data;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks matching and highlighting of compiled searches, and times them against the regex compiled per post they
+ * replaced on a synthetic 1000 post thread.
+ */
+public class ChanSearchQueryTest {
+
+    private static final String[] WORDS =
+            "the quick brown fox jumps over lazy dog anime thread bump sage op image source nice kek based".split(" ");
+    private static final int POSTS = 1000;
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    private static ChanPost post(long no, String sub, String com) {
+        ChanPost post = new ChanPost();
+        post.no = no;
+        post.name = "Anonymous";
+        post.sub = sub;
+        post.com = com;
+        return post;
+    }
+
+    private static ChanPost[] thread() {
+        Random random = new Random(14);
+        ChanPost[] posts = new ChanPost[POSTS];
+        for (int i = 0; i < POSTS; i++) {
+            StringBuilder sb = new StringBuilder();
+            int words = 10 + random.nextInt(60);
+            for (int j = 0; j < words; j++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                sb.append(random.nextInt(10) == 0 ? word.toUpperCase() : word).append(j % 12 == 11 ? "<br>" : " ");
+            }
+            posts[i] = post(40000000 + i * 7, i % 10 == 0 ? "Thread " + i : null, sb.toString());
+        }
+        return posts;
+    }
+
+    private static String highlight(String query, String html) {
+        return ChanSearchQuery.compile(query).highlight(html, "[", "]");
+    }
+
+    @Test
+    public void termsArePlainText() {
+        assertEquals("I like [c++] [(]and) it", highlight("c++ (", "I like c++ (and) it"));
+        assertTrue(ChanSearchQuery.compile("a.b").matches(post(1, null, "a.b")));
+        assertFalse(ChanSearchQuery.compile("a.b").matches(post(1, null, "axb")));
+    }
+
+    @Test
+    public void phrasesAndNegation() {
+        ChanPost post = post(123456, "Lazy Dog", "the quick brown fox");
+        assertTrue(ChanSearchQuery.compile("\"lazy dog\" fox").matches(post));
+        assertFalse(ChanSearchQuery.compile("\"dog lazy\"").matches(post));
+        assertFalse(ChanSearchQuery.compile("fox -brown").matches(post));
+        assertTrue(ChanSearchQuery.compile("fox -sage").matches(post));
+        assertTrue(ChanSearchQuery.compile("3456").matches(post));
+        assertFalse(ChanSearchQuery.compile("fox cat").matches(post));
+        assertTrue(ChanSearchQuery.compile("  ").matches(post));
+    }
+
+    @Test
+    public void caseFolding() {
+        assertEquals("[FOX] and [fox] and [FoX]", highlight("fOx", "FOX and fox and FoX"));
+        assertTrue(ChanSearchQuery.compile("ANIME").matches(post(1, null, "anime")));
+        assertEquals("[\u00c9T\u00c9] [\u00e9t\u00e9]", highlight("\u00e9t\u00e9", "\u00c9T\u00c9 \u00e9t\u00e9"));
+        assertEquals("[\u0394\u03b5\u03bb\u03c4\u03b1]",
+                highlight("\u03b4\u0395\u039b\u03a4\u0391", "\u0394\u03b5\u03bb\u03c4\u03b1"));
+    }
+
+    @Test
+    public void nonAsciiText() {
+        String html = "\u65e5\u672c\u8a9e\u306e\u30b9\u30ec\u30c3\u30c9 \u0441\u043f\u0430\u0441\u0438\u0431\u043e";
+        assertEquals("\u65e5\u672c\u8a9e\u306e[\u30b9\u30ec\u30c3\u30c9] [\u0441\u043f\u0430\u0441\u0438\u0431\u043e]",
+                highlight("\u30b9\u30ec\u30c3\u30c9 \u0421\u041f\u0410\u0421\u0418\u0411\u041e", html));
+        assertTrue(ChanSearchQuery.compile("\u672c\u8a9e").matches(post(1, null, html)));
+        assertFalse(ChanSearchQuery.compile("\u672c\u30b9").matches(post(1, null, html)));
+    }
+
+    @Test
+    public void overlappingMatchesMerge() {
+        assertEquals("[abcd] x", highlight("abc bcd", "abcd x"));
+        assertEquals("[aaaa]", highlight("aa", "aaaa"));
+        assertEquals("[she] [hers]", highlight("he she hers", "she hers"));
+        assertArrayEquals(new int[] { 0, 4, 5, 8 }, ChanSearchQuery.compile("ab bcd ef fg").find("abcd efg"));
+        assertArrayEquals(new int[] { 0, 3 }, ChanSearchQuery.compile("a ab abc").find("abc"));
+    }
+
+    @Test
+    public void entitiesAreDecoded() {
+        String html = "<a href=\"#p1\" class=\"quotelink\">&gt;&gt;1</a> it&#039;s R&amp;D &quot;quoted&quot; &lt;3";
+        ChanPost post = post(2, null, html);
+        assertTrue(ChanSearchQuery.compile(">>1").matches(post));
+        assertTrue(ChanSearchQuery.compile("it's").matches(post));
+        assertTrue(ChanSearchQuery.compile("r&d").matches(post));
+        assertFalse(ChanSearchQuery.compile("quotelink").matches(post));
+        assertFalse(ChanSearchQuery.compile("amp").matches(post));
+        assertEquals("<a href=\"#p1\" class=\"quotelink\">[&gt;&gt;1]</a> [it&#039;s] [R&amp;D] &quot;quoted&quot; "
+                + "[&lt;]3", highlight(">>1 it's r&d <", html));
+        assertEquals("sa[y&quot;hi&quot;]", highlight("y\"hi\"", "say&quot;hi&quot;"));
+        assertEquals("[&amp;]amp;", highlight("&", "&amp;amp;"));
+        assertEquals("&amp;", highlight("amp", "&amp;"));
+        assertEquals("a [&] b [&]unknown;", highlight("&", "a & b &unknown;"));
+    }
+
+    @Test
+    public void highlightAgreesWithMatches() {
+        for (String query : new String[] { "fox", "BUMP", "\"lazy dog\"", "zzz" }) {
+            ChanSearchQuery q = ChanSearchQuery.compile(query);
+            for (ChanPost post : thread()) {
+                boolean highlighted = !q.highlight(post.com, "[", "]").equals(post.com)
+                        || post.sub != null && !q.highlight(post.sub, "[", "]").equals(post.sub);
+                assertEquals(query + " in " + post.no, q.matches(post), highlighted); // single terms or a phrase
+            }
+        }
+    }
+
+    @Test
+    public void fasterThanRegexPerPost() {
+        ChanPost[] posts = thread();
+        String query = "fox";
+        String replace = "<b><font color=\"#aaa268\">$1</font></b>";
+        ChanSearchQuery compiled = ChanSearchQuery.compile(query);
+        long regexNs = Long.MAX_VALUE;
+        long compiledNs = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < 5; round++) { // the best of five, the first warms up
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                for (ChanPost post : posts)
+                    if (post.com.toLowerCase().contains(query)) {
+                        Pattern escaped = Pattern.compile("(?i)(" + Pattern.quote(query) + ")"); // per post, as before
+                        sink += escaped.matcher(post.com).replaceAll(replace).length();
+                    }
+            long middle = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+                for (ChanPost post : posts)
+                    if (compiled.matches(post))
+                        sink += compiled.highlight(post.com, "<b><font color=\"#aaa268\">", "</font></b>").length();
+            long end = System.nanoTime();
+            regexNs = Math.min(regexNs, middle - start);
+            compiledNs = Math.min(compiledNs, end - middle);
+        }
+        System.out.println("ChanSearchQuery " + POSTS + " posts: regex per post " + regexNs / BENCHMARK_ROUNDS / 1000
+                + "us, compiled " + compiledNs / BENCHMARK_ROUNDS / 1000 + "us (" + sink + ")");
+        assertTrue("compiled " + compiledNs + "ns not faster than regex per post " + regexNs + "ns",
+                compiledNs < regexNs);
+    }
+
+    @Test
+    public void findOffsetsAreSorted() {
+        int[] spans = ChanSearchQuery.compile("o e").find("one two three four");
+        for (int i = 1; i < spans.length; i++)
+            assertTrue(Arrays.toString(spans), spans[i - 1] < spans[i]);
+    }
+
+}
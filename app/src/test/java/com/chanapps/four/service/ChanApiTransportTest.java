@@ -0,0 +1,310 @@
+package com.chanapps.four.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.chanapps.four.data.FetchParams;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the transport against a local http server that answers like the api: gzip when asked, validators on
+ * every response and 304 when they match.
+ */
+public class ChanApiTransportTest {
+
+    private static final String ETAG = "\"5f3a-1\"";
+    private static final String LAST_MODIFIED = "Sat, 17 Oct 2026 19:00:00 GMT";
+    private static final FetchParams FETCH_PARAMS = new FetchParams(0, 0, 5, 5, 0, 0);
+
+    private HttpServer server;
+    private File cacheDir;
+    private final List<Headers> requests = Collections.synchronizedList(new ArrayList<Headers>());
+
+    private static byte[] json(int posts) {
+        StringBuilder sb = new StringBuilder("{\"posts\":[");
+        for (int i = 0; i < posts; i++)
+            sb.append(i == 0 ? "" : ",").append("{\"no\":").append(1000 + i).append(",\"com\":\"reply number ")
+                    .append(i).append("\"}");
+        return sb.append("]}").toString().getBytes();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = File.createTempFile("transport", "");
+        assertTrue(cacheDir.delete() && cacheDir.mkdir());
+        ChanApiTransport.forgetValidators();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/thread", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestHeaders());
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(ChanApiTransport.HTTP_NOT_MODIFIED, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = json(200);
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+                    GZIPOutputStream out = new GZIPOutputStream(gzipped);
+                    out.write(body);
+                    out.close();
+                    body = gzipped.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                send(exchange, 200, body);
+            }
+        });
+        server.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestHeaders());
+                exchange.getResponseHeaders().set("Content-Type", "text/html");
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                send(exchange, 404, "<html>404 Not Found</html>".getBytes());
+            }
+        });
+        server.createContext("/plain", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestHeaders());
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                send(exchange, 200, json(50));
+            }
+        });
+        server.start();
+    }
+
+    private static void send(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        ChanApiTransport.forgetValidators();
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private Headers lastRequest() {
+        return requests.get(requests.size() - 1);
+    }
+
+    private static byte[] read(ChanApiTransport.Response response) throws IOException {
+        InputStream in = response.body();
+        try {
+            return IOUtils.toByteArray(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, false, 0);
+        try {
+            assertEquals(200, response.code);
+            assertTrue(response.isOk());
+            assertTrue(response.isJson());
+            assertEquals("gzip", lastRequest().getFirst("Accept-Encoding"));
+            byte[] body = read(response);
+            assertEquals(new String(json(200)), new String(body));
+            assertEquals(body.length, response.bodyBytes());
+            assertTrue("wire " + response.wireBytes() + " not below body " + response.bodyBytes(),
+                    response.wireBytes() > 0 && response.wireBytes() < response.bodyBytes());
+        }
+        finally {
+            response.close();
+        }
+        assertTrue(response.elapsedMs() >= response.headersMs());
+    }
+
+    @Test
+    public void uncompressedBody() throws IOException {
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/plain"), FETCH_PARAMS, false, 0);
+        try {
+            byte[] body = read(response);
+            assertEquals(new String(json(50)), new String(body));
+            assertEquals(response.wireBytes(), response.bodyBytes());
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void notModifiedOnRevalidation() throws IOException {
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, true, 0);
+        try {
+            assertEquals(200, response.code);
+            assertNull(lastRequest().getFirst("If-None-Match"));
+            read(response);
+            response.saveValidators();
+        }
+        finally {
+            response.close();
+        }
+
+        response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, true, 0);
+        try {
+            assertEquals(ETAG, lastRequest().getFirst("If-None-Match"));
+            assertEquals(LAST_MODIFIED, lastRequest().getFirst("If-Modified-Since"));
+            assertTrue(response.isNotModified());
+            assertFalse(response.isOk());
+        }
+        finally {
+            response.close();
+        }
+
+        // an unconditional request, like a pull to refresh, sends no validators and gets the full body
+        response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, false, 0);
+        try {
+            assertNull(lastRequest().getFirst("If-None-Match"));
+            assertEquals(200, response.code);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void validatorsNotSavedUntilAsked() throws IOException {
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, true, 0);
+        try {
+            read(response); // not stored, so no saveValidators()
+        }
+        finally {
+            response.close();
+        }
+        response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, true, 0);
+        try {
+            assertNull(lastRequest().getFirst("If-None-Match"));
+            assertEquals(200, response.code);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void ifModifiedSinceWithoutValidators() throws IOException {
+        long lastFetched = 1760727600000L; // Fri, 17 Oct 2025 19:00:00 GMT
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/plain"), FETCH_PARAMS, true,
+                lastFetched);
+        try {
+            assertEquals("Fri, 17 Oct 2025 19:00:00 GMT", lastRequest().getFirst("If-Modified-Since"));
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void notFoundClosedWithUnreadBody() throws IOException {
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/missing"), FETCH_PARAMS, false, 0);
+        assertEquals(404, response.code);
+        assertFalse(response.isOk());
+        assertFalse(response.isJson());
+        response.saveValidators(); // ignored for an error
+        response.close();
+        response.close(); // closing twice is harmless
+
+        // the connection is still usable for the next request
+        response = ChanApiTransport.get(cacheDir, url("/missing"), FETCH_PARAMS, true, 0);
+        try {
+            assertNull(lastRequest().getFirst("If-None-Match"));
+            assertEquals(404, response.code);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void okClosedWithUnreadBody() throws IOException {
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, false, 0);
+        assertEquals(200, response.code);
+        response.close();
+        assertEquals(0, response.bodyBytes());
+
+        response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, false, 0);
+        try {
+            assertEquals(new String(json(200)), new String(read(response)));
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void validatorsPersistAcrossRestart() throws IOException {
+        ChanApiTransport.Response response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, true, 0);
+        try {
+            read(response);
+            response.saveValidators();
+        }
+        finally {
+            response.close();
+        }
+        ChanApiTransport.saveValidators();
+        assertTrue(new File(cacheDir, "http_validators.dat").exists());
+
+        ChanApiTransport.forgetValidators(); // as after a restart, read back from the file
+        response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, true, 0);
+        try {
+            assertEquals(ETAG, lastRequest().getFirst("If-None-Match"));
+            assertEquals(LAST_MODIFIED, lastRequest().getFirst("If-Modified-Since"));
+            assertTrue(response.isNotModified());
+        }
+        finally {
+            response.close();
+        }
+
+        // a corrupt file is ignored, requests go out without validators
+        ChanApiTransport.forgetValidators();
+        FileUtils.writeStringToFile(new File(cacheDir, "http_validators.dat"), "garbage");
+        response = ChanApiTransport.get(cacheDir, url("/thread"), FETCH_PARAMS, true, 0);
+        try {
+            assertNull(lastRequest().getFirst("If-None-Match"));
+            assertEquals(200, response.code);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+}
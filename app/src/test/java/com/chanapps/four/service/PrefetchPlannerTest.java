@@ -0,0 +1,142 @@
+package com.chanapps.four.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.chanapps.four.data.ChanPrefetchStat;
+import com.chanapps.four.service.PrefetchPlanner.Budget;
+import com.chanapps.four.service.PrefetchPlanner.Candidate;
+import com.chanapps.four.service.PrefetchPlanner.Kind;
+import com.chanapps.four.service.PrefetchPlanner.Starter;
+import com.chanapps.four.service.profile.NetworkProfile.Health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks where the planner cuts off candidates for the byte and time budget of a run.
+ */
+public class PrefetchPlannerTest {
+
+    private static final long NOW = 1390000000000L;
+    private static final Budget METERED = new Budget(512 * 1024, 20000);
+
+    /** Starts everything except the keys it was given. */
+    private static class Fresh implements Starter {
+        final Set<String> fresh;
+
+        Fresh(String... fresh) {
+            this.fresh = new HashSet<String>(Arrays.asList(fresh));
+        }
+
+        @Override
+        public boolean start(Candidate candidate) {
+            return !fresh.contains(candidate.key());
+        }
+    }
+
+    private static Candidate candidate(Kind kind, String boardCode, long threadNo, double probability) {
+        Candidate candidate = new Candidate(kind, boardCode, threadNo);
+        candidate.probability = probability;
+        return candidate;
+    }
+
+    /** Catalogs a to h, then threads of a. */
+    private static List<Candidate> catalogsThenThreads() {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (char c = 'a'; c <= 'h'; c++)
+            candidates.add(candidate(Kind.CATALOG, String.valueOf(c), 0, 0.1));
+        for (int i = 1; i <= 3; i++)
+            candidates.add(candidate(Kind.THREAD, "a", i, 0.05));
+        return candidates;
+    }
+
+    private static List<String> keys(List<Candidate> candidates) {
+        List<String> keys = new ArrayList<String>();
+        for (Candidate candidate : candidates)
+            keys.add(candidate.key());
+        return keys;
+    }
+
+    @Test
+    public void cutOffByBytes() {
+        // 80kB catalogs at 300kB/s, six fit in 512kB and a 24kB thread after them
+        List<Candidate> started = PrefetchPlanner.startWithin(catalogsThenThreads(), METERED, Health.PERFECT,
+                new ChanPrefetchStat(), true, NOW, new Fresh());
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "a/1"), keys(started));
+    }
+
+    @Test
+    public void cutOffByTime() {
+        // a catalog takes about 4.3s and a thread 2s at 25kB/s and a 1s round trip, 20s hold four and a thread
+        List<Candidate> started = PrefetchPlanner.startWithin(catalogsThenThreads(), METERED, Health.SLOW,
+                new ChanPrefetchStat(), true, NOW, new Fresh());
+        assertEquals(Arrays.asList("a", "b", "c", "d", "a/1"), keys(started));
+    }
+
+    @Test
+    public void emptyBudgetStartsNothing() {
+        List<Candidate> started = PrefetchPlanner.startWithin(catalogsThenThreads(), new Budget(0, 0), Health.PERFECT,
+                new ChanPrefetchStat(), true, NOW, new Fresh());
+        assertTrue(started.isEmpty());
+    }
+
+    @Test
+    public void freshCandidatesCostNothing() {
+        List<Candidate> started = PrefetchPlanner.startWithin(catalogsThenThreads(), METERED, Health.PERFECT,
+                new ChanPrefetchStat(), true, NOW, new Fresh("a", "b"));
+        assertEquals(Arrays.asList("c", "d", "e", "f", "g", "h", "a/1"), keys(started));
+    }
+
+    @Test
+    public void unlikelyCandidatesAreSkipped() {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(candidate(Kind.CATALOG, "a", 0, 0.01));
+        candidates.add(candidate(Kind.CATALOG, "b", 0, 0.5));
+        candidates.add(candidate(Kind.THUMBNAILS, "b", 0, 0.5)); // no urls, no bytes
+        List<Candidate> started = PrefetchPlanner.startWithin(candidates, METERED, Health.PERFECT,
+                new ChanPrefetchStat(), true, NOW, new Fresh());
+        assertEquals(Arrays.asList("b"), keys(started));
+    }
+
+    @Test
+    public void pendingPrefetchesAreLeftOffUnmetered() {
+        ChanPrefetchStat stats = new ChanPrefetchStat();
+        stats.prefetched("a", 80 * 1024, NOW - 60000);
+        List<Candidate> started = PrefetchPlanner.startWithin(catalogsThenThreads(), METERED, Health.PERFECT,
+                stats, false, NOW, new Fresh());
+        assertEquals(Arrays.asList("b", "c", "d", "e", "f", "g", "a/1"), keys(started));
+        started = PrefetchPlanner.startWithin(catalogsThenThreads(), METERED, Health.PERFECT,
+                stats, true, NOW, new Fresh());
+        assertEquals("a", started.get(0).key());
+    }
+
+    @Test
+    public void startedAreRecorded() {
+        ChanPrefetchStat stats = new ChanPrefetchStat();
+        PrefetchPlanner.startWithin(catalogsThenThreads(), METERED, Health.PERFECT, stats, true, NOW, new Fresh());
+        assertEquals(7, stats.prefetched);
+        assertEquals((6 * 80 + 24) * 1024, stats.prefetchedBytes);
+        assertTrue(stats.isPending("f", NOW));
+        assertTrue(stats.isPending(ChanPrefetchStat.threadKey("a", 1), NOW));
+        assertFalse(stats.isPending("g", NOW));
+    }
+
+    @Test
+    public void budgetValues() {
+        assertEquals(512, PrefetchPlanner.budgetValue(null, 512));
+        assertEquals(2048, PrefetchPlanner.budgetValue("2048", 512));
+        assertEquals(30, PrefetchPlanner.budgetValue(" 30 ", 20));
+        assertEquals(0, PrefetchPlanner.budgetValue("", 512));
+        assertEquals(512, PrefetchPlanner.budgetValue("lots", 512));
+        assertEquals(100, PrefetchPlanner.budgetValue(100, 512)); // stored as an int
+        assertEquals(512, PrefetchPlanner.budgetValue(true, 512));
+    }
+
+}
@@ -0,0 +1,222 @@
+package com.chanapps.four.service.profile;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.chanapps.four.service.profile.NetworkProfile.Health;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the estimator synthetic traces of what a session reports: 304s, small api responses timed to the first
+ * byte and images timed as a whole, with jitter and network failures.
+ */
+public class NetworkEstimatorTest {
+
+    private static final int SAMPLES = 400;
+    private static final long SAMPLE_INTERVAL_MS = 5000;
+
+    /** Health seen after each sample of a trace. */
+    private static class Trace {
+        final Map<Health, Integer> counts = new EnumMap<Health, Integer>(Health.class);
+        int changes;
+
+        int count(Health health) {
+            return counts.containsKey(health) ? counts.get(health) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "changes=" + changes + " " + counts;
+        }
+    }
+
+    /**
+     * @param bandwidth kB/s
+     * @param rtt ms, a request takes two round trips to its first byte
+     * @param loss share of transfers failing on the network
+     */
+    private static Trace trace(NetworkEstimator estimator, double bandwidth, double rtt, double loss, long seed) {
+        Random random = new Random(seed);
+        Trace trace = new Trace();
+        Health previous = null;
+        long now = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            now += SAMPLE_INTERVAL_MS;
+            double jitter = Math.exp(random.nextGaussian() * 0.4);
+            int kind = random.nextInt(10);
+            int firstByte = (int)(rtt * 2 * jitter);
+            if (random.nextDouble() < loss) {
+                estimator.failed(now);
+            }
+            else if (kind < 5) { // 304 on a board or thread
+                estimator.transferred(firstByte, 0, firstByte, now);
+            }
+            else if (kind < 8) { // api response, 3-20kB
+                int size = 3000 + random.nextInt(17000);
+                estimator.transferred(firstByte + (int)(size / (bandwidth * jitter)), size, firstByte, now);
+            }
+            else { // image, 50-800kB
+                int size = 50000 + random.nextInt(750000);
+                estimator.transferred(firstByte + (int)(size / (bandwidth * jitter)), size, -1, now);
+            }
+            Health health = estimator.getHealth(Health.GOOD);
+            if (previous != null && health != previous)
+                trace.changes++;
+            previous = health;
+            trace.counts.put(health, trace.count(health) + 1);
+        }
+        return trace;
+    }
+
+    @Test
+    public void wifiSettlesOnPerfect() {
+        Trace trace = trace(new NetworkEstimator(), 400, 60, 0, 42);
+        assertTrue(trace.toString(), trace.changes <= 2);
+        assertTrue(trace.toString(), trace.count(Health.PERFECT) >= SAMPLES * 95 / 100);
+    }
+
+    @Test
+    public void mobileLatencyOnBoundaryDoesNotFlap() {
+        // 700ms to the first byte on average sits on the 800ms boundary between SLOW and GOOD
+        Trace trace = trace(new NetworkEstimator(), 120, 350, 0.01, 42);
+        assertTrue(trace.toString(), trace.changes <= 10);
+        assertEquals(trace.toString(), SAMPLES, trace.count(Health.SLOW) + trace.count(Health.GOOD));
+    }
+
+    @Test
+    public void edgeStaysSlow() {
+        Trace trace = trace(new NetworkEstimator(), 20, 900, 0.03, 42);
+        assertTrue(trace.toString(), trace.changes <= 10);
+        assertTrue(trace.toString(), trace.count(Health.SLOW) + trace.count(Health.VERY_SLOW) >= SAMPLES * 98 / 100);
+        assertEquals(trace.toString(), 0, trace.count(Health.PERFECT));
+    }
+
+    @Test
+    public void lossyWifiKeepsItsLevel() {
+        Trace trace = trace(new NetworkEstimator(), 400, 60, 0.15, 42);
+        assertTrue(trace.toString(), trace.changes <= 12);
+        assertTrue(trace.toString(), trace.count(Health.PERFECT) >= SAMPLES * 90 / 100);
+        assertTrue(trace.toString(), trace.count(Health.BAD) < SAMPLES * 5 / 100);
+    }
+
+    @Test
+    public void throughputOnBoundaryDoesNotFlap() {
+        // images only, the throughput wanders around the 50kB/s boundary between SLOW and GOOD
+        NetworkEstimator estimator = new NetworkEstimator();
+        Random random = new Random(7);
+        Health previous = null;
+        int changes = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double kbs = 50 * (1 + 0.15 * random.nextGaussian());
+            int size = 300000;
+            estimator.transferred((int)(size / kbs), size, -1, i * SAMPLE_INTERVAL_MS);
+            Health health = estimator.getHealth(Health.GOOD);
+            if (previous != null && health != previous)
+                changes++;
+            previous = health;
+        }
+        assertTrue("changes=" + changes, changes <= 4);
+    }
+
+    @Test
+    public void notModifiedDoesNotFeedThroughput() {
+        NetworkEstimator estimator = new NetworkEstimator();
+        long now = 0;
+        for (int i = 0; i < 10; i++)
+            estimator.transferred(1000, 300000, 100, now += 1000);
+        double throughput = estimator.getThroughput();
+        assertEquals(300000.0 / 900, throughput, 0.001);
+        for (int i = 0; i < 50; i++) {
+            estimator.transferred(100, 0, 100, now += 1000); // 304, headers only
+            estimator.transferred(3000, 0, -1, now += 1000); // 304 without a first byte time
+            estimator.transferred(2000, 4000, 1900, now += 1000); // small response
+        }
+        assertEquals(throughput, estimator.getThroughput(), 0);
+        assertTrue(estimator.getLatency() > 1000);
+    }
+
+    @Test
+    public void defaultUntilEnoughSamples() {
+        NetworkEstimator estimator = new NetworkEstimator();
+        assertEquals(Health.GOOD, estimator.getHealth(Health.GOOD));
+        estimator.transferred(5000, 0, 5000, 1000);
+        assertEquals(Health.SLOW, estimator.getHealth(Health.SLOW));
+        estimator.transferred(5000, 0, 5000, 2000);
+        assertEquals(Health.VERY_SLOW, estimator.getHealth(Health.PERFECT));
+    }
+
+    @Test
+    public void failuresEnterAndLeaveBad() {
+        NetworkEstimator estimator = new NetworkEstimator();
+        long now = 0;
+        for (int i = 0; i < 10; i++)
+            estimator.transferred(130, 5000, 120, now += 1000);
+        assertEquals(Health.PERFECT, estimator.getHealth(Health.GOOD));
+
+        estimator.failed(now += 1000); // a single failure is noise
+        assertEquals(Health.PERFECT, estimator.getHealth(Health.GOOD));
+        for (int i = 0; i < 10; i++) // until it is forgotten
+            estimator.transferred(130, 5000, 120, now += 1000);
+
+        int failures = 0;
+        while (estimator.getHealth(Health.GOOD) != Health.BAD) {
+            estimator.failed(now += 1000);
+            assertTrue("not BAD after " + failures + " failures", ++failures <= 4);
+        }
+        assertTrue(failures >= 3);
+
+        int successes = 0;
+        while (estimator.getHealth(Health.GOOD) == Health.BAD) {
+            estimator.transferred(130, 5000, 120, now += 1000);
+            assertTrue("still BAD after " + successes + " successes", ++successes <= 4);
+        }
+        assertTrue(successes >= 2); // not left on the first success
+        assertEquals(Health.PERFECT, estimator.getHealth(Health.GOOD));
+    }
+
+    @Test
+    public void stepFromWifiToEdgeDegrades() {
+        NetworkEstimator estimator = new NetworkEstimator();
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            estimator.transferred(130, 5000, 120, now += 1000);
+            estimator.transferred(1000, 300000, -1, now += 1000);
+        }
+        assertEquals(Health.PERFECT, estimator.getHealth(Health.GOOD));
+        int transfers = 0;
+        while (estimator.getHealth(Health.GOOD) == Health.PERFECT || estimator.getHealth(Health.GOOD) == Health.GOOD) {
+            estimator.transferred(1900, 5000, 1800, now += 1000);
+            estimator.transferred(15000, 300000, -1, now += 1000);
+            transfers += 2;
+            assertTrue("still good after " + transfers + " edge transfers", transfers <= 12);
+        }
+        for (int i = 0; i < 20; i++) {
+            estimator.transferred(1900, 5000, 1800, now += 1000);
+            estimator.transferred(15000, 300000, -1, now += 1000);
+        }
+        // 20kB/s and 1.8s to the first byte
+        assertEquals(Health.SLOW, estimator.getHealth(Health.GOOD));
+        assertEquals(20, estimator.getThroughput(), 2);
+    }
+
+    @Test
+    public void expiresAfterInactivity() {
+        NetworkEstimator estimator = new NetworkEstimator();
+        estimator.transferred(5000, 0, 5000, 1000);
+        estimator.transferred(5000, 0, 5000, 2000);
+        assertEquals(Health.VERY_SLOW, estimator.getHealth(Health.GOOD));
+        estimator.expire(60000);
+        assertEquals(Health.VERY_SLOW, estimator.getHealth(Health.GOOD));
+        estimator.expire(2000 + 11 * 60000);
+        assertEquals(Health.GOOD, estimator.getHealth(Health.GOOD));
+        assertEquals(0, estimator.getLatency(), 0);
+        assertFalse(estimator.toString().contains("failing"));
+    }
+
+}